@@ -0,0 +1,365 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * AdaptiveJoin performs the joins of a query, and re-plans them while they
+ * run when the optimizer's estimates turn out to be badly wrong, as they are
+ * for filters on correlated fields. The build (outer) side of a
+ * {@link HashEquiJoin} is read in full before any of the join's output is
+ * produced, which makes it a checkpoint: the joins are run a build side at
+ * a time, starting with the first one the plan reaches, and each build side
+ * is kept in memory and counted. When its cardinality is off from the
+ * estimate by {@link #REOPTIMIZE_FACTOR} or more, the {@link JoinOptimizer}
+ * orders the joins left to be done again, with every build side read so
+ * far as a relation of known cardinality (see
+ * {@link JoinOptimizer#addIntermediateResult}). The work done so far is
+ * kept, and the plan for the rest of the query is chosen with the true
+ * counts.
+ * <p>
+ * The tuples are returned with the fields in the order of the plan the
+ * optimizer chose first, whatever order the joins end up in.
+ * <p>
+ * A build side larger than {@link #MAX_CHECKPOINT_TUPLES} is not kept:
+ * the joins that are left are then run as planned, and the build side is
+ * read again.
+ */
+public class AdaptiveJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The joins are re-planned when a build side has this many times more or
+     * fewer tuples than estimated
+     */
+    static final double REOPTIMIZE_FACTOR = 4.0;
+
+    /** The most tuples of a build side that are kept in memory */
+    static final int MAX_CHECKPOINT_TUPLES = 10 * HashEquiJoin.MAP_SIZE;
+
+    private final LogicalPlan lp;
+    private final LogicalJoinTree tree;
+    private final Vector<LogicalJoinNode> joins;
+    private final HashMap<String, TableStats> stats;
+    private final HashMap<String, Double> filterSelectivities;
+    private final String[] aliases;
+    private OpIterator[] inputs;
+    private final TupleDesc td;
+    private OpIterator plan;
+
+    /** The relations of the plan being run: the tables, and the build sides read so far, by name */
+    private transient HashMap<String, OpIterator> relations;
+    /** The tables in each relation, in the order of its fields */
+    private transient HashMap<String, List<String>> tablesOf;
+    /** The relation each table is in */
+    private transient HashMap<String, String> relationOf;
+    /** The relations that are build sides read so far, with their cardinalities */
+    private transient HashMap<String, Integer> readCards;
+    /** For each field of the returned tuples, the field of the plan's tuples it is, or null if they are the same */
+    private transient int[] fieldMap;
+    private transient int reoptimizations;
+    private transient LogicalJoinTree current;
+
+    /**
+     * Constructor.
+     *
+     * @param lp
+     *            the logical plan of the query
+     * @param tree
+     *            the join tree the optimizer chose, whose leaves are the
+     *            tables with the given aliases; it joins no subqueries
+     * @param stats
+     *            the statistics of the tables, by table name
+     * @param filterSelectivities
+     *            the selectivities of the filters on each table, by alias
+     * @param aliases
+     *            the aliases of the tables joined
+     * @param inputs
+     *            the plans of the tables, with their filters, in the order
+     *            of the aliases
+     * @throws ParsingException
+     *             if the joins of the tree are not on fields of the tables
+     */
+    public AdaptiveJoin(LogicalPlan lp, LogicalJoinTree tree, HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, String[] aliases, OpIterator[] inputs)
+            throws ParsingException {
+        this.lp = lp;
+        this.tree = tree;
+        this.joins = tree.getJoins();
+        this.stats = stats;
+        this.filterSelectivities = filterSelectivities;
+        this.aliases = aliases;
+        this.inputs = inputs;
+        this.plan = instantiate(tree, inputsByAlias());
+        this.td = plan.getTupleDesc();
+    }
+
+    private HashMap<String, OpIterator> inputsByAlias() {
+        HashMap<String, OpIterator> m = new HashMap<String, OpIterator>();
+        for (int i = 0; i < aliases.length; i++)
+            m.put(aliases[i], inputs[i]);
+        return m;
+    }
+
+    /** Instantiate the joins of a tree over the plans of its relations */
+    private static OpIterator instantiate(LogicalJoinTree t, Map<String, OpIterator> relations)
+            throws ParsingException {
+        if (t.isLeaf())
+            return relations.get(t.alias);
+        return JoinOptimizer.instantiateJoin(t.join, instantiate(t.left, relations),
+                instantiate(t.right, relations));
+    }
+
+    /** @return the aliases of the tables joined */
+    public String[] getAliases() {
+        return aliases;
+    }
+
+    /**
+     * @return the plans of the tables joined, in the order of
+     *         {@link #getAliases}
+     */
+    public OpIterator[] getInputs() {
+        return inputs;
+    }
+
+    /** Set the plans of the tables joined, in the order of {@link #getAliases} */
+    public void setInputs(OpIterator[] inputs) {
+        this.inputs = inputs;
+        try {
+            this.plan = instantiate(tree, inputsByAlias());
+        } catch (ParsingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /** @return the join tree the optimizer chose first */
+    public LogicalJoinTree getInitialJoinTree() {
+        return tree;
+    }
+
+    /**
+     * @return the join tree being run, whose leaves may be build sides read
+     *         already, or the join tree the optimizer chose first if the
+     *         operator has not been opened
+     */
+    public LogicalJoinTree getJoinTree() {
+        return current == null ? tree : current;
+    }
+
+    /** @return the number of times the joins were re-planned when last opened */
+    public int getReoptimizations() {
+        return reoptimizations;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        relations = inputsByAlias();
+        tablesOf = new HashMap<String, List<String>>();
+        relationOf = new HashMap<String, String>();
+        readCards = new HashMap<String, Integer>();
+        for (String alias : aliases) {
+            tablesOf.put(alias, Collections.singletonList(alias));
+            relationOf.put(alias, alias);
+        }
+        reoptimizations = 0;
+        current = tree;
+        try {
+            LogicalJoinTree build;
+            while ((build = nextCheckpoint(current)) != null) {
+                OpIterator it = instantiate(build, relations);
+                ArrayList<Tuple> tuples = read(it);
+                if (tuples == null)
+                    break;
+                String name = addBuildSide(build, it.getTupleDesc(), tuples);
+                if (isMisestimate(build.card, tuples.size())) {
+                    current = replan();
+                    reoptimizations++;
+                } else {
+                    current = replace(current, build,
+                            new LogicalJoinTree(name, tuples.size(), tuples.size()));
+                }
+            }
+            plan = instantiate(current, relations);
+        } catch (ParsingException e) {
+            throw new DbException("Cannot re-plan the joins: " + e.getMessage());
+        }
+        fieldMap = fieldMap(current);
+        plan.open();
+        super.open();
+    }
+
+    /**
+     * @return the build side of the first hash join the plan reaches that
+     *         has not been read, or null if there is none
+     */
+    private LogicalJoinTree nextCheckpoint(LogicalJoinTree t) {
+        if (t.isLeaf())
+            return null;
+        LogicalJoinTree b = nextCheckpoint(t.left);
+        if (b == null)
+            b = nextCheckpoint(t.right);
+        if (b == null && JoinOptimizer.isHashJoin(t.join)
+                && !(t.left.isLeaf() && readCards.containsKey(t.left.alias)))
+            b = t.left;
+        return b;
+    }
+
+    /**
+     * Run the plan of a build side, and return its tuples, or null if there
+     * are more than {@link #MAX_CHECKPOINT_TUPLES} of them.
+     */
+    private static ArrayList<Tuple> read(OpIterator it) throws DbException,
+            TransactionAbortedException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        it.open();
+        try {
+            while (it.hasNext()) {
+                if (tuples.size() == MAX_CHECKPOINT_TUPLES)
+                    return null;
+                tuples.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        return tuples;
+    }
+
+    /**
+     * Make a build side that has been read a relation of its own, in place
+     * of the relations it joins.
+     *
+     * @return the name of the relation: the alias of its first table
+     */
+    private String addBuildSide(LogicalJoinTree build, TupleDesc buildTd, ArrayList<Tuple> tuples) {
+        ArrayList<String> tables = new ArrayList<String>();
+        for (String r : leaves(build, new ArrayList<String>())) {
+            tables.addAll(tablesOf.remove(r));
+            relations.remove(r);
+            readCards.remove(r);
+        }
+        String name = tables.get(0);
+        for (String alias : tables)
+            relationOf.put(alias, name);
+        tablesOf.put(name, tables);
+        relations.put(name, new TupleIterator(buildTd, tuples));
+        readCards.put(name, tuples.size());
+        return name;
+    }
+
+    /** @return the names of the leaves of a tree, left to right */
+    private static List<String> leaves(LogicalJoinTree t, List<String> names) {
+        if (t.isLeaf()) {
+            names.add(t.alias);
+        } else {
+            leaves(t.left, names);
+            leaves(t.right, names);
+        }
+        return names;
+    }
+
+    /** @return true if a cardinality is off from its estimate by {@link #REOPTIMIZE_FACTOR} or more */
+    static boolean isMisestimate(int estimated, int actual) {
+        double est = Math.max(1, estimated), act = Math.max(1, actual);
+        return est / act >= REOPTIMIZE_FACTOR || act / est >= REOPTIMIZE_FACTOR;
+    }
+
+    /** @return a tree with a subtree replaced by another */
+    private static LogicalJoinTree replace(LogicalJoinTree t, LogicalJoinTree old,
+            LogicalJoinTree replacement) {
+        if (t == old)
+            return replacement;
+        if (t.isLeaf())
+            return t;
+        return new LogicalJoinTree(t.join, replace(t.left, old, replacement),
+                replace(t.right, old, replacement), t.cost, t.card);
+    }
+
+    /**
+     * Order the joins that are left to be done, between the relations of
+     * the plan being run.
+     */
+    private LogicalJoinTree replan() throws ParsingException {
+        Vector<LogicalJoinNode> left = new Vector<LogicalJoinNode>();
+        for (LogicalJoinNode j : joins) {
+            if (!relationOf.get(j.t1Alias).equals(relationOf.get(j.t2Alias)))
+                left.add(j);
+        }
+        if (left.isEmpty()) {
+            String name = relationOf.get(aliases[0]);
+            return new LogicalJoinTree(name, readCards.get(name), readCards.get(name));
+        }
+        JoinOptimizer jo = new JoinOptimizer(lp, left);
+        for (Map.Entry<String, Integer> e : readCards.entrySet())
+            jo.addIntermediateResult(e.getKey(), tablesOf.get(e.getKey()), e.getValue());
+        return jo.orderJoinTree(stats, filterSelectivities, false);
+    }
+
+    /**
+     * @return where each field of the tuples of the first plan is in the
+     *         tuples of a plan, or null if they are in the same place
+     */
+    private int[] fieldMap(LogicalJoinTree t) {
+        ArrayList<String> order = new ArrayList<String>();
+        for (String r : leaves(t, new ArrayList<String>()))
+            order.addAll(tablesOf.get(r));
+        List<String> first = leaves(tree, new ArrayList<String>());
+        if (order.equals(first))
+            return null;
+        HashMap<String, Integer> width = new HashMap<String, Integer>();
+        for (int i = 0; i < aliases.length; i++)
+            width.put(aliases[i], inputs[i].getTupleDesc().numFields());
+        HashMap<String, Integer> offset = new HashMap<String, Integer>();
+        int o = 0;
+        for (String alias : order) {
+            offset.put(alias, o);
+            o += width.get(alias);
+        }
+        int[] map = new int[td.numFields()];
+        int f = 0;
+        for (String alias : first) {
+            for (int i = 0; i < width.get(alias); i++)
+                map[f++] = offset.get(alias) + i;
+        }
+        return map;
+    }
+
+    public void close() {
+        super.close();
+        plan.close();
+        relations = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        plan.rewind();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (!plan.hasNext())
+            return null;
+        Tuple t = plan.next();
+        if (fieldMap == null)
+            return t;
+        Tuple out = new Tuple(td);
+        for (int i = 0; i < fieldMap.length; i++)
+            out.setField(i, t.getField(fieldMap[i]));
+        return out;
+    }
+
+    /**
+     * @return the plan of the joins: the plan being run once the operator
+     *         has been opened, and the one the optimizer chose first before
+     */
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { plan };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        plan = children[0];
+    }
+}
@@ -0,0 +1,435 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader builds a B+ tree file bottom-up from an unsorted stream
+ * of tuples, without going through BTreeFile.insertTuple().
+ * <p>
+ * The input is first sorted on the key field with an external merge sort:
+ * runs of at most {@link #setRunSize runSize} tuples are sorted in memory
+ * and spilled to temporary files, and the runs are then merged. Once the
+ * number of tuples is known the shape of the whole tree follows from it and
+ * the fill factor, so every page number, parent pointer and sibling pointer
+ * can be computed before anything is written. The file is then written front
+ * to back in a single sequential pass: the root pointer page, all of the
+ * leaf pages in key order, and then each level of internal pages, ending
+ * with the root. Only the smallest key of every page is kept in memory.
+ * <p>
+ * Tuples are spread evenly over the pages of each level, so no page other
+ * than the root is less than half full.
+ */
+public class BTreeBulkLoader {
+
+	/** Default number of tuples sorted in memory at a time */
+	public static final int DEFAULT_RUN_SIZE = 500000;
+
+	/** Default fraction of every page to fill */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	private final File f;
+	private final TupleDesc td;
+	private final int[] keyFields;
+	private final int pageSize;
+	private double fillFactor = DEFAULT_FILL_FACTOR;
+	private int runSize = DEFAULT_RUN_SIZE;
+
+	/**
+	 * Create a bulk loader that writes a B+ tree file with the specified
+	 * tuple descriptor and key field. Any existing contents of the file are
+	 * replaced by load().
+	 *
+	 * @param f - the file to write the B+ tree to
+	 * @param td - the tuple descriptor of the tuples to load
+	 * @param keyField - the index of the key field for this B+ tree
+	 */
+	public BTreeBulkLoader(File f, TupleDesc td, int keyField) {
+		this(f, td, new int[] {keyField});
+	}
+
+	/**
+	 * Create a bulk loader for a B+ tree keyed on several fields.
+	 *
+	 * @param f - the file to write the B+ tree to
+	 * @param td - the tuple descriptor of the tuples to load
+	 * @param keyFields - the indexes of the key fields, most significant first
+	 * @see BTreeFile#BTreeFile(File, int[], TupleDesc)
+	 */
+	public BTreeBulkLoader(File f, TupleDesc td, int[] keyFields) {
+		this.f = f;
+		this.td = td;
+		this.keyFields = keyFields.clone();
+		this.pageSize = BufferPool.getPageSize();
+	}
+
+	private boolean hasVarLengthKeys() {
+		return keyFields.length == 1 && BTreeInternalPage.hasVarLengthKeys(td.getFieldType(keyFields[0]));
+	}
+
+	/**
+	 * Set the fraction of each leaf and internal page to fill. A fill factor
+	 * below 1.0 leaves room on every page for later inserts, so they do not
+	 * immediately split the freshly loaded pages.
+	 *
+	 * @param fillFactor - the fill factor, between 0.5 and 1.0
+	 */
+	public void setFillFactor(double fillFactor) {
+		if (fillFactor < 0.5 || fillFactor > 1.0)
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1.0");
+		this.fillFactor = fillFactor;
+	}
+
+	/**
+	 * Set the number of tuples sorted in memory before a run is spilled to disk.
+	 *
+	 * @param runSize - the maximum number of tuples in memory at once
+	 */
+	public void setRunSize(int runSize) {
+		if (runSize < 1)
+			throw new IllegalArgumentException("run size must be positive");
+		this.runSize = runSize;
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples a leaf page can hold
+	 * (see BTreeLeafPage#getMaxTuples)
+	 */
+	private int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		int extraBits = 3 * BTreeLeafPage.INDEX_SIZE * 8;
+		return (pageSize * 8 - extraBits) / bitsPerTupleIncludingHeader;
+	}
+
+	/**
+	 * Retrieve the maximum number of keys an internal page can hold
+	 * (see BTreeInternalPage#getMaxEntries)
+	 */
+	private int getMaxEntries() {
+		if (hasVarLengthKeys())
+			return BTreeInternalPage.getMaxVarKeyEntries(pageSize, 0);
+		int keySize = CompositeField.getKeyLen(td, keyFields);
+		int bitsPerEntryIncludingHeader = keySize * 8 + BTreeInternalPage.INDEX_SIZE * 8 + 1;
+		int extraBits = 2 * BTreeInternalPage.INDEX_SIZE * 8 + 8 + 1;
+		return (pageSize * 8 - extraBits) / bitsPerEntryIncludingHeader;
+	}
+
+	private static int headerBytes(int slots) {
+		return (slots + 7) / 8;
+	}
+
+	/**
+	 * One level of the tree. The items of the level (tuples for the leaf level,
+	 * child pages for the levels above) are split evenly over its pages: page
+	 * j holds items [start(j), start(j+1)).
+	 */
+	private static class Level {
+		final long items;
+		final int pages;
+		final int firstPageNo;
+		// the smallest key on each page of this level
+		final ArrayList<Field> minKeys = new ArrayList<Field>();
+
+		Level(long items, int target, int min, int firstPageNo) {
+			this.items = items;
+			long n = (items + target - 1) / target;
+			// never leave a page with fewer than min items
+			n = Math.min(n, Math.max(1, items / min));
+			this.pages = (int) n;
+			this.firstPageNo = firstPageNo;
+		}
+
+		long start(int page) {
+			return page * items / pages;
+		}
+
+		/** @return the page of this level holding the specified item */
+		int pageOf(long item) {
+			return (int) (((item + 1) * pages - 1) / items);
+		}
+	}
+
+	/**
+	 * Work out the levels of a tree holding the specified number of tuples,
+	 * leaves first.
+	 */
+	private ArrayList<Level> plan(long numTuples) {
+		int leafTarget = Math.max(1, (int) (fillFactor * getMaxTuples()));
+		int childTarget = Math.max(2, (int) (fillFactor * (getMaxEntries() + 1)));
+
+		ArrayList<Level> levels = new ArrayList<Level>();
+		Level level = new Level(numTuples, leafTarget, 1, 1);
+		levels.add(level);
+		while (level.pages > 1) {
+			level = new Level(level.pages, childTarget, 2, level.firstPageNo + level.pages);
+			levels.add(level);
+		}
+		return levels;
+	}
+
+	/**
+	 * Sort the tuples and write them out as a B+ tree, replacing the
+	 * contents of the file.
+	 *
+	 * @param tuples - the tuples to load, in any order
+	 * @return the number of tuples loaded
+	 * @throws IOException
+	 */
+	public long load(Iterator<Tuple> tuples) throws IOException {
+		SortedRuns sorted = new SortedRuns(tuples);
+		try {
+			return write(sorted);
+		} finally {
+			sorted.close();
+		}
+	}
+
+	private long write(SortedRuns sorted) throws IOException {
+		long numTuples = sorted.size();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(f), 1 << 16));
+		try {
+			if (numTuples == 0) {
+				dos.write(BTreeRootPtrPage.createEmptyPageData());
+				return 0;
+			}
+
+			ArrayList<Level> levels = plan(numTuples);
+			Level top = levels.get(levels.size() - 1);
+			int rootCategory = (levels.size() > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
+			dos.write(BTreeFileEncoder.convertToRootPtrPage(top.firstPageNo, rootCategory, 0));
+
+			writeLeaves(dos, sorted, levels);
+			for (int i = 1; i < levels.size(); i++) {
+				writeInternalLevel(dos, levels, i);
+			}
+			return numTuples;
+		} finally {
+			dos.close();
+		}
+	}
+
+	/** @return the page number of the parent of page j of levels[i], or 0 for the root */
+	private static int parentOf(ArrayList<Level> levels, int i, int j) {
+		if (i + 1 == levels.size())
+			return 0;
+		Level up = levels.get(i + 1);
+		return up.firstPageNo + up.pageOf(j);
+	}
+
+	private void writeLeaves(DataOutputStream dos, Iterator<Tuple> sorted, ArrayList<Level> levels)
+			throws IOException {
+		Level leaves = levels.get(0);
+		int maxTuples = getMaxTuples();
+		int header = headerBytes(maxTuples);
+		for (int j = 0; j < leaves.pages; j++) {
+			int count = (int) (leaves.start(j + 1) - leaves.start(j));
+			dos.writeInt(parentOf(levels, 0, j));
+			dos.writeInt(j > 0 ? leaves.firstPageNo + j - 1 : 0);
+			dos.writeInt(j < leaves.pages - 1 ? leaves.firstPageNo + j + 1 : 0);
+			writeHeader(dos, count, header);
+			for (int t = 0; t < count; t++) {
+				Tuple tup = sorted.next();
+				if (t == 0)
+					leaves.minKeys.add(CompositeField.getKey(tup, keyFields));
+				for (int k = 0; k < td.numFields(); k++) {
+					tup.getField(k).serialize(dos);
+				}
+			}
+			pad(dos, pageSize - 3 * BTreeLeafPage.INDEX_SIZE - header - count * td.getSize());
+		}
+	}
+
+	private void writeInternalLevel(DataOutputStream dos, ArrayList<Level> levels, int i)
+			throws IOException {
+		Level level = levels.get(i);
+		Level below = levels.get(i - 1);
+		int childCategory = (i == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+		int maxEntries = getMaxEntries();
+		int keySize = CompositeField.getKeyLen(td, keyFields);
+		int header = headerBytes(maxEntries + 1);
+		for (int j = 0; j < level.pages; j++) {
+			int first = (int) level.start(j);
+			int children = (int) (level.start(j + 1) - first);
+			level.minKeys.add(below.minKeys.get(first));
+			if (hasVarLengthKeys()) {
+				ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+				for (int k = 1; k < children; k++) {
+					entries.add(new BTreeEntry(below.minKeys.get(first + k),
+							new BTreePageId(0, below.firstPageNo + first + k - 1, childCategory),
+							new BTreePageId(0, below.firstPageNo + first + k, childCategory)));
+				}
+				dos.write(BTreeInternalPage.createVarKeyPageData(entries, below.firstPageNo + first,
+						parentOf(levels, i, j), childCategory, pageSize));
+				continue;
+			}
+
+			dos.writeInt(parentOf(levels, i, j));
+			dos.writeByte((byte) childCategory);
+			writeHeader(dos, children, header);
+			// key slot 0 is unused: a node with m keys has m+1 children
+			for (int k = 1; k < children; k++) {
+				below.minKeys.get(first + k).serialize(dos);
+			}
+			pad(dos, (maxEntries - (children - 1)) * keySize);
+			for (int k = 0; k < children; k++) {
+				dos.writeInt(below.firstPageNo + first + k);
+			}
+			pad(dos, (maxEntries + 1 - children) * BTreeInternalPage.INDEX_SIZE);
+			pad(dos, pageSize - (BTreeInternalPage.INDEX_SIZE + 1 + header
+					+ maxEntries * keySize + (maxEntries + 1) * BTreeInternalPage.INDEX_SIZE));
+		}
+		// the keys of the level below are no longer needed
+		below.minKeys.clear();
+	}
+
+	private static void writeHeader(DataOutputStream dos, int used, int nbytes) throws IOException {
+		for (int b = 0; b < nbytes; b++) {
+			int headerbyte = 0;
+			for (int bit = 0; bit < 8; bit++) {
+				if (b * 8 + bit < used)
+					headerbyte |= (1 << bit);
+			}
+			dos.writeByte(headerbyte);
+		}
+	}
+
+	private static void pad(DataOutputStream dos, int n) throws IOException {
+		for (int i = 0; i < n; i++) {
+			dos.writeByte(0);
+		}
+	}
+
+	/**
+	 * The input in key order. Runs of the input are sorted in memory; if the
+	 * input does not fit in a single run, the runs are spilled to temporary
+	 * files and merged.
+	 */
+	private class SortedRuns implements Iterator<Tuple> {
+		private final Comparator<Tuple> comparator = new BTreeFileEncoder.TupleComparator(keyFields);
+		private final ArrayList<File> files = new ArrayList<File>();
+		private long size = 0;
+
+		// the only run when nothing was spilled
+		private Iterator<Tuple> inMemory = null;
+		// the head of each spilled run, ordered by key
+		private PriorityQueue<RunReader> heads = null;
+
+		SortedRuns(Iterator<Tuple> input) throws IOException {
+			ArrayList<Tuple> run = new ArrayList<Tuple>();
+			while (input.hasNext()) {
+				run.add(input.next());
+				size++;
+				if (run.size() >= runSize) {
+					spill(run);
+					run.clear();
+				}
+			}
+			Collections.sort(run, comparator);
+			if (files.isEmpty()) {
+				inMemory = run.iterator();
+				return;
+			}
+			if (!run.isEmpty())
+				spill(run);
+			heads = new PriorityQueue<RunReader>(files.size(), new Comparator<RunReader>() {
+				public int compare(RunReader a, RunReader b) {
+					return comparator.compare(a.head, b.head);
+				}
+			});
+			for (File runFile : files) {
+				RunReader r = new RunReader(runFile);
+				if (r.advance())
+					heads.add(r);
+			}
+		}
+
+		long size() {
+			return size;
+		}
+
+		private void spill(ArrayList<Tuple> run) throws IOException {
+			Collections.sort(run, comparator);
+			File tmp = File.createTempFile("btreerun", ".dat");
+			tmp.deleteOnExit();
+			files.add(tmp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), 1 << 16));
+			try {
+				out.writeInt(run.size());
+				for (Tuple t : run) {
+					for (int k = 0; k < td.numFields(); k++) {
+						t.getField(k).serialize(out);
+					}
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		public boolean hasNext() {
+			return inMemory != null ? inMemory.hasNext() : !heads.isEmpty();
+		}
+
+		public Tuple next() {
+			if (inMemory != null)
+				return inMemory.next();
+			RunReader r = heads.poll();
+			if (r == null)
+				throw new NoSuchElementException();
+			Tuple t = r.head;
+			try {
+				if (r.advance())
+					heads.add(r);
+			} catch (IOException e) {
+				throw new RuntimeException("could not read sorted run", e);
+			}
+			return t;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		void close() throws IOException {
+			if (heads != null) {
+				for (RunReader r : heads) {
+					r.in.close();
+				}
+			}
+			for (File tmp : files) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/** Sequential reader over one spilled run. */
+	private class RunReader {
+		final DataInputStream in;
+		int remaining;
+		Tuple head;
+
+		RunReader(File run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			remaining = in.readInt();
+		}
+
+		/** Read the next tuple of the run into head; false at the end of the run */
+		boolean advance() throws IOException {
+			if (remaining == 0) {
+				in.close();
+				return false;
+			}
+			remaining--;
+			head = new Tuple(td);
+			try {
+				for (int k = 0; k < td.numFields(); k++) {
+					head.setField(k, td.getFieldType(k).parse(in));
+				}
+			} catch (java.text.ParseException e) {
+				throw new IOException("could not parse sorted run", e);
+			}
+			return true;
+		}
+	}
+}
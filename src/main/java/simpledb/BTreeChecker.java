@@ -1,8 +1,13 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Created by orm on 10/7/15.
@@ -121,4 +126,345 @@ public class BTreeChecker {
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * The result of verifying a tree with {@link #verify}: the invariants that
+     * do not hold, and statistics on the shape of the tree. Levels are counted
+     * from the root, which is level 0.
+     */
+    public static class Report {
+        private final List<String> violations = new ArrayList<String>();
+        private final List<long[]> levels = new ArrayList<long[]>(); // pages, used, capacity
+        private final int[] fillHistogram = new int[FILL_BUCKETS];
+        private int leafLinks = 0;
+        private int contiguousLeafLinks = 0;
+
+        /** The number of buckets of the leaf fill-factor histogram */
+        public static final int FILL_BUCKETS = 10;
+
+        /** @return true if every invariant holds */
+        public boolean isValid() {
+            return violations.isEmpty();
+        }
+
+        /** @return a description of each invariant that does not hold */
+        public List<String> getViolations() {
+            return violations;
+        }
+
+        /** @return the number of levels of the tree; 0 if it has no root */
+        public int getDepth() {
+            return levels.size();
+        }
+
+        /** @return the number of pages at each level of the tree */
+        public int[] getPageCounts() {
+            int[] counts = new int[levels.size()];
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = (int) levels.get(i)[0];
+            return counts;
+        }
+
+        /** @return the number of tuples in the leaves */
+        public long getNumTuples() {
+            return levels.isEmpty() ? 0 : levels.get(levels.size() - 1)[1];
+        }
+
+        /**
+         * @return the fraction of the slots in use at a level of the tree
+         */
+        public double getAverageFill(int level) {
+            long[] l = levels.get(level);
+            return l[2] == 0 ? 0 : (double) l[1] / l[2];
+        }
+
+        /**
+         * @return the number of leaves by fill factor: bucket i counts the
+         *         leaves between i/FILL_BUCKETS and (i+1)/FILL_BUCKETS full,
+         *         and the last bucket also counts the full ones
+         */
+        public int[] getFillHistogram() {
+            return fillHistogram.clone();
+        }
+
+        /**
+         * @return the fraction of the leaf space that is empty, a measure of
+         *         how many more pages the tree uses than a rebuilt one would
+         */
+        public double getFragmentation() {
+            return levels.isEmpty() ? 0 : 1 - getAverageFill(levels.size() - 1);
+        }
+
+        /**
+         * @return the fraction of the links between neighbouring leaves that
+         *         do not point to the next page of the file, a measure of how
+         *         far a range scan is from reading the file sequentially
+         */
+        public double getLeafDiscontinuity() {
+            return leafLinks == 0 ? 0 : 1 - (double) contiguousLeafLinks / leafLinks;
+        }
+
+        private void addPage(int level, int used, int capacity) {
+            while (levels.size() <= level)
+                levels.add(new long[3]);
+            long[] l = levels.get(level);
+            l[0]++;
+            l[1] += used;
+            l[2] += capacity;
+        }
+
+        private void add(Report other) {
+            violations.addAll(other.violations);
+            for (int i = 0; i < other.levels.size(); i++) {
+                long[] o = other.levels.get(i);
+                while (levels.size() <= i)
+                    levels.add(new long[3]);
+                long[] l = levels.get(i);
+                for (int j = 0; j < 3; j++)
+                    l[j] += o[j];
+            }
+            for (int i = 0; i < FILL_BUCKETS; i++)
+                fillHistogram[i] += other.fillHistogram[i];
+            leafLinks += other.leafLinks;
+            contiguousLeafLinks += other.contiguousLeafLinks;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("depth ").append(getDepth()).append(", pages per level ");
+            sb.append(Arrays.toString(getPageCounts()));
+            sb.append(", ").append(getNumTuples()).append(" tuples\n");
+            sb.append(String.format("fragmentation %.3f, leaf discontinuity %.3f%n",
+                    getFragmentation(), getLeafDiscontinuity()));
+            sb.append("leaf fill histogram ").append(Arrays.toString(fillHistogram)).append("\n");
+            for (String v : violations)
+                sb.append("violation: ").append(v).append("\n");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The report on a subtree, and the ids needed to check the sibling links
+     * where it meets its neighbours.
+     */
+    private static class SubtreeReport {
+        final Report report = new Report();
+        final SubtreeSummary summary;
+
+        SubtreeReport(SubtreeSummary summary) {
+            this.summary = summary;
+        }
+    }
+
+    /** Subtrees whose children are leaves are checked on one thread */
+    private static class VerifyTask extends RecursiveTask<SubtreeReport> {
+        private static final long serialVersionUID = 1L;
+
+        private final BTreeFile bt;
+        private final TransactionId tid;
+        private final BTreePageId pageId;
+        private final Field lowerBound;
+        private final Field upperBound;
+        private final BTreePageId parentId;
+        private final boolean checkOccupancy;
+        private final int depth;
+
+        VerifyTask(BTreeFile bt, TransactionId tid, BTreePageId pageId, Field lowerBound, Field upperBound,
+                   BTreePageId parentId, boolean checkOccupancy, int depth) {
+            this.bt = bt;
+            this.tid = tid;
+            this.pageId = pageId;
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+            this.parentId = parentId;
+            this.checkOccupancy = checkOccupancy;
+            this.depth = depth;
+        }
+
+        protected SubtreeReport compute() {
+            try {
+                return verifySubTree(bt, tid, pageId, lowerBound, upperBound, parentId, checkOccupancy, depth);
+            } catch (DbException e) {
+                throw new RuntimeException(e);
+            } catch (TransactionAbortedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Verifies the integrity of the tree, as checkRep() does, checking the
+     * subtrees of each internal page in parallel on the common fork-join pool.
+     * Unlike checkRep(), which relies on assertions, a broken invariant is
+     * recorded in the report and does not stop the check. Reads pages through
+     * the buffer pool with READ_ONLY permission.
+     *
+     * @param checkOccupancy - also check that no page but the root is below
+     *        the minimum occupancy of the tree's delete policy
+     * @return the report on the tree
+     */
+    public static Report verify(BTreeFile bt, TransactionId tid, boolean checkOccupancy) throws
+            DbException, IOException, TransactionAbortedException {
+        return verify(bt, tid, checkOccupancy, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Verifies the integrity of the tree on the specified pool.
+     *
+     * @see #verify(BTreeFile, TransactionId, boolean)
+     */
+    public static Report verify(BTreeFile bt, TransactionId tid, boolean checkOccupancy, ForkJoinPool pool) throws
+            DbException, IOException, TransactionAbortedException {
+        BTreeRootPtrPage rtptr = bt.getRootPtrPage(tid, new HashMap<PageId, Page>());
+        if (rtptr.getRootId() == null) {
+            return new Report();
+        }
+        SubtreeReport res;
+        try {
+            res = pool.invoke(new VerifyTask(bt, tid, rtptr.getRootId(), null, null, rtptr.getId(),
+                    checkOccupancy, 0));
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof DbException)
+                throw (DbException) e.getCause();
+            if (e.getCause() instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e.getCause();
+            throw e;
+        }
+        if (res.summary.ptrLeft != null)
+            res.report.violations.add("leftmost leaf " + res.summary.leftmostId + " has a left sibling");
+        if (res.summary.ptrRight != null)
+            res.report.violations.add("rightmost leaf " + res.summary.rightmostId + " has a right sibling");
+        return res.report;
+    }
+
+    /**
+     * Record a violation if two neighbouring subtrees are not linked to each
+     * other, or have leaves at different depths, and merge their summaries.
+     */
+    private static SubtreeSummary link(Report report, SubtreeSummary left, SubtreeSummary right) {
+        // an empty subtree was already reported
+        if (left.leftmostId == null)
+            return right;
+        if (right.leftmostId == null)
+            return left;
+        if (left.depth != right.depth)
+            report.violations.add("leaves " + left.rightmostId + " and " + right.leftmostId
+                    + " are at depths " + left.depth + " and " + right.depth);
+        if (!right.leftmostId.equals(left.ptrRight) || !left.rightmostId.equals(right.ptrLeft))
+            report.violations.add("leaves " + left.rightmostId + " and " + right.leftmostId
+                    + " are not linked to each other");
+        report.leafLinks++;
+        if (right.leftmostId.getPageNumber() == left.rightmostId.getPageNumber() + 1)
+            report.contiguousLeafLinks++;
+        SubtreeSummary ans = new SubtreeSummary();
+        ans.depth = left.depth;
+        ans.ptrLeft = left.ptrLeft;
+        ans.leftmostId = left.leftmostId;
+        ans.ptrRight = right.ptrRight;
+        ans.rightmostId = right.rightmostId;
+        return ans;
+    }
+
+    /**
+     * @return true if key is within [lowerBound, upperBound], where a null
+     *         bound is open
+     */
+    private static boolean inRange(Field key, Field lowerBound, Field upperBound) {
+        return (lowerBound == null || lowerBound.compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+                && (upperBound == null || key.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
+    }
+
+    static SubtreeReport verifySubTree(BTreeFile bt, TransactionId tid, BTreePageId pageId,
+                                       Field lowerBound, Field upperBound, BTreePageId parentId,
+                                       boolean checkOccupancy, int depth) throws
+            TransactionAbortedException, DbException {
+        BTreePage page = (BTreePage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+        BTreeDeletePolicy policy = bt.getDeletePolicy();
+        if (pageId.pgcateg() == BTreePageId.LEAF) {
+            BTreeLeafPage bpage = (BTreeLeafPage) page;
+            SubtreeReport res = new SubtreeReport(new SubtreeSummary(bpage, depth));
+            Report report = res.report;
+            if (!bpage.getParentId().equals(parentId))
+                report.violations.add("leaf " + pageId + " points to parent " + bpage.getParentId()
+                        + " instead of " + parentId);
+            Field prev = lowerBound;
+            Iterator<Tuple> it = bpage.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                Field key = bt.getKey(t);
+                if (!inRange(key, prev, upperBound)) {
+                    report.violations.add("leaf " + pageId + " has key " + key + " out of order or out of range");
+                    break;
+                }
+                prev = key;
+                if (!pageId.equals(t.getRecordId().getPageId())) {
+                    report.violations.add("leaf " + pageId + " has a tuple with record id " + t.getRecordId());
+                    break;
+                }
+            }
+            int n = bpage.getNumTuples(), max = bpage.getMaxTuples();
+            if (checkOccupancy && depth > 0 && n < policy.getMinEntries(max))
+                report.violations.add("leaf " + pageId + " holds only " + n + " of " + max + " tuples");
+            report.addPage(depth, n, max);
+            report.fillHistogram[Math.min(Report.FILL_BUCKETS - 1, n * Report.FILL_BUCKETS / max)]++;
+            return res;
+        } else if (pageId.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage ipage = (BTreeInternalPage) page;
+            Report report = new Report();
+            if (!ipage.getParentId().equals(parentId))
+                report.violations.add("internal page " + pageId + " points to parent " + ipage.getParentId()
+                        + " instead of " + parentId);
+            int n = ipage.getNumEntries(), max = ipage.getMaxEntries();
+            if (checkOccupancy && depth > 0 && n < policy.getMinEntries(max))
+                report.violations.add("internal page " + pageId + " holds only " + n + " of " + max + " entries");
+            report.addPage(depth, n, max);
+
+            // the children of the page and the key range of each
+            List<VerifyTask> children = new ArrayList<VerifyTask>();
+            Field lower = lowerBound;
+            BTreeEntry e = null;
+            Iterator<BTreeEntry> it = ipage.iterator();
+            while (it.hasNext()) {
+                e = it.next();
+                if (!inRange(e.getKey(), lower, upperBound))
+                    report.violations.add("internal page " + pageId + " has key " + e.getKey()
+                            + " out of order or out of range");
+                children.add(new VerifyTask(bt, tid, e.getLeftChild(), lower, e.getKey(), pageId,
+                        checkOccupancy, depth + 1));
+                lower = e.getKey();
+            }
+            if (e == null) {
+                report.violations.add("internal page " + pageId + " has no entries");
+                SubtreeReport res = new SubtreeReport(new SubtreeSummary());
+                res.report.add(report);
+                return res;
+            }
+            children.add(new VerifyTask(bt, tid, e.getRightChild(), lower, upperBound, pageId,
+                    checkOccupancy, depth + 1));
+
+            // fan internal children out; leaves are too cheap to be worth a task each
+            List<SubtreeReport> results = new ArrayList<SubtreeReport>();
+            if (e.getRightChild().pgcateg() == BTreePageId.INTERNAL) {
+                for (VerifyTask child : RecursiveTask.invokeAll(children))
+                    results.add(child.join());
+            } else {
+                for (VerifyTask child : children)
+                    results.add(child.compute());
+            }
+
+            SubtreeSummary acc = results.get(0).summary;
+            report.add(results.get(0).report);
+            for (int i = 1; i < results.size(); i++) {
+                acc = link(report, acc, results.get(i).summary);
+                report.add(results.get(i).report);
+            }
+            SubtreeReport res = new SubtreeReport(acc);
+            res.report.add(report);
+            return res;
+        } else {
+            SubtreeReport res = new SubtreeReport(new SubtreeSummary());
+            res.report.violations.add("page " + pageId + " of category " + pageId.pgcateg() + " is inside the tree");
+            return res;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * BTreeCompactor compacts a BTreeFile in the background while it is idle.
+ * With a lazy delete policy, deletes leave pages sparse rather than merging
+ * them straight away; the compactor checks the tree periodically, and once a
+ * whole period has passed without an insert or delete since the last deletes,
+ * it merges the sparse leaves in a transaction of its own.
+ *
+ * @see BTreeFile#compact(TransactionId)
+ * @see BTreeDeletePolicy
+ */
+public class BTreeCompactor {
+
+	private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "btree-compactor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final BTreeFile f;
+	/** The modification count of the file at the last check */
+	private long seen = -1;
+	/** The modification count of the file when it was last compacted */
+	private long compacted = 0;
+	private ScheduledFuture<?> task;
+
+	/**
+	 * @param f - the file to compact
+	 */
+	public BTreeCompactor(BTreeFile f) {
+		this.f = f;
+	}
+
+	/**
+	 * Start checking the file in the background.
+	 *
+	 * @param periodMillis - the time between checks; the file is compacted
+	 *        once it has been idle for this long
+	 */
+	public synchronized void start(long periodMillis) {
+		if(task != null) {
+			throw new IllegalStateException("compactor already started");
+		}
+		task = EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				compactIfIdle();
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop checking the file. A compaction already running is finished.
+	 */
+	public synchronized void stop() {
+		if(task != null) {
+			task.cancel(false);
+			task = null;
+		}
+	}
+
+	/**
+	 * Compact the file if it has not changed since the last check, and has
+	 * changed since it was last compacted.
+	 *
+	 * @return true if the file was compacted
+	 */
+	synchronized boolean compactIfIdle() {
+		long mods = f.getModCount();
+		if(mods != seen) {
+			seen = mods;
+			return false;
+		}
+		if(mods == compacted) {
+			return false;
+		}
+		TransactionId tid = new TransactionId();
+		boolean commit = false;
+		try {
+			ArrayList<Page> dirtied = f.compact(tid);
+			for(Page p : dirtied) {
+				p.markDirty(true, tid);
+			}
+			commit = true;
+		} catch (Exception e) {
+			// compaction is only an optimization; try again after the next change
+		} finally {
+			try {
+				Database.getBufferPool().transactionComplete(tid, commit);
+			} catch (IOException e) {
+				commit = false;
+			}
+		}
+		compacted = mods;
+		return commit;
+	}
+}
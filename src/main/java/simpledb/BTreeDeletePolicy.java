@@ -0,0 +1,63 @@
+package simpledb;
+
+/**
+ * BTreeDeletePolicy decides when a page of a BTreeFile has become so empty
+ * through deletions that it must be rebalanced, by stealing from or merging
+ * with a sibling. The classic policy rebalances a page as soon as it is less
+ * than half full. Then a workload that alternates inserts and deletes around
+ * that boundary merges a page only to split it again a moment later; a lower
+ * threshold leaves slack between the two, at the cost of sparser pages.
+ * <p>
+ * Pages left sparse by a lazy policy can be compacted later, when the tree
+ * is idle, so the tree does not grow without bound.
+ *
+ * @see BTreeFile#setDeletePolicy(BTreeDeletePolicy)
+ * @see BTreeCompactor
+ */
+public class BTreeDeletePolicy {
+
+	/** Rebalance a page as soon as it is less than half full */
+	public static final BTreeDeletePolicy EAGER = new BTreeDeletePolicy(0.5);
+
+	/** Rebalance a page once it is less than a quarter full */
+	public static final BTreeDeletePolicy LAZY = new BTreeDeletePolicy(0.25);
+
+	/** Only rebalance a page once it is empty */
+	public static final BTreeDeletePolicy MERGE_AT_EMPTY = new BTreeDeletePolicy(0.0);
+
+	private final double minOccupancy;
+
+	/**
+	 * Create a policy that rebalances pages filled to less than the specified
+	 * fraction of their capacity.
+	 *
+	 * @param minOccupancy - the minimum occupancy of a page, between 0 (only
+	 *        rebalance empty pages) and 0.5 (rebalance pages less than half full)
+	 */
+	public BTreeDeletePolicy(double minOccupancy) {
+		if(minOccupancy < 0 || minOccupancy > 0.5) {
+			throw new IllegalArgumentException("minimum occupancy must be between 0 and 0.5");
+		}
+		this.minOccupancy = minOccupancy;
+	}
+
+	/**
+	 * @return the minimum occupancy of a page, as a fraction of its capacity
+	 */
+	public double getMinOccupancy() {
+		return minOccupancy;
+	}
+
+	/**
+	 * @param maxEntries - the number of tuples or entries a page can hold
+	 * @return the number of tuples or entries below which a page must be
+	 *         rebalanced; at least 1, so that empty pages are always reclaimed
+	 */
+	public int getMinEntries(int maxEntries) {
+		return Math.max(1, (int) (maxEntries * minOccupancy));
+	}
+
+	public String toString() {
+		return "BTreeDeletePolicy(" + minOccupancy + ")";
+	}
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.Predicate.Op;
 
@@ -24,6 +25,49 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final int[] keyFields;
+	private final boolean blink;
+	private volatile BTreeDeletePolicy deletePolicy = BTreeDeletePolicy.EAGER;
+	/** The number of inserts and deletes so far, so that a BTreeCompactor can tell when the tree is idle */
+	private final AtomicLong modCount = new AtomicLong();
+
+	// short-term latches on the pages of this tree, see findLeafPage()
+	private final PageLatches latches = new PageLatches();
+
+	/**
+	 * The number of times a page of a B-link tree pointing to the root pointer page has been
+	 * given a parent. Guarded by, and notified on, parentPosted
+	 */
+	private long parentPostings = 0;
+	private final Object parentPosted = new Object();
+
+	/** A run of consecutive pages read ahead of a scan, and not parsed yet */
+	private static class StagedRun {
+		final int firstPageNo;
+		final byte[][] pages;
+
+		StagedRun(int firstPageNo, byte[][] pages) {
+			this.firstPageNo = firstPageNo;
+			this.pages = pages;
+		}
+	}
+
+	private volatile StagedRun staged = null;
+
+	/**
+	 * An in-memory summary of the header pages: their ids in chain order, and
+	 * which of them may have empty slots. It is only a guide: the header pages
+	 * themselves are checked before a slot is used.
+	 */
+	private static class HeaderSummary {
+		final BufferPool pool = Database.getBufferPool();
+		final ArrayList<BTreePageId> ids = new ArrayList<BTreePageId>();
+		final BitSet free = new BitSet();
+	}
+
+	private HeaderSummary headers = null;
+	/** The number of pages written, so that a run read during a write is not staged */
+	private int writes = 0;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,10 +78,60 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file and keyed on several
+	 * fields.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @see #BTreeFile(File, int[], TupleDesc, boolean)
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		this(f, keys, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, optionally stored as a
+	 * B-link tree.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param blink - whether the file is a B-link tree
+	 * @see #isBLink()
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean blink) {
+		this(f, new int[] {key}, td, blink);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file and keyed on several
+	 * fields. Tuples are ordered lexicographically on the key fields, and keys are
+	 * CompositeFields when there is more than one key field.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param blink - whether the file is a B-link tree
+	 * @see CompositeField
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td, boolean blink) {
+		if(keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = td;
+		this.blink = blink;
 	}
 
 	/**
@@ -81,8 +175,8 @@ public class BTreeFile implements DbFile {
 		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+				bis = new BufferedInputStream(new FileInputStream(f));
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
 				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
 				if (retval == -1) {
@@ -97,21 +191,28 @@ public class BTreeFile implements DbFile {
 				return p;
 			}
 			else {
-				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
+				byte pageBuf[] = getStagedPage(id.getPageNumber());
+				if (pageBuf != null) {
+					Debug.log(1, "BTreeFile.readPage: read page %d from a staged run", id.getPageNumber());
 				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
+				else {
+					bis = new BufferedInputStream(new FileInputStream(f));
+					pageBuf = new byte[BufferPool.getPageSize()];
+					if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
+							BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
+						throw new IllegalArgumentException(
+								"Unable to seek to correct place in BTreeFile");
+					}
+					int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+					if (retval == -1) {
+						throw new IllegalArgumentException("Read past end of table");
+					}
+					if (retval < BufferPool.getPageSize()) {
+						throw new IllegalArgumentException("Unable to read "
+								+ BufferPool.getPageSize() + " bytes from BTreeFile");
+					}
+					Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				}
-				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
 					return p;
@@ -158,6 +259,67 @@ public class BTreeFile implements DbFile {
 			rf.write(data);
 			rf.close();
 		}
+		dropStagedRun();
+	}
+
+	/**
+	 * Discard the staged run, which may hold the old contents of a page
+	 * just written to the file, and keep a run being read during the write
+	 * from being staged. Called after every write to the file.
+	 */
+	private synchronized void dropStagedRun() {
+		writes++;
+		staged = null;
+	}
+
+	/**
+	 * Read a run of consecutive pages from disk with a single sequential
+	 * read, and keep their data until they are read with readPage. A
+	 * read-ahead stages the pages it expects a scan to need next; the data is
+	 * not parsed here, since the category of a page is not known from its
+	 * position.
+	 *
+	 * @param firstPageNo - the number of the first page of the run
+	 * @param n - the number of pages in the run
+	 */
+	void stageRun(int firstPageNo, int n) throws IOException {
+		n = Math.min(n, numPages() - firstPageNo + 1);
+		if(n <= 0) {
+			return;
+		}
+		int writesBefore;
+		synchronized(this) {
+			writesBefore = writes;
+		}
+		int pageSize = BufferPool.getPageSize();
+		byte[] buf = new byte[n * pageSize];
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			raf.seek(BTreeRootPtrPage.getPageSize() + (long) (firstPageNo - 1) * pageSize);
+			raf.readFully(buf);
+		} finally {
+			raf.close();
+		}
+		byte[][] pages = new byte[n][];
+		for(int i = 0; i < n; i++) {
+			pages[i] = Arrays.copyOfRange(buf, i * pageSize, (i + 1) * pageSize);
+		}
+		synchronized(this) {
+			if(writes == writesBefore) {
+				staged = new StagedRun(firstPageNo, pages);
+			}
+		}
+	}
+
+	/**
+	 * @return the staged data of a page, or null if it is not staged
+	 */
+	private byte[] getStagedPage(int pageNo) {
+		StagedRun run = staged;
+		if(run == null || pageNo < run.firstPageNo || pageNo >= run.firstPageNo + run.pages.length) {
+			return null;
+		}
+		return run.pages[pageNo - run.firstPageNo];
 	}
 	
 	/**
@@ -175,12 +337,77 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * Returns the indexes of all the fields that this B+ tree is keyed on, most
+	 * significant first
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple in this B+ tree: the key field itself, or a
+	 * CompositeField if the tree is keyed on several fields
+	 */
+	public Field getKey(Tuple t) {
+		return CompositeField.getKey(t, keyFields);
+	}
+
+	/**
+	 * Returns whether this file is a B-link tree. In a B-link tree every page has a high
+	 * key, an upper bound on the keys in its subtree, and internal pages have right-links
+	 * as well as leaves. A split moves the upper half of a page to a new page on its right
+	 * and only then posts the new page to the parent, so an operation that reaches the old
+	 * page in between follows the right-link. Operations latch one page per level at a time
+	 * and never wait for a split to finish; in exchange, pages are never merged.
+	 * The page format differs from an ordinary B+ tree, so a file must always be opened
+	 * the same way.
+	 * 
+	 * @see #findLeafPageBLink(TransactionId, HashMap, Permissions, Field)
+	 */
+	public boolean isBLink() {
+		return blink;
+	}
+
+	/**
+	 * Returns the policy that decides when a page emptied by deletions is
+	 * merged with or steals from a sibling.
+	 */
+	public BTreeDeletePolicy getDeletePolicy() {
+		return deletePolicy;
+	}
+
+	/**
+	 * Sets the policy that decides when a page emptied by deletions is merged
+	 * with or steals from a sibling. Defaults to {@link BTreeDeletePolicy#EAGER}.
+	 * Pages of a B-link tree are never merged, whatever the policy.
+	 * 
+	 * @see #compact(TransactionId)
+	 */
+	public void setDeletePolicy(BTreeDeletePolicy policy) {
+		this.deletePolicy = policy;
+	}
+
+	/**
+	 * Returns the number of inserts and deletes applied to this file so far.
+	 */
+	long getModCount() {
+		return modCount.get();
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
+	 * the left-most page possibly containing the key field f. It reads all internal
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
 	 * leaf node with permission perm.
 	 * 
+	 * Internal nodes are protected by short-term latches rather than by the transaction's
+	 * locks, using latch crabbing: the caller must hold a latch on the page that points to
+	 * pid (the root pointer page for the root), and the latch on pid is acquired before the
+	 * latches above it are released. Internal pages are latched in shared mode, and so is
+	 * the leaf if perm is READ_ONLY; a leaf to be written is latched exclusively. On return
+	 * the leaf is the only page this thread has latched.
+	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
@@ -194,26 +421,160 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		return findLeafPage(tid, dirtypages, pid, perm, f, false);
+	}
+
+	/**
+	 * Find and lock the leaf page corresponding to the key field f, as above. If splitting
+	 * is set, every page along the path is latched exclusively, and the latches above a page
+	 * are released only once the page has an empty slot: a split of the leaf can then
+	 * propagate up to, but not past, that page. On return this thread still holds exclusive
+	 * latches on the leaf and on every page a split of the leaf could change.
+	 * 
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+			Field f, boolean splitting) 
+					throws DbException, TransactionAbortedException {
+		boolean leaf = (pid.pgcateg() == BTreePageId.LEAF);
+		latches.latch(pid, splitting || (leaf && perm == Permissions.READ_WRITE));
+
+		if(leaf) {
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+			if(!splitting || page.getNumEmptySlots() > 0) {
+				latches.releaseAllExcept(pid);
+			}
+			return page;
+		}
+
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		if(!splitting || page.getNumEmptySlots() > 0) {
+			latches.releaseAllExcept(pid);
+		}
+
+		return findLeafPage(tid, dirtypages, getChildId(page, f), perm, f, splitting);
+	}
+
+	/**
+	 * Returns the child of an internal page whose subtree is the left-most one possibly
+	 * containing the key field f, or the left-most child if f is null.
+	 */
+	private BTreePageId getChildId(BTreeInternalPage page, Field f) throws DbException {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		if(e == null) {
+			throw new DbException("internal page " + page.getId() + " has no entries");
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Find and lock the leaf page of a B-link tree corresponding to the key field f, as
+	 * findLeafPage() does. Unlike findLeafPage(), this latches one page at a time: the latch
+	 * on a page is released before its child is latched. A split that happens in between
+	 * has moved the upper part of the child to a page on its right, so whenever f is greater
+	 * than the high key of a page, the search follows the right-link instead of going down.
+	 * On return the leaf is the only page this thread has latched.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * tree has no root
+	 */
+	private BTreeLeafPage findLeafPageBLink(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Permissions perm, Field f) 
+					throws DbException, IOException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		latches.latch(rootPtrId, false);
+		BTreePageId pid = getRootPtrPage(tid, dirtypages).getRootId();
+		latches.release(rootPtrId);
+
+		while(pid != null) {
+			boolean leaf = (pid.pgcateg() == BTreePageId.LEAF);
+			latches.latch(pid, leaf && perm == Permissions.READ_WRITE);
+			BTreePage page = (BTreePage) getPage(tid, dirtypages, pid, leaf ? perm : Permissions.READ_ONLY);
+			BTreePageId next = getRightLink(page, f);
+			if(next == null) {
+				if(leaf) {
+					return (BTreeLeafPage) page;
+				}
+				next = getChildId((BTreeInternalPage) page, f);
+			}
+			latches.release(pid);
+			pid = next;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the right sibling of a B-link tree page if the key field f has moved there,
+	 * that is if f is greater than the high key of the page, and null otherwise.
+	 */
+	private BTreePageId getRightLink(BTreePage page, Field f) {
+		Field highKey = page.getHighKey();
+		if(f == null || highKey == null || !f.compare(Op.GREATER_THAN, highKey)) {
+			return null;
+		}
+		if(page instanceof BTreeLeafPage) {
+			return ((BTreeLeafPage) page).getRightSiblingId();
+		}
+		return ((BTreeInternalPage) page).getRightSiblingId();
+	}
+
+	/**
+	 * Latch the root pointer page and find and lock the leaf page corresponding to the key
+	 * field f, starting from the root. The caller must hold the tree latch.
+	 * 
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, boolean)
+	 * 
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * tree has no root
+	 */
+	private BTreeLeafPage findLeafPageFromRoot(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Permissions perm, Field f, boolean splitting) 
+					throws DbException, IOException, TransactionAbortedException {
+		latches.latch(BTreeRootPtrPage.getId(tableid), splitting);
+		BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+		if(rootId == null) {
+			return null;
+		}
+		return findLeafPage(tid, dirtypages, rootId, perm, f, splitting);
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
+	 * Used by the BTreeFile iterator. Starts from the root, and releases every latch
+	 * before returning: the leaf is protected by the lock acquired with perm.
 	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * tree has no root
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		latches.latchTree(false);
+		try {
+			if(blink) {
+				return findLeafPageBLink(tid, new HashMap<PageId, Page>(), perm, f);
+			}
+			return findLeafPageFromRoot(tid, new HashMap<PageId, Page>(), perm, f, false);
+		} catch(IOException e) {
+			throw new DbException("could not read the root pointer page: " + e.getMessage());
+		} finally {
+			latches.releaseAll();
+		}
 	}
 
 	/**
@@ -239,16 +600,79 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF,
+				page.getId().getPageNumber());
+		Field midKey = moveUpperHalf(page, newPage);
+
+		// link the new page in to the right of the page
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			latches.latch(rightId, true);
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+			latches.release(rightId);
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the middle key up into the parent
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midKey);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, midKey)) {
+			return newPage;
+		}
+		return page;
+	}
+
+	/**
+	 * Move the upper half of the tuples on a leaf page to an empty page on its right.
+	 * 
+	 * @param page - the leaf page to split
+	 * @param newPage - the empty page
+	 * @return the separator key between the two pages (see {@link #getSeparator})
+	 * @throws DbException
+	 */
+	private Field moveUpperHalf(BTreeLeafPage page, BTreeLeafPage newPage) throws DbException {
+		Tuple[] moving = new Tuple[page.getNumTuples() / 2];
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		Field leftMax = getKey(it.next());
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+		return getSeparator(leftMax, getKey(moving[0]));
+	}
+
+	/**
+	 * Returns the key to store in the parent between two adjacent leaf pages
+	 * (suffix truncation). Any key k with leftMax < k <= rightMin separates the
+	 * pages; for string keys this is the shortest prefix of rightMin that is
+	 * greater than leftMax, which lets internal pages in the variable-length
+	 * layout hold many more entries. Other keys are returned unchanged.
+	 * 
+	 * @param leftMax - the largest key on the left page
+	 * @param rightMin - the smallest key on the right page
+	 * @return the separator key
+	 */
+	static Field getSeparator(Field leftMax, Field rightMin) {
+		if(!(rightMin instanceof StringField) || !leftMax.compare(Op.LESS_THAN, rightMin)) {
+			return rightMin;
+		}
+		String left = ((StringField) leftMax).getValue();
+		String right = ((StringField) rightMin).getValue();
+		int len = 0;
+		while(len < left.length() && left.charAt(len) == right.charAt(len)) {
+			len++;
+		}
+		// the first character that differs, or the first character after the end of leftMax
+		return new StringField(right.substring(0, len + 1), Type.STRING_LEN);
 	}
 	
 	/**
@@ -276,16 +700,48 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL,
+				page.getId().getPageNumber());
+		BTreeEntry mid = moveUpperHalf(page, newPage);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		// push the middle key up into the parent
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		parent.insertEntry(mid);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, mid.getKey())) {
+			return newPage;
+		}
+		return page;
+	}
+
+	/**
+	 * Move the upper half of the entries on an internal page to an empty page on its right,
+	 * and remove the middle entry from the page. The parent pointers of the children that
+	 * move are not updated.
+	 * 
+	 * @param page - the internal page to split
+	 * @param newPage - the empty page
+	 * @return the middle entry, with the two pages as its children
+	 * @throws DbException
+	 */
+	private BTreeEntry moveUpperHalf(BTreeInternalPage page, BTreeInternalPage newPage) throws DbException {
+		BTreeEntry[] moving = new BTreeEntry[page.getNumEntries() / 2];
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		BTreeEntry mid = it.next();
+		for(BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(mid);
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(newPage.getId());
+		return mid;
 	}
 	
 	/**
@@ -342,6 +798,12 @@ public class BTreeFile implements DbFile {
 
 	/**
 	 * Helper function to update the parent pointer of a node.
+	 * <p>
+	 * In a B-link tree the child may have moved to a page on the right of the parent since
+	 * it was found there, and the split that moved it may already have updated its pointer.
+	 * The page that has the child is found by following right-links, and latched while the
+	 * pointer is written so that it cannot split in the meantime; a pointer is then never
+	 * set back to a page the child has left.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -354,14 +816,66 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child) 
 			throws DbException, IOException, TransactionAbortedException {
 
-		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+		BTreePageId latchedParent = null;
+		if(blink && pid.pgcateg() == BTreePageId.INTERNAL) {
+			while(true) {
+				boolean parentHeld = latches.holds(pid);
+				latches.latch(pid, false);
+				BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+				BTreePageId next = parent.getRightSiblingId();
+				if(next == null || hasChild(parent, child)) {
+					latchedParent = parentHeld ? null : pid;
+					break;
+				}
+				if(!parentHeld) {
+					latches.release(pid);
+				}
+				pid = next;
+			}
+		}
 
-		if(!p.getParentId().equals(pid)) {
-			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
-			p.setParentId(pid);
+		boolean held = latches.holds(child);
+		latches.latch(child, true);
+		try {
+			BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+
+			if(!p.getParentId().equals(pid)) {
+				boolean wasRoot = p.getParentId().pgcateg() == BTreePageId.ROOT_PTR;
+				p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
+				p.setParentId(pid);
+				if(blink && wasRoot) {
+					// wake up the splits of the page waiting to post to its parent
+					synchronized(parentPosted) {
+						parentPostings++;
+						parentPosted.notifyAll();
+					}
+				}
+			}
+		} finally {
+			if(!held) {
+				latches.release(child);
+			}
+			if(latchedParent != null) {
+				latches.release(latchedParent);
+			}
 		}
 
 	}
+
+	/**
+	 * @return true if the specified page is a child of the internal page
+	 */
+	private static boolean hasChild(BTreeInternalPage page, BTreePageId child) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(e.getLeftChild().equals(child)) {
+				return true;
+			}
+		}
+		return e != null && e.getRightChild().equals(child);
+	}
 	
 	/**
 	 * Update the parent pointer of every child of the given page so that it correctly points to
@@ -436,32 +950,284 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		Field key = getKey(t);
+		modCount.incrementAndGet();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		latches.latchTree(false);
+		try {
+			// get a read lock on the root pointer page and use it to locate the root page
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			if(rootPtr.getRootId() == null) { 
+				// the root has just been created, so set the root pointer to point to it
+				latches.latch(rootPtr.getId(), true);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				if(rootPtr.getRootId() == null) {
+					rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+				}
+				latches.releasePages();
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+			if(blink) {
+				insertTupleBLink(tid, dirtypages, t);
+			}
+			else {
+				// find and lock the left-most leaf page corresponding to the key field. Most inserts
+				// fit in the leaf, so descend optimistically with shared latches on the internal pages
+				BTreeLeafPage leafPage = findLeafPageFromRoot(tid, dirtypages, Permissions.READ_WRITE, key, false);
+				if(leafPage.getNumEmptySlots() == 0) {
+					// the leaf must be split, which changes its parent and perhaps pages further up.
+					// Start over, this time keeping exclusive latches on every page the split can reach
+					latches.releasePages();
+					leafPage = findLeafPageFromRoot(tid, dirtypages, Permissions.READ_WRITE, key, true);
+					if(leafPage.getNumEmptySlots() == 0) {
+						leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+					}
+				}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+				// insert the tuple into the leaf page
+				leafPage.insertTuple(t);
+			}
+		} finally {
+			latches.releaseAll();
 		}
-
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+		TableStats.tupleInserted(tableid, t);
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
 	
+	/**
+	 * Insert a tuple into this B-link tree. If the leaf is full it is split by moving its
+	 * upper half to a new page on its right, which takes over the high key and right-link
+	 * of the leaf. The leaf keeps the first key of the new page as its high key, so the
+	 * split is complete as far as searches are concerned before the parent knows of it.
+	 * The new entry is then posted to the parent with no latch held on the leaves.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param t - the tuple to insert
+	 * @see #insertEntryBLink(TransactionId, HashMap, BTreePageId, BTreeEntry)
+	 */
+	private void insertTupleBLink(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t) 
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = getKey(t);
+		BTreeLeafPage page = findLeafPageBLink(tid, dirtypages, Permissions.READ_WRITE, key);
+		if(page.getNumEmptySlots() > 0) {
+			page.insertTuple(t);
+			return;
+		}
+
+		// nobody can reach the new page until it is linked in, so latching it cannot block
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF,
+				page.getId().getPageNumber());
+		latches.latch(newPage.getId(), true);
+		Field midKey = moveUpperHalf(page, newPage);
+		newPage.setHighKey(page.getHighKey());
+		page.setHighKey(midKey);
+
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			latches.latch(rightId, true);
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+		// the parent of the leaf is a good place to start looking for the parent of the new page
+		newPage.setParentId(page.getParentId());
+
+		if(key.compare(Op.GREATER_THAN, midKey)) {
+			newPage.insertTuple(t);
+		}
+		else {
+			page.insertTuple(t);
+		}
+
+		BTreePageId parentId = page.getParentId();
+		latches.releasePages();
+		insertEntryBLink(tid, dirtypages, parentId, new BTreeEntry(midKey, page.getId(), newPage.getId()));
+	}
+
+	/**
+	 * Post the entry for a split to the parent level of a B-link tree, splitting pages at
+	 * that level and further up as needed. Only one level is latched at a time.
+	 * <p>
+	 * By the time the entry is posted, the page that was split may have been split again,
+	 * so the entry goes next to whichever child of the parent covers its key rather than
+	 * next to its left child. Parent pointers in a B-link tree are only hints as well: after
+	 * a split, the children that moved to the new page keep pointing to the old page until
+	 * they are updated, after the latches on the parent level are released. Since pages
+	 * only ever move to the right, the parent covering the key is the page pointed to or
+	 * one to its right.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param parentId - the parent pointer of the left child of the entry
+	 * @param entry - the entry for the split, pointing to the page that was split and the new page
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void insertEntryBLink(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreePageId parentId, BTreeEntry entry) 
+					throws DbException, IOException, TransactionAbortedException {
+		while(true) {
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				if(insertRootBLink(tid, dirtypages, entry)) {
+					return;
+				}
+				// another split has created a new root above the page, or the page is not the
+				// root and the entry for it has not been posted yet by the split that created
+				// it. Wait for that split to finish
+				parentId = awaitParentBLink(tid, dirtypages, entry.getLeftChild());
+				continue;
+			}
+
+			Field key = entry.getKey();
+			BTreeInternalPage parent = findParentBLink(tid, dirtypages, parentId, key);
+			if(parent.getNumEmptySlots() > 0) {
+				entry.setLeftChild(getChildId(parent, key));
+				parent.insertEntry(entry);
+				latches.releasePages();
+				updateParentPointer(tid, dirtypages, parent.getId(), entry.getRightChild());
+				return;
+			}
+
+			// split the parent the same way as a leaf, except that the middle key is pushed up
+			BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL,
+					parent.getId().getPageNumber());
+			latches.latch(newPage.getId(), true);
+			BTreeEntry mid = moveUpperHalf(parent, newPage);
+			newPage.setHighKey(parent.getHighKey());
+			parent.setHighKey(mid.getKey());
+			newPage.setRightSiblingId(parent.getRightSiblingId());
+			parent.setRightSiblingId(newPage.getId());
+			newPage.setParentId(parent.getParentId());
+
+			BTreeInternalPage target = key.compare(Op.GREATER_THAN, mid.getKey()) ? newPage : parent;
+			entry.setLeftChild(getChildId(target, key));
+			target.insertEntry(entry);
+
+			// remember the children of the new page before other operations can change it
+			ArrayList<BTreePageId> moved = new ArrayList<BTreePageId>();
+			Iterator<BTreeEntry> it = newPage.iterator();
+			BTreeEntry e = null;
+			while(it.hasNext()) {
+				e = it.next();
+				moved.add(e.getLeftChild());
+			}
+			moved.add(e.getRightChild());
+			parentId = parent.getParentId();
+			latches.releasePages();
+
+			for(BTreePageId child : moved) {
+				updateParentPointer(tid, dirtypages, newPage.getId(), child);
+			}
+			if(target == parent) {
+				updateParentPointer(tid, dirtypages, parent.getId(), entry.getRightChild());
+			}
+			entry = mid;
+		}
+	}
+
+	/**
+	 * Find and latch the internal page of a B-link tree whose key range covers the key field
+	 * f, starting at the specified page and following right-links.
+	 * 
+	 * @return the page, latched exclusively
+	 */
+	private BTreeInternalPage findParentBLink(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreePageId pid, Field f) throws DbException, TransactionAbortedException {
+		while(true) {
+			latches.latch(pid, true);
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			BTreePageId next = getRightLink(page, f);
+			if(next == null) {
+				return page;
+			}
+			latches.release(pid);
+			pid = next;
+		}
+	}
+
+	/**
+	 * Read the parent pointer of a page of a B-link tree under a shared latch.
+	 */
+	private BTreePageId getParentIdBLink(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreePageId pid) throws DbException, TransactionAbortedException {
+		latches.latch(pid, false);
+		try {
+			return ((BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY)).getParentId();
+		} finally {
+			latches.release(pid);
+		}
+	}
+
+	/**
+	 * Wait until a page of a B-link tree has a parent other than the root pointer page,
+	 * which a split creating a new root, or posting the entry for the page, gives it.
+	 * 
+	 * @return the parent pointer of the page
+	 */
+	private BTreePageId awaitParentBLink(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreePageId pid) throws DbException, TransactionAbortedException {
+		boolean interrupted = false;
+		try {
+			while(true) {
+				// no latch is taken while holding the monitor, since parents are posted under latches
+				long seen;
+				synchronized(parentPosted) {
+					seen = parentPostings;
+				}
+				BTreePageId parentId = getParentIdBLink(tid, dirtypages, pid);
+				if(parentId.pgcateg() != BTreePageId.ROOT_PTR) {
+					return parentId;
+				}
+				synchronized(parentPosted) {
+					while(parentPostings == seen) {
+						try {
+							parentPosted.wait();
+						} catch(InterruptedException e) {
+							interrupted = true;
+						}
+					}
+				}
+			}
+		} finally {
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Post the entry for a split of the root of a B-link tree by creating a new root.
+	 * 
+	 * @return true if the left child of the entry was still the root, false if another
+	 * split has created a new root above it in the meantime
+	 */
+	private boolean insertRootBLink(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeEntry entry) 
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		latches.latch(rootPtrId, true);
+		try {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			if(!entry.getLeftChild().equals(rootPtr.getRootId())) {
+				return false;
+			}
+			BTreeInternalPage root = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+			root.insertEntry(entry);
+			rootPtr.setRootId(root.getId());
+			updateParentPointer(tid, dirtypages, root.getId(), entry.getLeftChild());
+			updateParentPointer(tid, dirtypages, root.getId(), entry.getRightChild());
+			return true;
+		} finally {
+			latches.release(rootPtrId);
+		}
+	}
+	
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -576,11 +1342,22 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		// move the tuples at the near end of the sibling until the two pages hold
+		// the same number of tuples, give or take one
+		Tuple[] moving = new Tuple[(sibling.getNumTuples() - page.getNumTuples()) / 2];
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(getSeparator(getKey(left.reverseIterator().next()), getKey(right.iterator().next())));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -656,11 +1433,22 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		BTreeEntry[] moving = new BTreeEntry[Math.max(1, (leftSibling.getNumEntries() - page.getNumEntries()) / 2)];
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		BTreePageId first = page.iterator().next().getLeftChild();
+		for(BTreeEntry e : moving) {
+			// the right child of the entry becomes the first child of the page, under
+			// the key pulled down from the parent, and the entry's key is pushed up
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), e.getRightChild(), first));
+			parentEntry.setKey(e.getKey());
+			first = e.getRightChild();
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -684,11 +1472,22 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		BTreeEntry[] moving = new BTreeEntry[Math.max(1, (rightSibling.getNumEntries() - page.getNumEntries()) / 2)];
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		BTreePageId last = page.reverseIterator().next().getRightChild();
+		for(BTreeEntry e : moving) {
+			// the left child of the entry becomes the last child of the page, over
+			// the key pulled down from the parent, and the entry's key is pushed up
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last, e.getLeftChild()));
+			parentEntry.setKey(e.getKey());
+			last = e.getLeftChild();
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -712,13 +1511,26 @@ public class BTreeFile implements DbFile {
 	protected void mergeLeafPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
+		Tuple[] moving = new Tuple[rightPage.getNumTuples()];
+		Iterator<Tuple> it = rightPage.iterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightId);
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -744,14 +1556,24 @@ public class BTreeFile implements DbFile {
 	protected void mergeInternalPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		BTreeEntry[] moving = new BTreeEntry[rightPage.getNumEntries()];
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+
+		// pull the key in the parent down between the last child of the left page
+		// and the first child of the right page
+		BTreePageId last = leftPage.reverseIterator().next().getRightChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), last, moving[0].getLeftChild()));
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndRightChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -780,8 +1602,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -796,43 +1617,140 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.getNumEntries() < getMinEntries(parent)) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
 
+	/**
+	 * Returns the number of entries below which an internal page other than the root
+	 * is rebalanced under the delete policy. An internal page is rebalanced before it
+	 * loses its last key, since it would then have a single child and no key to
+	 * rotate through its parent.
+	 * 
+	 * @param page - the internal page
+	 * @return the minimum number of entries of the page
+	 */
+	private int getMinEntries(BTreeInternalPage page) {
+		return Math.max(2, deletePolicy.getMinEntries(page.getMaxEntries()));
+	}
+
 	/**
 	 * Delete a tuple from this BTreeFile. 
 	 * May cause pages to merge or redistribute entries/tuples if the pages 
-	 * become less than half full.
+	 * fall below the minimum occupancy of the delete policy.
 	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to delete
 	 * @return a list of all pages that were dirtied by this operation. Could include
 	 * many pages since parent pointers will need to be updated when an internal node merges.
 	 * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
+	 * @see #setDeletePolicy(BTreeDeletePolicy)
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		modCount.incrementAndGet();
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
 
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		latches.latchTree(false);
+		try {
+			latches.latch(pageId, true);
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			int minTuples = deletePolicy.getMinEntries(page.getMaxTuples());
+			// pages of a B-link tree are never merged, since a search may still be on its
+			// way to a page through a right-link after the page is removed from its parent
+			if(!blink && page.getNumTuples() - 1 < minTuples) {
+				// the page will fall below minimum occupancy, and redistributing or merging
+				// reaches its siblings and its parent. Take the whole tree to do that
+				latches.releaseAll();
+				latches.latchTree(true);
+				page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			}
+			page.deleteTuple(t);
+
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			if(!blink && page.getNumTuples() < minTuples) { 
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+		} finally {
+			latches.releaseAll();
 		}
+		TableStats.tupleDeleted(tableid, t);
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * Compact this BTreeFile: walk the leaves from left to right and merge or
+	 * redistribute every leaf that is less than half full, as an eager delete
+	 * would have. Pages left sparse by a lazy delete policy are reclaimed this
+	 * way when the tree is idle, rather than on the critical path of deletes.
+	 * Holds the tree latch exclusively for the whole walk. Does nothing for a
+	 * B-link tree, whose pages are never merged.
+	 * 
+	 * @param tid - the transaction id
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see BTreeCompactor
+	 */
+	public ArrayList<Page> compact(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		if(!blink) {
+			latches.latchTree(true);
+			try {
+				compactLeaves(tid, dirtypages);
+			} finally {
+				latches.releaseAll();
+			}
+		}
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Walk the leaves and rebalance the sparse ones, see compact(). The caller
+	 * must hold the tree latch exclusively.
+	 */
+	private void compactLeaves(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+		if(rootId == null) {
+			return;
+		}
+		BTreeLeafPage prev = null;
+		BTreeLeafPage page = findLeafPage(tid, dirtypages, rootId, Permissions.READ_ONLY, null);
+		while(page != null) {
+			if(page.getParentId().pgcateg() != BTreePageId.ROOT_PTR
+					&& page.getNumTuples() < BTreeDeletePolicy.EAGER.getMinEntries(page.getMaxTuples())) {
+				int numTuples = page.getNumTuples();
+				page = (BTreeLeafPage) getPage(tid, dirtypages, page.getId(), Permissions.READ_WRITE);
+				handleMinOccupancyPage(tid, dirtypages, page);
+				if(prev != null && !page.getId().equals(prev.getRightSiblingId())) {
+					// a leaf is only ever merged into its left sibling, which is the
+					// previous leaf: move on from that one
+					page = prev;
+				}
+				else if(page.getNumTuples() != numTuples) {
+					// the leaf took tuples from a sibling, or merged with its right
+					// sibling, and may still be less than half full
+					continue;
+				}
+			}
+			prev = page;
+			BTreePageId nextId = page.getRightSiblingId();
+			page = (nextId == null) ? null
+					: (BTreeLeafPage) getPage(tid, dirtypages, nextId, Permissions.READ_ONLY);
+		}
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -855,6 +1773,7 @@ public class BTreeFile implements DbFile {
 				bw.write(emptyRootPtrData);
 				bw.write(emptyLeafData);
 				bw.close();
+				dropStagedRun();
 			}
 		}
 
@@ -862,9 +1781,56 @@ public class BTreeFile implements DbFile {
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Get the summary of the header pages of this file, walking the chain of
+	 * header pages to build it if it is missing or out of date.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param rootPtr - the root pointer page
+	 * @return the summary
+	 */
+	private HeaderSummary getHeaderSummary(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreeRootPtrPage rootPtr) throws DbException, TransactionAbortedException {
+		BTreePageId headerId = rootPtr.getHeaderId();
+		if(headers != null && headers.pool == Database.getBufferPool()
+				&& (headerId == null ? headers.ids.isEmpty()
+						: !headers.ids.isEmpty() && headers.ids.get(0).equals(headerId))) {
+			return headers;
+		}
+		HeaderSummary summary = new HeaderSummary();
+		while(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			if(headerPage.getNumEmptySlots() > 0) {
+				summary.free.set(summary.ids.size());
+			}
+			summary.ids.add(headerId);
+			headerId = headerPage.getNextPageId();
+		}
+		headers = summary;
+		return summary;
+	}
+
+	/**
+	 * Get a header page through the summary, checking that it is still the
+	 * header page the summary has at that position.
+	 *
+	 * @return the header page, or null if the summary is out of date
+	 */
+	private BTreeHeaderPage getHeaderPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HeaderSummary summary, int k) throws DbException, TransactionAbortedException {
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, summary.ids.get(k), Permissions.READ_WRITE);
+		BTreePageId prevId = headerPage.getPrevPageId();
+		if(k == 0 ? prevId != null : !summary.ids.get(k - 1).equals(prevId)) {
+			return null;
+		}
+		return headerPage;
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
+	 * Synchronized, since splits in different parts of the tree may allocate pages at once.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -876,50 +1842,78 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
+		return getEmptyPageNo(tid, dirtypages, 0);
+	}
 
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
-				}
+	/**
+	 * Get the page number of the empty page closest to the specified page in
+	 * this BTreeFile, so that a page split off another stays physically near
+	 * it. Creates a new page if none of the existing pages are empty.
+	 * <p>
+	 * The header pages with empty slots are found through an in-memory
+	 * summary rather than by walking the chain of header pages, and each
+	 * header page is scanned 64 slots at a time, so allocation takes constant
+	 * time amortized over the allocations.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param near - the page number to allocate near, or 0 for the first empty page
+	 * @return the page number of the empty page
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	protected synchronized int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages, int near) 
+			throws DbException, IOException, TransactionAbortedException {
+		// get a read lock on the root pointer page and use it to locate the header pages
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		HeaderSummary summary = getHeaderSummary(tid, dirtypages, rootPtr);
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		int nearHeader = near / numSlots;
+
+		while(true) {
+			// the header page with empty slots closest to the one covering near
+			int above = summary.free.nextSetBit(nearHeader);
+			int below = (nearHeader == 0) ? -1 : summary.free.previousSetBit(nearHeader - 1);
+			int k = (above == -1 || (below != -1 && nearHeader - below < above - nearHeader)) ? below : above;
+			if(k == -1) {
+				break;
 			}
 
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
+			BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, summary, k);
+			if(headerPage == null) {
+				headers = null;
+				summary = getHeaderSummary(tid, dirtypages, rootPtr);
+				continue;
+			}
+			int emptySlot;
+			if(near == 0) {
+				emptySlot = headerPage.getEmptySlot();
+			}
+			else {
+				emptySlot = headerPage.getEmptySlotNear(k == nearHeader ? near - k * numSlots
+						: (k > nearHeader ? 0 : numSlots - 1));
+			}
+			if(emptySlot != -1) {
 				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
 			}
-		}
-
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+			if(headerPage.getNumEmptySlots() == 0) {
+				summary.free.clear(k);
+			}
+			if(emptySlot != -1) {
+				return k * numSlots + emptySlot;
 			}
 		}
 
-		return emptyPageNo; 
+		// there are no header pages, or no free slots: create the new page
+		BufferedOutputStream bw = new BufferedOutputStream(
+				new FileOutputStream(f, true));
+		byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+		bw.write(emptyData);
+		bw.close();
+		dropStagedRun();
+		return numPages();
 	}
 	
 	/**
@@ -940,8 +1934,24 @@ public class BTreeFile implements DbFile {
 	 */
 	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
+		return getEmptyPage(tid, dirtypages, pgcateg, 0);
+	}
+
+	/**
+	 * Create a new page as close as possible to the specified page, such as a
+	 * page being split, so that neighbouring pages stay physically clustered.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pgcateg - the BTreePageId category of the new page.  Either LEAF, INTERNAL, or HEADER
+	 * @param near - the page number to allocate near, or 0 for the first empty page
+	 * @return the new empty page
+	 * @see #getEmptyPageNo(TransactionId, HashMap, int)
+	 */
+	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg, int near)
+			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
-		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
+		int emptyPageNo = getEmptyPageNo(tid, dirtypages, near);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
@@ -949,6 +1959,7 @@ public class BTreeFile implements DbFile {
 		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
 		rf.write(BTreePage.createEmptyPageData());
 		rf.close();
+		dropStagedRun();
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -970,7 +1981,7 @@ public class BTreeFile implements DbFile {
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	protected void setEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int emptyPageNo) 
+	protected synchronized void setEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int emptyPageNo) 
 			throws DbException, IOException, TransactionAbortedException {
 
 		// if this is the last page in the file (and not the only page), just 
@@ -1041,6 +2052,14 @@ public class BTreeFile implements DbFile {
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
 		headerPage.markSlotUsed(emptySlot, false);
+
+		// keep the summary of the header pages up to date
+		if(headers != null && headerPageCount < headers.ids.size() && headers.ids.get(headerPageCount).equals(headerId)) {
+			headers.free.set(headerPageCount);
+		}
+		else {
+			headers = null;
+		}
 	}
 
 	/**
@@ -1054,7 +2073,21 @@ public class BTreeFile implements DbFile {
 	 * @return an iterator for the filtered tuples
 	 */
 	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
-		return new BTreeSearchIterator(this, tid, ipred);
+		return new BTreeSearchIterator(this, tid, Arrays.asList(ipred));
+	}
+
+	/**
+	 * get the tuples from the file that satisfy all of the specified IndexPredicates,
+	 * for example EQUALS (5) and GREATER_THAN (5, 10) on a tree keyed on two fields.
+	 * The search starts at the largest lower bound and stops at the first tuple
+	 * beyond any upper bound.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipreds - the index predicates to filter on
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, List<IndexPredicate> ipreds) {
+		return new BTreeSearchIterator(this, tid, ipreds);
 	}
 
 	/**
@@ -1078,6 +2111,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BTreeReadAhead readAhead = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1096,11 +2130,12 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		if (curp != null) {
+			it = curp.iterator();
+			readAhead = new BTreeReadAhead(f, tid, null);
+			readAhead.advance(curp);
+		}
 	}
 
 	/**
@@ -1122,6 +2157,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.advance(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1148,6 +2184,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		if (readAhead != null) {
+			readAhead.close();
+			readAhead = null;
+		}
 	}
 }
 
@@ -1159,68 +2199,77 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BTreeReadAhead readAhead = null;
 
 	TransactionId tid;
 	BTreeFile f;
-	IndexPredicate ipred;
+	List<IndexPredicate> ipreds;
 
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
 	 * @param tid - the transaction id
-	 * @param ipred - the predicate to filter on
+	 * @param ipreds - the predicates to filter on; a tuple must satisfy all of them
 	 */
-	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, List<IndexPredicate> ipreds) {
 		this.f = f;
 		this.tid = tid;
-		this.ipred = ipred;
+		this.ipreds = ipreds;
 	}
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
+	 * for the given predicate operations: the leaf of the largest lower bound, or
+	 * the leftmost leaf if there is none
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+		Field low = null;
+		for(IndexPredicate ipred : ipreds) {
+			if(ipred.getOp() != Op.EQUALS && ipred.getOp() != Op.GREATER_THAN 
+					&& ipred.getOp() != Op.GREATER_THAN_OR_EQ) {
+				continue;
+			}
+			Field v = ipred.getField();
+			// of two composite bounds with the same prefix, the longer one is tighter
+			if(low == null || v.compare(Op.GREATER_THAN, low) || (v.compare(Op.EQUALS, low)
+					&& v instanceof CompositeField
+					&& ((CompositeField) v).numFields() > ((CompositeField) low).numFields())) {
+				low = v;
+			}
 		}
-		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, low);
+		if(curp != null) {
+			it = curp.iterator();
+			readAhead = new BTreeReadAhead(f, tid, ipreds);
+			readAhead.advance(curp);
 		}
-		it = curp.iterator();
 	}
 
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
+	 * the predicates or from the next page by following the right sibling pointer.
 	 * 
-	 * @return the next tuple matching the predicate, or null if none exists
+	 * @return the next tuple matching the predicates, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
 		while (it != null) {
 
+			nextTuple:
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
+				Field key = f.getKey(t);
+				for(IndexPredicate ipred : ipreds) {
+					if(!key.compare(ipred.getOp(), ipred.getField())) {
+						// if an upper bound is not satisfied, we have hit the end
+						if(ipred.isPastEnd(key)) {
+							return null;
+						}
+						continue nextTuple;
+					}
 				}
+				return t;
 			}
 
 			BTreePageId nextp = curp.getRightSiblingId();
@@ -1231,6 +2280,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.advance(curp);
 				it = curp.iterator();
 			}
 		}
@@ -1252,5 +2302,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		if(readAhead != null) {
+			readAhead.close();
+			readAhead = null;
+		}
 	}
 }
@@ -111,7 +111,7 @@ public class BTreeFileEncoder {
 	 * comparator to sort Tuples by key field
 	 */
 	public static class TupleComparator implements Comparator<Tuple> {
-		private int keyField;
+		private int[] keyFields;
 
 		/** 
 		 * Construct a TupleComparator
@@ -119,7 +119,16 @@ public class BTreeFileEncoder {
 		 * @param keyField - the index of the field the tuples are keyed on
 		 */
 		public TupleComparator(int keyField) {
-			this.keyField = keyField;
+			this(new int[] {keyField});
+		}
+
+		/** 
+		 * Construct a TupleComparator for a composite key
+		 * 
+		 * @param keyFields - the indexes of the fields the tuples are keyed on
+		 */
+		public TupleComparator(int[] keyFields) {
+			this.keyFields = keyFields;
 		}
 
 		/**
@@ -129,10 +138,12 @@ public class BTreeFileEncoder {
 		 */
 		public int compare(Tuple t1, Tuple t2) {
 			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
+			Field k1 = CompositeField.getKey(t1, keyFields);
+			Field k2 = CompositeField.getKey(t2, keyFields);
+			if(k1.compare(Op.LESS_THAN, k2)) {
 				cmp = -1;
 			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
+			else if(k1.compare(Op.GREATER_THAN, k2)) {
 				cmp = 1;
 			}
 			return cmp;
@@ -232,6 +243,8 @@ public class BTreeFileEncoder {
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		if (BTreeInternalPage.hasVarLengthKeys(keyType))
+			nentries = BTreeInternalPage.getMaxVarKeyEntries(npagebytes, 0);
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
 
@@ -335,6 +348,88 @@ public class BTreeFileEncoder {
 		return bf;
 	}
 
+	/**
+	 * Bulk load the B+ tree file bottom-up from the tuples
+	 *
+	 * @param tuples - list of tuples to add to the file
+	 * @param hFile - the file to temporarily store the data as a heap file on disk
+	 * @param bFile - the file on disk to back the resulting BTreeFile
+	 * @param numFields - number of fields per tuple
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1.0
+	 * @return the BTreeFile
+	 * @see BTreeBulkLoader
+	 */
+	public static BTreeFile bulkLoad(ArrayList<ArrayList<Integer>> tuples, File hFile,
+			File bFile, int numFields, int keyField, double fillFactor) throws IOException {
+		File tempInput = File.createTempFile("tempTable", ".txt");
+		tempInput.deleteOnExit();
+		BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
+		for (ArrayList<Integer> tuple : tuples) {
+			if (tuple.size() > numFields) {
+				bw.close();
+				throw new RuntimeException("Tuple has more than " + numFields + " fields: (" +
+						Utility.listToString(tuple) + ")");
+			}
+			for (int i = 0; i < tuple.size(); i++) {
+				bw.write(String.valueOf(tuple.get(i)));
+				if (i < numFields - 1) {
+					bw.write(',');
+				}
+			}
+			bw.write('\n');
+		}
+		bw.close();
+		return bulkLoad(tempInput, hFile, bFile, numFields, keyField, fillFactor);
+	}
+
+	/**
+	 * Bulk load the B+ tree file bottom-up from a text file. The heap file
+	 * used as an intermediate step is read page by page straight from disk,
+	 * so neither it nor the B+ tree passes through the buffer pool.
+	 *
+	 * @param inFile - the raw text file containing the tuples
+	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
+	 * @param bFile - the data file for the BTreeFile
+	 * @param numFields - number of fields per tuple
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1.0
+	 * @return the BTreeFile
+	 * @see BTreeBulkLoader
+	 */
+	public static BTreeFile bulkLoad(File inFile, File hFile, File bFile,
+			int numFields, int keyField, double fillFactor) throws IOException {
+		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
+		final HeapFile heapf = Utility.openHeapFile(numFields, hFile);
+
+		Iterator<Tuple> tuples = new Iterator<Tuple>() {
+			private int pgNo = 0;
+			private Iterator<Tuple> page = Collections.<Tuple>emptyList().iterator();
+
+			public boolean hasNext() {
+				while (!page.hasNext() && pgNo < heapf.numPages()) {
+					page = ((HeapPage) heapf.readPage(new HeapPageId(heapf.getId(), pgNo++))).iterator();
+				}
+				return page.hasNext();
+			}
+
+			public Tuple next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return page.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+
+		BTreeBulkLoader loader = new BTreeBulkLoader(bFile, heapf.getTupleDesc(), keyField);
+		loader.setFillFactor(fillFactor);
+		loader.load(tuples);
+		return BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+	}
+
 	/**
 	 * Set all the right sibling pointers by following the left sibling pointers
 	 * 
@@ -624,6 +719,13 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		if (BTreeInternalPage.hasVarLengthKeys(keyType)) {
+			Collections.sort(entries, new EntryComparator());
+			int entrycount = Math.min(entries.size(), BTreeInternalPage.getMaxVarKeyEntries(npagebytes, 0));
+			return BTreeInternalPage.createVarKeyPageData(entries.subList(0, entrycount),
+					entries.get(0).getLeftChild().getPageNumber(), 0,
+					childPageCategory, npagebytes);
+		}
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
@@ -23,6 +23,11 @@ public class BTreeHeaderPage implements Page {
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
 
+	// not stored on disk: the number of empty slots, and the first 64-slot
+	// word of the header that may hold one
+	private int numEmptySlots;
+	private int firstFreeWord = 0;
+
 	byte[] oldData;
 	private final Byte oldDataLock=new Byte((byte)0);
 
@@ -61,6 +66,9 @@ public class BTreeHeaderPage implements Page {
 
 		dis.close();
 
+		for (int w=0; w<getNumWords(); w++)
+			numEmptySlots += Long.bitCount(~getWord(w));
+
 		setBeforeImage();
 	}
 
@@ -70,6 +78,8 @@ public class BTreeHeaderPage implements Page {
 	public void init() {
 		for (int i=0; i<header.length; i++)
 			header[i] = (byte) 0xFF;
+		numEmptySlots = 0;
+		firstFreeWord = getNumWords();
 	}
 
 	/**
@@ -281,10 +291,45 @@ public class BTreeHeaderPage implements Page {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
+		if(value == isSlotUsed(i))
+			return;
+		if(value) {
 			header[headerbyte] |= 1 << headerbit;
-		else
+			numEmptySlots--;
+		}
+		else {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+			numEmptySlots++;
+			firstFreeWord = Math.min(firstFreeWord, i / 64);
+		}
+	}
+
+	/**
+	 * @return the number of empty slots on this page
+	 */
+	public int getNumEmptySlots() {
+		return numEmptySlots;
+	}
+
+	/**
+	 * @return the number of 64-slot words the header is scanned in
+	 */
+	private int getNumWords() {
+		return (header.length + 7) / 8;
+	}
+
+	/**
+	 * Get 64 slots of the header at once: bit j of word w is slot 64*w + j.
+	 * Slots past the end of the header read as used.
+	 */
+	private long getWord(int w) {
+		long word = 0;
+		for (int b=0; b<8; b++) {
+			int i = w*8 + b;
+			long bits = (i < header.length) ? (header[i] & 0xFF) : 0xFF;
+			word |= bits << (8*b);
+		}
+		return word;
 	}
 
 	/**
@@ -292,15 +337,64 @@ public class BTreeHeaderPage implements Page {
 	 * @return the index of the first empty slot or -1 if none exists
 	 */
 	public int getEmptySlot() {
-		for (int i=0; i<header.length; i++) {
-			if((int) header[i] != 0xFF) {
-				for(int j = 0; j < 8; j++) {
-					if(!isSlotUsed(i*8 + j)) {
-						return i*8 + j;
-					}
-				}
+		if(numEmptySlots == 0)
+			return -1;
+		// no slot before firstFreeWord is empty, so each word is passed over once
+		// between slots being freed
+		for (int w=firstFreeWord; w<getNumWords(); w++) {
+			long free = ~getWord(w);
+			if(free != 0) {
+				firstFreeWord = w;
+				return w*64 + Long.numberOfTrailingZeros(free);
 			}
 		}
+		firstFreeWord = getNumWords();
 		return -1;
 	}
+
+	/**
+	 * get the index of the empty slot closest to the specified slot, so that a
+	 * new page can be placed near a page it is related to
+	 * @param target - the slot to search from
+	 * @return the index of the empty slot closest to target, preferring the
+	 * later slot on a tie, or -1 if none exists
+	 */
+	public int getEmptySlotNear(int target) {
+		if(numEmptySlots == 0)
+			return -1;
+		target = Math.max(0, Math.min(target, getNumSlots() - 1));
+		int tw = target / 64;
+		int tb = target % 64;
+
+		// the first empty slot at or after target
+		int after = -1;
+		long free = ~getWord(tw) & (-1L << tb);
+		for (int w=tw; w<getNumWords(); w++) {
+			if(w > tw)
+				free = ~getWord(w);
+			if(free != 0) {
+				after = w*64 + Long.numberOfTrailingZeros(free);
+				break;
+			}
+		}
+
+		// the last empty slot before target, no further away than after
+		int before = -1;
+		int lowest = Math.max(firstFreeWord, (after == -1) ? 0 : (2*target - after) / 64);
+		free = (tb == 0) ? 0 : ~getWord(tw) & ((1L << tb) - 1);
+		for (int w=tw; w>=lowest; w--) {
+			if(w < tw)
+				free = ~getWord(w);
+			if(free != 0) {
+				before = w*64 + 63 - Long.numberOfLeadingZeros(free);
+				break;
+			}
+		}
+
+		if(before == -1)
+			return after;
+		if(after == -1 || target - before < after - target)
+			return before;
+		return after;
+	}
 }
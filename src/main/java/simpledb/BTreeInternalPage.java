@@ -18,8 +18,10 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	private final boolean varKeys; // string keys are stored at their actual length
 	
 	private int childCategory; // either leaf or internal
+	private int rightSibling; // internal node or 0, only used in a B-link tree
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
@@ -57,6 +59,16 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * An index on a string field uses a variable-length layout instead, since
+	 * the separator keys of an internal page only need to tell its children
+	 * apart and are usually much shorter than the field (see
+	 * {@link BTreeFile#getSeparator}). After the parent pointer, the child page
+	 * category and the header comes the first child pointer, followed by the
+	 * used slots in order, each stored as a 2-byte key length, the characters of
+	 * the key and the child pointer. The header still indicates which slots are
+	 * in use, and there is one slot for every entry that would fit if all keys
+	 * were one character long (see {@link #getVarKeySlots}).
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -67,7 +79,8 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this.varKeys = keyFields.length == 1 && hasVarLengthKeys(td.getFieldType(keyField));
+		this.numSlots = varKeys ? getVarKeySlots(BufferPool.getPageSize(), getLinkSize()) : getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -87,6 +100,31 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if(varKeys) {
+			readVarKeys(dis);
+		}
+		else {
+			readFixedKeys(dis);
+		}
+		dis.close();
+
+		// in a B-link tree, the right sibling pointer and the high key are stored
+		// at the end of the page
+		if(blink) {
+			int pos = data.length - getHighKeySize() - INDEX_SIZE;
+			rightSibling = new DataInputStream(new ByteArrayInputStream(data, pos, INDEX_SIZE)).readInt();
+			readHighKey(data);
+		}
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Read the keys and child pointers of a page with fixed-length keys: all the
+	 * key slots, followed by all the child pointer slots.
+	 */
+	private void readFixedKeys(DataInputStream dis) {
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -98,7 +136,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -106,20 +143,43 @@ public class BTreeInternalPage extends BTreePage {
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
-		dis.close();
+	}
 
-		setBeforeImage();
+	/**
+	 * Read the keys and child pointers of a page with variable-length keys: the
+	 * first child pointer, followed by the key and child pointer of each used slot.
+	 */
+	private void readVarKeys(DataInputStream dis) throws IOException {
+		keys[0] = null;
+		int child = dis.readInt();
+		children[0] = isSlotUsed(0) ? child : -1;
+		for (int i=1; i<numSlots; i++) {
+			if(!isSlotUsed(i)) {
+				keys[i] = null;
+				children[i] = -1;
+				continue;
+			}
+			byte bs[] = new byte[dis.readShort()];
+			dis.readFully(bs);
+			keys[i] = new StringField(new String(bs), Type.STRING_LEN);
+			children[i] = dis.readInt();
+		}
 	}
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if(varKeys) {
+			// the number of entries that fit even if every key has the maximum length
+			return getMaxVarKeyEntries(BufferPool.getPageSize(), getLinkSize());
+		}
+		int keySize = getKeySize();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
+		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header,
+		// and the right sibling pointer and high key in a B-link tree
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1 + getLinkSize() * 8; 
 		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
@@ -129,7 +189,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = varKeys ? numSlots : getMaxEntries() + 1;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -168,7 +228,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -181,7 +241,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -262,6 +322,31 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		if(varKeys) {
+			writeVarKeys(dos);
+		}
+		else {
+			writeFixedKeys(dos);
+		}
+
+		try {
+			if(blink) {
+				dos.writeInt(rightSibling);
+				writeHighKey(dos);
+			}
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Write the keys and child pointers of a page with fixed-length keys, and
+	 * pad the page up to the B-link fields.
+	 */
+	private void writeFixedKeys(DataOutputStream dos) {
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -269,7 +354,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<getKeySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -316,23 +401,126 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				getKeySize() * (keys.length - 1) + INDEX_SIZE * children.length
+				+ getLinkSize()); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+	}
 
+	/**
+	 * Write the keys and child pointers of a page with variable-length keys, and
+	 * pad the page up to the B-link fields.
+	 */
+	private void writeVarKeys(DataOutputStream dos) {
 		try {
-			dos.flush();
+			dos.writeInt(isSlotUsed(0) ? children[0] : 0);
+			for (int i=1; i<numSlots; i++) {
+				if(!isSlotUsed(i))
+					continue;
+				writeVarKey(dos, keys[i]);
+				dos.writeInt(children[i]);
+			}
+			dos.write(new byte[BufferPool.getPageSize() - getUsedBytes()]);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+	}
+
+	private static void writeVarKey(DataOutputStream dos, Field key) throws IOException {
+		String s = ((StringField) key).getValue();
+		dos.writeShort(s.length());
+		dos.writeBytes(s);
+	}
+
+	/**
+	 * Returns true if an internal page of an index on a field of the specified
+	 * type stores its keys in the variable-length layout
+	 */
+	public static boolean hasVarLengthKeys(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * Returns the number of bytes a key takes in the variable-length layout
+	 */
+	public static int getVarKeySize(Field key) {
+		return 2 + ((StringField) key).getValue().length();
+	}
+
+	/**
+	 * Returns the number of slots (including the unused key slot 0) of an
+	 * internal page in the variable-length layout, which is the number of entries
+	 * that fit if every key is one character long.
+	 * @param pageSize - the size of a page in bytes
+	 * @param linkSize - the number of bytes used by the B-link fields
+	 */
+	public static int getVarKeySlots(int pageSize, int linkSize) {
+		int bitsPerEntryIncludingHeader = (INDEX_SIZE + 3) * 8 + 1;
+		// one parent pointer, 1 byte for child page category, one extra child pointer
+		// and 1 bit for extra header
+		int extraBits = (2 * INDEX_SIZE + 1 + linkSize) * 8 + 1;
+		return (pageSize * 8 - extraBits) / bitsPerEntryIncludingHeader + 1;
+	}
 
+	/**
+	 * Returns the number of entries an internal page in the variable-length
+	 * layout can hold if every key has the maximum length.
+	 * @param pageSize - the size of a page in bytes
+	 * @param linkSize - the number of bytes used by the B-link fields
+	 */
+	public static int getMaxVarKeyEntries(int pageSize, int linkSize) {
+		int headerSize = (getVarKeySlots(pageSize, linkSize) + 7) / 8;
+		int extraBytes = 2 * INDEX_SIZE + 1 + linkSize + headerSize;
+		return (pageSize - extraBytes) / (INDEX_SIZE + 2 + Type.STRING_LEN);
+	}
+
+	/**
+	 * Create the data of an internal page in the variable-length layout holding
+	 * the specified entries, which must be sorted and fit on the page.
+	 * @param entries - the entries of the page
+	 * @param firstChild - the page number of the first child
+	 * @param parent - the page number of the parent
+	 * @param childCategory - the category of the child pages (either internal or leaf)
+	 * @param pageSize - the size of a page in bytes
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 */
+	public static byte[] createVarKeyPageData(List<BTreeEntry> entries, int firstChild, int parent,
+			int childCategory, int pageSize) throws IOException {
+		int slots = getVarKeySlots(pageSize, 0);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(parent);
+		dos.writeByte((byte) childCategory);
+		byte[] header = new byte[(slots + 7) / 8];
+		for (int i=0; i<=entries.size(); i++)
+			header[i / 8] |= 1 << (i % 8);
+		dos.write(header);
+		dos.writeInt(firstChild);
+		for (BTreeEntry e : entries) {
+			writeVarKey(dos, e.getKey());
+			dos.writeInt(e.getRightChild().getPageNumber());
+		}
+		dos.write(new byte[pageSize - dos.size()]);
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Returns the number of bytes of a page in the variable-length layout that
+	 * are currently in use, including the B-link fields
+	 */
+	private int getUsedBytes() {
+		int used = 2 * INDEX_SIZE + 1 + header.length + getLinkSize();
+		for (int i=1; i<numSlots; i++) {
+			if(isSlotUsed(i))
+				used += INDEX_SIZE + getVarKeySize(keys[i]);
+		}
+		return used;
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -429,6 +617,10 @@ public class BTreeInternalPage extends BTreePage {
 				break;
 			}	
 		}
+		if(varKeys && getUsedBytes() - getVarKeySize(keys[rid.getTupleNumber()]) + getVarKeySize(e.getKey())
+				> BufferPool.getPageSize()) {
+			throw new DbException("not enough space on the page for updated key " + e.getKey());
+		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
 	}
@@ -441,7 +633,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!CompositeField.isKey(e.getKey(), td, keyFields))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -456,8 +648,11 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if(getNumEmptySlots() == 0)
+			throw new DbException("called insertEntry on page with no empty slots.");
+
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -558,11 +753,58 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Returns the number of bytes at the end of the page holding the right sibling
+	 * pointer and the high key in a B-link tree, or zero in an ordinary B+ tree.
+	 */
+	private int getLinkSize() {
+		return blink ? INDEX_SIZE + getHighKeySize() : 0;
+	}
+
+	/**
+	 * Get the id of the right sibling of this page. Internal pages only have
+	 * right siblings in a B-link tree.
+	 * @return the id of the right sibling, or null if there is none
+	 */
+	public BTreePageId getRightSiblingId() {
+		if(rightSibling == 0) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), rightSibling, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Set the right sibling id of this page
+	 * @param id - the new right sibling id
+	 * @throws DbException if the id is not valid or this page is not part of a B-link tree
+	 */
+	public void setRightSiblingId(BTreePageId id) throws DbException {
+		if(!blink) {
+			throw new DbException("only B-link tree internal pages have a right sibling");
+		}
+		if(id == null) {
+			rightSibling = 0;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setRightSiblingId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("rightSibling must be an internal node");
+			}
+			rightSibling = id.getPageNumber();
+		}
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		int cnt = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 	
 	/**
@@ -575,9 +817,21 @@ public class BTreeInternalPage extends BTreePage {
 		for(int i=1; i<numSlots; i++)
 			if(!isSlotUsed(i))
 				cnt++;
+		if(varKeys) {
+			// a free slot is only usable if a key of the maximum length fits
+			int fit = (BufferPool.getPageSize() - getUsedBytes()) / (INDEX_SIZE + 2 + Type.STRING_LEN);
+			return Math.min(cnt, fit);
+		}
 		return cnt;
 	}
 
+	/**
+	 * Returns the number of slots on this page, including the unused key slot 0
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -741,7 +995,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -103,6 +103,9 @@ public class BTreeLeafPage extends BTreePage {
 		}
 		dis.close();
 
+		// in a B-link tree, the high key is stored at the end of the page
+		readHighKey(data);
+
 		setBeforeImage();
 	}
 
@@ -111,8 +114,9 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public int getMaxTuples() {        
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
-		int extraBits = 3 * INDEX_SIZE * 8; 
+		// extraBits are: left sibling pointer, right sibling pointer, parent pointer,
+		// and the high key in a B-link tree
+		int extraBits = 3 * INDEX_SIZE * 8 + getHighKeySize() * 8; 
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
@@ -262,10 +266,12 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE
+				+ getHighKeySize()); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
+			writeHighKey(dos);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -324,10 +330,10 @@ public class BTreeLeafPage extends BTreePage {
 
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
+		Field key = getKey(t);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(getKey(tuples[i]).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
 					break;	
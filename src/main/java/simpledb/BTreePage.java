@@ -19,11 +19,16 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields; // all key columns, keyField is the first
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
 
+	// pages of a B-link tree also store a high key, see BTreeFile#isBLink()
+	protected final boolean blink;
+	protected Field highKey = null; // null if there is no upper bound
+
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -52,6 +57,94 @@ public abstract class BTreePage implements Page {
 		this.pid = id;
 		this.keyField = key;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+		this.blink = (file instanceof BTreeFile) && ((BTreeFile) file).isBLink();
+		this.keyFields = (file instanceof BTreeFile) ? ((BTreeFile) file).keyFields() : new int[] {key};
+	}
+
+	/**
+	 * Returns the number of bytes needed to store a key of this page
+	 */
+	protected int getKeySize() {
+		return CompositeField.getKeyLen(td, keyFields);
+	}
+
+	/**
+	 * Read a key of this page
+	 */
+	protected Field parseKey(DataInputStream dis) throws java.text.ParseException {
+		return CompositeField.parseKey(td, keyFields, dis);
+	}
+
+	/**
+	 * Returns the key of a tuple on this page
+	 */
+	protected Field getKey(Tuple t) {
+		return CompositeField.getKey(t, keyFields);
+	}
+
+	/**
+	 * Returns the number of bytes at the end of the page that hold the high key in
+	 * a B-link tree: a byte saying whether there is a high key, followed by the key.
+	 * Zero for a page of an ordinary B+ tree.
+	 */
+	protected int getHighKeySize() {
+		return blink ? 1 + getKeySize() : 0;
+	}
+
+	/**
+	 * Read the high key from the end of the page data of a B-link tree page.
+	 */
+	protected void readHighKey(byte[] data) throws IOException {
+		if(!blink)
+			return;
+		int size = getHighKeySize();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, data.length - size, size));
+		if(dis.readByte() != 0) {
+			try {
+				highKey = parseKey(dis);
+			} catch (java.text.ParseException e) {
+				throw new IOException("could not parse the high key of " + pid);
+			}
+		}
+		dis.close();
+	}
+
+	/**
+	 * Write the high key of a B-link tree page; the last thing in the page data.
+	 */
+	protected void writeHighKey(DataOutputStream dos) throws IOException {
+		if(!blink)
+			return;
+		if(highKey == null) {
+			dos.write(new byte[getHighKeySize()]);
+		}
+		else {
+			dos.writeByte(1);
+			highKey.serialize(dos);
+		}
+	}
+
+	/**
+	 * Get the high key of this page. In a B-link tree every key in the subtree of this
+	 * page is less than or equal to the high key; a larger key has moved to a page to
+	 * the right by a split. Always null in an ordinary B+ tree.
+	 * @return the high key, or null if the page has no upper bound
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page
+	 * @param key - the new high key, or null for no upper bound
+	 * @throws DbException if this page is not part of a B-link tree
+	 */
+	public void setHighKey(Field key) throws DbException {
+		if(!blink) {
+			throw new DbException("only B-link tree pages have a high key");
+		}
+		highKey = key;
 	}
 
 	/**
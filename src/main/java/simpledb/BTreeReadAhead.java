@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * BTreeReadAhead prefetches the leaves of a B+ tree ahead of a range scan.
+ * Each time the scan pins a new leaf, the read-ahead makes sure that the next
+ * few leaves along the right-sibling chain are being read into the buffer
+ * pool in the background, so that the scan rarely waits for a read. It stops
+ * at the leaf where the scan will end, so it reads no page the scan would not
+ * read itself, and a transaction that wants a page being read ahead waits for
+ * that read rather than reading the page again.
+ * <p>
+ * A leaf only names its right sibling once it has been read, so the chain is
+ * followed one page at a time. When a leaf's right sibling is the next page
+ * of the file, as after a bulk load, the leaves are likely to be laid out
+ * contiguously, and the rest of the window is staged with one sequential
+ * read (see {@link BTreeFile#stageRun}); the pages are then parsed from the
+ * staged data as the chain confirms that they are leaves.
+ */
+class BTreeReadAhead {
+
+	/** The number of leaves to keep read ahead of the scan */
+	static final int WINDOW = 16;
+
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(2,
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "btree-read-ahead");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final BTreeFile f;
+	private final TransactionId tid;
+	private final List<IndexPredicate> ipreds;
+	/** The leaves read ahead that the scan has not reached yet, in chain order */
+	private final ArrayDeque<BTreePageId> ahead = new ArrayDeque<BTreePageId>();
+	/** The last leaf of the chain read so far */
+	private BTreeLeafPage last;
+	private Future<?> task;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param f - the BTreeFile being scanned
+	 * @param tid - the transaction of the scan
+	 * @param ipreds - the predicates of the scan, or null if it reads to the
+	 *        end of the tree
+	 */
+	BTreeReadAhead(BTreeFile f, TransactionId tid, List<IndexPredicate> ipreds) {
+		this.f = f;
+		this.tid = tid;
+		this.ipreds = ipreds;
+	}
+
+	/**
+	 * @return true if the scan ends on the specified leaf: its last tuple is
+	 *         past an upper bound of the scan
+	 */
+	private boolean endsScan(BTreeLeafPage page) {
+		if(ipreds == null) {
+			return false;
+		}
+		Iterator<Tuple> it = page.reverseIterator();
+		if(!it.hasNext()) {
+			return false;
+		}
+		Field key = f.getKey(it.next());
+		for(IndexPredicate ipred : ipreds) {
+			if(!key.compare(ipred.getOp(), ipred.getField()) && ipred.isPastEnd(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Tell the read-ahead that the scan has pinned a new leaf. Starts reading
+	 * more leaves in the background once fewer than half a window are left.
+	 *
+	 * @param page - the leaf the scan has just moved to
+	 */
+	synchronized void advance(BTreeLeafPage page) {
+		if(closed) {
+			return;
+		}
+		if(ahead.contains(page.getId())) {
+			while(!ahead.removeFirst().equals(page.getId())) {
+			}
+		}
+		else {
+			// the scan is not on the prefetched chain (yet): start from here
+			ahead.clear();
+			last = page;
+		}
+		if(ahead.size() >= WINDOW / 2 || (task != null && !task.isDone())) {
+			return;
+		}
+		final BTreeLeafPage from = last;
+		final int n = WINDOW - ahead.size();
+		task = EXECUTOR.submit(new Runnable() {
+			public void run() {
+				try {
+					readAhead(from, n);
+				} catch (Exception e) {
+					// read-ahead is only a hint; the scan reads the page itself
+				}
+			}
+		});
+	}
+
+	/**
+	 * Record a leaf that was read ahead. Returns false if the scan has
+	 * closed or moved elsewhere, so the read-ahead should stop.
+	 */
+	private synchronized boolean append(BTreeLeafPage from, BTreeLeafPage page) {
+		if(closed || last != from) {
+			return false;
+		}
+		ahead.addLast(page.getId());
+		last = page;
+		return true;
+	}
+
+	/**
+	 * Read up to n leaves along the chain after from into the buffer pool.
+	 */
+	private void readAhead(BTreeLeafPage from, int n)
+			throws DbException, TransactionAbortedException, IOException {
+		BufferPool bp = Database.getBufferPool();
+		BTreeLeafPage prev = from;
+		int stagedEnd = 0;
+		for(int count = 0; count < n && !closed && !endsScan(prev); count++) {
+			BTreePageId next = prev.getRightSiblingId();
+			if(next == null) {
+				return;
+			}
+			if(!bp.isCached(next)) {
+				// a leaf followed by the next page of the file hints at a contiguous run
+				if(next.getPageNumber() == prev.getId().getPageNumber() + 1 && next.getPageNumber() > stagedEnd) {
+					f.stageRun(next.getPageNumber(), n - count);
+					stagedEnd = next.getPageNumber() + n - count - 1;
+				}
+				if(!bp.prefetchPage(next)) {
+					// the buffer pool has no room to spare
+					return;
+				}
+			}
+			BTreeLeafPage page = (BTreeLeafPage) bp.getPage(tid, next, Permissions.READ_ONLY);
+			if(!append(prev, page)) {
+				return;
+			}
+			prev = page;
+		}
+	}
+
+	/**
+	 * Stop reading ahead, when the scan is closed.
+	 */
+	synchronized void close() {
+		closed = true;
+		ahead.clear();
+		last = null;
+	}
+
+	/**
+	 * Wait for the read-ahead running in the background, if any, to finish.
+	 */
+	void await() throws InterruptedException {
+		Future<?> t;
+		synchronized(this) {
+			t = task;
+		}
+		if(t != null) {
+			try {
+				t.get();
+			} catch (ExecutionException e) {
+				// ignored, as in the task itself
+			}
+		}
+	}
+}
@@ -13,7 +13,7 @@ public class BTreeScan implements OpIterator {
 	private boolean isOpen = false;
 	private TransactionId tid;
 	private TupleDesc myTd;
-	private IndexPredicate ipred = null;
+	private List<IndexPredicate> ipreds = null;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -38,8 +38,28 @@ public class BTreeScan implements OpIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, ipred == null ? null : Arrays.asList(ipred), tableAlias);
+	}
+
+	/**
+	 * Creates a B+ tree scan over the specified table that returns the tuples
+	 * matching all of the specified index predicates, for example EQUALS (5)
+	 * and GREATER_THAN (5, 10) on a table keyed on two fields.
+	 * 
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param ipreds
+	 * 			  The index predicates to match. If null or empty, the scan will
+	 *            return all tuples in sorted order
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 * @see BTreeFile#indexIterator(TransactionId, List)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, List<IndexPredicate> ipreds, String tableAlias) {
 		this.tid = tid;
-		this.ipred = ipred;
+		this.ipreds = ipreds;
 		reset(tableid,tableAlias);
 	}
 
@@ -76,11 +96,11 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(ipreds == null || ipreds.isEmpty()) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipreds);
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
@@ -157,7 +157,43 @@ public class BTreeUtility {
 		return BTreeFileEncoder.convert(tuples, hFile, bFile, BufferPool.getPageSize(),
 				columns, typeAr, ',', keyField) ;
 	}
-	
+
+	/**
+	 * Generates a random B+ tree file for testing, bulk loaded bottom-up
+	 * with the specified fill factor
+	 * @param columns - number of columns
+	 * @param rows - number of rows
+	 * @param maxValue - the maximum random value in this B+ tree
+	 * @param columnSpecification - optional column specification
+	 * @param tuples - optional list of tuples to return
+	 * @param keyField - the index of the key field
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1.0
+	 * @return a BTreeFile
+	 * @throws IOException
+	 * @see BTreeBulkLoader
+	 */
+	public static BTreeFile createRandomBTreeFile(int columns, int rows,
+			int maxValue, Map<Integer, Integer> columnSpecification,
+			ArrayList<ArrayList<Integer>> tuples, int keyField, double fillFactor)
+					throws IOException {
+
+		if (tuples != null) {
+			tuples.clear();
+		} else {
+			tuples = new ArrayList<ArrayList<Integer>>(rows);
+		}
+
+		generateRandomTuples(columns, rows, maxValue, columnSpecification, tuples);
+
+		File hFile = File.createTempFile("table", ".dat");
+		hFile.deleteOnExit();
+
+		File bFile = File.createTempFile("table_index", ".dat");
+		bFile.deleteOnExit();
+
+		return BTreeFileEncoder.bulkLoad(tuples, hFile, bFile, columns, keyField, fillFactor);
+	}
+
 	/**
 	 * Generate a random set of tuples for testing
 	 * @param columns - number of columns
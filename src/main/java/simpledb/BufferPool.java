@@ -4,6 +4,7 @@ import java.io.*;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -31,6 +32,36 @@ public class BufferPool {
 
     private final ConcurrentHashMap<PageId, Page> cachedPages;
 
+    /** The pages being read from disk, so that each page is read only once
+     *  when a read-ahead and a transaction want it at the same time */
+    private final ConcurrentHashMap<PageId, CountDownLatch> pendingReads;
+
+    /**
+     * The page requests a thread has made of the buffer pool, counted so that
+     * the I/O of a query can be measured (see {@link ExplainAnalyze}).  A
+     * thread only ever reads and updates its own counts.
+     */
+    public static class PageCounts {
+        /** The calls to getPage that found their page in the buffer pool */
+        public long hits;
+        /** The calls to getPage that did not */
+        public long misses;
+        /** The pages read from disk by this thread; a miss on a page that
+         *  was being read ahead waits for that read instead */
+        public long reads;
+    }
+
+    private static final ThreadLocal<PageCounts> pageCounts = new ThreadLocal<PageCounts>() {
+        @Override protected PageCounts initialValue() {
+            return new PageCounts();
+        }
+    };
+
+    /** @return the page requests the current thread has made of any buffer pool */
+    public static PageCounts getThreadPageCounts() {
+        return pageCounts.get();
+    }
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -39,6 +70,7 @@ public class BufferPool {
     public BufferPool(int numPages) {
         this.maxNumPages = numPages;
         cachedPages = new ConcurrentHashMap<>();
+        pendingReads = new ConcurrentHashMap<>();
     }
     
     public static int getPageSize() {
@@ -73,19 +105,116 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        if (this.cachedPages.containsKey(pid)) {
-            return this.cachedPages.get(pid);
+        PageCounts counts = pageCounts.get();
+        boolean missed = false;
+        while (true) {
+            Page page = this.cachedPages.get(pid);
+            if (page != null) {
+                if (!missed) {
+                    counts.hits++;
+                }
+                return page;
+            }
+            if (!missed) {
+                counts.misses++;
+                missed = true;
+            }
+            CountDownLatch latch = new CountDownLatch(1);
+            CountDownLatch reading = this.pendingReads.putIfAbsent(pid, latch);
+            if (reading != null) {
+                // another thread is reading the page: wait for it
+                awaitRead(reading);
+                continue;
+            }
+            try {
+                page = this.cachedPages.get(pid);
+                if (page != null) {
+                    return page;
+                }
+                if (this.cachedPages.size() >= this.maxNumPages) {
+                    throw new DbException("Maximum number of cached page reached");
+                }
+                page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                counts.reads++;
+                this.cachedPages.put(pid, page);
+                return page;
+            } finally {
+                this.pendingReads.remove(pid);
+                latch.countDown();
+            }
         }
+    }
 
-        if (this.cachedPages.size() == this.maxNumPages) {
-            throw new DbException("Maximum number of cached page reached");
-        } else {
-            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            this.cachedPages.put(pid, page);
-            return page;
+    private static void awaitRead(CountDownLatch reading) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                reading.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * @return true if the specified page is in the buffer pool
+     */
+    boolean isCached(PageId pid) {
+        return this.cachedPages.containsKey(pid);
+    }
+
+    /**
+     * Read a page into the buffer pool ahead of any request for it, such as
+     * the next leaves of a B+ tree range scan.  Read-ahead never takes space
+     * that transactions may need: nothing is read if the buffer pool is more
+     * than three quarters full.
+     *
+     * @param pid the ID of the page to read
+     * @return true if the page is now in the buffer pool
+     */
+    boolean prefetchPage(PageId pid) {
+        while (true) {
+            if (this.cachedPages.containsKey(pid)) {
+                return true;
+            }
+            if (this.cachedPages.size() >= this.maxNumPages - this.maxNumPages / 4) {
+                return false;
+            }
+            CountDownLatch latch = new CountDownLatch(1);
+            CountDownLatch reading = this.pendingReads.putIfAbsent(pid, latch);
+            if (reading != null) {
+                awaitRead(reading);
+                continue;
+            }
+            try {
+                if (!this.cachedPages.containsKey(pid)) {
+                    Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                    this.cachedPages.put(pid, page);
+                }
+                return true;
+            } finally {
+                this.pendingReads.remove(pid);
+                latch.countDown();
+            }
+        }
+    }
+
+    /**
+     * Return the specified page if the buffer pool holds it, without locking
+     * it or reading it from disk. The page may be changed by the transaction
+     * that holds it while the caller reads it.
+     *
+     * @param pid the ID of the requested page
+     * @return the page, or null if it is not in the buffer pool
+     */
+    public Page getCachedPage(PageId pid) {
+        return this.cachedPages.get(pid);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -32,6 +33,9 @@ public class Catalog {
 
     private Map<String, TableItem> tableNameDict;
     private Map<Integer, TableItem> tableIdDict;
+    private Map<Integer, List<SecondaryIndex>> indexDict;
+    /** Incremented whenever a table or index is added or removed */
+    private final AtomicLong version = new AtomicLong();
 
     /**
      * Constructor.
@@ -40,6 +44,7 @@ public class Catalog {
     public Catalog() {
         this.tableNameDict = new HashMap<>();
         this.tableIdDict = new HashMap<>();
+        this.indexDict = new HashMap<>();
     }
 
     /**
@@ -60,6 +65,7 @@ public class Catalog {
         TableItem item = new TableItem(file, name, pkeyField);
         this.tableNameDict.put(name, item);
         this.tableIdDict.put(tableId, item);
+        this.version.incrementAndGet();
     }
 
     public void addTable(DbFile file, String name) {
@@ -136,20 +142,19 @@ public class Catalog {
             private Integer[] tableIds;
 
             {
-                tableIds = (Integer[]) tableIdDict.keySet().toArray();
-                currentIdx = tableIds.length;
+                tableIds = tableIdDict.keySet().toArray(new Integer[0]);
             }
 
             @Override
             public boolean hasNext() {
-                if (currentIdx < tableIdDict.size()) {
-                    return true;
-                }
-                return false;
+                return currentIdx < tableIds.length;
             }
 
             @Override
             public Integer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
                 Integer value = tableIds[currentIdx];
                 ++currentIdx;
                 return value;
@@ -166,10 +171,52 @@ public class Catalog {
         return item.name;
     }
     
+    /**
+     * Add a secondary index over a table already in the catalog.  The
+     * BTreeFile holding the index entries is added as a table named after
+     * the index, and the index is kept up to date as tuples are inserted
+     * into and deleted from the table.
+     * @param index the index to add
+     */
+    public void addIndex(SecondaryIndex index) {
+        addTable(index.getFile(), index.getName());
+        List<SecondaryIndex> indexes = this.indexDict.get(index.getTableId());
+        if (indexes == null) {
+            indexes = new ArrayList<>();
+            this.indexDict.put(index.getTableId(), indexes);
+        }
+        indexes.add(index);
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * Return the secondary indexes over the specified table
+     * @param tableid The id of the table
+     * @return the indexes, in the order they were added; empty if there are none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = this.indexDict.get(tableid);
+        if (indexes == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(indexes);
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         this.tableIdDict.clear();
         this.tableNameDict.clear();
+        this.indexDict.clear();
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * Return the version of the catalog, which changes whenever a table or
+     * index is added or removed.  Plans cached for a version of the catalog
+     * are stale once it changes.
+     */
+    public long getVersion() {
+        return this.version.get();
     }
     
     /**
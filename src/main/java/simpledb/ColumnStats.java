@@ -0,0 +1,361 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * ColumnStats represents the statistics of a single column of a table: the
+ * number of values and their bounds, a HyperLogLog estimate of the number of
+ * distinct values, the most common values with their frequencies, and an
+ * equi-depth histogram.
+ * <p>
+ * The count, bounds and sketch are updated with every value of the column;
+ * the most common values and the histogram are built from a sample of the
+ * column once all the values have been seen, see {@link TableStats}.
+ * Equality predicates are estimated from the most common values, and for
+ * other values from the number of distinct values, which stays accurate on
+ * skewed data where a histogram bucket holds a few frequent values among many
+ * rare ones.
+ * <p>
+ * Once built, the statistics follow the values inserted into and deleted
+ * from the column: the count, histogram and most common values are updated,
+ * and inserted values are added to the sketch.
+ *
+ * @Threadsafe
+ */
+public class ColumnStats {
+
+    /** The largest number of most common values kept per column */
+    static final int NUM_MCVS = 20;
+
+    /**
+     * A value is only a most common value if it is this many times more
+     * frequent in the sample than the average value
+     */
+    static final double MCV_MIN_RATIO = 1.25;
+
+    /** The number of characters of a string that order its histogram key */
+    private static final int KEY_CHARS = 7;
+
+    private final Type type;
+    private long count;
+    private long minKey = Long.MAX_VALUE, maxKey = Long.MIN_VALUE;
+    private final HyperLogLog sketch = new HyperLogLog();
+
+    private long numDistinct;
+    /** Whether values were inserted since numDistinct was estimated */
+    private boolean sketchChanged;
+    private Field[] mcvs = new Field[0];
+    /** The estimated number of occurrences of each most common value */
+    private double[] mcvCounts = new double[0];
+    private double mcvTotal;
+    private EquiDepthHistogram hist = new EquiDepthHistogram(new long[0], 0);
+    private Field[] sample = new Field[0];
+
+    /**
+     * Create statistics for a column of the specified type, with no values.
+     */
+    public ColumnStats(Type type) {
+        this.type = type;
+    }
+
+    /**
+     * Return the key of a value in the histogram. Keys are in the same order
+     * as the values: an integer is its own key, and a string is keyed by its
+     * first few characters.
+     */
+    static long key(Field f) {
+        if (f.getType() == Type.INT_TYPE)
+            return ((IntField) f).getValue();
+        String s = ((StringField) f).getValue();
+        long k = 0;
+        for (int i = 0; i < KEY_CHARS; i++)
+            k = (k << 8) | (i < s.length() ? Math.min(s.charAt(i), 0xff) : 0);
+        return k;
+    }
+
+    /** Add a value of the column to the count, bounds and sketch */
+    public synchronized void addValue(Field f) {
+        count++;
+        long k = key(f);
+        if (k < minKey)
+            minKey = k;
+        if (k > maxKey)
+            maxKey = k;
+        sketch.addValue(f);
+    }
+
+    /**
+     * Build the most common values and the histogram from a sample of the
+     * values added to these statistics.
+     *
+     * @param sample a uniform random sample of the values
+     * @param numBuckets the number of buckets of the histogram
+     */
+    public synchronized void build(List<Field> sample, int numBuckets) {
+        build(sample, numBuckets, count);
+    }
+
+    /**
+     * Build the most common values and the histogram from a sample of the
+     * values added to these statistics, which are themselves a sample of
+     * total values of the column. The count becomes total, and the number of
+     * distinct values is scaled up from the sample with the Duj1 estimator of
+     * Haas and Stokes (1998), n*d / (n - f1 + f1*n/total) for a sample of n
+     * values with d distinct values of which f1 are seen once: a sample of
+     * values all seen once is a unique column, and one with no value seen
+     * once has found every value.
+     *
+     * @param sample a uniform random sample of the values
+     * @param numBuckets the number of buckets of the histogram
+     * @param total the number of values in the column
+     */
+    public synchronized void build(List<Field> sample, int numBuckets, long total) {
+        int n = sample.size();
+        HashMap<Field, Integer> counts = new HashMap<Field, Integer>();
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            Field f = sample.get(i);
+            Integer c = counts.get(f);
+            counts.put(f, c == null ? 1 : c + 1);
+            keys[i] = key(f);
+        }
+        Arrays.sort(keys);
+        hist = new EquiDepthHistogram(keys, numBuckets);
+        // only LIKE predicates on strings are estimated from the sample
+        this.sample = type == Type.STRING_TYPE ? sample.toArray(new Field[n]) : new Field[0];
+
+        // a sample of every value counts the distinct values exactly
+        numDistinct = n == count ? counts.size()
+                : Math.max(counts.size(), Math.min(sketch.estimate(), count));
+        if (total > count && n > 0) {
+            int once = 0;
+            for (int c : counts.values()) {
+                if (c == 1)
+                    once++;
+            }
+            double duj1 = (double) n * counts.size() / (n - once + (double) once * n / total);
+            numDistinct = Math.min(total, Math.max(numDistinct, Math.round(duj1)));
+            count = total;
+        }
+        hist.scaleTo(count);
+        sketchChanged = false;
+
+        ArrayList<Map.Entry<Field, Integer>> common = new ArrayList<Map.Entry<Field, Integer>>();
+        double avg = n == 0 ? 0 : (double) n / counts.size();
+        for (Map.Entry<Field, Integer> e : counts.entrySet()) {
+            if (e.getValue() > 1 && e.getValue() > MCV_MIN_RATIO * avg)
+                common.add(e);
+        }
+        Collections.sort(common, new Comparator<Map.Entry<Field, Integer>>() {
+            public int compare(Map.Entry<Field, Integer> a, Map.Entry<Field, Integer> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        int m = Math.min(NUM_MCVS, common.size());
+        mcvs = new Field[m];
+        mcvCounts = new double[m];
+        mcvTotal = 0;
+        for (int i = 0; i < m; i++) {
+            mcvs[i] = common.get(i).getKey();
+            mcvCounts[i] = (double) common.get(i).getValue() / n * count;
+            mcvTotal += mcvCounts[i];
+        }
+    }
+
+    /**
+     * Add a value inserted into the column to the built statistics.
+     */
+    public synchronized void insertValue(Field f) {
+        addValue(f);
+        hist.add(key(f), 1);
+        int i = mcvIndex(f);
+        if (i >= 0) {
+            mcvCounts[i]++;
+            mcvTotal++;
+        }
+        sketchChanged = true;
+    }
+
+    /**
+     * Remove a value deleted from the column from the built statistics. The
+     * bounds and sketch still include the value.
+     */
+    public synchronized void deleteValue(Field f) {
+        if (count == 0)
+            return;
+        count--;
+        hist.add(key(f), -1);
+        int i = mcvIndex(f);
+        if (i >= 0 && mcvCounts[i] >= 1) {
+            mcvCounts[i]--;
+            mcvTotal--;
+        }
+        numDistinct = Math.min(numDistinct, count);
+    }
+
+    private int mcvIndex(Field f) {
+        for (int i = 0; i < mcvs.length; i++) {
+            if (mcvs[i].equals(f))
+                return i;
+        }
+        return -1;
+    }
+
+    /** The number of distinct values, counting those in the sketch that were inserted since */
+    private long ndv() {
+        if (sketchChanged) {
+            numDistinct = Math.max(numDistinct, Math.min(sketch.estimate(), count));
+            sketchChanged = false;
+        }
+        return numDistinct;
+    }
+
+    /** @return the type of the column */
+    public Type getType() {
+        return type;
+    }
+
+    /** @return the number of values in the column */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /** @return the estimated number of distinct values in the column */
+    public synchronized long getNumDistinct() {
+        return ndv();
+    }
+
+    /** @return the most common values of the column, most common first */
+    public synchronized Field[] getMostCommonValues() {
+        return mcvs.clone();
+    }
+
+    /** @return the histogram of the column */
+    public synchronized EquiDepthHistogram getHistogram() {
+        return hist;
+    }
+
+    /**
+     * Estimate the selectivity of predicate <tt>column op constant</tt>.
+     *
+     * @param op the operation in the predicate
+     * @param constant the value the column is compared with
+     * @return the estimated fraction of the values that satisfy the predicate
+     */
+    public synchronized double estimateSelectivity(Predicate.Op op, Field constant) {
+        switch (op) {
+        case EQUALS:
+            return equalsSelectivity(constant);
+        case NOT_EQUALS:
+            return 1.0 - equalsSelectivity(constant);
+        case LIKE:
+            if (type == Type.STRING_TYPE)
+                return likeSelectivity(constant);
+            return equalsSelectivity(constant);
+        default:
+            return hist.estimateSelectivity(op, key(constant));
+        }
+    }
+
+    private double equalsSelectivity(Field constant) {
+        if (count == 0)
+            return 0.0;
+        int i = mcvIndex(constant);
+        if (i >= 0)
+            return mcvCounts[i] / count;
+        long k = key(constant);
+        if (k < minKey || k > maxKey)
+            return 0.0;
+        // the other values share what the most common values leave
+        return Math.max(0.0, 1.0 - mcvTotal / count) / Math.max(1, ndv() - mcvs.length);
+    }
+
+    /** A LIKE pattern matches any substring, so try it on the sample */
+    private double likeSelectivity(Field constant) {
+        if (sample.length == 0)
+            return 0.0;
+        int n = 0;
+        for (Field f : sample) {
+            if (f.compare(Predicate.Op.LIKE, constant))
+                n++;
+        }
+        return (double) n / sample.length;
+    }
+
+    /**
+     * @return the average selectivity of predicates <tt>column op constant</tt>,
+     *         over constants that are values of the column
+     */
+    public synchronized double avgSelectivity(Predicate.Op op) {
+        double eq = 1.0 / Math.max(1, ndv());
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return eq;
+        case NOT_EQUALS:
+            return 1.0 - eq;
+        default:
+            return 0.5;
+        }
+    }
+
+    /** Write these statistics to a stream */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(type.ordinal());
+        out.writeLong(count);
+        out.writeLong(minKey);
+        out.writeLong(maxKey);
+        sketch.writeTo(out);
+        out.writeLong(ndv());
+        out.writeInt(mcvs.length);
+        for (int i = 0; i < mcvs.length; i++) {
+            mcvs[i].serialize(out);
+            out.writeDouble(mcvCounts[i]);
+        }
+        out.writeDouble(mcvTotal);
+        hist.writeTo(out);
+        out.writeInt(sample.length);
+        for (Field f : sample)
+            f.serialize(out);
+    }
+
+    /** Read statistics written by {@link #writeTo} */
+    public static ColumnStats readFrom(DataInputStream in) throws IOException {
+        ColumnStats c = new ColumnStats(Type.values()[in.readInt()]);
+        c.count = in.readLong();
+        c.minKey = in.readLong();
+        c.maxKey = in.readLong();
+        c.sketch.merge(HyperLogLog.readFrom(in));
+        c.numDistinct = in.readLong();
+        int m = in.readInt();
+        c.mcvs = new Field[m];
+        c.mcvCounts = new double[m];
+        for (int i = 0; i < m; i++) {
+            c.mcvs[i] = c.readField(in);
+            c.mcvCounts[i] = in.readDouble();
+        }
+        c.mcvTotal = in.readDouble();
+        c.hist = EquiDepthHistogram.readFrom(in);
+        c.sample = new Field[in.readInt()];
+        for (int i = 0; i < c.sample.length; i++)
+            c.sample[i] = c.readField(in);
+        return c;
+    }
+
+    private Field readField(DataInputStream in) throws IOException {
+        try {
+            return type.parse(in);
+        } catch (ParseException e) {
+            throw new IOException("Invalid " + type + " value in column statistics", e);
+        }
+    }
+
+    public synchronized String toString() {
+        return "ColumnStats(count=" + count + ", distinct=" + ndv() + ", mcvs="
+                + Arrays.toString(mcvs) + ", " + hist + ")";
+    }
+}
@@ -0,0 +1,181 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the key of a B+ tree indexed on several
+ * columns. Keys are ordered lexicographically: by their first field, then by
+ * their second field, and so on.
+ * <p>
+ * A composite field may hold fewer fields than the index has key columns.
+ * Such a prefix compares equal to every key that starts with it, so that an
+ * index predicate can ask for a range of keys on a leading prefix of the
+ * key columns: EQUALS (5) matches every key whose first field is 5, and
+ * GREATER_THAN (5, 10) matches every key after (5, 10, ...).
+ *
+ * @see BTreeFile#getKey
+ */
+public class CompositeField implements Field {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Field[] fields;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fields The fields of this key, in key column order.
+	 */
+	public CompositeField(Field... fields) {
+		if (fields.length == 0)
+			throw new IllegalArgumentException("a composite field needs at least one field");
+		this.fields = fields.clone();
+	}
+
+	/** @return the number of fields in this key */
+	public int numFields() {
+		return fields.length;
+	}
+
+	/** @return the ith field of this key */
+	public Field getField(int i) {
+		return fields[i];
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(fields[i]);
+		}
+		return sb.append(")").toString();
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(fields);
+	}
+
+	public boolean equals(Object field) {
+		if (!(field instanceof CompositeField))
+			return false;
+		return Arrays.equals(fields, ((CompositeField) field).fields);
+	}
+
+	/**
+	 * Write the fields of this key one after the other. Always writes the sum
+	 * of the lengths of their types.
+	 */
+	public void serialize(DataOutputStream dos) throws IOException {
+		for (Field f : fields)
+			f.serialize(dos);
+	}
+
+	/**
+	 * Compare the fields the two keys have in common, in order.
+	 * @return a negative number, zero or a positive number if this key is
+	 *         less than, equal to or greater than val on those fields
+	 */
+	private int compareTo(CompositeField val) {
+		int n = Math.min(fields.length, val.fields.length);
+		for (int i = 0; i < n; i++) {
+			if (fields[i].compare(Predicate.Op.LESS_THAN, val.fields[i]))
+				return -1;
+			if (fields[i].compare(Predicate.Op.GREATER_THAN, val.fields[i]))
+				return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Compare the specified field to the value of this Field.
+	 * Return semantics are as specified by Field.compare; only the fields the
+	 * two keys have in common are compared.
+	 *
+	 * @throws IllegalArgumentException if val is not a CompositeField
+	 * @see Field#compare
+	 */
+	public boolean compare(Predicate.Op op, Field val) {
+		if (!(val instanceof CompositeField))
+			throw new IllegalArgumentException("cannot compare composite key " + this + " to " + val);
+		int cmp = compareTo((CompositeField) val);
+
+		switch (op) {
+		case EQUALS:
+		case LIKE:
+			return cmp == 0;
+		case NOT_EQUALS:
+			return cmp != 0;
+		case GREATER_THAN:
+			return cmp > 0;
+		case GREATER_THAN_OR_EQ:
+			return cmp >= 0;
+		case LESS_THAN:
+			return cmp < 0;
+		case LESS_THAN_OR_EQ:
+			return cmp <= 0;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Return the Type of this field. There is no type for composite keys, so
+	 * this is the type of the first field.
+	 */
+	public Type getType() {
+		return fields[0].getType();
+	}
+
+	/**
+	 * Get the key of a tuple on the specified key columns.
+	 * @return the field itself for a single key column, or a CompositeField
+	 */
+	public static Field getKey(Tuple t, int[] keyFields) {
+		if (keyFields.length == 1)
+			return t.getField(keyFields[0]);
+		Field[] fs = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++)
+			fs[i] = t.getField(keyFields[i]);
+		return new CompositeField(fs);
+	}
+
+	/**
+	 * @return the number of bytes needed to store a key on the specified columns
+	 */
+	public static int getKeyLen(TupleDesc td, int[] keyFields) {
+		int len = 0;
+		for (int k : keyFields)
+			len += td.getFieldType(k).getLen();
+		return len;
+	}
+
+	/**
+	 * Read a key on the specified columns, as written by serialize.
+	 */
+	public static Field parseKey(TupleDesc td, int[] keyFields, DataInputStream dis)
+			throws java.text.ParseException {
+		if (keyFields.length == 1)
+			return td.getFieldType(keyFields[0]).parse(dis);
+		Field[] fs = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++)
+			fs[i] = td.getFieldType(keyFields[i]).parse(dis);
+		return new CompositeField(fs);
+	}
+
+	/**
+	 * @return true if f is a complete key on the specified columns
+	 */
+	public static boolean isKey(Field f, TupleDesc td, int[] keyFields) {
+		if (keyFields.length == 1)
+			return f.getType().equals(td.getFieldType(keyFields[0]));
+		if (!(f instanceof CompositeField) || ((CompositeField) f).fields.length != keyFields.length)
+			return false;
+		for (int i = 0; i < keyFields.length; i++) {
+			if (!((CompositeField) f).fields[i].getType().equals(td.getFieldType(keyFields[i])))
+				return false;
+		}
+		return true;
+	}
+}
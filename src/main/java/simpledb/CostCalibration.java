@@ -0,0 +1,192 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * CostCalibration measures the time of the CPU operations of the
+ * optimizer's {@link CostModel} on the local machine, by running each one
+ * many times over a table of random tuples:
+ * <ul>
+ * <li>reading each tuple of the pages of a {@link HeapFile} in memory;
+ * <li>building and probing a hash table of the tuples, the way
+ * {@link HashEquiJoin} does;
+ * <li>sorting the tuples the way {@link OrderBy} does, timed per
+ * comparison.
+ * </ul>
+ * Each measurement is repeated, after a run that warms up the JVM, and the
+ * median time is kept.
+ * <p>
+ * Page reads are not measured. A table small enough to calibrate on stays
+ * in the operating system's cache, so timing its pages would time a copy
+ * in memory rather than a read from the device, and would make page reads
+ * look orders of magnitude cheaper than they are. The page costs of the
+ * calibrated model are those of {@link CostModel#DEFAULT}, relative to the
+ * measured time of a tuple.
+ * <p>
+ * Run with <tt>java simpledb.SimpleDb calibrate catalog.txt</tt>, which
+ * writes the cost profile that is loaded with the catalog.
+ */
+public class CostCalibration {
+
+    /** The default number of pages of the table the operations run on */
+    public static final int DEFAULT_PAGES = 512;
+
+    /** The number of timed runs of each measurement */
+    static final int RUNS = 5;
+
+    /** Keeps the results of the measured operations, so that they are not optimized away */
+    private static volatile long sink;
+
+    /** An operation that is timed once per run */
+    private interface Benchmark {
+        /** Run the operation, and return the number of times it did the measured work */
+        long run() throws IOException;
+    }
+
+    /** @return the median time in nanoseconds of one unit of the work of a benchmark */
+    private static double measure(Benchmark b) throws IOException {
+        b.run();
+        double[] times = new double[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            long n = b.run();
+            times[i] = (double) (System.nanoTime() - start) / Math.max(1, n);
+        }
+        Arrays.sort(times);
+        // a clock too coarse for the work still gives a positive cost
+        return Math.max(times[RUNS / 2], 0.001);
+    }
+
+    /**
+     * Measure the CPU costs of the cost model of the local machine; the page
+     * costs are the default ones. The table the operations run on is added
+     * to the catalog under a random name, and its file is deleted when the
+     * measurements are done.
+     *
+     * @param numPages the number of pages of the table the operations run on
+     */
+    public static CostModel calibrate(int numPages) throws IOException {
+        final int columns = 2;
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (columns * Type.INT_TYPE.getLen() * 8 + 1);
+        Random rand = new Random(0);
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < numPages * tuplesPerPage; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>(columns);
+            row.add(rand.nextInt());
+            row.add(rand.nextInt(numPages * tuplesPerPage));
+            rows.add(row);
+        }
+        File f = File.createTempFile("calibration", ".dat");
+        f.deleteOnExit();
+        try {
+            HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), columns);
+            rows = null;
+            final HeapFile hf = Utility.openHeapFile(columns, f);
+            final int n = hf.numPages();
+
+            final ArrayList<HeapPage> pages = new ArrayList<HeapPage>(n);
+            final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+            for (int p = 0; p < n; p++) {
+                HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), p));
+                pages.add(page);
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext())
+                    tuples.add(it.next());
+            }
+
+            double tuple = measure(new Benchmark() {
+                public long run() {
+                    long sum = 0, count = 0;
+                    for (HeapPage page : pages) {
+                        Iterator<Tuple> it = page.iterator();
+                        while (it.hasNext()) {
+                            sum += ((IntField) it.next().getField(0)).getValue();
+                            count++;
+                        }
+                    }
+                    sink += sum;
+                    return count;
+                }
+            });
+
+            final HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+            double hashBuild = measure(new Benchmark() {
+                public long run() {
+                    map.clear();
+                    for (Tuple t : tuples) {
+                        ArrayList<Tuple> list = map.get(t.getField(1));
+                        if (list == null) {
+                            list = new ArrayList<Tuple>();
+                            map.put(t.getField(1), list);
+                        }
+                        list.add(t);
+                    }
+                    return tuples.size();
+                }
+            });
+            double hashProbe = measure(new Benchmark() {
+                public long run() {
+                    long sum = 0;
+                    for (Tuple t : tuples) {
+                        ArrayList<Tuple> l = map.get(t.getField(0));
+                        if (l != null)
+                            sum += l.size();
+                    }
+                    sink += sum;
+                    return tuples.size();
+                }
+            });
+
+            final Comparator<Tuple> cmp = new TupleComparator(0, true);
+            final ArrayList<Tuple> unsorted = new ArrayList<Tuple>(tuples);
+            Collections.shuffle(unsorted, rand);
+            double compare = measure(new Benchmark() {
+                public long run() {
+                    final long[] count = new long[1];
+                    ArrayList<Tuple> copy = new ArrayList<Tuple>(unsorted);
+                    Collections.sort(copy, new Comparator<Tuple>() {
+                        public int compare(Tuple a, Tuple b) {
+                            count[0]++;
+                            return cmp.compare(a, b);
+                        }
+                    });
+                    return count[0];
+                }
+            });
+
+            return new CostModel(tuple * CostModel.DEFAULT.getSeqPageCost(),
+                    tuple * CostModel.DEFAULT.getRandomPageCost(), tuple, hashBuild, hashProbe,
+                    compare);
+        } finally {
+            f.delete();
+        }
+    }
+
+    /**
+     * Measure the cost model of the local machine, and write it to the cost
+     * profile of a catalog.
+     *
+     * @param args the catalog file, and optionally the number of pages of
+     *        the table the operations run on
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: calibrate catalogFile [pages]");
+            System.exit(1);
+        }
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PAGES;
+        System.out.println("Calibrating the cost model on a table of " + pages + " pages.");
+        CostModel model = calibrate(pages);
+        File profile = CostModel.forCatalog(args[0]);
+        model.store(profile);
+        System.out.println(model);
+        System.out.println(String.format("Sequential page read %.1f, random page read %.1f,"
+                + " hash build %.2f, hash probe %.2f, comparison %.2f tuples.",
+                model.getSeqPageCost(), model.getRandomPageCost(), model.getHashBuildCost(),
+                model.getHashProbeCost(), model.getCompareCost()));
+        System.out.println("Page read costs are the defaults; only the CPU costs were measured.");
+        System.out.println("Wrote " + profile);
+    }
+}
@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * A CostModel gives the costs of the operations the optimizer's cost
+ * formulas count: reading a page of a table sequentially or at random,
+ * processing a tuple, adding a tuple to the hash table of a hash join and
+ * probing it, and comparing two tuples. The model holds the time each
+ * operation takes, and costs are in units of the time to process a tuple.
+ * <p>
+ * The default model is the one the optimizer was written with: reading a
+ * page costs {@link TableStats#IOCOSTPERPAGE} tuples, and the other
+ * operations cost a tuple each. A model whose CPU costs were measured on
+ * the local machine by {@link CostCalibration} is kept in a cost profile
+ * next to the catalog, and loaded when the database starts.
+ * <p>
+ * The cost profile is a properties file, with the time in nanoseconds of
+ * each operation.
+ *
+ * @Immutable
+ */
+public class CostModel {
+
+    /** The model the optimizer uses when no cost profile has been loaded */
+    public static final CostModel DEFAULT = new CostModel(TableStats.IOCOSTPERPAGE,
+            TableStats.IOCOSTPERPAGE, 1, 1, 1, 1);
+
+    private static volatile CostModel current = DEFAULT;
+
+    private static final String[] KEYS = {"seq_page_ns", "random_page_ns", "tuple_ns",
+            "hash_build_ns", "hash_probe_ns", "compare_ns"};
+
+    private final double seqPageNanos, randomPageNanos, tupleNanos;
+    private final double hashBuildNanos, hashProbeNanos, compareNanos;
+
+    /**
+     * Create a model from the time each operation takes.
+     *
+     * @param seqPageNanos the time to read a page of a table sequentially
+     * @param randomPageNanos the time to read a page of a table at random
+     * @param tupleNanos the time to read a tuple of a page in memory
+     * @param hashBuildNanos the time to add a tuple to a hash table
+     * @param hashProbeNanos the time to look a tuple up in a hash table
+     * @param compareNanos the time to compare two tuples
+     */
+    public CostModel(double seqPageNanos, double randomPageNanos, double tupleNanos,
+            double hashBuildNanos, double hashProbeNanos, double compareNanos) {
+        double[] nanos = {seqPageNanos, randomPageNanos, tupleNanos, hashBuildNanos,
+                hashProbeNanos, compareNanos};
+        for (int i = 0; i < nanos.length; i++) {
+            if (!(nanos[i] > 0) || Double.isInfinite(nanos[i]))
+                throw new IllegalArgumentException(KEYS[i] + " must be positive: " + nanos[i]);
+        }
+        this.seqPageNanos = seqPageNanos;
+        this.randomPageNanos = randomPageNanos;
+        this.tupleNanos = tupleNanos;
+        this.hashBuildNanos = hashBuildNanos;
+        this.hashProbeNanos = hashProbeNanos;
+        this.compareNanos = compareNanos;
+    }
+
+    /** @return the model the optimizer uses */
+    public static CostModel get() {
+        return current;
+    }
+
+    /** Set the model the optimizer uses */
+    public static void set(CostModel model) {
+        current = model;
+    }
+
+    /** @return the cost of reading a page of a table sequentially */
+    public double getSeqPageCost() {
+        return seqPageNanos / tupleNanos;
+    }
+
+    /** @return the cost of reading a page of a table at random */
+    public double getRandomPageCost() {
+        return randomPageNanos / tupleNanos;
+    }
+
+    /** @return the cost of adding a tuple to the hash table of a hash join */
+    public double getHashBuildCost() {
+        return hashBuildNanos / tupleNanos;
+    }
+
+    /** @return the cost of looking a tuple up in the hash table of a hash join */
+    public double getHashProbeCost() {
+        return hashProbeNanos / tupleNanos;
+    }
+
+    /** @return the cost of comparing two tuples */
+    public double getCompareCost() {
+        return compareNanos / tupleNanos;
+    }
+
+    /**
+     * @return the cost per page of IO of the {@link TableStats} of a table,
+     *         which estimate the cost of scanning it
+     */
+    public int getIoCostPerPage() {
+        return (int) Math.max(1, Math.round(getSeqPageCost()));
+    }
+
+    /**
+     * @return the cost profile kept next to a catalog file
+     */
+    public static File forCatalog(String catalogFile) {
+        return new File(catalogFile + ".costs");
+    }
+
+    /** Write this model to a cost profile */
+    public void store(File file) throws IOException {
+        Properties p = new Properties();
+        double[] nanos = nanos();
+        for (int i = 0; i < KEYS.length; i++)
+            p.setProperty(KEYS[i], Double.toString(nanos[i]));
+        OutputStream out = new FileOutputStream(file);
+        try {
+            p.store(out, "SimpleDB cost profile: nanoseconds per operation");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a model from a cost profile.
+     *
+     * @throws IOException if the file cannot be read, or does not give the
+     *         time of every operation
+     */
+    public static CostModel load(File file) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        double[] nanos = new double[KEYS.length];
+        for (int i = 0; i < KEYS.length; i++) {
+            String v = p.getProperty(KEYS[i]);
+            if (v == null)
+                throw new IOException("Cost profile " + file + " has no " + KEYS[i]);
+            try {
+                nanos[i] = Double.parseDouble(v.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid " + KEYS[i] + " in cost profile " + file + ": " + v);
+            }
+        }
+        try {
+            return new CostModel(nanos[0], nanos[1], nanos[2], nanos[3], nanos[4], nanos[5]);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid cost profile " + file + ": " + e.getMessage());
+        }
+    }
+
+    private double[] nanos() {
+        return new double[] {seqPageNanos, randomPageNanos, tupleNanos, hashBuildNanos,
+                hashProbeNanos, compareNanos};
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CostModel(");
+        double[] nanos = nanos();
+        for (int i = 0; i < KEYS.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(KEYS[i]).append('=').append(String.format("%.1f", nanos[i]));
+        }
+        return sb.append(')').toString();
+    }
+}
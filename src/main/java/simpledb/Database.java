@@ -20,6 +20,7 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final StatementCache _statementcache;
 
     private Database() {
         _catalog = new Catalog();
@@ -32,6 +33,7 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        _statementcache = new StatementCache();
         // startControllerThread();
     }
 
@@ -50,6 +52,11 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /** Return the cache of prepared statements of the static Database instance */
+    public static StatementCache getStatementCache() {
+        return _instance.get()._statementcache;
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
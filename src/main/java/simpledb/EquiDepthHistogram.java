@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An equi-depth histogram over integer keys: the bucket boundaries are
+ * chosen so that each bucket holds about the same number of values, so dense
+ * ranges of a skewed column get narrow buckets and sparse ranges wide ones,
+ * where a fixed-width histogram spreads every bucket evenly over its range.
+ * <p>
+ * The histogram is built from a sorted sample of the column. It records, at
+ * each boundary, the exact number of values of the sample below the boundary
+ * and the number up to and including it, and interpolates linearly between
+ * the boundaries. The counts can be scaled to the size of the column, and
+ * values added and removed afterwards, which keeps the boundaries but moves
+ * the counts; a column that changes much should have its histogram rebuilt.
+ */
+public class EquiDepthHistogram {
+
+    private long[] bounds;
+    /** The number of values less than, and at most, each boundary */
+    private double[] lt, le;
+    /** The number of values */
+    private double total;
+
+    /**
+     * Create a histogram of a sample of values.
+     *
+     * @param keys the sample, sorted in ascending order
+     * @param buckets the number of buckets
+     */
+    public EquiDepthHistogram(long[] keys, int buckets) {
+        int n = keys.length;
+        int b = n == 0 ? 0 : Math.min(buckets, n - 1) + 1;
+        long[] bounds = new long[b];
+        int k = 0;
+        for (int i = 0; i < b; i++) {
+            long key = keys[b == 1 ? 0 : (int) ((long) i * (n - 1) / (b - 1))];
+            if (k == 0 || bounds[k - 1] != key)
+                bounds[k++] = key;
+        }
+        this.bounds = Arrays.copyOf(bounds, k);
+        lt = new double[k];
+        le = new double[k];
+        for (int i = 0; i < k; i++) {
+            lt[i] = lowerBound(keys, bounds[i]);
+            le[i] = lowerBound(keys, bounds[i] + 1);
+        }
+        total = n;
+    }
+
+    private EquiDepthHistogram(long[] bounds, double[] lt, double[] le, double total) {
+        this.bounds = bounds;
+        this.lt = lt;
+        this.le = le;
+        this.total = total;
+    }
+
+    /**
+     * Scale the counts of the histogram so that it holds total values, as
+     * when a histogram built from a sample is scaled to the whole column.
+     */
+    void scaleTo(double total) {
+        if (this.total > 0) {
+            double f = total / this.total;
+            for (int i = 0; i < bounds.length; i++) {
+                lt[i] *= f;
+                le[i] *= f;
+            }
+        }
+        this.total = total;
+    }
+
+    /**
+     * Add weight values with key v to the histogram, or remove them if
+     * weight is negative. A value added beyond the outermost boundaries
+     * moves that boundary out to it.
+     */
+    void add(long v, double weight) {
+        int k = bounds.length;
+        if (weight > 0 && k < 2 && (k == 0 || v != bounds[0])) {
+            // too few boundaries to move one: add a boundary at v
+            int j = k == 0 || v < bounds[0] ? 0 : 1;
+            long[] b = new long[k + 1];
+            double[] l = new double[k + 1], e = new double[k + 1];
+            for (int i = 0; i < k; i++) {
+                b[i + (i >= j ? 1 : 0)] = bounds[i];
+                l[i + (i >= j ? 1 : 0)] = lt[i];
+                e[i + (i >= j ? 1 : 0)] = le[i];
+            }
+            b[j] = v;
+            l[j] = e[j] = j == 0 ? 0 : total;
+            bounds = b;
+            lt = l;
+            le = e;
+        } else if (weight > 0 && v < bounds[0]) {
+            bounds[0] = v;
+            lt[0] = le[0] = 0;
+        } else if (weight > 0 && v > bounds[k - 1]) {
+            bounds[k - 1] = v;
+            lt[k - 1] = le[k - 1] = total;
+        }
+        total += weight;
+        for (int i = 0; i < bounds.length; i++) {
+            if (bounds[i] > v) {
+                lt[i] += weight;
+                le[i] += weight;
+            } else if (bounds[i] == v) {
+                le[i] += weight;
+            }
+        }
+    }
+
+    /** Write the boundaries of the histogram and their fractions to a stream */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeDouble(total);
+        out.writeInt(bounds.length);
+        for (int i = 0; i < bounds.length; i++) {
+            out.writeLong(bounds[i]);
+            out.writeDouble(lt[i]);
+            out.writeDouble(le[i]);
+        }
+    }
+
+    /** Read a histogram written by {@link #writeTo} */
+    public static EquiDepthHistogram readFrom(DataInputStream in) throws IOException {
+        double total = in.readDouble();
+        int k = in.readInt();
+        long[] bounds = new long[k];
+        double[] lt = new double[k], le = new double[k];
+        for (int i = 0; i < k; i++) {
+            bounds[i] = in.readLong();
+            lt[i] = in.readDouble();
+            le[i] = in.readDouble();
+        }
+        return new EquiDepthHistogram(bounds, lt, le, total);
+    }
+
+    /** @return the index of the first key that is at least key */
+    private static int lowerBound(long[] keys, long key) {
+        int lo = 0, hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /** @return the estimated fraction of the values that are less than v */
+    public double fractionBelow(long v) {
+        int k = bounds.length;
+        if (k == 0 || total <= 0 || v <= bounds[0])
+            return 0.0;
+        if (v > bounds[k - 1])
+            return 1.0;
+        int j = lowerBound(bounds, v);
+        double below;
+        if (bounds[j] == v) {
+            below = lt[j];
+        } else {
+            // the keys strictly between two boundaries are spread evenly
+            double gap = bounds[j] - bounds[j - 1] - 1;
+            below = le[j - 1] + (lt[j] - le[j - 1]) * (v - bounds[j - 1] - 1) / gap;
+        }
+        return Math.max(0.0, Math.min(1.0, below / total));
+    }
+
+    /**
+     * Estimate the fraction of the values that satisfy a range predicate.
+     *
+     * @param op the predicate; EQUALS and NOT_EQUALS are estimated from
+     *        the difference between adjacent keys
+     * @param v the key to compare with
+     */
+    public double estimateSelectivity(Predicate.Op op, long v) {
+        switch (op) {
+        case LESS_THAN:
+            return fractionBelow(v);
+        case LESS_THAN_OR_EQ:
+            return fractionBelow(v + 1);
+        case GREATER_THAN:
+            return 1.0 - fractionBelow(v + 1);
+        case GREATER_THAN_OR_EQ:
+            return 1.0 - fractionBelow(v);
+        case NOT_EQUALS:
+            return 1.0 - (fractionBelow(v + 1) - fractionBelow(v));
+        default:
+            return fractionBelow(v + 1) - fractionBelow(v);
+        }
+    }
+
+    /** @return the number of buckets */
+    public int numBuckets() {
+        return Math.max(0, bounds.length - 1);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("EquiDepthHistogram(");
+        for (int i = 0; i < bounds.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(bounds[i]).append(':').append(String.format("%.3f", total > 0 ? lt[i] / total : 0.0));
+        }
+        return sb.append(")").toString();
+    }
+}
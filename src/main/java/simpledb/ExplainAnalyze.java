@@ -0,0 +1,368 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * ExplainAnalyze runs a query with every operator of its plan instrumented,
+ * and reports what each operator did next to what the optimizer estimated:
+ * <pre>
+ *   HashEquiJoin(t1.a = t2.b)  est 120, rows 9813, 41.204 ms (self 30.113 ms), 12 hits, 20 misses, 20 reads  &lt;- misestimate, slowest
+ *     SeqScan(t1)  est 200, rows 200, 2.511 ms (self 2.511 ms), 0 hits, 4 misses, 4 reads
+ *     ...
+ * </pre>
+ * For each operator the report gives its estimated cardinality (see
+ * {@link OperatorCardinality}), the tuples it returned, the time spent in
+ * it, and the pages it asked the buffer pool for: those that were cached
+ * (hits), those that were not (misses), and those it read from disk (see
+ * {@link BufferPool.PageCounts}). Time and pages include those of the
+ * operator's children, and the time of open(), in which operators such as
+ * OrderBy and Aggregate consume their children; the self time leaves out
+ * the children. An operator that returned many times more or fewer tuples
+ * than estimated is flagged as a misestimate, and the one with the largest
+ * self time as the slowest.
+ * <p>
+ * Each operator's children are replaced with {@link ProfiledIterator}s that
+ * count what the children do, so the plan should be instrumented after its
+ * cardinalities are estimated, and be run only once.
+ */
+public class ExplainAnalyze {
+
+    /**
+     * An operator that returns this many times more or fewer tuples than
+     * estimated is flagged as a misestimate
+     */
+    static final double MISESTIMATE_FACTOR = 10.0;
+
+    /**
+     * An iterator that counts the tuples another iterator returns, the time
+     * spent in it, and the pages it asks the buffer pool for.
+     */
+    static class ProfiledIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final OpIterator child;
+        private final int estimated;
+        private long rows, nanos, hits, misses, reads;
+        private transient long startNanos, startHits, startMisses, startReads;
+
+        /**
+         * @param child the iterator to count
+         * @param estimated the estimated number of tuples it returns, or -1
+         *        if there is no estimate
+         */
+        ProfiledIterator(OpIterator child, int estimated) {
+            this.child = child;
+            this.estimated = estimated;
+        }
+
+        private void begin() {
+            BufferPool.PageCounts c = BufferPool.getThreadPageCounts();
+            startHits = c.hits;
+            startMisses = c.misses;
+            startReads = c.reads;
+            startNanos = System.nanoTime();
+        }
+
+        private void end() {
+            nanos += System.nanoTime() - startNanos;
+            BufferPool.PageCounts c = BufferPool.getThreadPageCounts();
+            hits += c.hits - startHits;
+            misses += c.misses - startMisses;
+            reads += c.reads - startReads;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            begin();
+            try {
+                child.open();
+            } finally {
+                end();
+            }
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            begin();
+            try {
+                return child.hasNext();
+            } finally {
+                end();
+            }
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            begin();
+            try {
+                Tuple t = child.next();
+                rows++;
+                return t;
+            } finally {
+                end();
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            begin();
+            try {
+                child.rewind();
+            } finally {
+                end();
+            }
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public void close() {
+            child.close();
+        }
+
+        /** @return the iterator that is counted */
+        OpIterator getChild() {
+            return child;
+        }
+
+        /** @return the estimated number of tuples, or -1 if there is no estimate */
+        int getEstimated() {
+            return estimated;
+        }
+
+        /** @return the number of tuples returned */
+        long getRows() {
+            return rows;
+        }
+
+        /** @return the time spent in the iterator and its children, in nanoseconds */
+        long getNanos() {
+            return nanos;
+        }
+
+        /** @return the pages requested that were in the buffer pool */
+        long getHits() {
+            return hits;
+        }
+
+        /** @return the pages requested that were not in the buffer pool */
+        long getMisses() {
+            return misses;
+        }
+
+        /** @return the pages read from disk */
+        long getReads() {
+            return reads;
+        }
+
+        /** @return the profiled children of the iterator */
+        List<ProfiledIterator> getProfiledChildren() {
+            ArrayList<ProfiledIterator> l = new ArrayList<ProfiledIterator>();
+            if (child instanceof Operator) {
+                OpIterator[] children = inputs((Operator) child);
+                if (children != null) {
+                    for (OpIterator c : children) {
+                        if (c instanceof ProfiledIterator)
+                            l.add((ProfiledIterator) c);
+                    }
+                }
+            }
+            return l;
+        }
+
+        /** @return the time spent in the iterator but not in its children, in nanoseconds */
+        long getSelfNanos() {
+            long self = nanos;
+            for (ProfiledIterator c : getProfiledChildren())
+                self -= c.nanos;
+            return Math.max(0, self);
+        }
+    }
+
+    /**
+     * Instrument every iterator of a plan.
+     *
+     * @param plan the plan, whose operators have their estimated
+     *        cardinalities set
+     * @param stats the statistics of the tables, which give the estimated
+     *        cardinalities of the scans
+     * @return the instrumented root of the plan
+     */
+    public static ProfiledIterator instrument(OpIterator plan, Map<String, TableStats> stats) {
+        if (plan instanceof Operator) {
+            Operator o = (Operator) plan;
+            OpIterator[] children = inputs(o);
+            if (children != null) {
+                OpIterator[] profiled = new OpIterator[children.length];
+                for (int i = 0; i < children.length; i++)
+                    profiled[i] = children[i] == null ? null : instrument(children[i], stats);
+                if (o instanceof AdaptiveJoin)
+                    ((AdaptiveJoin) o).setInputs(profiled);
+                else
+                    o.setChildren(profiled);
+            }
+        }
+        return new ProfiledIterator(plan, estimate(plan, stats));
+    }
+
+    /**
+     * @return the iterators an operator reads: its children, or for an
+     *         {@link AdaptiveJoin}, which makes its joins as it runs, the
+     *         tables it joins
+     */
+    private static OpIterator[] inputs(Operator o) {
+        if (o instanceof AdaptiveJoin)
+            return ((AdaptiveJoin) o).getInputs();
+        return o.getChildren();
+    }
+
+    /** @return the estimated cardinality of an iterator, or -1 if there is none */
+    private static int estimate(OpIterator it, Map<String, TableStats> stats) {
+        if (it instanceof Operator)
+            return ((Operator) it).getEstimatedCardinality();
+        String table = null;
+        if (it instanceof SeqScan)
+            table = ((SeqScan) it).getTableName();
+        else if (it instanceof BTreeScan)
+            table = ((BTreeScan) it).getTableName();
+        else if (it instanceof SecondaryIndexScan)
+            table = ((SecondaryIndexScan) it).getTableName();
+        TableStats s = table == null ? null : stats.get(table);
+        return s == null ? -1 : s.estimateTableCardinality(1.0);
+    }
+
+    /**
+     * Run a query with its plan instrumented, discarding its tuples, and
+     * return the report of what its operators did.
+     *
+     * @param q the query, whose operators have their estimated
+     *        cardinalities set
+     * @param stats the statistics of the tables
+     */
+    public static String run(Query q, Map<String, TableStats> stats)
+            throws IOException, DbException, TransactionAbortedException {
+        ProfiledIterator root = instrument(q.getPhysicalPlan(), stats);
+        q.setPhysicalPlan(root);
+        q.start();
+        while (q.hasNext())
+            q.next();
+        q.close();
+        return report(root) + String.format("%n %d rows in %.3f ms.", root.getRows(), root.getNanos() / 1e6);
+    }
+
+    /**
+     * Return the report of what the operators of an instrumented plan did,
+     * one line per operator, with each operator's children indented under
+     * it.
+     */
+    public static String report(ProfiledIterator root) {
+        ArrayList<ProfiledIterator> all = new ArrayList<ProfiledIterator>();
+        collect(root, all);
+        ProfiledIterator slowest = null;
+        for (ProfiledIterator p : all) {
+            if (slowest == null || p.getSelfNanos() > slowest.getSelfNanos())
+                slowest = p;
+        }
+        StringBuilder sb = new StringBuilder();
+        report(root, "", slowest, sb);
+        return sb.toString();
+    }
+
+    private static void collect(ProfiledIterator p, List<ProfiledIterator> all) {
+        all.add(p);
+        for (ProfiledIterator c : p.getProfiledChildren())
+            collect(c, all);
+    }
+
+    private static void report(ProfiledIterator p, String indent, ProfiledIterator slowest,
+            StringBuilder sb) {
+        sb.append(indent).append(describe(p.getChild())).append("  ");
+        sb.append(p.getEstimated() < 0 ? "est ?" : "est " + p.getEstimated());
+        sb.append(String.format(", rows %d, %.3f ms (self %.3f ms), %d hits, %d misses, %d reads",
+                p.getRows(), p.getNanos() / 1e6, p.getSelfNanos() / 1e6, p.getHits(),
+                p.getMisses(), p.getReads()));
+        ArrayList<String> flags = new ArrayList<String>();
+        if (isMisestimate(p))
+            flags.add("misestimate");
+        if (p == slowest && p.getSelfNanos() > 0)
+            flags.add("slowest");
+        if (!flags.isEmpty()) {
+            sb.append("  <- ");
+            for (int i = 0; i < flags.size(); i++)
+                sb.append(i > 0 ? ", " : "").append(flags.get(i));
+        }
+        sb.append(String.format("%n"));
+        for (ProfiledIterator c : p.getProfiledChildren())
+            report(c, indent + "  ", slowest, sb);
+    }
+
+    /** @return true if an iterator returned many times more or fewer tuples than estimated */
+    static boolean isMisestimate(ProfiledIterator p) {
+        if (p.getEstimated() < 0)
+            return false;
+        double est = Math.max(1, p.getEstimated()), rows = Math.max(1, p.getRows());
+        return est / rows >= MISESTIMATE_FACTOR || rows / est >= MISESTIMATE_FACTOR;
+    }
+
+    /** @return a one-line description of an iterator of a plan */
+    static String describe(OpIterator it) {
+        if (it instanceof SeqScan)
+            return "SeqScan(" + tableAndAlias(((SeqScan) it).getTableName(), ((SeqScan) it).getAlias()) + ")";
+        if (it instanceof BTreeScan)
+            return "BTreeScan(" + tableAndAlias(((BTreeScan) it).getTableName(), ((BTreeScan) it).getAlias()) + ")";
+        if (it instanceof SecondaryIndexScan) {
+            SecondaryIndexScan s = (SecondaryIndexScan) it;
+            return "SecondaryIndexScan(" + tableAndAlias(s.getTableName(), s.getAlias()) + " using "
+                    + s.getIndex().getName() + (s.isCovering() ? ", covering)" : ")");
+        }
+        if (it instanceof Filter) {
+            Filter f = (Filter) it;
+            Predicate p = f.getPredicate();
+            return "Filter(" + f.getChildren()[0].getTupleDesc().getFieldName(p.getField()) + " "
+                    + p.getOp() + " " + p.getOperand() + ")";
+        }
+        if (it instanceof Join)
+            return "Join(" + joinFields(((Join) it).getJoinPredicate(), (Operator) it) + ")";
+        if (it instanceof HashEquiJoin)
+            return "HashEquiJoin(" + joinFields(((HashEquiJoin) it).getJoinPredicate(), (Operator) it) + ")";
+        if (it instanceof AdaptiveJoin) {
+            AdaptiveJoin a = (AdaptiveJoin) it;
+            return "AdaptiveJoin(" + a.getJoinTree() + ", " + a.getReoptimizations() + " re-plans)";
+        }
+        if (it instanceof Aggregate) {
+            Aggregate a = (Aggregate) it;
+            String s = "Aggregate(" + a.aggregateOp() + "(" + a.aggregateFieldName() + ")";
+            if (a.groupField() != Aggregator.NO_GROUPING)
+                s += " group by " + a.groupFieldName();
+            return s + ")";
+        }
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return "OrderBy(" + o.getOrderFieldName() + (o.isASC() ? " asc)" : " desc)");
+        }
+        if (it instanceof Project) {
+            StringBuilder sb = new StringBuilder("Project(");
+            Iterator<TupleDesc.TDItem> fields = it.getTupleDesc().iterator();
+            while (fields.hasNext()) {
+                sb.append(fields.next().fieldName);
+                if (fields.hasNext())
+                    sb.append(", ");
+            }
+            return sb.append(")").toString();
+        }
+        return it.getClass().getSimpleName();
+    }
+
+    private static String tableAndAlias(String table, String alias) {
+        return table.equals(alias) ? table : table + " " + alias;
+    }
+
+    private static String joinFields(JoinPredicate jp, Operator join) {
+        OpIterator[] children = join.getChildren();
+        return children[0].getTupleDesc().getFieldName(jp.getField1()) + " " + jp.getOperator() + " "
+                + children[1].getTupleDesc().getFieldName(jp.getField2());
+    }
+}
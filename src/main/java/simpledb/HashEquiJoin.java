@@ -92,6 +92,9 @@ public class HashEquiJoin extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        // start again from the first batch of outer tuples
+        listIt = null;
+        loadMap();
     }
 
     transient Iterator<Tuple> listIt = null;
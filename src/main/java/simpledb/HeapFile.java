@@ -85,8 +85,13 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        // some code goes here
-        // not necessary for lab1
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try {
+            raf.seek((long) BufferPool.getPageSize() * page.getId().getPageNumber());
+            raf.write(page.getPageData());
+        } finally {
+            raf.close();
+        }
     }
 
     /**
@@ -99,17 +104,50 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        // some code goes here
-        return null;
-        // not necessary for lab1
+        HeapPage page = null;
+        for (int i = 0; i < numPages() && page == null; i++) {
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(getId(), i), Permissions.READ_WRITE);
+            if (p.getNumEmptySlots() > 0)
+                page = p;
+        }
+        if (page == null) {
+            // every page is full: append an empty page to the file
+            HeapPageId pid = new HeapPageId(getId(), numPages());
+            writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+            page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        }
+        page.insertTuple(t);
+
+        ArrayList<Page> modified = new ArrayList<Page>();
+        modified.add(page);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(getId()))
+            modified.addAll(index.insertEntry(tid, t));
+        TableStats.tupleInserted(getId(), t);
+        return modified;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        // some code goes here
-        return null;
-        // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId())
+            throw new DbException("tuple is not a member of this file");
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                rid.getPageId(), Permissions.READ_WRITE);
+        page.deleteTuple(t);
+
+        ArrayList<Page> modified = new ArrayList<Page>();
+        modified.add(page);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(getId())) {
+            try {
+                modified.addAll(index.deleteEntry(tid, t, rid));
+            } catch (IOException e) {
+                throw new DbException("could not update index " + index.getName() + ": " + e);
+            }
+        }
+        TableStats.tupleDeleted(getId(), t);
+        return modified;
     }
 
     // see DbFile.java for javadocs
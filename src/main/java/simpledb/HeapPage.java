@@ -22,6 +22,8 @@ public class HeapPage implements Page {
     byte[] oldData;
     private final Byte oldDataLock = new Byte((byte)0);
 
+    private volatile TransactionId dirtier = null;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -245,8 +247,15 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-        // some code goes here
-        // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tried to delete tuple on invalid page or table");
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+            throw new DbException("tried to delete null tuple.");
+        markSlotUsed(slot, false);
+        tuples[slot] = null;
+        t.setRecordId(null);
     }
 
     /**
@@ -257,8 +266,27 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        // some code goes here
-        // not necessary for lab1
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("type mismatch, in insertTuple");
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                markSlotUsed(i, true);
+                tuples[i] = t;
+                t.setRecordId(new RecordId(pid, i));
+                return;
+            }
+        }
+        throw new DbException("called insertTuple on page with no empty slots.");
+    }
+
+    /**
+     * Returns the tuple in the specified slot of this page, or null if the
+     * slot is empty.
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            return null;
+        return tuples[i];
     }
 
     /**
@@ -266,17 +294,14 @@ public class HeapPage implements Page {
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
-        // some code goes here
-	// not necessary for lab1
+        this.dirtier = dirty ? tid : null;
     }
 
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
     public TransactionId isDirty() {
-        // some code goes here
-	// Not necessary for lab1
-        return null;      
+        return dirtier;
     }
 
     /**
@@ -308,8 +333,13 @@ public class HeapPage implements Page {
      * Abstraction to fill or clear a slot on this page.
      */
     private void markSlotUsed(int i, boolean value) {
-        // some code goes here
-        // not necessary for lab1
+        int byteNo = i / 8;
+        int byteOffset = i % 8;
+
+        if (value)
+            header[byteNo] |= (1 << byteOffset);
+        else
+            header[byteNo] &= ~(1 << byteOffset);
     }
 
     /**
@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A HyperLogLog sketch estimates the number of distinct values it has been
+ * given, in constant space (Flajolet et al., 2007). Each value is hashed; the
+ * first bits of the hash pick one of 2^P registers, and the register keeps the
+ * longest run of leading zeros seen in the rest of the hash. With P = 12 the
+ * sketch takes 4KB and its estimates have a standard error of about 1.6%.
+ * <p>
+ * Sketches of the same column can be merged, so a table can be sketched in
+ * parts.
+ */
+public class HyperLogLog {
+
+    static final int P = 12;
+    private static final int M = 1 << P;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+    private final byte[] registers = new byte[M];
+
+    /** Add a value to the sketch */
+    public void addValue(Field f) {
+        addHash(hash(f.hashCode()));
+    }
+
+    void addHash(long h) {
+        int j = (int) (h >>> (64 - P));
+        // the low bit set bounds the rank when the rest of the hash is zero
+        int rank = Long.numberOfLeadingZeros((h << P) | (1L << (P - 1))) + 1;
+        if (rank > registers[j])
+            registers[j] = (byte) rank;
+    }
+
+    /**
+     * Spread the bits of a hash code over 64 bits (the finalizer of
+     * MurmurHash3), so the registers and ranks are evenly distributed.
+     */
+    static long hash(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** Add the values of another sketch to this one */
+    public void merge(HyperLogLog other) {
+        for (int j = 0; j < M; j++) {
+            if (other.registers[j] > registers[j])
+                registers[j] = other.registers[j];
+        }
+    }
+
+    /** @return the estimated number of distinct values added to the sketch */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double e = ALPHA * M * M / sum;
+        // small cardinalities are estimated better by linear counting
+        if (e <= 2.5 * M && zeros > 0)
+            e = M * Math.log((double) M / zeros);
+        return Math.round(e);
+    }
+
+    /** Write the registers of the sketch to a stream */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.write(registers);
+    }
+
+    /** Read a sketch written by {@link #writeTo} */
+    public static HyperLogLog readFrom(DataInputStream in) throws IOException {
+        HyperLogLog h = new HyperLogLog();
+        in.readFully(h.registers);
+        return h;
+    }
+
+    public String toString() {
+        return "HyperLogLog(" + estimate() + ")";
+    }
+}
@@ -35,6 +35,17 @@ public class IndexPredicate implements Serializable {
         return op;
     }
 
+    /** Return true if, in a scan of the keys in ascending order, no key
+        after the specified one can satisfy this predicate, which the
+        specified key does not satisfy.
+        @param key The key that does not satisfy this predicate.
+    */
+    public boolean isPastEnd(Field key) {
+        if (op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ)
+            return true;
+        return op == Predicate.Op.EQUALS && key.compare(Predicate.Op.GREATER_THAN, fieldvalue);
+    }
+
     /** Return true if the fieldvalue in the supplied predicate
         is satisfied by this predicate's fieldvalue and
         operator.
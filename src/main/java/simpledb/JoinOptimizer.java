@@ -14,6 +14,21 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /**
+     * The largest number of relations searched for bushy plans, see
+     * {@link #orderJoinsBushy}; larger join graphs get left-deep plans
+     */
+    static final int MAX_BUSHY_RELATIONS = 12;
+
+    /**
+     * The largest number of relations ordered by dynamic programming; larger
+     * join graphs are ordered greedily, see {@link #orderJoinsGreedy}
+     */
+    static final int MAX_DP_RELATIONS = 16;
+
+    /** The fraction of the cross product a range join is assumed to return */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
     /**
      * Constructor
      * 
@@ -27,6 +42,34 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /** The intermediate result each table is part of, by alias; see {@link #addIntermediateResult} */
+    private final HashMap<String, String> resultOf = new HashMap<String, String>();
+    /** The cardinality of each intermediate result, by name */
+    private final HashMap<String, Integer> resultCard = new HashMap<String, Integer>();
+
+    /**
+     * Treat a set of tables as a single relation of known cardinality, such
+     * as the result of filtering or joining them that has been computed
+     * already (see {@link AdaptiveJoin}). The relation is held in memory, so
+     * reading it costs a tuple per tuple. When the joins are ordered, the
+     * joins to any of the tables are joins to the relation, and its leaf in
+     * the join tree has the relation's name. None of the joins being ordered
+     * may be between two of the tables.
+     *
+     * @param name
+     *            the name of the relation, which is not the alias of a table
+     *            outside it
+     * @param aliases
+     *            the aliases of the tables in the relation
+     * @param card
+     *            the number of tuples in the relation
+     */
+    public void addIntermediateResult(String name, Collection<String> aliases, int card) {
+        for (String alias : aliases)
+            resultOf.put(alias, name);
+        resultCard.put(name, card);
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -68,7 +111,10 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (isHashJoin(lj))
+            j = new HashEquiJoin(p,plan1,plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
@@ -106,15 +152,32 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        }
+        CostModel m = CostModel.get();
+        if (isHashJoin(j)) {
+            // a hash join hashes as many outer tuples as fit in its table at
+            // a time, and probes the table with one scan of the inner side
+            int passes = 1 + (card1 - 1) / (HashEquiJoin.MAP_SIZE + 1);
+            return cost1 + card1 * m.getHashBuildCost()
+                    + passes * (cost2 + card2 * m.getHashProbeCost());
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // a nested-loops join scans the inner side once per outer tuple,
+            // and applies the predicate to every pair
+            return cost1 + card1 * cost2 + (double) card1 * card2 * m.getCompareCost();
         }
     }
 
+    /**
+     * Return true if a join is performed by a {@link HashEquiJoin} rather
+     * than a nested-loops {@link Join}, as it is for equality predicates
+     * between tables. A hash join computes its inner side once per pass
+     * rather than once per outer tuple, which is what makes bushy plans
+     * worthwhile.
+     */
+    static boolean isHashJoin(LogicalJoinNode j) {
+        return j.p == Predicate.Op.EQUALS && !(j instanceof LogicalSubplanJoinNode);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -155,9 +218,51 @@ public class JoinOptimizer {
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
-        return card <= 0 ? 1 : card;
+        double card;
+        if (joinOp == Predicate.Op.EQUALS || joinOp == Predicate.Op.LIKE) {
+            // each tuple matches at most one tuple on a primary key
+            long ndv1 = 0, ndv2 = 0;
+            if (joinOp == Predicate.Op.EQUALS) {
+                ndv1 = Math.min(numDistinct(table1Alias, field1PureName, stats, tableAliasToId), card1);
+                ndv2 = Math.min(numDistinct(table2Alias, field2PureName, stats, tableAliasToId), card2);
+            }
+            if (t1pkey && t2pkey)
+                card = Math.min(card1, card2);
+            else if (t1pkey)
+                card = card2;
+            else if (t2pkey)
+                card = card1;
+            else if (ndv1 > 0 && ndv2 > 0)
+                // every value of the side with fewer distinct values is
+                // assumed to appear on the other side
+                card = (double) card1 * card2 / Math.max(ndv1, ndv2);
+            else
+                card = Math.max(card1, card2);
+        } else {
+            card = RANGE_JOIN_SELECTIVITY * card1 * card2;
+        }
+        card = Math.min(card, Integer.MAX_VALUE);
+        return card <= 0 ? 1 : (int) card;
+    }
+
+    /**
+     * Return the estimated number of distinct values of a field of a table in
+     * the query, or 0 if the table has no statistics.
+     */
+    private static long numDistinct(String tableAlias, String fieldPureName,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAliasToId.get(tableAlias);
+        if (tableId == null)
+            return 0;
+        try {
+            TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+            if (s == null)
+                return 0;
+            int field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(fieldPureName);
+            return s.getNumDistinct(field);
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
     }
 
     /**
@@ -196,7 +301,7 @@ public class JoinOptimizer {
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
-     * 
+     *
      * @param stats
      *            Statistics for each table involved in the join, referenced by
      *            base table names, not alias
@@ -207,8 +312,9 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed. The plan need not be left-deep:
+     *         see {@link #orderJoinTree}.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -217,177 +323,392 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
-
-        // some code goes here
-        //Replace the following
-        return joins;
+        if (joins.isEmpty())
+            return joins;
+
+        JoinGraph g = new JoinGraph(stats, filterSelectivities);
+        List<LogicalJoinTree> trees = orderJoins(g);
+        if (explain)
+            printJoins(trees);
+        return g.toPlan(trees);
     }
 
-    // ===================== Private Methods =================================
-
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     * 
+     * Compute the cheapest join tree for the specified tables, which may be
+     * bushy: the inner side of a join may be a join itself.
+     *
      * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
+     *            Statistics for each table involved in the join, referenced by
+     *            base table names, not alias
      * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
+     *            Selectivities of the filter predicates on each table in the
+     *            join, referenced by table alias (if no alias, the base table
+     *            name)
+     * @param explain
+     *            Indicates whether the join tree should be displayed
+     * @return the join tree, or null if there are no joins. Joins between
+     *         tables that are joined by the tree already, which close cycles
+     *         in the join graph, are not in the tree.
      * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     *             when stats or filter selectivities is missing a table in the
+     *             join, or when the joins do not join all of the tables
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
+    public LogicalJoinTree orderJoinTree(
             HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+            HashMap<String, Double> filterSelectivities, boolean explain)
+            throws ParsingException {
+        if (joins.isEmpty())
+            return null;
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+        List<LogicalJoinTree> trees = orderJoins(new JoinGraph(stats, filterSelectivities));
+        if (trees.size() > 1)
+            throw new ParsingException("Query does not include join expressions joining all nodes!");
+        if (explain)
+            printJoins(trees);
+        return trees.get(0);
+    }
+
+    /**
+     * Order the joins by the best method for the size of the join graph.
+     *
+     * @return a join tree for each set of relations joined to each other
+     */
+    private List<LogicalJoinTree> orderJoins(JoinGraph g) {
+        LogicalJoinTree tree = null;
+        if (g.n <= MAX_BUSHY_RELATIONS)
+            tree = orderJoinsBushy(g);
+        else if (g.n <= MAX_DP_RELATIONS)
+            tree = orderJoinsDP(g);
+        if (tree != null)
+            return Collections.singletonList(tree);
+        return orderJoinsGreedy(g);
+    }
+
+    /**
+     * The relations of the joins being ordered, numbered so that a set of
+     * them is a bitmask, with the joins as edges between them. The subquery
+     * of each LogicalSubplanJoinNode is a relation of its own.
+     */
+    private class JoinGraph {
+        final int n;
+        final String[] alias;
+        final double[] scanCost;
+        final int[] scanCard;
+        /** For each join, the relations on each side and whether each side joins on a primary key */
+        final int[] rel1, rel2;
+        final boolean[] pkey1, pkey2;
+        /** Each join with its inner and outer swapped */
+        final LogicalJoinNode[] swapped;
+        final HashMap<String, TableStats> stats;
+
+        JoinGraph(HashMap<String, TableStats> stats, HashMap<String, Double> filterSelectivities)
+                throws ParsingException {
+            this.stats = stats;
+            // the relations by alias, and by name for intermediate results
+            HashMap<String, Integer> rels = new HashMap<String, Integer>();
+            ArrayList<String> aliases = new ArrayList<String>();
+            ArrayList<Double> costs = new ArrayList<Double>();
+            ArrayList<Integer> cards = new ArrayList<Integer>();
+            int m = joins.size();
+            rel1 = new int[m];
+            rel2 = new int[m];
+            pkey1 = new boolean[m];
+            pkey2 = new boolean[m];
+            swapped = new LogicalJoinNode[m];
+            for (int i = 0; i < m; i++) {
+                LogicalJoinNode j = joins.get(i);
+                rel1[i] = addRelation(rels, aliases, costs, cards, j.t1Alias, filterSelectivities);
+                pkey1[i] = isRelationPkey(j.t1Alias, j.f1PureName);
+                if (j instanceof LogicalSubplanJoinNode) {
+                    // the subquery's cost and size are unknown, as in estimateJoinCost()
+                    rel2[i] = costs.size();
+                    aliases.add(null);
+                    costs.add(0.0);
+                    cards.add(0);
+                } else {
+                    rel2[i] = addRelation(rels, aliases, costs, cards, j.t2Alias, filterSelectivities);
+                    pkey2[i] = isRelationPkey(j.t2Alias, j.f2PureName);
+                }
+                swapped[i] = j.swapInnerOuter();
+            }
+            n = costs.size();
+            alias = aliases.toArray(new String[n]);
+            scanCost = new double[n];
+            scanCard = new int[n];
+            for (int r = 0; r < n; r++) {
+                scanCost[r] = costs.get(r);
+                scanCard[r] = cards.get(r);
             }
+        }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        private int addRelation(HashMap<String, Integer> rels, ArrayList<String> aliases,
+                ArrayList<Double> costs, ArrayList<Integer> cards, String alias,
+                HashMap<String, Double> filterSelectivities) throws ParsingException {
+            String result = resultOf.get(alias);
+            if (result != null)
+                alias = result;
+            Integer r = rels.get(alias);
+            if (r != null)
+                return r;
+            if (result != null) {
+                int card = resultCard.get(result);
+                rels.put(alias, costs.size());
+                aliases.add(alias);
+                costs.add((double) card);
+                cards.add(card);
+                return costs.size() - 1;
             }
+            Integer tableId = p.getTableId(alias);
+            if (tableId == null)
+                throw new ParsingException("Unknown table " + alias);
+            TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+            Double sel = filterSelectivities.get(alias);
+            if (s == null || sel == null)
+                throw new ParsingException("Missing statistics for table " + alias);
+            rels.put(alias, costs.size());
+            aliases.add(alias);
+            costs.add(s.estimateScanCost());
+            cards.add(s.estimateTableCardinality(sel));
+            return costs.size() - 1;
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        /**
+         * Return true if a field of a table is a primary key of the
+         * relation the table is in: a key of a table stays one when the
+         * table is filtered, but not once it is joined to others.
+         */
+        boolean isRelationPkey(String tableAlias, String field) {
+            String result = resultOf.get(tableAlias);
+            if (result != null && Collections.frequency(resultOf.values(), result) > 1)
+                return false;
+            return isPkey(tableAlias, field);
+        }
+
+        /** Return the tree of the single relation r */
+        LogicalJoinTree relation(int r) {
+            return new LogicalJoinTree(alias[r], scanCost[r], scanCard[r]);
+        }
+
+        /**
+         * Estimate the best way to join two subplans with join i, where the
+         * first subplan holds the relation of t1 in the join: the join may be
+         * cheaper the other way round.
+         *
+         * @param out set to the cardinality of the join, and to whether the
+         *        join is swapped
+         * @return the cost of the join
+         */
+        double joinCost(int i, double cost1, int card1, double cost2, int card2, int[] out) {
+            LogicalJoinNode j = joins.get(i);
+            double c1 = estimateJoinCost(j, card1, card2, cost1, cost2);
+            // a subquery is always the inner side of its join
+            LogicalJoinNode j2 = swapped[i];
+            double c2 = (j instanceof LogicalSubplanJoinNode) ? c1
+                    : estimateJoinCost(j2, card2, card1, cost2, cost1);
+            if (c2 < c1) {
+                out[0] = estimateJoinCardinality(j2, card2, card1, pkey2[i], pkey1[i], stats);
+                out[1] = 1;
+                return c2;
+            }
+            out[0] = estimateJoinCardinality(j, card1, card2, pkey1[i], pkey2[i], stats);
+            out[1] = 0;
+            return c1;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
 
-        CostCard cc = new CostCard();
+        /**
+         * Join two trees with join i, the way round {@link #joinCost} chose.
+         *
+         * @param t1 the tree holding the relation of t1 in the join
+         * @param t2 the tree holding the relation of t2 in the join
+         */
+        LogicalJoinTree join(int i, LogicalJoinTree t1, LogicalJoinTree t2, double cost, int[] out) {
+            if (out[1] == 1)
+                return new LogicalJoinTree(swapped[i], t2, t1, cost, out[0]);
+            return new LogicalJoinTree(joins.get(i), t1, t2, cost, out[0]);
+        }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
-        return cc;
+        /**
+         * Return the cheaper of a plan for a set of relations, and the plans
+         * that join two disjoint subsets of it by each of the joins between
+         * them.
+         *
+         * @param best the best plan for the set so far, or null
+         * @param s1 a subset of the relations, with t1 its plan or null
+         * @param s2 the rest of the relations, with t2 their plan or null
+         */
+        LogicalJoinTree cheaper(LogicalJoinTree best, int s1, LogicalJoinTree t1,
+                int s2, LogicalJoinTree t2, int[] out) {
+            if (t1 == null || t2 == null)
+                return best;
+            for (int i = 0; i < rel1.length; i++) {
+                int m1 = 1 << rel1[i], m2 = 1 << rel2[i];
+                double c;
+                if ((s1 & m1) != 0 && (s2 & m2) != 0) {
+                    c = joinCost(i, t1.cost, t1.card, t2.cost, t2.card, out);
+                    if (best == null || c < best.cost)
+                        best = join(i, t1, t2, c, out);
+                } else if ((s2 & m1) != 0 && (s1 & m2) != 0) {
+                    c = joinCost(i, t2.cost, t2.card, t1.cost, t1.card, out);
+                    if (best == null || c < best.cost)
+                        best = join(i, t2, t1, c, out);
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Turn join trees into a plan: the joins of each tree in the order
+         * they can be performed in, followed by the joins between relations
+         * that the trees join already, which close cycles in the join graph.
+         */
+        Vector<LogicalJoinNode> toPlan(List<LogicalJoinTree> trees) {
+            Vector<LogicalJoinNode> plan = new Vector<LogicalJoinNode>();
+            for (LogicalJoinTree t : trees)
+                plan.addAll(t.getJoins());
+            // the trees hold the joins themselves, so compare by identity
+            IdentityHashMap<LogicalJoinNode, Boolean> used = new IdentityHashMap<LogicalJoinNode, Boolean>();
+            for (LogicalJoinNode j : plan)
+                used.put(j, true);
+            for (int i = 0; i < joins.size(); i++) {
+                if (!used.containsKey(joins.get(i)) && !used.containsKey(swapped[i]))
+                    plan.add(joins.get(i));
+            }
+            return plan;
+        }
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * Order the joins by dynamic programming over the connected sets of
+     * relations, considering bushy plans: the best plan for a set of
+     * relations joins the best plans for two disjoint connected subsets of
+     * it, which may both be joins. Sets of relations are bitmasks, and the
+     * best plan for each set is kept in an array indexed by its bitmask.
+     * Sets are visited in increasing order, which puts every set after its
+     * subsets, and each is split in two every way with the first part
+     * holding its lowest relation, so each split is only considered once;
+     * {@link JoinGraph#joinCost} tries both orientations of the join. Sets
+     * that are not connected have no plan. This takes time in the order of
+     * 3^n, see {@link #MAX_BUSHY_RELATIONS}.
+     *
+     * @return the best join tree, or null if the relations are not all
+     *         joined to each other
      */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private LogicalJoinTree orderJoinsBushy(JoinGraph g) {
+        int size = 1 << g.n;
+        LogicalJoinTree[] best = new LogicalJoinTree[size];
+        for (int r = 0; r < g.n; r++)
+            best[1 << r] = g.relation(r);
+
+        int[] out = new int[2];
+        for (int s = 1; s < size; s++) {
+            int low = s & -s;
+            if (s == low)
+                continue;
+            for (int s1 = (s - 1) & s; s1 != 0; s1 = (s1 - 1) & s) {
+                if ((s1 & low) != 0)
+                    best[s] = g.cheaper(best[s], s1, best[s1], s ^ s1, best[s ^ s1], out);
+            }
         }
-        return false;
+        return best[size - 1];
     }
 
+    /**
+     * Order the joins by dynamic programming over the connected sets of
+     * relations, as in Selinger's optimizer: the best left-deep plan for a
+     * set of relations joins the best plan for a connected subset to the one
+     * relation left over. This is used for join graphs too large to search
+     * for bushy plans. Sets of relations are bitmasks, and the best plan for
+     * each set is kept in an array indexed by its bitmask. Sets are visited
+     * in increasing order, which puts every set after its subsets, and each
+     * is only extended through the joins leaving it, so only connected sets
+     * are ever planned.
+     *
+     * @return the best left-deep join tree, or null if the relations are not
+     *         all joined to each other
+     */
+    private LogicalJoinTree orderJoinsDP(JoinGraph g) {
+        int size = 1 << g.n;
+        LogicalJoinTree[] best = new LogicalJoinTree[size];
+        for (int r = 0; r < g.n; r++)
+            best[1 << r] = g.relation(r);
+
+        int[] out = new int[2];
+        for (int s = 1; s < size; s++) {
+            LogicalJoinTree t = best[s];
+            if (t == null)
+                continue;
+            for (int i = 0; i < joins.size(); i++) {
+                boolean in1 = (s & (1 << g.rel1[i])) != 0;
+                boolean in2 = (s & (1 << g.rel2[i])) != 0;
+                if (in1 == in2)
+                    continue;
+                int r = in1 ? g.rel2[i] : g.rel1[i];
+                int u = s | (1 << r);
+                double c = in1 ? g.joinCost(i, t.cost, t.card, g.scanCost[r], g.scanCard[r], out)
+                        : g.joinCost(i, g.scanCost[r], g.scanCard[r], t.cost, t.card, out);
+                if (best[u] == null || c < best[u].cost)
+                    best[u] = in1 ? g.join(i, t, g.relation(r), c, out)
+                            : g.join(i, g.relation(r), t, c, out);
+            }
+        }
+        return best[size - 1];
+    }
+
+    /**
+     * Order the joins greedily, for join graphs too large to order by dynamic
+     * programming: starting from the base relations, repeatedly perform the
+     * join between two subplans with the smallest result (Fegaras' greedy
+     * operator ordering), which may make a bushy plan. Relations that are not
+     * joined to the others stay separate subplans.
+     *
+     * @return a join tree for each set of relations joined to each other
+     */
+    private List<LogicalJoinTree> orderJoinsGreedy(JoinGraph g) {
+        int[] comp = new int[g.n];
+        LogicalJoinTree[] tree = new LogicalJoinTree[g.n];
+        for (int r = 0; r < g.n; r++) {
+            comp[r] = r;
+            tree[r] = g.relation(r);
+        }
+
+        int[] out = new int[2];
+        while (true) {
+            int best = -1;
+            int bestCard = 0;
+            double bestCost = 0;
+            for (int i = 0; i < joins.size(); i++) {
+                int a = comp[g.rel1[i]], b = comp[g.rel2[i]];
+                if (a == b)
+                    continue;
+                double c = g.joinCost(i, tree[a].cost, tree[a].card, tree[b].cost, tree[b].card, out);
+                if (best == -1 || out[0] < bestCard || (out[0] == bestCard && c < bestCost)) {
+                    best = i;
+                    bestCard = out[0];
+                    bestCost = c;
+                }
+            }
+            if (best == -1)
+                break;
+            int a = comp[g.rel1[best]], b = comp[g.rel2[best]];
+            g.joinCost(best, tree[a].cost, tree[a].card, tree[b].cost, tree[b].card, out);
+            tree[a] = g.join(best, tree[a], tree[b], bestCost, out);
+            tree[b] = null;
+            for (int r = 0; r < g.n; r++) {
+                if (comp[r] == b)
+                    comp[r] = a;
+            }
+        }
+
+        ArrayList<LogicalJoinTree> trees = new ArrayList<LogicalJoinTree>();
+        for (int r = 0; r < g.n; r++) {
+            if (tree[r] != null && !tree[r].isLeaf())
+                trees.add(tree[r]);
+        }
+        return trees;
+    }
+
+    // ===================== Private Methods =================================
+
     /**
      * Return true if field is a primary key of the specified table, false
      * otherwise
@@ -401,42 +722,18 @@ public class JoinOptimizer {
         int tid1 = p.getTableId(tableAlias);
         String pkey1 = Database.getCatalog().getPrimaryKey(tid1);
 
-        return pkey1.equals(field);
-    }
-
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
+        return pkey1 != null && pkey1.equals(field);
     }
 
     /**
      * Helper function to display a Swing window with a tree representation of
-     * the specified list of joins. See {@link #orderJoins}, which may want to
+     * the specified join trees. See {@link #orderJoins}, which may want to
      * call this when the analyze flag is true.
      * 
-     * @param js
-     *            the join plan to visualize
-     * @param pc
-     *            the PlanCache accumulated whild building the optimal plan
-     * @param stats
-     *            table statistics for base tables
-     * @param selectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
+     * @param trees
+     *            the join trees to visualize
      */
-    private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc,
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> selectivities) {
+    private void printJoins(List<LogicalJoinTree> trees) {
 
         JFrame f = new JFrame("Join Plan for " + p.getQuery());
 
@@ -448,81 +745,12 @@ public class JoinOptimizer {
 
         f.setSize(300, 500);
 
-        HashMap<String, DefaultMutableTreeNode> m = new HashMap<String, DefaultMutableTreeNode>();
-
-        // int numTabs = 0;
-
-        // int k;
-        DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
-        boolean neither;
-
-        System.out.println(js);
-        for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
-
-            String table1Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t1Alias));
-            String table2Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t2Alias));
-
-            // Double c = pc.getCost(pathSoFar);
-            neither = true;
-
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
-            DefaultMutableTreeNode n = m.get(j.t1Alias);
-            if (n == null) { // never seen this table before
-                n = new DefaultMutableTreeNode(j.t1Alias
-                        + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
-                        + ", card = "
-                        + stats.get(table1Name).estimateTableCardinality(
-                                selectivities.get(j.t1Alias)) + ")");
-                root.add(n);
-            } else {
-                // make left child root n
-                root.add(n);
-                neither = false;
-            }
-            m.put(j.t1Alias, root);
-
-            n = m.get(j.t2Alias);
-            if (n == null) { // never seen this table before
-
-                n = new DefaultMutableTreeNode(
-                        j.t2Alias == null ? "Subplan"
-                                : (j.t2Alias
-                                        + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
-                                        + ", card = "
-                                        + stats.get(table2Name)
-                                                .estimateTableCardinality(
-                                                        selectivities
-                                                                .get(j.t2Alias)) + ")"));
-                root.add(n);
-            } else {
-                // make right child root n
-                root.add(n);
-                neither = false;
-            }
-            m.put(j.t2Alias, root);
+        System.out.println(trees);
+        DefaultMutableTreeNode treetop = new DefaultMutableTreeNode("Joins");
+        for (LogicalJoinTree t : trees)
+            treetop.add(toTreeNode(t));
 
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
-            if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
-                }
-            }
-
-            treetop = root;
-        }
-
-        JTree tree = new JTree(treetop);
+        JTree tree = new JTree(treetop.getChildCount() == 1 ? treetop.getFirstChild() : treetop);
         JScrollPane treeView = new JScrollPane(tree);
 
         tree.setShowsRootHandles(true);
@@ -542,7 +770,7 @@ public class JoinOptimizer {
             tree.expandRow(i);
         }
 
-        if (js.size() == 0) {
+        if (trees.size() == 0) {
             f.add(new JLabel("No joins in plan."));
         }
 
@@ -550,4 +778,15 @@ public class JoinOptimizer {
 
     }
 
+    /** Return a Swing tree node for a join tree, with its subtrees as children */
+    private DefaultMutableTreeNode toTreeNode(LogicalJoinTree t) {
+        String costCard = " (Cost = " + t.cost + ", card = " + t.card + ")";
+        if (t.isLeaf())
+            return new DefaultMutableTreeNode((t.alias == null ? "Subplan" : t.alias) + costCard);
+        DefaultMutableTreeNode n = new DefaultMutableTreeNode("Join " + t.join + costCard);
+        n.add(toTreeNode(t.left));
+        n.add(toTreeNode(t.right));
+        return n;
+    }
+
 }
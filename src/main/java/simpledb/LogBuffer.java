@@ -0,0 +1,280 @@
+package simpledb;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LogBuffer is an in-memory ring buffer that sits in front of a
+ * SegmentedLog.  Appends copy an already serialized record into the ring
+ * and return immediately; a background flusher thread drains the ring to
+ * the segments with large sequential writes.
+ * <p>
+ * Every byte in the ring has an LSN.  Three LSNs describe the state of the
+ * buffer: everything before <tt>written</tt> has been handed to the
+ * segments, everything before <tt>durable</tt> has also been forced to
+ * disk, and <tt>appended</tt> is the LSN the next append will get.  The
+ * bytes between <tt>written</tt> and <tt>appended</tt> are still only in
+ * memory.  force(lsn) waits only until <tt>durable</tt> reaches the
+ * requested LSN, so concurrent committers share the same disk force.
+ * <p>
+ * The flusher thread is started on demand and exits once the buffer has
+ * been idle for a while, so a LogFile that is simply dropped (as
+ * Database.reset() does) does not leave a thread behind.
+ *
+ * @Threadsafe
+ */
+class LogBuffer {
+
+    /** Default capacity in bytes of the ring. */
+    static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    /** How long the flusher lets appends accumulate before writing them. */
+    private static final long FLUSH_INTERVAL_MS = 10;
+
+    /** How long the flusher stays alive without any work. */
+    private static final long IDLE_TIMEOUT_MS = 1000;
+
+    private final SegmentedLog log;
+    private final byte[] ring;
+    private final int flushThreshold;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled when there is something for the flusher to do
+    private final Condition work = lock.newCondition();
+    // signalled when the flusher has made progress
+    private final Condition progress = lock.newCondition();
+
+    private long appended = 0; // protected by lock
+    private long written = 0; // protected by lock
+    private long durable = 0; // protected by lock
+    private long forceRequested = 0; // protected by lock
+
+    private Thread flusher = null; // protected by lock
+    private IOException failure = null; // protected by lock
+
+    /**
+     * Create a buffer that drains into the specified log.
+     *
+     * @param log the segments to write to
+     * @param capacity the size in bytes of the ring
+     */
+    LogBuffer(SegmentedLog log, int capacity) {
+        this.log = log;
+        this.ring = new byte[capacity];
+        this.flushThreshold = capacity / 4;
+    }
+
+    /**
+     * Discard the (drained) buffer and continue the log at the specified
+     * LSN.  Used when the log is cleared or found again by recovery.
+     */
+    void reset(long lsn) throws IOException {
+        lock.lock();
+        try {
+            force(appended);
+            appended = written = durable = forceRequested = lsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the LSN the next append will be assigned */
+    long getAppendedLsn() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the LSN before which the log is known to be on disk */
+    long getDurableLsn() {
+        lock.lock();
+        try {
+            return durable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copy len bytes from b, starting at off, to the end of the log.
+     * Blocks only if the ring is full.
+     *
+     * @return the LSN of the first appended byte
+     */
+    long append(byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            long start = appended;
+            while (len > 0) {
+                checkFailure();
+                int free = ring.length - (int) (appended - written);
+                if (free == 0) {
+                    // the ring is full; make the flusher drain it
+                    wakeFlusher();
+                    waitForFlusher();
+                    continue;
+                }
+                int n = Math.min(len, free);
+                int pos = (int) (appended % ring.length);
+                int first = Math.min(n, ring.length - pos);
+                System.arraycopy(b, off, ring, pos, first);
+                System.arraycopy(b, off + first, ring, 0, n - first);
+                appended += n;
+                off += n;
+                len -= n;
+            }
+            if (appended - written >= flushThreshold)
+                wakeFlusher();
+            else
+                startFlusher();
+            return start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every byte before the specified LSN is durable on disk.
+     */
+    void force(long lsn) throws IOException {
+        lock.lock();
+        try {
+            lsn = Math.min(lsn, appended);
+            while (durable < lsn) {
+                checkFailure();
+                if (forceRequested < lsn) {
+                    forceRequested = lsn;
+                    wakeFlusher();
+                }
+                waitForFlusher();
+            }
+            checkFailure();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drain the buffer and stop the flusher thread. */
+    void close() throws IOException {
+        Thread t;
+        lock.lock();
+        try {
+            force(appended);
+            t = flusher;
+            flusher = null;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("log flush failed", failure);
+    }
+
+    private void waitForFlusher() throws IOException {
+        try {
+            progress.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the log flusher");
+        }
+    }
+
+    private void startFlusher() {
+        if (flusher == null) {
+            flusher = new Thread(new Runnable() {
+                public void run() {
+                    flushLoop(Thread.currentThread());
+                }
+            }, "LogBuffer flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    private void wakeFlusher() {
+        startFlusher();
+        work.signal();
+    }
+
+    private boolean urgent() {
+        return forceRequested > durable || appended - written >= flushThreshold;
+    }
+
+    private void flushLoop(Thread self) {
+        while (true) {
+            long from, to;
+            boolean forceNeeded;
+            lock.lock();
+            try {
+                long idleSince = System.currentTimeMillis();
+                while (flusher == self && !urgent()) {
+                    long now = System.currentTimeMillis();
+                    if (appended > written && now - idleSince >= FLUSH_INTERVAL_MS)
+                        break;
+                    if (appended == written && now - idleSince >= IDLE_TIMEOUT_MS) {
+                        flusher = null;
+                        return;
+                    }
+                    try {
+                        work.await(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // keep draining; close() is the way to stop the flusher
+                    }
+                }
+                if (flusher != self)
+                    return;
+                from = written;
+                to = appended;
+                forceNeeded = forceRequested > durable;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                // the appenders never overwrite [written, appended), so the
+                // ring can be read without holding the lock
+                long n = to - from;
+                int pos = (int) (from % ring.length);
+                int first = (int) Math.min(n, ring.length - pos);
+                log.write(from, ring, pos, first);
+                log.write(from + first, ring, 0, (int) (n - first));
+                if (forceNeeded)
+                    log.force();
+            } catch (IOException e) {
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                    flusher = null;
+                    progress.signalAll();
+                    return;
+                }
+                written = to;
+                if (forceNeeded)
+                    durable = to;
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
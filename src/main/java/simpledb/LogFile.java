@@ -32,24 +32,35 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p>
+
+Appends do not write to disk themselves: a record is serialized and
+copied into a LogBuffer, which a background thread drains to the log
+segments.  Every append returns the LSN of its record, and force(lsn)
+waits only until the log is durable up to that LSN.  force() never
+needs the LogFile lock, so committers wait for durability without
+blocking other appends.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> Log records are stored in fixed-size segment files named after
+the log file (see SegmentedLog.)  Every byte of the log is addressed
+by its log sequence number (LSN), a logical offset that does not
+change when the log is truncated.  The log file itself only holds the
+LSN of the last written checkpoint, or -1 if there are no checkpoints.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
@@ -64,17 +75,27 @@ methods.  See LogFile.print() for an example.
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
+as a long integer transaction id and a long integer first record LSN
 for each active transaction.
 
+<li> Segments are preallocated and zero filled, so a record type of 0
+marks the end of the log.
+
 </ul>
 
 */
 
 public class LogFile {
 
+    /** Default size in bytes of each log segment. */
+    private static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static long segmentSize = DEFAULT_SEGMENT_SIZE;
+
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // holds the last checkpoint LSN
+    private final SegmentedLog log;
+    private final LogBuffer buffer;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -88,11 +109,18 @@ public class LogFile {
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    long lastCheckpoint = NO_CHECKPOINT_ID; //protected by this
+
+    private static int recoveryThreads = Runtime.getRuntime().availableProcessors();
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // the record currently being serialized by an append; protected by this
+    private final RecordBuffer recordBytes = new RecordBuffer();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,6 +135,8 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        log = new SegmentedLog(f, segmentSize);
+        buffer = new LogBuffer(log, LogBuffer.DEFAULT_CAPACITY);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -120,6 +150,20 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    public static long getSegmentSize() {
+        return segmentSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setSegmentSize(long segmentSize) {
+        LogFile.segmentSize = segmentSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetSegmentSize() {
+        LogFile.segmentSize = DEFAULT_SEGMENT_SIZE;
+    }
+
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
@@ -127,23 +171,65 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            log.clear();
+            writeCheckpointLsn(NO_CHECKPOINT_ID);
+            currentOffset = 0;
+            buffer.reset(currentOffset);
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** Return the number of segment files the log currently occupies */
+    public synchronized int getNumSegments() {
+        return log.numSegments();
+    }
+
+    private void writeCheckpointLsn(long lsn) throws IOException {
+        raf.seek(0);
+        raf.writeLong(lsn);
+        raf.getChannel().force(true);
+        lastCheckpoint = lsn;
+    }
+
+    private long readCheckpointLsn() throws IOException {
+        if (raf.length() < LONG_SIZE)
+            return NO_CHECKPOINT_ID;
+        raf.seek(0);
+        return raf.readLong();
+    }
+
+    /** ByteArrayOutputStream that lets appends copy the serialized
+        record into the log buffer without an intermediate array. */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /** Terminate the record serialized into record with its start
+        LSN, copy it into the log buffer and advance currentOffset past
+        it.  The record is not durable until force() covers it.
+
+        @return the LSN at which the record starts
+    */
+    private long appendRecord() throws IOException {
+        long start = currentOffset;
+        record.writeLong(start);
+        buffer.append(recordBytes.bytes(), 0, recordBytes.size());
+        currentOffset = start + recordBytes.size();
+        recordBytes.reset();
+        return start;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
+        @return the LSN of the abort record
     */
-    public void logAbort(TransactionId tid) throws IOException {
+    public long logAbort(TransactionId tid) throws IOException {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
@@ -158,12 +244,12 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                record.writeInt(ABORT_RECORD);
+                record.writeLong(tid.getId());
+                long lsn = appendRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                return lsn;
             }
         }
     }
@@ -172,18 +258,25 @@ public class LogFile {
         and force the log to disk.
 
         @param tid The committing transaction.
+        @return the LSN of the commit record
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public long logCommit(TransactionId tid) throws IOException {
+        long lsn, end;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            record.writeInt(COMMIT_RECORD);
+            record.writeLong(tid.getId());
+            lsn = appendRecord();
+            end = currentOffset;
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        // wait for durability without holding the log lock, so that
+        // other transactions can append (and share this force)
+        force(end);
+        return lsn;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -191,13 +284,14 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the update record
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -207,18 +301,18 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        record.writeInt(UPDATE_RECORD);
+        record.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(record,before);
+        writePageData(record,after);
+        long lsn = appendRecord();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -246,16 +340,68 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
+        return readPageImage(raf).toPage();
+    }
+
+    /** A page image read from the log whose Page object has not been
+        constructed yet.  Recovery reads the id to decide who applies the
+        image and leaves the (more expensive) parsing of the page data to
+        the thread that writes it. */
+    static class PageImage {
+        final String pageClassName;
+        final PageId pid;
+        final byte[] pageData;
+
+        PageImage(String pageClassName, PageId pid, byte[] pageData) {
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            this.pageData = pageData;
+        }
+
+        Page toPage() throws IOException {
+            Page newPage = null;
+            try {
+                Class<?> pageClass = Class.forName(pageClassName);
+                Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+
+                Object[] pageArgs;
+                if (pageConsts[0].getParameterTypes().length == 3) {
+                    // B+ tree pages also need the key field of their file
+                    BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    pageArgs = new Object[] { pid, pageData, f.keyField() };
+                } else {
+                    pageArgs = new Object[] { pid, pageData };
+                }
+
+                newPage = (Page)pageConsts[0].newInstance(pageArgs);
+
+                //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            } catch (ClassNotFoundException e){
+                e.printStackTrace();
+                throw new IOException();
+            } catch (InstantiationException e) {
+                e.printStackTrace();
+                throw new IOException();
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+                throw new IOException();
+            } catch (InvocationTargetException e) {
+                e.printStackTrace();
+                throw new IOException();
+            }
+            return newPage;
+        }
+    }
+
+    PageImage readPageImage(DataInput raf) throws IOException {
         PageId pid;
-        Page newPage = null;
 
         String pageClassName = raf.readUTF();
         String idClassName = raf.readUTF();
 
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
@@ -264,20 +410,6 @@ public class LogFile {
                 idArgs[i] = new Integer(raf.readInt());
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
@@ -291,15 +423,35 @@ public class LogFile {
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
 
+        int pageSize = raf.readInt();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData);
+        return new PageImage(pageClassName, pid, pageData);
+    }
+
+    void skipPageData(DataInput raf) throws IOException {
+        raf.readUTF();
+        raf.readUTF();
+        int numIdArgs = raf.readInt();
+        for (int i = 0; i < numIdArgs; i++) {
+            raf.readInt();
+        }
+        int pageSize = raf.readInt();
+        while (pageSize > 0) {
+            int skipped = raf.skipBytes(pageSize);
+            if (skipped <= 0)
+                throw new EOFException();
+            pageSize -= skipped;
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
+        @return the LSN of the begin record
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public synchronized  long logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -307,13 +459,13 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        record.writeInt(BEGIN_RECORD);
+        record.writeLong(tid.getId());
+        long lsn = appendRecord();
+        tidToFirstLogRecord.put(tid.getId(), lsn);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
+        return lsn;
     }
 
     /** Checkpoint the log and write a checkpoint record. */
@@ -321,35 +473,31 @@ public class LogFile {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + currentOffset);
                 preAppend();
-                long startCpOffset, endCpOffset;
+                long startCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                record.writeInt(CHECKPOINT_RECORD);
+                record.writeLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                record.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    record.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    record.writeLong(tidToFirstLogRecord.get(key));
                 }
+                startCpOffset = appendRecord();
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                //once the CP is durable, make sure the CP location in the
+                // log file is updated
+                force();
+                writeCheckpointLsn(startCpOffset);
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -358,99 +506,71 @@ public class LogFile {
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Records keep their LSNs, so this only deletes the
+        segments that lie entirely before the last checkpoint and the
+        first record of every active transaction. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
+        if (lastCheckpoint == NO_CHECKPOINT_ID)
+            return;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        long minLogRecord = lastCheckpoint;
+        for (Long firstLogRecord : tidToFirstLogRecord.values()) {
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        Debug.log("TRUNCATING LOG;  WAS " + log.numSegments() + " SEGMENTS ; NEW START : " + minLogRecord);
+        log.truncateBefore(minLogRecord);
+        //print();
+    }
 
-        raf.seek(minLogRecord);
+    /** Sequential reader of log records.  next() reads the type and
+        transaction id of a record, the caller consumes the body from in,
+        and finish() checks the trailing start LSN.  A zero or unknown
+        type, a torn record or the end of the segments all mean the end
+        of the log. */
+    private class RecordReader {
+        final SegmentedLog.LogInputStream stream;
+        final DataInputStream in;
+        long start;
+        int type;
+        long tid;
+
+        RecordReader(long from) {
+            stream = log.inputStream(from);
+            in = new DataInputStream(stream);
+        }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
+        boolean next() throws IOException {
+            start = stream.position();
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
+                type = in.readInt();
+                if (type < ABORT_RECORD || type > CHECKPOINT_RECORD)
+                    return false;
+                tid = in.readLong();
+                return true;
             } catch (EOFException e) {
-                break;
+                return false;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        void skipCheckpointBody() throws IOException {
+            int numXactions = in.readInt();
+            while (numXactions-- > 0) {
+                in.readLong();
+                in.readLong();
+            }
+        }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        boolean finish() throws IOException {
+            try {
+                return in.readLong() == start;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -478,6 +598,8 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            buffer.close();
+            log.close();
             raf.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -485,26 +607,172 @@ public class LogFile {
         }
     }
 
+    /** Set the number of threads recover() uses to redo updates */
+    public static void setRecoveryThreads(int n) {
+        recoveryThreads = n;
+    }
+
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        <p> Recovery makes two passes over the log, starting at the
+        earlier of the last checkpoint and the first record of every
+        transaction active at that checkpoint.  The analysis pass finds
+        the end of the log and which transactions committed, aborted, or
+        were still running (the losers.)  The redo pass hands the after
+        image of every committed update since the checkpoint, and then the
+        oldest before image of every page a loser updated, to
+        ParallelRedo, which installs them on worker threads partitioned by
+        PageId.  Finally an ABORT record is logged for each loser.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                lastCheckpoint = readCheckpointLsn();
+                long start = recoveryStart();
+
+                // analysis: find the end of the log and the fate of
+                // every transaction
+                HashSet<Long> begun = new HashSet<Long>();
+                HashSet<Long> finished = new HashSet<Long>();
+                HashSet<Long> committed = new HashSet<Long>();
+                long end = start;
+                RecordReader r = new RecordReader(start);
+                try {
+                    while (r.next()) {
+                        switch (r.type) {
+                        case BEGIN_RECORD:
+                            begun.add(r.tid);
+                            break;
+                        case COMMIT_RECORD:
+                            committed.add(r.tid);
+                            finished.add(r.tid);
+                            break;
+                        case ABORT_RECORD:
+                            finished.add(r.tid);
+                            break;
+                        case UPDATE_RECORD:
+                            skipPageData(r.in);
+                            skipPageData(r.in);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            r.skipCheckpointBody();
+                            break;
+                        }
+                        if (!r.finish())
+                            break;
+                        end = r.stream.position();
+                    }
+                } catch (EOFException e) {
+                    // torn record at the end of the log
+                }
+                HashSet<Long> losers = new HashSet<Long>(begun);
+                losers.removeAll(finished);
+
+                // redo committed updates and undo the losers' updates
+                HashMap<PageId, PageImage> undo = new HashMap<PageId, PageImage>();
+                HashSet<PageId> touched = new HashSet<PageId>();
+                ParallelRedo redo = new ParallelRedo(recoveryThreads);
+                try {
+                    r = new RecordReader(start);
+                    while (r.stream.position() < end && r.next()) {
+                        if (r.type == UPDATE_RECORD) {
+                            if (losers.contains(r.tid)) {
+                                PageImage before = readPageImage(r.in);
+                                if (!undo.containsKey(before.pid))
+                                    undo.put(before.pid, before);
+                                skipPageData(r.in);
+                            } else if (committed.contains(r.tid) && r.start >= lastCheckpoint) {
+                                skipPageData(r.in);
+                                PageImage after = readPageImage(r.in);
+                                touched.add(after.pid);
+                                redo.apply(after);
+                            } else {
+                                // already installed by the checkpoint, or
+                                // rolled back when the transaction aborted
+                                skipPageData(r.in);
+                                skipPageData(r.in);
+                            }
+                        } else if (r.type == CHECKPOINT_RECORD) {
+                            r.skipCheckpointBody();
+                        }
+                        r.finish();
+                    }
+                    // each before image goes to the same worker as the
+                    // page's redo images, so it is installed after them
+                    for (PageImage before : undo.values()) {
+                        touched.add(before.pid);
+                        redo.apply(before);
+                    }
+                } finally {
+                    redo.finish();
+                }
+                for (PageId pid : touched) {
+                    Database.getBufferPool().discardPage(pid);
+                }
+
+                currentOffset = end;
+                buffer.reset(currentOffset);
+                tidToFirstLogRecord.clear();
+
+                // make sure a later recovery does not undo the losers again
+                for (Long tid : losers) {
+                    record.writeInt(ABORT_RECORD);
+                    record.writeLong(tid);
+                    appendRecord();
+                }
+                force();
             }
          }
     }
 
+    /** Return the LSN where recovery starts reading: the last checkpoint,
+        or the first record of a transaction that was active at that
+        checkpoint if it is older. */
+    private long recoveryStart() throws IOException {
+        if (lastCheckpoint == NO_CHECKPOINT_ID)
+            return log.firstLsn();
+
+        long start = lastCheckpoint;
+        RecordReader r = new RecordReader(lastCheckpoint);
+        if (!r.next() || r.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        int numOutstanding = r.in.readInt();
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = r.in.readLong();
+            long firstLogRecord = r.in.readLong();
+            if (firstLogRecord < start) {
+                start = firstLogRecord;
+            }
+        }
+        return start;
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force every record appended so far to disk. */
+    public void force() throws IOException {
+        long end;
+        synchronized (this) {
+            end = currentOffset;
+        }
+        force(end);
+    }
+
+    /** Wait until every record before the specified LSN is durable.
+        Records after it may still be in the log buffer.
+
+        @param lsn The LSN up to which the log must be on disk
+    */
+    public void force(long lsn) throws IOException {
+        buffer.force(lsn);
     }
 
 }
@@ -4,7 +4,9 @@ package simpledb;
     <p>
     Filter is of the form t.f p c
     <p>
-    Where t is a table, f is a field in t, p is a predicate, and c is a constant
+    Where t is a table, f is a field in t, p is a predicate, and c is a constant,
+    or a parameter of a prepared statement whose value is bound when the
+    plan is executed
 */
 public class LogicalFilterNode {
     /** The alias of a table (or the name if no alias) over which the filter ranges */
@@ -20,7 +22,15 @@ public class LogicalFilterNode {
     public String fieldPureName;
     
     public String fieldQuantifiedName;
-    
+
+    /** The index of the parameter on the right side of the filter, or -1 if it is the constant c */
+    public int param = -1;
+
+    public LogicalFilterNode(String table, String field, Predicate.Op pred, int param) {
+        this(table, field, pred, (String) null);
+        this.param = param;
+    }
+
     public LogicalFilterNode(String table, String field, Predicate.Op pred, String constant) {
         tableAlias = table;
         p = pred;
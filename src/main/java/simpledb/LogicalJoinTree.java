@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.util.Vector;
+
+/** A LogicalJoinTree represents the order in which the joins of a
+ * LogicalQueryPlan are performed, as a tree of joins over the tables of the
+ * query.  Unlike a left-deep plan, the inner (right) side of a join may be a
+ * join itself, so a bushy plan can join pairs of tables independently and
+ * then join the results.  Each subtree records the estimated cost and
+ * cardinality of computing it.
+ */
+public class LogicalJoinTree {
+
+    /** The join at the root of this tree, or null if the tree is a single
+     *  table.  Its t1 table is in the left subtree and its t2 table in the
+     *  right one. */
+    public final LogicalJoinNode join;
+
+    /** The outer (left) and inner (right) sides of the join, or null if the
+     *  tree is a single table.  The inner side of a join with a subquery is a
+     *  tree without a table. */
+    public final LogicalJoinTree left, right;
+
+    /** The alias of the table, if the tree is a single table; null for the
+     *  subquery of a {@link LogicalSubplanJoinNode} */
+    public final String alias;
+
+    /** The estimated cost of computing this tree */
+    public final double cost;
+
+    /** The estimated cardinality of this tree */
+    public final int card;
+
+    /** Create a tree of a single table, or of a subquery if alias is null */
+    public LogicalJoinTree(String alias, double cost, int card) {
+        this.join = null;
+        this.left = null;
+        this.right = null;
+        this.alias = alias;
+        this.cost = cost;
+        this.card = card;
+    }
+
+    /** Create a tree that joins two subtrees */
+    public LogicalJoinTree(LogicalJoinNode join, LogicalJoinTree left, LogicalJoinTree right,
+            double cost, int card) {
+        this.join = join;
+        this.left = left;
+        this.right = right;
+        this.alias = null;
+        this.cost = cost;
+        this.card = card;
+    }
+
+    /** Return true if this tree is a single table or subquery */
+    public boolean isLeaf() {
+        return join == null;
+    }
+
+    /** Return true if the inner side of every join in this tree is a single
+     *  table or subquery */
+    public boolean isLeftDeep() {
+        return isLeaf() || (right.isLeaf() && left.isLeftDeep());
+    }
+
+    /** Return the joins of this tree in an order they can be performed in:
+     *  the joins of the left subtree, then those of the right subtree, then
+     *  the join at the root. */
+    public Vector<LogicalJoinNode> getJoins() {
+        Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+        addJoins(joins);
+        return joins;
+    }
+
+    private void addJoins(Vector<LogicalJoinNode> joins) {
+        if (isLeaf())
+            return;
+        left.addJoins(joins);
+        right.addJoins(joins);
+        joins.add(join);
+    }
+
+    @Override public String toString() {
+        if (isLeaf())
+            return alias == null ? "subquery" : alias;
+        return "(" + left + " JOIN " + right + " ON " + join.t1Alias + "." + join.f1PureName
+                + " " + join.p + " " + (join.t2Alias == null ? "subquery" : join.t2Alias + "." + join.f2PureName)
+                + ")";
+    }
+}
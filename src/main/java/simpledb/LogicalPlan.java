@@ -2,10 +2,14 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
@@ -36,6 +40,13 @@ public class LogicalPlan {
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+
+    private int numParameters = 0;
+    private String[] parameters = new String[0];
+    private boolean reuseJoinOrder = false, joinsOrdered = false;
+    private boolean adaptive = false;
+    private LogicalJoinTree joinTree;
+
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -105,6 +116,76 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a filter comparing a field with a parameter of the plan, whose
+     *  value is bound with {@link #bindParameters} before the plan is
+     *  converted to a physical plan.  Parameters are numbered from 0 in the
+     *  order they are added.
+     *   @param field The name of the over which the filter applies, as in
+     *   {@link #addFilter}
+     *   @param p The predicate for the filter
+     *   @return the index of the parameter
+     *   @throws ParsingException if field is not in one of the tables
+     *   added via {@link #addScan} or if field is ambiguous
+     */
+    public int addParameterFilter(String field, Predicate.Op p) throws ParsingException {
+        field = disambiguateName(field);
+        String table = field.split("[.]")[0];
+
+        LogicalFilterNode lf = new LogicalFilterNode(table, field.split("[.]")[1], p, numParameters);
+        filters.addElement(lf);
+        return numParameters++;
+    }
+
+    /** Return the number of parameters of the plan */
+    public int numParameters() {
+        return numParameters;
+    }
+
+    /** Bind the parameters of the plan to values, used by the following
+     *  conversions to a physical plan.
+     *  @param values the value of each parameter; like the constant of a
+     *    filter, a String representing an integer for an integer field
+     *  @throws ParsingException if there is not one value per parameter
+     */
+    public void bindParameters(String[] values) throws ParsingException {
+        if (values.length != numParameters)
+            throw new ParsingException("Expected " + numParameters + " parameter values, got " + values.length);
+        parameters = values.clone();
+    }
+
+    /** Return true if the plan joins with a subquery, whose plan is built
+     *  when the plan is parsed */
+    public boolean hasSubplanJoins() {
+        for (LogicalJoinNode lj : joins) {
+            if (lj instanceof LogicalSubplanJoinNode)
+                return true;
+        }
+        return false;
+    }
+
+    /** Keep the join order chosen the next time this plan is converted to
+     *  a physical plan, and use it for every later conversion instead of
+     *  running the {@link JoinOptimizer} again; or, if reuse is false,
+     *  order the joins every time.  Either way, a join order kept before is
+     *  forgotten.  The join order is chosen with the average selectivity of
+     *  the filters on parameters, so it holds for any values bound to them.
+     */
+    public void setReuseJoinOrder(boolean reuse) {
+        reuseJoinOrder = reuse;
+        joinsOrdered = false;
+        joinTree = null;
+    }
+
+    /** Run the joins of the physical plans made from now on with an
+     *  {@link AdaptiveJoin}, which re-plans them while they run when the
+     *  build side of a hash join turns out to be many times larger or
+     *  smaller than estimated.  Plans with fewer than two joins, or with
+     *  joins to subqueries, are made as usual.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -271,8 +352,320 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Return the field of the specified type that a filter constant represents */
+    private static Field parseConstant(Type ftyp, String c) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(c).intValue());
+        else
+            return new StringField(c, Type.STRING_LEN);
+    }
+
+    /** Return the field of the specified type that the constant or bound
+     *  parameter of a filter represents
+     *  @throws ParsingException if the parameter is not bound, or its value
+     *    is not of the type */
+    private Field filterConstant(Type ftyp, LogicalFilterNode lf) throws ParsingException {
+        if (lf.param < 0)
+            return parseConstant(ftyp, lf.c);
+        if (lf.param >= parameters.length)
+            throw new ParsingException("Parameter " + (lf.param + 1) + " of " + lf.fieldQuantifiedName + " is not bound");
+        try {
+            return parseConstant(ftyp, parameters[lf.param]);
+        } catch (NumberFormatException e) {
+            throw new ParsingException("Parameter " + (lf.param + 1) + " of " + lf.fieldQuantifiedName
+                    + " is not an integer: " + parameters[lf.param]);
+        }
+    }
+
+    /** Build the index predicates that let a scan of a B+ tree read only
+     *  the tuples that the filters on the table can match.  Equality filters
+     *  on a leading prefix of the key fields, followed by range filters on
+     *  the next key field, become predicates on the (composite) key: for a
+     *  table keyed on (a, b), a = 5 AND b &gt; 10 gives EQUALS (5) and
+     *  GREATER_THAN (5, 10).
+     *  @param alias the alias of the table
+     *  @param td the TupleDesc of the table
+     *  @param keys the fields of the table the index is keyed on, most
+     *    significant first
+     *  @param numKeyFields the number of key fields of the B+ tree; more than
+     *    keys.length for a secondary index, whose entries end with a RecordId
+     *  @param used if not null, the filters the predicates were built from
+     *    are added to this list
+     *  @return the index predicates, or null if no filter applies to the
+     *    leading key field
+     */
+    private List<IndexPredicate> getIndexPredicates(String alias, TupleDesc td, int[] keys,
+            int numKeyFields, List<LogicalFilterNode> used) throws ParsingException {
+        ArrayList<Field> prefix = new ArrayList<Field>();
+        ArrayList<IndexPredicate> ipreds = new ArrayList<IndexPredicate>();
+        for (int k : keys) {
+            Field eq = null;
+            LogicalFilterNode eqFilter = null;
+            ArrayList<LogicalFilterNode> ranges = new ArrayList<LogicalFilterNode>();
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(alias) || !lf.fieldPureName.equals(td.getFieldName(k)))
+                    continue;
+                if (lf.p == Predicate.Op.EQUALS) {
+                    eq = filterConstant(td.getFieldType(k), lf);
+                    eqFilter = lf;
+                }
+                else if (lf.p != Predicate.Op.NOT_EQUALS && lf.p != Predicate.Op.LIKE)
+                    ranges.add(lf);
+            }
+            if (eq != null) {
+                prefix.add(eq);
+                if (used != null)
+                    used.add(eqFilter);
+                continue;
+            }
+            for (LogicalFilterNode lf : ranges) {
+                ArrayList<Field> bound = new ArrayList<Field>(prefix);
+                bound.add(filterConstant(td.getFieldType(k), lf));
+                ipreds.add(new IndexPredicate(lf.p, makeKey(bound, numKeyFields)));
+                if (used != null)
+                    used.add(lf);
+            }
+            break;
+        }
+        if (!prefix.isEmpty())
+            ipreds.add(0, new IndexPredicate(Predicate.Op.EQUALS, makeKey(prefix, numKeyFields)));
+        return ipreds.isEmpty() ? null : ipreds;
+    }
+
+    /** Add the field a qualified field name refers to, if it belongs to
+     *  the table with the specified alias.
+     *  @return false if the name is alias.*, which refers to every field */
+    private static boolean addReferencedField(Set<Integer> fields, String alias, TupleDesc td,
+            String name) {
+        if (name == null)
+            return true;
+        String[] parts = name.split("[.]");
+        if (parts.length != 2 || parts[1].equals("*"))
+            return !parts[parts.length - 1].equals("*");
+        if (parts[0].equals(alias)) {
+            try {
+                fields.add(td.fieldNameToIndex(parts[1]));
+            } catch (NoSuchElementException e) {
+                // reported when the plan is built
+            }
+        }
+        return true;
+    }
+
+    /** Find the fields of a table that the query reads: the fields in the
+     *  select list, filters, joins, aggregate, GROUP BY and ORDER BY.
+     *  @param alias the alias of the table
+     *  @param td the TupleDesc of the table
+     *  @return the indexes of the fields, or null if the query reads all of
+     *    them (SELECT *)
+     */
+    private Set<Integer> getReferencedFields(String alias, TupleDesc td) {
+        HashSet<Integer> fields = new HashSet<Integer>();
+        for (LogicalSelectListNode si : selectList) {
+            if (!addReferencedField(fields, alias, td, si.fname))
+                return null;
+        }
+        for (LogicalFilterNode lf : filters) {
+            if (!addReferencedField(fields, alias, td, lf.fieldQuantifiedName))
+                return null;
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (alias.equals(lj.t1Alias))
+                addReferencedField(fields, alias, td, lj.f1QuantifiedName);
+            if (alias.equals(lj.t2Alias))
+                addReferencedField(fields, alias, td, lj.f2QuantifiedName);
+        }
+        if (!addReferencedField(fields, alias, td, aggField)
+                || !addReferencedField(fields, alias, td, groupByField)
+                || !addReferencedField(fields, alias, td, oByField))
+            return null;
+        return fields;
+    }
+
+    /** Choose the secondary index, if any, that a scan of a heap file table
+     *  should read instead of scanning the whole table, by the cost of the
+     *  pages each access path is estimated to read in the {@link CostModel}.
+     *  <p>
+     *  An index that holds every field the query reads of the table is
+     *  covering: scanning it reads only the fraction of its pages that the
+     *  filters it can apply select, so it is used whenever that is fewer
+     *  pages than the table, even with no filter on its key.  Any other
+     *  index also fetches the matching tuples from the table, with a random
+     *  read of each page that holds one; since the record ids are sorted by
+     *  page first, that is no more pages than the table has.  Such an index
+     *  is used when the two together cost less than a full scan.
+     *  @param table the scan of the table
+     *  @param stats the statistics of the table, or null if there are none
+     *  @return a scan of the chosen index, or null if the table should be
+     *    scanned sequentially
+     */
+    private OpIterator getSecondaryIndexScan(TransactionId t, LogicalScanNode table, TableStats stats)
+            throws ParsingException {
+        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(table.t);
+        TupleDesc td = hf.getTupleDesc();
+        Set<Integer> referenced = getReferencedFields(table.alias, td);
+        int tablePages = hf.numPages();
+        double tuplesPerPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        CostModel m = CostModel.get();
+        SecondaryIndex best = null;
+        List<IndexPredicate> bestPreds = null;
+        boolean bestCovering = false;
+        double bestCost = Double.MAX_VALUE;
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+            int[] keys = index.getKeyFields();
+            boolean covering = referenced != null && index.covers(referenced);
+            ArrayList<LogicalFilterNode> used = new ArrayList<LogicalFilterNode>();
+            List<IndexPredicate> ipreds = getIndexPredicates(table.alias, td, keys, keys.length + 2, used);
+            if (ipreds == null && !covering)
+                continue;
+            double sel = estimateIndexSelectivity(td, used, stats);
+            double cost = Math.max(1, sel * index.getFile().numPages()) * m.getSeqPageCost();
+            if (!covering)
+                cost += Math.min(sel * tablePages * tuplesPerPage, tablePages) * m.getRandomPageCost();
+            if (cost >= tablePages * m.getSeqPageCost())
+                continue;
+            if (cost < bestCost) {
+                best = index;
+                bestPreds = ipreds;
+                bestCovering = covering;
+                bestCost = cost;
+            }
+        }
+        if (best == null)
+            return null;
+        return new SecondaryIndexScan(t, best, bestPreds, table.alias, bestCovering);
+    }
+
+    /** Choose whether a scan of a B+ tree table should read only the range
+     *  of leaves that the filters on a prefix of its key select, or the whole
+     *  table, by the cost of the pages each access path is estimated to read
+     *  in the {@link CostModel}.
+     *  <p>
+     *  An index scan descends the tree once, reading a page of each level at
+     *  random, and then reads the leaves of the range in order, so a point
+     *  or narrow range query reads a logarithmic number of pages; a range
+     *  that holds most of the table is cheaper to read with a full scan,
+     *  which does not compare the key of every tuple with the bounds.
+     *  Without statistics the index is used whenever it applies.
+     *  @param table the scan of the table
+     *  @param stats the statistics of the table, or null if there are none
+     *  @return a scan of the selected range, or null if the table should be
+     *    scanned sequentially
+     */
+    private OpIterator getPrimaryIndexScan(TransactionId t, LogicalScanNode table, TableStats stats)
+            throws ParsingException {
+        BTreeFile bf = (BTreeFile) Database.getCatalog().getDatabaseFile(table.t);
+        TupleDesc td = bf.getTupleDesc();
+        ArrayList<LogicalFilterNode> used = new ArrayList<LogicalFilterNode>();
+        List<IndexPredicate> ipreds = getIndexPredicates(table.alias, td, bf.keyFields(),
+                bf.keyFields().length, used);
+        if (ipreds == null)
+            return null;
+        if (stats != null) {
+            int tablePages = bf.numPages();
+            CostModel m = CostModel.get();
+            double sel = estimateIndexSelectivity(td, used, stats);
+            double cost = estimateTreeHeight(bf) * m.getRandomPageCost()
+                    + Math.max(1, sel * tablePages) * m.getSeqPageCost();
+            if (cost >= tablePages * m.getSeqPageCost())
+                return null;
+        }
+        return new BTreeScan(t, bf.getId(), ipreds, table.alias);
+    }
+
+    /** Estimate the number of pages read to descend from the root of a B+
+     *  tree to a leaf, from the number of keys an internal page holds */
+    private static int estimateTreeHeight(BTreeFile bf) {
+        TupleDesc td = bf.getTupleDesc();
+        int keySize = 0;
+        for (int k : bf.keyFields())
+            keySize += td.getFieldType(k).getLen();
+        double fanout = Math.max(2, BufferPool.getPageSize() / (keySize + Type.INT_TYPE.getLen()));
+        return 1 + (int) Math.ceil(Math.log(Math.max(1, bf.numPages())) / Math.log(fanout));
+    }
+
+    /** Estimate the fraction of the tuples of a table that an index scan
+     *  reads with the predicates built from the specified filters.  Filters
+     *  on different fields are independent, and a lower and an upper bound
+     *  on the same field select the tuples between them.
+     *  @param td the TupleDesc of the table
+     *  @param used the filters the index predicates were built from
+     *  @param stats the statistics of the table, or null if there are none
+     *  @return the estimated fraction, 1.0 if there are no statistics
+     */
+    private double estimateIndexSelectivity(TupleDesc td, List<LogicalFilterNode> used, TableStats stats)
+            throws ParsingException {
+        if (stats == null)
+            return 1.0;
+        // for each field: the selectivity of its equality, lower and upper bounds
+        LinkedHashMap<Integer, double[]> bounds = new LinkedHashMap<Integer, double[]>();
+        for (LogicalFilterNode lf : used) {
+            int field = td.fieldNameToIndex(lf.fieldPureName);
+            double sel = stats.estimateSelectivity(field, lf.p, filterConstant(td.getFieldType(field), lf));
+            double[] b = bounds.get(field);
+            if (b == null) {
+                b = new double[] {1.0, 1.0, 1.0};
+                bounds.put(field, b);
+            }
+            if (lf.p == Predicate.Op.EQUALS)
+                b[0] *= sel;
+            else if (lf.p == Predicate.Op.GREATER_THAN || lf.p == Predicate.Op.GREATER_THAN_OR_EQ)
+                b[1] = Math.min(b[1], sel);
+            else
+                b[2] = Math.min(b[2], sel);
+        }
+        double sel = 1.0;
+        for (double[] b : bounds.values())
+            sel *= b[0] * Math.max(0.0, b[1] + b[2] - 1.0);
+        return sel;
+    }
+
+    /** Return a key, or a prefix of a key, of a B+ tree with the specified
+     *  number of key fields */
+    private static Field makeKey(List<Field> fields, int numKeyFields) {
+        if (numKeyFields == 1)
+            return fields.get(0);
+        return new CompositeField(fields.toArray(new Field[fields.size()]));
+    }
+
+    /** Return the aliases of the tables a join tree joins, added to the specified list */
+    private static List<String> joinedAliases(LogicalJoinTree tree, List<String> aliases) {
+        if (tree.isLeaf()) {
+            if (tree.alias != null)
+                aliases.add(tree.alias);
+        } else {
+            joinedAliases(tree.left, aliases);
+            joinedAliases(tree.right, aliases);
+        }
+        return aliases;
+    }
+
+    /** Instantiate the joins of a join tree over the plans of its tables,
+     *  removing the tables from the subplanMap.
+     *  @throws ParsingException if a table of the tree has no plan */
+    private OpIterator instantiateJoinTree(JoinOptimizer jo, LogicalJoinTree tree) throws ParsingException {
+        if (tree.isLeaf()) {
+            OpIterator plan = subplanMap.remove(tree.alias);
+            if (plan == null)
+                throw new ParsingException("Unknown table in WHERE clause " + tree.alias);
+            return plan;
+        }
+        LogicalJoinNode lj = tree.join;
+        OpIterator plan1 = instantiateJoinTree(jo, tree.left);
+        OpIterator plan2;
+        if (lj instanceof LogicalSubplanJoinNode) {
+            plan2 = ((LogicalSubplanJoinNode)lj).subPlan;
+            if (plan2 == null)
+                throw new ParsingException("Invalid subquery.");
+        } else {
+            plan2 = instantiateJoinTree(jo, tree.right);
+        }
+        return jo.instantiateJoin(lj,plan1,plan2);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
-     *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   find the optimal plan by using {@link JoinOptimizer#orderJoinTree} to order the joins in the plan,
+     *   which may be bushy.
      *  @param t The transaction that the returned OpIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -286,15 +679,23 @@ public class LogicalPlan {
      */ 
     public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
-        HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        subplanMap.clear();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                TableStats stats = baseTableStats.get(Database.getCatalog().getTableName(table.t));
+                // the filters are still applied on top of an index scan
+                if (file instanceof BTreeFile)
+                    ss = getPrimaryIndexScan(t, table, stats);
+                else if (file instanceof HeapFile)
+                    ss = getSecondaryIndexScan(t, table, stats);
+                if (ss == null)
+                    ss = new SeqScan(t, file.getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -323,10 +724,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(ftyp, lf);
 
             Predicate p = null;
             try {
@@ -338,7 +736,12 @@ public class LogicalPlan {
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // a covering index scan returns only some of the table's fields, so
+            // look the field up in the table itself
+            TupleDesc baseTd = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias));
+            // the joins are ordered for any value of a parameter
+            int field = baseTd.fieldNameToIndex(lf.fieldPureName);
+            double sel = lf.param >= 0 ? s.avgSelectivity(field, lf.p) : s.estimateSelectivity(field, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -346,60 +749,34 @@ public class LogicalPlan {
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
-
-        Iterator<LogicalJoinNode> joinIt = joins.iterator();
-        while (joinIt.hasNext()) {
-            LogicalJoinNode lj = joinIt.next();
-            OpIterator plan1;
-            OpIterator plan2;
-            boolean isSubqueryJoin = lj instanceof LogicalSubplanJoinNode;
-            String t1name, t2name;
-
-            if (equivMap.get(lj.t1Alias)!=null)
-                t1name = equivMap.get(lj.t1Alias);
-            else
-                t1name = lj.t1Alias;
-
-            if (equivMap.get(lj.t2Alias)!=null)
-                t2name = equivMap.get(lj.t2Alias);
-            else
-                t2name = lj.t2Alias;
-
-            plan1 = subplanMap.get(t1name);
-
-            if (isSubqueryJoin) {
-                plan2 = ((LogicalSubplanJoinNode)lj).subPlan;
-                if (plan2 == null) 
-                    throw new ParsingException("Invalid subquery.");
-            } else { 
-                plan2 = subplanMap.get(t2name);
+        LogicalJoinTree tree;
+        if (joinsOrdered) {
+            tree = joinTree;
+        } else {
+            tree = jo.orderJoinTree(statsMap,filterSelectivities,explain);
+            if (reuseJoinOrder) {
+                joinTree = tree;
+                joinsOrdered = true;
             }
-            
-            if (plan1 == null)
-                throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
-            if (plan2 == null)
-                throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
-            
+        }
+        if (tree != null) {
+            // a join between tables the tree joins already would need a
+            // second predicate on the same join
+            if (tree.getJoins().size() < joins.size())
+                throw new ParsingException("Query joins tables that are already joined by another join expression");
+            // the joined tables are replaced by the join tree, under the alias of one of them
+            List<String> aliases = joinedAliases(tree, new ArrayList<String>());
             OpIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
-            subplanMap.put(t1name, j);
-
-            if (!isSubqueryJoin) {
-                subplanMap.remove(t2name);
-                equivMap.put(t2name,t1name);  //keep track of the fact that this new node contains both tables
-                    //make sure anything that was equiv to lj.t2 (which we are just removed) is
-                    // marked as equiv to lj.t1 (which we are replacing lj.t2 with.)
-                    for (java.util.Map.Entry<String, String> s: equivMap.entrySet()) {
-                        String val = s.getValue();
-                        if (val.equals(t2name)) {
-                            s.setValue(t1name);
-                        }
-                    }
-                    
-                // subplanMap.put(lj.t2, j);
+            if (adaptive && tree.getJoins().size() > 1 && !hasSubplanJoins()) {
+                OpIterator[] inputs = new OpIterator[aliases.size()];
+                for (int i = 0; i < inputs.length; i++)
+                    inputs[i] = subplanMap.remove(aliases.get(i));
+                j = new AdaptiveJoin(this, tree, statsMap, filterSelectivities,
+                        aliases.toArray(new String[inputs.length]), inputs);
+            } else {
+                j = instantiateJoinTree(jo, tree);
             }
-            
+            subplanMap.put(aliases.get(0), j);
         }
 
         if (subplanMap.size() > 1) {
@@ -41,9 +41,9 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
+                } else if (getScannedTable(children[0]) != null) {
                     childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
+                            getScannedTable(children[0]))
                             .estimateTableCardinality(1.0);
                 }
             }
@@ -52,6 +52,20 @@ public class OperatorCardinality {
         }
     }
 
+    /**
+     * @return the name of the table scanned by o if it is a sequential,
+     *         B+ tree or secondary index scan, otherwise null
+     */
+    private static String getScannedTable(OpIterator o) {
+        if (o instanceof SeqScan)
+            return ((SeqScan) o).getTableName();
+        if (o instanceof BTreeScan)
+            return ((BTreeScan) o).getTableName();
+        if (o instanceof SecondaryIndexScan)
+            return ((SecondaryIndexScan) o).getTableName();
+        return null;
+    }
+
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -77,9 +91,9 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
+            } else if (getScannedTable(child) != null) {
                 f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
+                        getScannedTable(child))
                         .estimateTableCardinality(1.0) * selectivity) + 1);
                 return false;
             }
@@ -120,9 +134,9 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (getScannedTable(child1) != null) {
+            child1Card = (int) (tableStats.get(getScannedTable(child1))
+                    .estimateTableCardinality(1.0));
         }
 
         if (child2 instanceof Operator) {
@@ -132,9 +146,9 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (getScannedTable(child2) != null) {
+            child2Card = (int) (tableStats.get(getScannedTable(child2))
+                    .estimateTableCardinality(1.0));
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -177,9 +191,9 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (getScannedTable(child1) != null) {
+            child1Card = (int) (tableStats.get(getScannedTable(child1))
+                    .estimateTableCardinality(1.0));
         }
 
         if (child2 instanceof Operator) {
@@ -189,9 +203,9 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (getScannedTable(child2) != null) {
+            child2Card = (int) (tableStats.get(getScannedTable(child2))
+                    .estimateTableCardinality(1.0));
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -219,8 +233,8 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
+        if (getScannedTable(child) != null) {
+            childCard = (int) (tableStats.get(getScannedTable(child))
                     .estimateTableCardinality(1.0));
         }
 
@@ -0,0 +1,171 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+/**
+ * PageLatches hands out short-term reader/writer latches on the pages of a
+ * BTreeFile. Latches are separate from the transactional locks taken by
+ * the BufferPool: they protect the structure of the tree while one
+ * operation reads or changes it, and every latch is released before the
+ * operation returns.
+ * <p>
+ * There is also a single tree latch. Every operation holds it in shared
+ * mode, so operations on different parts of the tree never contend on it.
+ * An operation that cannot bound the pages it will change (merging pages
+ * after a delete) takes it in exclusive mode instead and then needs no
+ * page latches at all.
+ * <p>
+ * Latches belong to the thread that acquired them. Each thread remembers
+ * the latches it holds so that an operation can drop the latches above the
+ * page it is working on (crabbing), or all of them when it finishes. To
+ * avoid deadlock, page latches are only ever acquired top-down (root
+ * pointer, root, ..., leaf) and left to right among siblings.
+ * <p>
+ * A page has a latch only while some thread holds it or waits for it, so
+ * the table of latches stays as small as the number of pages in use.
+ *
+ * @see BTreeFile#findLeafPage
+ */
+class PageLatches {
+
+	private final ReentrantReadWriteLock tree = new ReentrantReadWriteLock();
+	private final ConcurrentHashMap<PageId, Latch> latches = new ConcurrentHashMap<PageId, Latch>();
+
+	/** The latch on a page, and the number of threads holding it or waiting for it */
+	private static class Latch {
+		final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+		/** Only read and written under the lock of the table entry, in compute() */
+		int users = 0;
+	}
+
+	/** Create the latch on a page if needed, and count a new user of it */
+	private static final BiFunction<PageId, Latch, Latch> ACQUIRE = new BiFunction<PageId, Latch, Latch>() {
+		public Latch apply(PageId pid, Latch latch) {
+			if (latch == null)
+				latch = new Latch();
+			latch.users++;
+			return latch;
+		}
+	};
+
+	/** Count a user of the latch on a page gone, and drop the latch after the last one */
+	private static final BiFunction<PageId, Latch, Latch> RELEASE = new BiFunction<PageId, Latch, Latch>() {
+		public Latch apply(PageId pid, Latch latch) {
+			return (--latch.users == 0) ? null : latch;
+		}
+	};
+
+	/** The page latches held by each thread, in the order they were acquired */
+	private final ThreadLocal<LinkedHashMap<PageId, Lock>> held =
+			new ThreadLocal<LinkedHashMap<PageId, Lock>>() {
+		protected LinkedHashMap<PageId, Lock> initialValue() {
+			return new LinkedHashMap<PageId, Lock>();
+		}
+	};
+
+	/** The tree latch held by each thread, or null */
+	private final ThreadLocal<Lock> heldTree = new ThreadLocal<Lock>();
+
+	/**
+	 * Latch the whole tree. Blocks while another thread holds it in a
+	 * conflicting mode.
+	 *
+	 * @param exclusive - whether to exclude every other operation on the tree
+	 */
+	void latchTree(boolean exclusive) {
+		if (heldTree.get() != null)
+			throw new IllegalStateException("tree latch already held");
+		Lock l = exclusive ? tree.writeLock() : tree.readLock();
+		l.lock();
+		heldTree.set(l);
+	}
+
+	/** @return true if this thread holds the tree latch in exclusive mode */
+	boolean holdsTreeExclusive() {
+		return tree.isWriteLockedByCurrentThread();
+	}
+
+	/**
+	 * Latch a page. Does nothing if this thread already holds the tree latch
+	 * exclusively or a latch on the page that is at least as strong.
+	 *
+	 * @param pid - the page to latch
+	 * @param exclusive - whether other threads must be kept from reading the page
+	 */
+	void latch(PageId pid, boolean exclusive) {
+		if (holdsTreeExclusive())
+			return;
+		LinkedHashMap<PageId, Lock> mine = held.get();
+		Lock current = mine.get(pid);
+		if (current != null) {
+			// shared latches cannot be upgraded without risking deadlock
+			if (exclusive && !(current instanceof ReentrantReadWriteLock.WriteLock))
+				throw new IllegalStateException("cannot upgrade the latch on " + pid);
+			return;
+		}
+		ReentrantReadWriteLock rw = latches.compute(pid, ACQUIRE).rw;
+		Lock l = exclusive ? rw.writeLock() : rw.readLock();
+		l.lock();
+		mine.put(pid, l);
+	}
+
+	/** Unlock a page latch this thread held */
+	private void unlock(PageId pid, Lock l) {
+		l.unlock();
+		latches.compute(pid, RELEASE);
+	}
+
+	/** @return the number of pages that have a latch, held or waited for */
+	int size() {
+		return latches.size();
+	}
+
+	/** @return true if this thread holds a latch on the page */
+	boolean holds(PageId pid) {
+		return holdsTreeExclusive() || held.get().containsKey(pid);
+	}
+
+	/**
+	 * Release the latch this thread holds on a page, if any.
+	 */
+	void release(PageId pid) {
+		Lock l = held.get().remove(pid);
+		if (l != null)
+			unlock(pid, l);
+	}
+
+	/**
+	 * Release every page latch this thread holds except the one on the
+	 * specified page. Used once a page is known to be safe, so that no
+	 * change below it can reach the pages above it.
+	 */
+	void releaseAllExcept(PageId keep) {
+		Iterator<Map.Entry<PageId, Lock>> it = held.get().entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<PageId, Lock> e = it.next();
+			if (!e.getKey().equals(keep)) {
+				unlock(e.getKey(), e.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/** Release every page latch this thread holds, keeping the tree latch. */
+	void releasePages() {
+		releaseAllExcept(null);
+	}
+
+	/** Release every latch this thread holds, including the tree latch. */
+	void releaseAll() {
+		releasePages();
+		Lock l = heldTree.get();
+		if (l != null) {
+			heldTree.remove();
+			l.unlock();
+		}
+	}
+}
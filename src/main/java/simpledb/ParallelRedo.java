@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * ParallelRedo installs page images read from the log during recovery on a
+ * pool of worker threads.  Images are partitioned by the hash of their
+ * PageId, so every image of a given page goes to the same worker and is
+ * installed in the order it was handed to apply() -- that is, in LSN order.
+ * Images of different pages are independent and are written concurrently.
+ * <p>
+ * Each worker has a bounded queue, so the reader of the log never gets
+ * more than a few images ahead of the workers and memory use does not
+ * depend on the size of the log.
+ *
+ * @see LogFile#recover
+ */
+class ParallelRedo {
+
+    /** Images that may be waiting for each worker. */
+    private static final int QUEUE_CAPACITY = 64;
+
+    private static final LogFile.PageImage DONE = new LogFile.PageImage(null, null, null);
+
+    private final Worker[] workers;
+    private volatile IOException failure = null;
+
+    /**
+     * Start the workers.
+     *
+     * @param numThreads the number of worker threads (at least one)
+     */
+    ParallelRedo(int numThreads) {
+        workers = new Worker[Math.max(1, numThreads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queue a page image to be written to its DbFile.  Blocks while the
+     * responsible worker is too far behind.
+     */
+    void apply(LogFile.PageImage image) throws IOException {
+        if (failure != null)
+            throw failure;
+        int w = (image.pid.hashCode() & Integer.MAX_VALUE) % workers.length;
+        put(workers[w].queue, image);
+    }
+
+    /**
+     * Wait for every queued image to be written and stop the workers.
+     *
+     * @throws IOException if any image could not be installed
+     */
+    void finish() throws IOException {
+        for (Worker w : workers) {
+            put(w.queue, DONE);
+        }
+        for (Worker w : workers) {
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for redo");
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private static void put(BlockingQueue<LogFile.PageImage> queue, LogFile.PageImage image)
+            throws IOException {
+        try {
+            queue.put(image);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during redo");
+        }
+    }
+
+    private class Worker extends Thread {
+        final BlockingQueue<LogFile.PageImage> queue =
+            new ArrayBlockingQueue<LogFile.PageImage>(QUEUE_CAPACITY);
+
+        Worker(int i) {
+            super("ParallelRedo worker " + i);
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                LogFile.PageImage image;
+                try {
+                    image = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (image == DONE)
+                    return;
+                // after a failure keep draining, so that apply() never blocks
+                if (failure != null)
+                    continue;
+                try {
+                    Page p = image.toPage();
+                    Database.getCatalog().getDatabaseFile(image.pid.getTableId()).writePage(p);
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new IOException("could not redo page " + image.pid, e);
+                }
+            }
+        }
+    }
+}
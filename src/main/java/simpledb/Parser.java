@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -11,6 +13,8 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    /** Whether the joins of queries are re-planned as they run, see {@link AdaptiveJoin} */
+    static boolean adaptive = true;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -62,6 +66,19 @@ public class Parser {
             boolean isJoin = false;
             Predicate.Op op = getOp(wx.getOperator());
 
+            boolean op1param = isParameter(ops.elementAt(0));
+            boolean op2param = isParameter(ops.elementAt(1));
+            if (op1param || op2param) { // select node on a parameter
+                ZExp other = ops.elementAt(op1param ? 1 : 0);
+                if (op1param && op2param || !(other instanceof ZConstant)
+                        || ((ZConstant) other).getType() != ZConstant.COLUMNNAME) {
+                    throw new simpledb.ParsingException(
+                            "A parameter can only be compared with a field.");
+                }
+                lp.addParameterFilter(((ZConstant) other).getValue(), op);
+                return;
+            }
+
             boolean op1const = ops.elementAt(0) instanceof ZConstant; // otherwise
                                                                       // is a
                                                                       // Query
@@ -132,6 +149,12 @@ public class Parser {
 
     }
 
+    /** Return true if the expression is a <tt>?</tt> parameter of a prepared statement */
+    static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -279,6 +302,7 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setAdaptive(adaptive);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -351,33 +375,7 @@ public class Parser {
                                 + s.getTable());
             }
             for (ZExp e : values) {
-
-                if (!(e instanceof ZConstant))
-                    throw new simpledb.ParsingException(
-                            "Complex expressions not allowed in INSERT statements.");
-                ZConstant zc = (ZConstant) e;
-                if (zc.getType() == ZConstant.NUMBER) {
-                    if (td.getFieldType(i) != Type.INT_TYPE) {
-                        throw new simpledb.ParsingException("Value "
-                                + zc.getValue()
-                                + " is not an integer, expected a string.");
-                    }
-                    IntField f = new IntField(new Integer(zc.getValue()));
-                    t.setField(i, f);
-                } else if (zc.getType() == ZConstant.STRING) {
-                    if (td.getFieldType(i) != Type.STRING_TYPE) {
-                        throw new simpledb.ParsingException("Value "
-                                + zc.getValue()
-                                + " is a string, expected an integer.");
-                    }
-                    StringField f = new StringField(zc.getValue(),
-                            Type.STRING_LEN);
-                    t.setField(i, f);
-                } else {
-                    throw new simpledb.ParsingException(
-                            "Only string or int fields are supported.");
-                }
-
+                t.setField(i, parseInsertValue(e, td.getFieldType(i)));
                 i++;
             }
             ArrayList<Tuple> tups = new ArrayList<Tuple>();
@@ -394,6 +392,32 @@ public class Parser {
         return insertQ;
     }
 
+    /** Return the field an INSERT statement gives a value of the specified type */
+    static Field parseInsertValue(ZExp e, Type type) throws simpledb.ParsingException {
+        if (!(e instanceof ZConstant))
+            throw new simpledb.ParsingException(
+                    "Complex expressions not allowed in INSERT statements.");
+        ZConstant zc = (ZConstant) e;
+        if (zc.getType() == ZConstant.NUMBER) {
+            if (type != Type.INT_TYPE) {
+                throw new simpledb.ParsingException("Value "
+                        + zc.getValue()
+                        + " is not an integer, expected a string.");
+            }
+            return new IntField(new Integer(zc.getValue()));
+        } else if (zc.getType() == ZConstant.STRING) {
+            if (type != Type.STRING_TYPE) {
+                throw new simpledb.ParsingException("Value "
+                        + zc.getValue()
+                        + " is a string, expected an integer.");
+            }
+            return new StringField(zc.getValue(), Type.STRING_LEN);
+        } else {
+            throw new simpledb.ParsingException(
+                    "Only string or int fields are supported.");
+        }
+    }
+
     public Query handleDeleteStatement(ZDelete s, TransactionId tid)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -408,23 +432,124 @@ public class Parser {
             throw new simpledb.ParsingException("Unknown table : "
                     + s.getTable());
         }
-        String name = s.getTable();
         Query sdbq = new Query(tid);
 
+        LogicalPlan lp = parseDeleteLogicalPlan(tid, s, id);
+
+        OpIterator op = new Delete(tid, lp.physicalPlan(tid,
+                TableStats.getStatsMap(), false));
+        sdbq.setPhysicalPlan(op);
+
+        return sdbq;
+
+    }
+
+    /** Return the plan of the tuples a DELETE statement deletes from table id */
+    LogicalPlan parseDeleteLogicalPlan(TransactionId tid, ZDelete s, int id)
+            throws simpledb.ParsingException {
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(s.toString());
 
-        lp.addScan(id, name);
+        lp.addScan(id, s.getTable());
         if (s.getWhere() != null)
             processExpression(tid, (ZExpression) s.getWhere(), lp);
         lp.addProjectField("null.*", null);
+        return lp;
+    }
 
-        OpIterator op = new Delete(tid, lp.physicalPlan(tid,
-                TableStats.getStatsMap(), false));
-        sdbq.setPhysicalPlan(op);
+    /**
+     * Prepare a SELECT, INSERT or DELETE statement with <tt>?</tt>
+     * parameters, to be executed with {@link PreparedStatement#bind}.  A
+     * statement prepared before with the same normalized text is found in
+     * the {@link StatementCache}, and is not parsed or planned again.
+     *
+     * @param sql the statement
+     * @throws simpledb.ParsingException if the statement is not valid, or
+     *         has a subquery
+     */
+    public PreparedStatement prepare(String sql) throws simpledb.ParsingException {
+        StatementCache cache = Database.getStatementCache();
+        String key = StatementCache.normalize(sql);
+        PreparedStatement ps = cache.get(key);
+        if (ps == null) {
+            ps = parsePreparedStatement(key);
+            cache.put(key, ps);
+        }
+        return ps;
+    }
 
-        return sdbq;
+    private PreparedStatement parsePreparedStatement(String sql) throws simpledb.ParsingException {
+        ZStatement stmt;
+        try {
+            stmt = new ZqlParser(new ByteArrayInputStream((sql + ";").getBytes("UTF-8"))).readStatement();
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException("Invalid SQL expression: \n \t " + e);
+        } catch (Zql.TokenMgrError e) {
+            throw new simpledb.ParsingException("Invalid SQL expression: \n \t " + e);
+        } catch (UnsupportedEncodingException e) {
+            throw new simpledb.ParsingException(e);
+        }
+
+        // the transaction would only run the plans of subqueries
+        TransactionId tid = new TransactionId();
+        try {
+            if (stmt instanceof ZQuery) {
+                return PreparedStatement.forQuery(sql,
+                        checkPreparable(parseQueryLogicalPlan(tid, (ZQuery) stmt)));
+            } else if (stmt instanceof ZDelete) {
+                ZDelete s = (ZDelete) stmt;
+                int id = getTableId(s.getTable());
+                return PreparedStatement.forDelete(sql, id,
+                        checkPreparable(parseDeleteLogicalPlan(tid, s, id)));
+            } else if (stmt instanceof ZInsert) {
+                ZInsert s = (ZInsert) stmt;
+                int id = getTableId(s.getTable());
+                if (s.getValues() == null) {
+                    return PreparedStatement.forInsert(sql, id,
+                            checkPreparable(parseQueryLogicalPlan(tid, s.getQuery())));
+                }
+                TupleDesc td = Database.getCatalog().getTupleDesc(id);
+                @SuppressWarnings("unchecked")
+                Vector<ZExp> values = (Vector<ZExp>) s.getValues();
+                if (td.numFields() != values.size()) {
+                    throw new simpledb.ParsingException(
+                            "INSERT statement does not contain same number of fields as table "
+                                    + s.getTable());
+                }
+                Field[] fields = new Field[values.size()];
+                int[] params = new int[values.size()];
+                int n = 0;
+                for (int i = 0; i < fields.length; i++) {
+                    if (isParameter(values.elementAt(i))) {
+                        params[i] = n++;
+                    } else {
+                        params[i] = -1;
+                        fields[i] = parseInsertValue(values.elementAt(i), td.getFieldType(i));
+                    }
+                }
+                return PreparedStatement.forInsertValues(sql, id, fields, params);
+            }
+        } catch (IOException e) {
+            throw new simpledb.ParsingException(e);
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException("Invalid SQL expression: \n \t " + e);
+        }
+        throw new simpledb.ParsingException(
+                "Only SELECT, INSERT and DELETE statements can be prepared: " + sql);
+    }
+
+    private static LogicalPlan checkPreparable(LogicalPlan lp) throws simpledb.ParsingException {
+        if (lp.hasSubplanJoins())
+            throw new simpledb.ParsingException("Statements with subqueries cannot be prepared.");
+        return lp;
+    }
 
+    private static int getTableId(String table) throws simpledb.ParsingException {
+        try {
+            return Database.getCatalog().getTableId(table);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + table);
+        }
     }
 
     public void handleTransactStatement(ZTransactStmt s)
@@ -492,9 +617,23 @@ public class Parser {
         return curtrans;
     }
 
+    /**
+     * A statement that starts with EXPLAIN ANALYZE is run with its operators
+     * instrumented, and the report of what they did is printed instead of
+     * its tuples (see {@link ExplainAnalyze}).
+     */
+    private static final Pattern EXPLAIN_ANALYZE = Pattern.compile(
+            "(?is)\\s*explain\\s+analyze\\s+(.*)");
+
     public void processNextStatement(String s) {
+        boolean analyze = false;
+        Matcher m = EXPLAIN_ANALYZE.matcher(s);
+        if (m.matches()) {
+            s = m.group(1);
+            analyze = true;
+        }
         try {
-            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
+            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")), analyze);
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -502,6 +641,10 @@ public class Parser {
     }
 
     public void processNextStatement(InputStream is) {
+        processNextStatement(is, false);
+    }
+
+    private void processNextStatement(InputStream is, boolean analyze) {
         try {
             ZqlParser p = new ZqlParser(is);
             ZStatement s = p.readStatement();
@@ -532,7 +675,9 @@ public class Parser {
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
-                    if (query != null)
+                    if (query != null && analyze)
+                        System.out.println(ExplainAnalyze.run(query, TableStats.getStatsMap()));
+                    else if (query != null)
                         query.execute();
 
                     if (!inUserTrans && curtrans != null) {
@@ -581,11 +726,11 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "explain analyze" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 5) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,7 +740,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-noadaptive] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -607,7 +752,14 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        // costs measured by calibrate replace the default cost model
+        File costs = CostModel.forCatalog(argv[0]);
+        if (costs.exists()) {
+            CostModel.set(CostModel.load(costs));
+            System.out.println("Loaded cost profile " + costs);
+        }
+        // statistics are read from the stats file as queries need them
+        TableStats.setStatsFile(new StatsFile(StatsFile.forCatalog(argv[0])));
 
         String queryFile = null;
 
@@ -616,6 +768,9 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-noadaptive")) {
+                    adaptive = false;
+                    System.out.println("Adaptive join re-planning disabled.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -674,7 +829,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -683,8 +837,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -701,61 +854,3 @@ public class Parser {
         }
     }
 }
-
-class TupleArrayIterator implements OpIterator {
-    /**
-	 *
-	 */
-    private static final long serialVersionUID = 1L;
-    ArrayList<Tuple> tups;
-    Iterator<Tuple> it = null;
-
-    public TupleArrayIterator(ArrayList<Tuple> tups) {
-        this.tups = tups;
-    }
-
-    public void open() throws DbException, TransactionAbortedException {
-        it = tups.iterator();
-    }
-
-    /** @return true if the iterator has more items. */
-    public boolean hasNext() throws DbException, TransactionAbortedException {
-        return it.hasNext();
-    }
-
-    /**
-     * Gets the next tuple from the operator (typically implementing by reading
-     * from a child operator or an access method).
-     *
-     * @return The next tuple in the iterator, or null if there are no more
-     *         tuples.
-     */
-    public Tuple next() throws DbException, TransactionAbortedException,
-            NoSuchElementException {
-        return it.next();
-    }
-
-    /**
-     * Resets the iterator to the start.
-     *
-     * @throws DbException
-     *             When rewind is unsupported.
-     */
-    public void rewind() throws DbException, TransactionAbortedException {
-        it = tups.iterator();
-    }
-
-    /**
-     * Returns the TupleDesc associated with this OpIterator.
-     */
-    public TupleDesc getTupleDesc() {
-        return tups.get(0).getTupleDesc();
-    }
-
-    /**
-     * Closes the iterator.
-     */
-    public void close() {
-    }
-
-}
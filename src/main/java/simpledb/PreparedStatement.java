@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+/**
+ * A PreparedStatement is a SELECT, INSERT or DELETE statement that has been
+ * parsed once, to be executed many times with different values bound to its
+ * <tt>?</tt> parameters.  Statements are prepared with
+ * {@link Parser#prepare}, which keeps them in the {@link StatementCache}.
+ * <p>
+ * The joins of the statement are ordered the first time it is bound, with
+ * the average selectivity of the filters on parameters, and that order is
+ * used for every later binding until the catalog or statistics change.
+ * Binding a statement only builds the operators of that plan, with the
+ * values of the parameters in its predicates.
+ * <p>
+ * Parameters may appear where a filter compares a field with a constant,
+ * and as values of an INSERT statement.  Statements with subqueries cannot
+ * be prepared.
+ *
+ * @Threadsafe
+ */
+public class PreparedStatement {
+
+    private final String sql;
+    /** The query, the tuples an INSERT ... SELECT inserts or the tuples a
+     *  DELETE deletes; null for an INSERT ... VALUES */
+    private final LogicalPlan plan;
+    /** Whether the statement is an INSERT or DELETE, rather than a query */
+    private final boolean update;
+    /** The table an INSERT or DELETE changes */
+    private final int tableId;
+    private final boolean delete;
+    /** The values of an INSERT ... VALUES, null where they are parameters */
+    private final Field[] values;
+    /** The parameter each value of an INSERT ... VALUES is, or -1 */
+    private final int[] valueParams;
+    private final int numParameters;
+
+    private long catalogVersion, statsVersion;
+
+    private PreparedStatement(String sql, LogicalPlan plan, boolean update, int tableId, boolean delete,
+            Field[] values, int[] valueParams, int numParameters) {
+        this.sql = sql;
+        this.plan = plan;
+        this.update = update;
+        this.tableId = tableId;
+        this.delete = delete;
+        this.values = values;
+        this.valueParams = valueParams;
+        this.numParameters = numParameters;
+        this.catalogVersion = Database.getCatalog().getVersion();
+        this.statsVersion = TableStats.getStatsVersion();
+        if (plan != null)
+            plan.setReuseJoinOrder(true);
+    }
+
+    /** Create a statement that runs a query */
+    static PreparedStatement forQuery(String sql, LogicalPlan plan) {
+        return new PreparedStatement(sql, plan, false, 0, false, null, null, plan.numParameters());
+    }
+
+    /** Create a statement that deletes the tuples of a plan from a table */
+    static PreparedStatement forDelete(String sql, int tableId, LogicalPlan plan) {
+        return new PreparedStatement(sql, plan, true, tableId, true, null, null, plan.numParameters());
+    }
+
+    /** Create a statement that inserts the tuples of a plan into a table */
+    static PreparedStatement forInsert(String sql, int tableId, LogicalPlan plan) {
+        return new PreparedStatement(sql, plan, true, tableId, false, null, null, plan.numParameters());
+    }
+
+    /**
+     * Create a statement that inserts a tuple into a table.
+     * @param values the fields of the tuple, null where they are parameters
+     * @param valueParams the parameter each field is, or -1
+     */
+    static PreparedStatement forInsertValues(String sql, int tableId, Field[] values, int[] valueParams) {
+        int n = 0;
+        for (int p : valueParams)
+            n = Math.max(n, p + 1);
+        return new PreparedStatement(sql, null, true, tableId, false, values, valueParams, n);
+    }
+
+    /** Return the normalized text of the statement */
+    public String getSql() {
+        return sql;
+    }
+
+    /** Return the number of parameters of the statement */
+    public int numParameters() {
+        return numParameters;
+    }
+
+    /**
+     * Bind the parameters of the statement to values, and return a query
+     * that runs it in the specified transaction.
+     *
+     * @param tid the transaction the query runs in
+     * @param params the value of each parameter, in the order the
+     *        parameters appear in the statement; a String representing an
+     *        integer for an integer field
+     * @throws ParsingException if there is not one value per parameter, or
+     *         a value is not of the type of its field
+     * @throws DbException if the tuples to insert do not match the table
+     */
+    public synchronized Query bind(TransactionId tid, String... params)
+            throws ParsingException, DbException {
+        if (params.length != numParameters)
+            throw new ParsingException("Expected " + numParameters + " parameter values, got " + params.length);
+        OpIterator op;
+        if (plan != null) {
+            long cv = Database.getCatalog().getVersion();
+            long sv = TableStats.getStatsVersion();
+            if (cv != catalogVersion || sv != statsVersion) {
+                // order the joins again for the new tables and statistics
+                plan.setReuseJoinOrder(true);
+                catalogVersion = cv;
+                statsVersion = sv;
+            }
+            plan.bindParameters(params);
+            op = plan.physicalPlan(tid, TableStats.getStatsMap(), false);
+        } else {
+            op = new TupleArrayIterator(bindValues(params));
+        }
+        if (update)
+            op = delete ? new Delete(tid, op) : new Insert(tid, op, tableId);
+        Query q = new Query(op, tid);
+        q.setLogicalPlan(plan);
+        return q;
+    }
+
+    /** Return the tuple of an INSERT ... VALUES with its parameters bound */
+    private ArrayList<Tuple> bindValues(String[] params) throws ParsingException {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < values.length; i++) {
+            if (valueParams[i] < 0) {
+                t.setField(i, values[i]);
+                continue;
+            }
+            String v = params[valueParams[i]];
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                try {
+                    t.setField(i, new IntField(Integer.parseInt(v)));
+                } catch (NumberFormatException e) {
+                    throw new ParsingException("Parameter " + (valueParams[i] + 1) + " is not an integer: " + v);
+                }
+            } else {
+                t.setField(i, new StringField(v, Type.STRING_LEN));
+            }
+        }
+        ArrayList<Tuple> tups = new ArrayList<Tuple>();
+        tups.add(t);
+        return tups;
+    }
+
+    public String toString() {
+        return "PreparedStatement(" + sql + ")";
+    }
+}
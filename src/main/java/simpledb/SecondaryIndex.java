@@ -0,0 +1,217 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * SecondaryIndex is a non-clustered B+ tree index over a table stored in a
+ * HeapFile. The index is a BTreeFile of entries (key fields..., page number,
+ * slot, included fields...): the indexed fields of a tuple, its RecordId, and
+ * optionally copies of further fields. The key fields and the RecordId form
+ * the B+ tree key, so entries stay unique when key values repeat, and the
+ * entry of a given tuple can be found directly. Included fields are only
+ * stored in the leaves; they let an index that holds every field a query
+ * needs answer it without reading the table.
+ * <p>
+ * Indexes are registered with {@link Catalog#addIndex}, after which
+ * HeapFile.insertTuple and HeapFile.deleteTuple keep them up to date.
+ *
+ * @see SecondaryIndexScan
+ */
+public class SecondaryIndex {
+
+	private final String name;
+	private final int tableid;
+	private final int[] keyFields;
+	private final int[] includedFields;
+	private final BTreeFile file;
+
+	/**
+	 * Create a secondary index over a table in the catalog. The index is empty
+	 * until it is built or tuples are inserted into the table.
+	 *
+	 * @param name - the name of the index, unique among tables and indexes
+	 * @param f - the file that stores the index
+	 * @param tableid - the table to index; must be stored in a HeapFile
+	 * @param keyFields - the fields of the table to index, most significant first
+	 * @see #build
+	 */
+	public SecondaryIndex(String name, File f, int tableid, int[] keyFields) {
+		this(name, f, tableid, keyFields, new int[0]);
+	}
+
+	/**
+	 * Create a secondary index over a table in the catalog that also stores
+	 * the specified fields in its leaf entries.
+	 *
+	 * @param name - the name of the index, unique among tables and indexes
+	 * @param f - the file that stores the index
+	 * @param tableid - the table to index; must be stored in a HeapFile
+	 * @param keyFields - the fields of the table to index, most significant first
+	 * @param includedFields - further fields of the table to store in each entry
+	 */
+	public SecondaryIndex(String name, File f, int tableid, int[] keyFields, int[] includedFields) {
+		if(!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+			throw new IllegalArgumentException("secondary indexes are only supported on heap files");
+		}
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		int n = keyFields.length;
+		int m = includedFields.length;
+		Type[] types = new Type[n + 2 + m];
+		String[] names = new String[n + 2 + m];
+		int[] indexKeys = new int[n + 2];
+		for(int i = 0; i < n; i++) {
+			types[i] = td.getFieldType(keyFields[i]);
+			names[i] = td.getFieldName(keyFields[i]);
+		}
+		types[n] = Type.INT_TYPE;
+		names[n] = "pageno";
+		types[n + 1] = Type.INT_TYPE;
+		names[n + 1] = "slot";
+		for(int i = 0; i < m; i++) {
+			types[n + 2 + i] = td.getFieldType(includedFields[i]);
+			names[n + 2 + i] = td.getFieldName(includedFields[i]);
+		}
+		for(int i = 0; i < n + 2; i++) {
+			indexKeys[i] = i;
+		}
+		this.name = name;
+		this.tableid = tableid;
+		this.keyFields = keyFields.clone();
+		this.includedFields = includedFields.clone();
+		this.file = new BTreeFile(f, indexKeys, new TupleDesc(types, names));
+	}
+
+	/** @return the name of this index */
+	public String getName() {
+		return name;
+	}
+
+	/** @return the id of the indexed table */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/** @return the indexed fields of the table, most significant first */
+	public int[] getKeyFields() {
+		return keyFields.clone();
+	}
+
+	/** @return the fields of the table stored in the entries besides the key */
+	public int[] getIncludedFields() {
+		return includedFields.clone();
+	}
+
+	/**
+	 * @return the position in an index entry of a field of the table, or -1
+	 *         if the entries do not hold it
+	 */
+	public int getEntryField(int field) {
+		for(int i = 0; i < keyFields.length; i++) {
+			if(keyFields[i] == field)
+				return i;
+		}
+		for(int i = 0; i < includedFields.length; i++) {
+			if(includedFields[i] == field)
+				return keyFields.length + 2 + i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the entries of this index hold all of the specified
+	 *         fields of the table, so that a query reading only those fields
+	 *         can be answered from the index alone
+	 */
+	public boolean covers(Collection<Integer> fields) {
+		for(int field : fields) {
+			if(getEntryField(field) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** @return the BTreeFile that stores the entries of this index */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the index entry of a tuple of the table stored at rid
+	 */
+	private Tuple getEntry(Tuple t, RecordId rid) {
+		Tuple entry = new Tuple(file.getTupleDesc());
+		for(int i = 0; i < keyFields.length; i++) {
+			entry.setField(i, t.getField(keyFields[i]));
+		}
+		entry.setField(keyFields.length, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(keyFields.length + 1, new IntField(rid.getTupleNumber()));
+		for(int i = 0; i < includedFields.length; i++) {
+			entry.setField(keyFields.length + 2 + i, t.getField(includedFields[i]));
+		}
+		return entry;
+	}
+
+	/**
+	 * @return the RecordId of the tuple of the table an index entry points to
+	 */
+	public RecordId getRecordId(Tuple entry) {
+		int pageno = ((IntField) entry.getField(keyFields.length)).getValue();
+		int slot = ((IntField) entry.getField(keyFields.length + 1)).getValue();
+		return new RecordId(new HeapPageId(tableid, pageno), slot);
+	}
+
+	/**
+	 * Add the entry of a tuple that was just inserted into the table.
+	 *
+	 * @param tid - the transaction inserting the tuple
+	 * @param t - the tuple, with its RecordId set
+	 * @return the index pages that were modified
+	 */
+	public ArrayList<Page> insertEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return file.insertTuple(tid, getEntry(t, t.getRecordId()));
+	}
+
+	/**
+	 * Remove the entry of a tuple that was deleted from the table.
+	 *
+	 * @param tid - the transaction deleting the tuple
+	 * @param t - the tuple
+	 * @param rid - the RecordId the tuple was stored at
+	 * @return the index pages that were modified
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public ArrayList<Page> deleteEntry(TransactionId tid, Tuple t, RecordId rid)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = file.getKey(getEntry(t, rid));
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		it.open();
+		try {
+			if(!it.hasNext()) {
+				throw new DbException("index " + name + " has no entry for " + rid);
+			}
+			return file.deleteTuple(tid, it.next());
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Add an entry for every tuple already in the table, for an index created
+	 * after the table was loaded.
+	 *
+	 * @param tid - the transaction building the index
+	 */
+	public void build(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		DbFileIterator it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			insertEntry(tid, it.next());
+		}
+		it.close();
+	}
+}
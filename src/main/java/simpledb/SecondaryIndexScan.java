@@ -0,0 +1,242 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SecondaryIndexScan is an operator which reads the tuples of a heap file
+ * table that match a predicate on one of its secondary indexes. Matching
+ * index entries are read in batches, and the RecordIds of each batch are
+ * sorted by page before the tuples are fetched, so that each heap page is
+ * read at most once per batch however the index orders the tuples.
+ * <p>
+ * A covering scan does not read the table at all: it returns only the
+ * fields of the table that the index entries hold, in table order, built
+ * from the entries themselves.
+ *
+ * @see SecondaryIndex
+ */
+public class SecondaryIndexScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The number of index entries that are sorted and fetched together */
+	static final int BATCH_SIZE = 1024;
+
+	private boolean isOpen = false;
+	private TransactionId tid;
+	private TupleDesc myTd;
+	private final SecondaryIndex index;
+	private List<IndexPredicate> ipreds;
+	private final boolean covering;
+	/** For a covering scan, the position in an index entry of each output field */
+	private int[] entryFields;
+	private TupleDesc coveredTd;
+	private transient DbFileIterator it;
+	private transient ArrayList<RecordId> batch;
+	private transient int nextInBatch;
+	private transient Tuple next;
+	private String tablename;
+	private String alias;
+
+	/**
+	 * Creates a scan over the table of a secondary index, as a part of the
+	 * specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to read the RecordIds of the matching tuples from
+	 * @param ipreds
+	 *            The index predicates to match, on the key fields of the
+	 *            index entries. If null or empty, the scan will return every
+	 *            tuple of the table
+	 * @param tableAlias
+	 *            the alias of the table (needed by the parser); the returned
+	 *            tupleDesc has fields with name tableAlias.fieldName
+	 */
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, List<IndexPredicate> ipreds,
+			String tableAlias) {
+		this(tid, index, ipreds, tableAlias, false);
+	}
+
+	/**
+	 * Creates a scan over the table of a secondary index, as a part of the
+	 * specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to read
+	 * @param ipreds
+	 *            The index predicates to match, on the key fields of the
+	 *            index entries. If null or empty, the scan will return every
+	 *            tuple of the table
+	 * @param tableAlias
+	 *            the alias of the table (needed by the parser)
+	 * @param covering
+	 *            if true, return only the fields held by the index entries,
+	 *            without reading the table
+	 */
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, List<IndexPredicate> ipreds,
+			String tableAlias, boolean covering) {
+		this.tid = tid;
+		this.index = index;
+		this.ipreds = ipreds;
+		this.covering = covering;
+		this.alias = tableAlias;
+		this.tablename = Database.getCatalog().getTableName(index.getTableId());
+		if(ipreds == null || ipreds.isEmpty()) {
+			this.it = index.getFile().iterator(tid);
+		}
+		else {
+			this.it = index.getFile().indexIterator(tid, ipreds);
+		}
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		ArrayList<Integer> fields = new ArrayList<Integer>();
+		for (int i = 0; i < td.numFields(); i++) {
+			if (!covering || index.getEntryField(i) >= 0)
+				fields.add(i);
+		}
+		String[] names = new String[fields.size()];
+		String[] newNames = new String[fields.size()];
+		Type[] newTypes = new Type[fields.size()];
+		entryFields = new int[fields.size()];
+		for (int i = 0; i < fields.size(); i++) {
+			names[i] = td.getFieldName(fields.get(i));
+			newNames[i] = tableAlias + "." + names[i];
+			newTypes[i] = td.getFieldType(fields.get(i));
+			entryFields[i] = index.getEntryField(fields.get(i));
+		}
+		coveredTd = new TupleDesc(newTypes, names);
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * @return true if this scan returns the fields held by the index entries
+	 *         without reading the table
+	 */
+	public boolean isCovering() {
+		return covering;
+	}
+
+	/**
+	 * @return the table name of the table the operator scans, as it appears in
+	 *         the catalog
+	 */
+	public String getTableName() {
+		return this.tablename;
+	}
+
+	/**
+	 * @return the alias of the table this operator scans
+	 */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	/**
+	 * @return the index this operator reads
+	 */
+	public SecondaryIndex getIndex() {
+		return this.index;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it.open();
+		batch = new ArrayList<RecordId>();
+		nextInBatch = 0;
+		next = null;
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the indexed table, with field names prefixed
+	 * with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	/**
+	 * Read the next batch of matching RecordIds from the index, sorted by page
+	 * number and then by slot.
+	 */
+	private void readBatch() throws DbException, TransactionAbortedException {
+		batch.clear();
+		nextInBatch = 0;
+		while(batch.size() < BATCH_SIZE && it.hasNext()) {
+			batch.add(index.getRecordId(it.next()));
+		}
+		Collections.sort(batch, new Comparator<RecordId>() {
+			public int compare(RecordId a, RecordId b) {
+				int pa = a.getPageId().getPageNumber(), pb = b.getPageId().getPageNumber();
+				if(pa != pb)
+					return pa < pb ? -1 : 1;
+				return Integer.compare(a.getTupleNumber(), b.getTupleNumber());
+			}
+		});
+	}
+
+	/**
+	 * @return the next matching tuple of the table, or null if there are none
+	 */
+	private Tuple fetchNext() throws DbException, TransactionAbortedException {
+		if(covering) {
+			if(!it.hasNext())
+				return null;
+			Tuple entry = it.next();
+			Tuple t = new Tuple(coveredTd);
+			for(int i = 0; i < entryFields.length; i++) {
+				t.setField(i, entry.getField(entryFields[i]));
+			}
+			t.setRecordId(index.getRecordId(entry));
+			return t;
+		}
+		while(true) {
+			if(nextInBatch == batch.size()) {
+				readBatch();
+				if(batch.isEmpty())
+					return null;
+			}
+			RecordId rid = batch.get(nextInBatch++);
+			HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+					Permissions.READ_ONLY);
+			Tuple t = page.getTuple(rid.getTupleNumber());
+			if(t != null)
+				return t;
+		}
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		if (next == null)
+			next = fetchNext();
+		return next != null;
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Tuple t = next;
+		next = null;
+		return t;
+	}
+
+	public void close() {
+		it.close();
+		batch = null;
+		next = null;
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
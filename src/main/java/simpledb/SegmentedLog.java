@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SegmentedLog stores the bytes of the log in a sequence of fixed-size
+ * segment files addressed by log sequence number (LSN).  An LSN is a
+ * logical byte offset into the log that never changes once assigned: the
+ * byte at LSN <tt>lsn</tt> lives in segment number <tt>lsn / segmentSize</tt>,
+ * at offset <tt>lsn % segmentSize</tt> within that segment.
+ * <p>
+ * Because records never move, truncating the log only deletes whole
+ * segments that end before the oldest LSN still needed; nothing is copied.
+ * <p>
+ * Segment files are named after the log file with the segment number as a
+ * suffix (for example <tt>log.00000003</tt>). Each segment is created at its
+ * full size, and the segment after the one being written is created ahead
+ * of time, so appends never extend a file. Unwritten bytes read as zero,
+ * which LogFile uses to recognize the end of the log.
+ */
+class SegmentedLog {
+
+    private final File base;
+    private final long segmentSize;
+
+    // open segment files, keyed by segment number
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    // segments written since the last force()
+    private final Set<Long> unforced = new HashSet<Long>();
+
+    /**
+     * Open the segments belonging to the specified log file.  Any segments
+     * already on disk are picked up; nothing is created until the first write.
+     *
+     * @param base the log file whose name prefixes the segment files
+     * @param segmentSize the size in bytes of every segment
+     */
+    SegmentedLog(File base, long segmentSize) throws IOException {
+        this.base = base.getAbsoluteFile();
+        this.segmentSize = segmentSize;
+        for (long segno : existingSegments()) {
+            segments.put(segno, new RandomAccessFile(segmentFile(segno), "rw"));
+        }
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the first LSN still stored in the log, or 0 if the log is empty */
+    synchronized long firstLsn() {
+        return segments.isEmpty() ? 0 : segments.firstKey() * segmentSize;
+    }
+
+    /** @return the LSN just past the last allocated segment */
+    synchronized long endLsn() {
+        return segments.isEmpty() ? 0 : (segments.lastKey() + 1) * segmentSize;
+    }
+
+    /** @return the number of segment files currently on disk */
+    synchronized int numSegments() {
+        return segments.size();
+    }
+
+    File segmentFile(long segno) {
+        return new File(base.getPath() + String.format(".%08d", segno));
+    }
+
+    private List<Long> existingSegments() {
+        List<Long> found = new ArrayList<Long>();
+        File dir = base.getParentFile();
+        String[] names = dir == null ? null : dir.list();
+        if (names == null)
+            return found;
+        String prefix = base.getName() + ".";
+        for (String name : names) {
+            if (!name.startsWith(prefix) || name.length() == prefix.length())
+                continue;
+            String suffix = name.substring(prefix.length());
+            boolean digits = true;
+            for (int i = 0; i < suffix.length(); i++) {
+                if (!Character.isDigit(suffix.charAt(i))) {
+                    digits = false;
+                    break;
+                }
+            }
+            if (digits)
+                found.add(Long.parseLong(suffix));
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    /**
+     * Return the file backing the specified segment, creating and
+     * preallocating it (and the segment after it) if create is set.
+     *
+     * @return the segment file, or null if it does not exist and create is false
+     */
+    private RandomAccessFile segment(long segno, boolean create) throws IOException {
+        RandomAccessFile seg = segments.get(segno);
+        if (seg == null && create) {
+            seg = allocate(segno);
+        }
+        if (create && !segments.containsKey(segno + 1)) {
+            allocate(segno + 1);
+        }
+        return seg;
+    }
+
+    private RandomAccessFile allocate(long segno) throws IOException {
+        RandomAccessFile seg = new RandomAccessFile(segmentFile(segno), "rw");
+        seg.setLength(segmentSize);
+        segments.put(segno, seg);
+        return seg;
+    }
+
+    /**
+     * Write len bytes from b, starting at off, at the specified LSN.  The
+     * bytes may span several segments.
+     */
+    synchronized void write(long lsn, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long segno = lsn / segmentSize;
+            int pos = (int) (lsn % segmentSize);
+            int n = (int) Math.min(len, segmentSize - pos);
+            RandomAccessFile seg = segment(segno, true);
+            seg.seek(pos);
+            seg.write(b, off, n);
+            unforced.add(segno);
+            lsn += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Read up to len bytes starting at the specified LSN into b, starting
+     * at off.  Reading stops at the first missing segment.
+     *
+     * @return the number of bytes read, or -1 if the LSN is not in the log
+     */
+    synchronized int read(long lsn, byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (len > 0) {
+            long segno = lsn / segmentSize;
+            int pos = (int) (lsn % segmentSize);
+            int n = (int) Math.min(len, segmentSize - pos);
+            RandomAccessFile seg = segment(segno, false);
+            if (seg == null)
+                break;
+            seg.seek(pos);
+            seg.readFully(b, off, n);
+            lsn += n;
+            off += n;
+            len -= n;
+            total += n;
+        }
+        return total == 0 && len > 0 ? -1 : total;
+    }
+
+    /** @return a stream that reads the log sequentially from the specified LSN */
+    LogInputStream inputStream(long lsn) {
+        return new LogInputStream(lsn);
+    }
+
+    /**
+     * Delete every segment that lies entirely before the specified LSN.
+     * This is O(number of deleted segments), independent of the log size.
+     */
+    synchronized void truncateBefore(long lsn) throws IOException {
+        long keep = lsn / segmentSize;
+        while (!segments.isEmpty() && segments.firstKey() < keep) {
+            long segno = segments.firstKey();
+            segments.remove(segno).close();
+            unforced.remove(segno);
+            segmentFile(segno).delete();
+        }
+    }
+
+    /** Delete every segment, leaving an empty log. */
+    synchronized void clear() throws IOException {
+        truncateBefore(Long.MAX_VALUE);
+        for (long segno : existingSegments()) {
+            segmentFile(segno).delete();
+        }
+    }
+
+    /** Force every segment written since the last call to disk. */
+    synchronized void force() throws IOException {
+        for (long segno : unforced) {
+            RandomAccessFile seg = segments.get(segno);
+            if (seg != null)
+                seg.getChannel().force(true);
+        }
+        unforced.clear();
+    }
+
+    synchronized void close() throws IOException {
+        for (RandomAccessFile seg : segments.values()) {
+            seg.close();
+        }
+        segments.clear();
+        unforced.clear();
+    }
+
+    /**
+     * Sequential, buffered reader over the log that tracks the LSN of the
+     * next byte it will return.
+     */
+    class LogInputStream extends InputStream {
+        private final byte[] buf = new byte[8192];
+        private long bufStart;
+        private int bufLen = 0;
+        private int bufPos = 0;
+
+        LogInputStream(long lsn) {
+            this.bufStart = lsn;
+        }
+
+        /** @return the LSN of the next byte to be read */
+        long position() {
+            return bufStart + bufPos;
+        }
+
+        private boolean fill() throws IOException {
+            if (bufPos < bufLen)
+                return true;
+            bufStart += bufLen;
+            bufPos = 0;
+            bufLen = Math.max(0, SegmentedLog.this.read(bufStart, buf, 0, buf.length));
+            return bufLen > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return buf[bufPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, bufLen - bufPos);
+            System.arraycopy(buf, bufPos, b, off, n);
+            bufPos += n;
+            return n;
+        }
+    }
+}
@@ -90,6 +90,14 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("calibrate")) {
+            // measure the cost model and write the cost profile of a catalog
+            String[] newargs = new String[args.length-1];
+            for (int i = 1; i < args.length; ++i) {
+                newargs[i-1] = args[i];
+            }
+            CostCalibration.main(newargs);
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * StatementCache keeps the most recently used {@link PreparedStatement}s,
+ * keyed on their normalized SQL text, so that a statement that is prepared
+ * again is neither parsed nor planned again.
+ * <p>
+ * A prepared statement holds the join order chosen for the catalog and
+ * statistics of the time it was planned, so the whole cache is emptied when
+ * a table or index is added to the catalog, or the statistics of a table
+ * are replaced (see {@link Catalog#getVersion} and
+ * {@link TableStats#getStatsVersion}).
+ *
+ * @Threadsafe
+ */
+public class StatementCache {
+
+    /** The default number of statements kept */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final LinkedHashMap<String, PreparedStatement> plans;
+    private long catalogVersion = -1, statsVersion = -1;
+    private long hits, misses;
+
+    /** Create a cache that keeps the specified number of statements */
+    public StatementCache(final int capacity) {
+        plans = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Create a cache that keeps DEFAULT_CAPACITY statements */
+    public StatementCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Normalize the text of a SQL statement: runs of white space outside
+     * string literals become a single space, and leading and trailing white
+     * space and a trailing semicolon are removed. Statements that differ only
+     * in their layout have the same normalized text.
+     */
+    public static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        boolean quoted = false, space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'')
+                quoted = !quoted;
+            if (!quoted && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && sb.length() > 0)
+                sb.append(' ');
+            space = false;
+            sb.append(c);
+        }
+        int end = sb.length();
+        while (end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' '))
+            end--;
+        return sb.substring(0, end);
+    }
+
+    /**
+     * Return the statement with the specified normalized text, or null if
+     * it is not in the cache.
+     */
+    public synchronized PreparedStatement get(String sql) {
+        validate();
+        PreparedStatement ps = plans.get(sql);
+        if (ps == null)
+            misses++;
+        else
+            hits++;
+        return ps;
+    }
+
+    /** Add a statement to the cache, evicting the least recently used one if the cache is full */
+    public synchronized void put(String sql, PreparedStatement ps) {
+        validate();
+        plans.put(sql, ps);
+    }
+
+    /** Empty the cache if the catalog or statistics changed since it was last used */
+    private void validate() {
+        long cv = Database.getCatalog().getVersion();
+        long sv = TableStats.getStatsVersion();
+        if (cv != catalogVersion || sv != statsVersion) {
+            plans.clear();
+            catalogVersion = cv;
+            statsVersion = sv;
+        }
+    }
+
+    /** Remove every statement from the cache */
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    /** Return the number of statements in the cache */
+    public synchronized int size() {
+        validate();
+        return plans.size();
+    }
+
+    /** Return the number of lookups that found their statement */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Return the number of lookups that did not find their statement */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
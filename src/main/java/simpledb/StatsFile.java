@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A StatsFile keeps the {@link TableStats} of the tables of a catalog on
+ * disk, so that they are not recomputed every time the database starts.
+ * <p>
+ * The file starts with an index that gives, for each table, the version of
+ * its statistics, the number of pages of the table when they were computed,
+ * and where its record is in the file. Only the index is read when the file
+ * is opened; the statistics of a table are read the first time they are
+ * asked for. Statistics are recomputed, and the file rewritten, when there
+ * are none for the table, or when the number of pages of the table has
+ * changed by more than the refresh threshold since they were computed.
+ * <p>
+ * The file has the following format:
+ * <pre>
+ *   int MAGIC, int FORMAT_VERSION, int number of tables
+ *   for each table: UTF name, long version, int pages, long offset, int length
+ *   the records of the tables, as written by {@link TableStats#writeTo}
+ * </pre>
+ *
+ * @Threadsafe
+ */
+public class StatsFile {
+
+    static final int MAGIC = 0x53444253;
+    static final int FORMAT_VERSION = 2;
+
+    /**
+     * The default fraction of its pages a table may grow or shrink by before
+     * its statistics are recomputed
+     */
+    public static final double DEFAULT_REFRESH_THRESHOLD = 0.2;
+
+    private static class Entry {
+        long version;
+        int pages;
+        long offset;
+        int length;
+        /** The record of the table, or null if it is still only on disk */
+        byte[] record;
+    }
+
+    private final File file;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private volatile double refreshThreshold = DEFAULT_REFRESH_THRESHOLD;
+
+    /**
+     * Open a stats file, reading its index. A missing file, or one written in
+     * another format, holds no statistics.
+     *
+     * @param file the file; it is created when statistics are first stored
+     */
+    public StatsFile(File file) throws IOException {
+        this.file = file;
+        if (!file.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                System.out.println("Ignoring statistics in " + file + " written in another format");
+                return;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = in.readUTF();
+                Entry e = new Entry();
+                e.version = in.readLong();
+                e.pages = in.readInt();
+                e.offset = in.readLong();
+                e.length = in.readInt();
+                entries.put(name, e);
+            }
+        } catch (EOFException e) {
+            entries.clear();
+            System.out.println("Ignoring truncated statistics in " + file);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the stats file kept next to a catalog file
+     */
+    public static File forCatalog(String catalogFile) {
+        return new File(catalogFile + ".stats");
+    }
+
+    /** @return the file the statistics are kept in */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Set the fraction of its pages a table may grow or shrink by before its
+     * statistics are recomputed.
+     */
+    public void setRefreshThreshold(double threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("refresh threshold must not be negative: " + threshold);
+        refreshThreshold = threshold;
+    }
+
+    /** @return the version of the statistics of a table, 0 if there are none */
+    public synchronized long getVersion(String tableName) {
+        Entry e = entries.get(tableName);
+        return e == null ? 0 : e.version;
+    }
+
+    /**
+     * Return the statistics of a table of the catalog: the stored ones if
+     * they are still current, otherwise newly computed ones, which are
+     * stored in the file.
+     *
+     * @param tableName the name of the table
+     * @param sampleFraction the fraction of the pages of the table read if
+     *        the statistics are recomputed
+     * @return the statistics, or null if the catalog has no such table
+     */
+    public synchronized TableStats getTableStats(String tableName, double sampleFraction)
+            throws IOException {
+        int tableid;
+        try {
+            tableid = Database.getCatalog().getTableId(tableName);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        int ioCostPerPage = CostModel.get().getIoCostPerPage();
+        Entry e = entries.get(tableName);
+        if (e != null && !isStale(e, numPages(tableid)))
+            return TableStats.readFrom(new DataInputStream(new ByteArrayInputStream(readRecord(e))))
+                    .withIoCostPerPage(ioCostPerPage);
+
+        TableStats stats = new TableStats(tableid, ioCostPerPage, sampleFraction);
+        LinkedHashMap<String, TableStats> m = new LinkedHashMap<String, TableStats>();
+        m.put(tableName, stats);
+        store(m);
+        return stats;
+    }
+
+    private boolean isStale(Entry e, int pages) {
+        return Math.abs(pages - e.pages) > refreshThreshold * Math.max(1, e.pages);
+    }
+
+    private static int numPages(int tableid) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).numPages();
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).numPages();
+        return 0;
+    }
+
+    /**
+     * Store the statistics of some tables, replacing any stored ones and
+     * incrementing their versions, and rewrite the file.
+     */
+    public synchronized void store(Map<String, TableStats> stats) throws IOException {
+        for (Map.Entry<String, TableStats> s : stats.entrySet()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            s.getValue().writeTo(out);
+            out.flush();
+
+            Entry e = entries.get(s.getKey());
+            if (e == null) {
+                e = new Entry();
+                entries.put(s.getKey(), e);
+            }
+            e.version++;
+            e.pages = s.getValue().numPages();
+            e.record = bytes.toByteArray();
+            e.length = e.record.length;
+        }
+        write();
+    }
+
+    private byte[] readRecord(Entry e) throws IOException {
+        if (e.record != null)
+            return e.record;
+        byte[] record = new byte[e.length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(e.offset);
+            raf.readFully(record);
+        } finally {
+            raf.close();
+        }
+        return record;
+    }
+
+    /** Write the index and every record to a new file, and replace the old one with it */
+    private void write() throws IOException {
+        // records not yet read are copied from the old file before it is replaced
+        for (Entry e : entries.values())
+            e.record = readRecord(e);
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(index);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeLong(0);
+            out.writeInt(0);
+            out.writeLong(0);
+            out.writeInt(0);
+        }
+        out.flush();
+        long offset = index.size();
+
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        DataOutputStream fout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            fout.writeInt(MAGIC);
+            fout.writeInt(FORMAT_VERSION);
+            fout.writeInt(entries.size());
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                Entry e = me.getValue();
+                e.offset = offset;
+                offset += e.length;
+                fout.writeUTF(me.getKey());
+                fout.writeLong(e.version);
+                fout.writeInt(e.pages);
+                fout.writeLong(e.offset);
+                fout.writeInt(e.length);
+            }
+            for (Entry e : entries.values())
+                fout.write(e.record);
+        } finally {
+            fout.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        for (Entry e : entries.values())
+            e.record = null;
+    }
+}
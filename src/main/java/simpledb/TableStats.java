@@ -1,9 +1,28 @@
 package simpledb;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -15,14 +34,88 @@ public class TableStats {
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
+    /** The cost per page of IO of the default {@link CostModel} */
     static final int IOCOSTPERPAGE = 1000;
 
+    private static volatile StatsFile statsFile;
+
+    /** Incremented whenever the statistics of a table are replaced */
+    private static final AtomicLong statsVersion = new AtomicLong();
+
+    /**
+     * The statistics of the tables as the optimizer sees them: looking up a
+     * table that has no statistics yet reads them from the stats file.
+     */
+    private static final Map<String, TableStats> lazyStatsMap = new AbstractMap<String, TableStats>() {
+        @Override public TableStats get(Object key) {
+            return key instanceof String ? getTableStats((String) key) : null;
+        }
+
+        @Override public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override public TableStats put(String key, TableStats value) {
+            TableStats prev = statsMap.put(key, value);
+            statsVersion.incrementAndGet();
+            return prev;
+        }
+
+        @Override public Set<Map.Entry<String, TableStats>> entrySet() {
+            return statsMap.entrySet();
+        }
+    };
+
+    /**
+     * Return the statistics of a table. If there are none in memory and a
+     * stats file is set, they are read from the file, or computed and stored
+     * in it if it has no current statistics of the table.
+     */
     public static TableStats getTableStats(String tablename) {
-        return statsMap.get(tablename);
+        TableStats s = statsMap.get(tablename);
+        StatsFile f = statsFile;
+        if (s == null && f != null) {
+            try {
+                s = f.getTableStats(tablename, sampleFraction);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read the statistics of table " + tablename, e);
+            }
+            if (s != null) {
+                TableStats prev = statsMap.putIfAbsent(tablename, s);
+                if (prev != null)
+                    s = prev;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Keep the statistics of the tables in a stats file, from which they are
+     * read when first needed; null keeps them in memory only. Statistics
+     * already in memory are kept.
+     */
+    public static void setStatsFile(StatsFile f) {
+        statsFile = f;
+    }
+
+    /** @return the stats file the statistics are kept in, or null */
+    public static StatsFile getStatsFile() {
+        return statsFile;
     }
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        statsVersion.incrementAndGet();
+    }
+
+    /**
+     * Return the version of the statistics, which changes whenever the
+     * statistics of a table are set or recomputed, but not when they are
+     * first read from the stats file or updated for a single tuple. Plans
+     * cached for a version of the statistics are stale once it changes.
+     */
+    public static long getStatsVersion() {
+        return statsVersion.get();
     }
     
     public static void setStatsMap(HashMap<String,TableStats> s)
@@ -44,17 +137,208 @@ public class TableStats {
     }
 
     public static Map<String, TableStats> getStatsMap() {
-        return statsMap;
+        return lazyStatsMap;
+    }
+
+    /**
+     * The number of tuples inserted into and deleted from each table since
+     * the database started, by table id
+     */
+    private static final ConcurrentHashMap<Integer, AtomicLong> modCounts = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    /**
+     * The default fraction of its tuples that may be inserted into or
+     * deleted from a table before its statistics are recomputed
+     */
+    public static final double DEFAULT_DRIFT_THRESHOLD = 0.2;
+
+    /** Tables smaller than this many tuples drift as if they had this many */
+    static final int MIN_DRIFT_TUPLES = 1000;
+
+    private static volatile double driftThreshold = DEFAULT_DRIFT_THRESHOLD;
+
+    /** Recomputes the statistics of tables that have drifted, one table at a time */
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "TableStats refresh");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /** @return the number of tuples inserted into and deleted from a table */
+    public static long getModificationCount(int tableid) {
+        AtomicLong c = modCounts.get(tableid);
+        return c == null ? 0 : c.get();
+    }
+
+    /**
+     * Set the fraction of its tuples that may be inserted into or deleted
+     * from a table before its statistics are recomputed in the background.
+     */
+    public static void setDriftThreshold(double threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("drift threshold must not be negative: " + threshold);
+        driftThreshold = threshold;
+    }
+
+    /** @return the drift threshold, see {@link #setDriftThreshold} */
+    public static double getDriftThreshold() {
+        return driftThreshold;
+    }
+
+    /**
+     * Record that a tuple was inserted into a table. Called by the DbFile of
+     * the table once the tuple is in the file.
+     *
+     * @see #tupleModified
+     */
+    public static void tupleInserted(int tableid, Tuple t) {
+        tupleModified(tableid, t, true);
+    }
+
+    /**
+     * Record that a tuple was deleted from a table. Called by the DbFile of
+     * the table once the tuple is removed from the file.
+     *
+     * @see #tupleModified
+     */
+    public static void tupleDeleted(int tableid, Tuple t) {
+        tupleModified(tableid, t, false);
+    }
+
+    /**
+     * Count a modification of a table, and update the statistics of the
+     * table if they are in memory. The update happens when the tuple is
+     * written, not when its transaction commits, so the statistics also
+     * follow transactions that abort. Once the modifications since the
+     * statistics were computed exceed the drift threshold, new statistics
+     * are computed in the background and replace them.
+     */
+    private static void tupleModified(int tableid, Tuple t, boolean insert) {
+        AtomicLong c = modCounts.get(tableid);
+        if (c == null) {
+            modCounts.putIfAbsent(tableid, new AtomicLong());
+            c = modCounts.get(tableid);
+        }
+        c.incrementAndGet();
+
+        String name;
+        try {
+            name = Database.getCatalog().getTableName(tableid);
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        TableStats s = statsMap.get(name);
+        if (s == null)
+            return;
+        if (insert)
+            s.insertTuple(t);
+        else
+            s.deleteTuple(t);
+        if (s.modifications.incrementAndGet() > driftThreshold * Math.max(MIN_DRIFT_TUPLES, s.baseTuples)
+                && s.refreshing.compareAndSet(false, true))
+            refresh(tableid, name, s);
+    }
+
+    /** Recompute the statistics of a table in the background, and replace old with them */
+    private static void refresh(final int tableid, final String name, final TableStats old) {
+        final double fraction = sampleFraction;
+        refresher.execute(new Runnable() {
+            public void run() {
+                try {
+                    TableStats fresh = new TableStats(tableid, old.ioCostPerPage, fraction);
+                    if (!statsMap.replace(name, old, fresh))
+                        return;
+                    statsVersion.incrementAndGet();
+                    StatsFile f = statsFile;
+                    if (f != null) {
+                        LinkedHashMap<String, TableStats> m = new LinkedHashMap<String, TableStats>();
+                        m.put(name, fresh);
+                        f.store(m);
+                    }
+                } catch (Exception e) {
+                    System.err.println("Failed to refresh the statistics of table " + name + ": " + e);
+                    old.refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    /** The default fraction of the pages of each table read by computeStatistics() */
+    public static final double DEFAULT_SAMPLE_FRACTION = 0.1;
+
+    /**
+     * A sampled HeapFile is read in full up to this many pages, and at least
+     * this many of its pages are read otherwise
+     */
+    static final int MIN_SAMPLE_PAGES = 64;
+
+    private static volatile double sampleFraction = DEFAULT_SAMPLE_FRACTION;
+
+    /**
+     * Set the fraction of the pages of each table that computeStatistics()
+     * reads; 1.0 reads every page.
+     */
+    public static void setSampleFraction(double fraction) {
+        if (fraction <= 0 || fraction > 1)
+            throw new IllegalArgumentException("sample fraction must be in (0, 1]: " + fraction);
+        sampleFraction = fraction;
     }
 
+    /** @return the fraction of the pages of each table that computeStatistics() reads */
+    public static double getSampleFraction() {
+        return sampleFraction;
+    }
+
+    /**
+     * Compute the statistics of every table in the catalog, reading a sample
+     * of getSampleFraction() of the pages of each table. The tables are read
+     * in parallel, one per available processor. The statistics are also
+     * stored in the stats file, if one is set.
+     */
     public static void computeStatistics() {
-        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        final double fraction = sampleFraction;
+        final int ioCostPerPage = CostModel.get().getIoCostPerPage();
+        LinkedHashMap<String, Future<TableStats>> pending = new LinkedHashMap<String, Future<TableStats>>();
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
         System.out.println("Computing table stats.");
-        while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+        try {
+            Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+            while (tableIt.hasNext()) {
+                final int tableid = tableIt.next();
+                Future<TableStats> stats = pool.submit(new Callable<TableStats>() {
+                    public TableStats call() {
+                        return new TableStats(tableid, ioCostPerPage, fraction);
+                    }
+                });
+                pending.put(Database.getCatalog().getTableName(tableid), stats);
+            }
+            for (Map.Entry<String, Future<TableStats>> e : pending.entrySet()) {
+                try {
+                    setTableStats(e.getKey(), e.getValue().get());
+                } catch (ExecutionException ex) {
+                    throw new RuntimeException("Failed to compute statistics of table " + e.getKey(),
+                            ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted computing table statistics", ex);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        StatsFile f = statsFile;
+        if (f != null) {
+            LinkedHashMap<String, TableStats> computed = new LinkedHashMap<String, TableStats>();
+            for (String name : pending.keySet())
+                computed.put(name, statsMap.get(name));
+            try {
+                f.store(computed);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to store table statistics in " + f.getFile(), e);
+            }
         }
         System.out.println("Done.");
     }
@@ -66,25 +350,218 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /**
+     * The number of tuples sampled to build the histograms and most common
+     * values of a table
+     */
+    static final int SAMPLE_SIZE = 10000;
+
+    private final int ioCostPerPage;
+    private final int numPages;
+    private int numTuples;
+    private final ColumnStats[] columns;
+
+    /** The number of tuples when the statistics were computed */
+    private final int baseTuples;
+    /** The number of tuples inserted and deleted since the statistics were computed */
+    private final AtomicLong modifications = new AtomicLong();
+    /** Whether new statistics of the table are being computed */
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    /**
+     * Create a new TableStats object, that keeps track of statistics on each
+     * column of a table, reading every page of the table.
+     *
+     * @see #TableStats(int, int, double)
+     */
+    public TableStats(int tableid, int ioCostPerPage) {
+        this(tableid, ioCostPerPage, 1.0);
+    }
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
-     * column of a table
+     * column of a table. The table is read in a single pass, which counts
+     * the tuples, updates the bounds and distinct-value sketch of each column
+     * and keeps a reservoir sample of the tuples, from which the histograms
+     * and most common values are built. A HeapFile is read directly from
+     * disk rather than through the buffer pool, except for the pages the
+     * buffer pool holds, which may have changed since they were read.
+     * <p>
+     * A HeapFile may be sampled: only a random subset of its pages is read,
+     * and the number of tuples and distinct values are scaled up from the
+     * pages read. Other files are always read in full.
      * 
      * @param tableid
      *            The table over which to compute statistics
      * @param ioCostPerPage
      *            The cost per page of IO. This doesn't differentiate between
      *            sequential-scan IO and disk seeks.
+     * @param sampleFraction
+     *            The fraction of the pages of a HeapFile to read, at least
+     *            MIN_SAMPLE_PAGES of them; 1.0 reads every page
      */
-    public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+    public TableStats(int tableid, int ioCostPerPage, double sampleFraction) {
+        // a fixed seed keeps the statistics of a table the same between runs
+        this(tableid, ioCostPerPage, sampleFraction, new Random(tableid));
+    }
+
+    /**
+     * Create a new TableStats object, choosing the pages and tuples sampled
+     * with the specified random number generator.
+     * 
+     * @see #TableStats(int, int, double)
+     */
+    TableStats(int tableid, int ioCostPerPage, double sampleFraction, Random rand) {
+        this.ioCostPerPage = ioCostPerPage;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        TupleDesc td = file.getTupleDesc();
+        columns = new ColumnStats[td.numFields()];
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = new ColumnStats(td.getFieldType(i));
+
+        ArrayList<Tuple> sample = new ArrayList<Tuple>();
+        if (file instanceof HeapFile) {
+            numPages = ((HeapFile) file).numPages();
+            int[] pages = samplePages(numPages, sampleFraction, rand);
+            for (int p : pages) {
+                HeapPageId pid = new HeapPageId(tableid, p);
+                Page cached = Database.getBufferPool().getCachedPage(pid);
+                HeapPage page = (HeapPage) (cached != null ? cached : file.readPage(pid));
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()) {
+                    // a tuple of a cached page may be deleted while it is read
+                    Tuple t = it.next();
+                    if (t != null)
+                        addTuple(t, sample, rand);
+                }
+            }
+            if (pages.length < numPages)
+                numTuples = (int) Math.round((double) numTuples * numPages / pages.length);
+        } else {
+            numPages = file instanceof BTreeFile ? ((BTreeFile) file).numPages() : 0;
+            TransactionId tid = new TransactionId();
+            DbFileIterator it = file.iterator(tid);
+            try {
+                it.open();
+                while (it.hasNext())
+                    addTuple(it.next(), sample, rand);
+                it.close();
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (DbException e) {
+                throw new RuntimeException("Failed to read table " + tableid, e);
+            } catch (TransactionAbortedException e) {
+                throw new RuntimeException("Failed to read table " + tableid, e);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read table " + tableid, e);
+            }
+        }
+
+        for (int i = 0; i < columns.length; i++) {
+            ArrayList<Field> values = new ArrayList<Field>(sample.size());
+            for (Tuple t : sample)
+                values.add(t.getField(i));
+            columns[i].build(values, NUM_HIST_BINS, numTuples);
+        }
+        baseTuples = numTuples;
+    }
+
+    /**
+     * Choose the pages of a file of numPages pages to read for its
+     * statistics: a random fraction of them, but at least MIN_SAMPLE_PAGES,
+     * picked with Floyd's algorithm so the work is proportional to the number
+     * of pages chosen. The pages are returned in ascending order, so the file
+     * is read front to back.
+     */
+    static int[] samplePages(int numPages, double fraction, Random rand) {
+        int k = (int) Math.min(numPages, Math.max(MIN_SAMPLE_PAGES, Math.ceil(numPages * fraction)));
+        int[] pages = new int[k];
+        if (k == numPages) {
+            for (int p = 0; p < k; p++)
+                pages[p] = p;
+            return pages;
+        }
+        HashSet<Integer> chosen = new HashSet<Integer>();
+        for (int j = numPages - k; j < numPages; j++) {
+            int p = rand.nextInt(j + 1);
+            chosen.add(chosen.contains(p) ? j : p);
+        }
+        int i = 0;
+        for (int p : chosen)
+            pages[i++] = p;
+        Arrays.sort(pages);
+        return pages;
+    }
+
+    private TableStats(int ioCostPerPage, int numPages, int numTuples, ColumnStats[] columns) {
+        this.ioCostPerPage = ioCostPerPage;
+        this.numPages = numPages;
+        this.numTuples = numTuples;
+        this.columns = columns;
+        this.baseTuples = numTuples;
+    }
+
+    /**
+     * Return these statistics with a different cost per page of IO, for
+     * statistics that were stored with another cost model.
+     */
+    synchronized TableStats withIoCostPerPage(int ioCostPerPage) {
+        if (ioCostPerPage == this.ioCostPerPage)
+            return this;
+        return new TableStats(ioCostPerPage, numPages, numTuples, columns);
+    }
+
+    /** Write these statistics to a stream */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(ioCostPerPage);
+        out.writeInt(numPages);
+        out.writeInt(numTuples);
+        out.writeInt(columns.length);
+        for (ColumnStats c : columns)
+            c.writeTo(out);
+    }
+
+    /** Read statistics written by {@link #writeTo} */
+    public static TableStats readFrom(DataInputStream in) throws IOException {
+        int ioCostPerPage = in.readInt();
+        int numPages = in.readInt();
+        int numTuples = in.readInt();
+        ColumnStats[] columns = new ColumnStats[in.readInt()];
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = ColumnStats.readFrom(in);
+        return new TableStats(ioCostPerPage, numPages, numTuples, columns);
+    }
+
+    /** Add an inserted tuple to the statistics */
+    private synchronized void insertTuple(Tuple t) {
+        numTuples++;
+        for (int i = 0; i < columns.length; i++)
+            columns[i].insertValue(t.getField(i));
+    }
+
+    /** Remove a deleted tuple from the statistics */
+    private synchronized void deleteTuple(Tuple t) {
+        if (numTuples > 0)
+            numTuples--;
+        for (int i = 0; i < columns.length; i++)
+            columns[i].deleteValue(t.getField(i));
+    }
+
+    /**
+     * Add a tuple to the statistics of each column, and to a reservoir sample
+     * of at most SAMPLE_SIZE tuples: the n-th tuple replaces a random tuple of
+     * the sample with probability SAMPLE_SIZE / n (Vitter's algorithm R).
+     */
+    private void addTuple(Tuple t, ArrayList<Tuple> sample, Random rand) {
+        numTuples++;
+        for (int i = 0; i < columns.length; i++)
+            columns[i].addValue(t.getField(i));
+        if (sample.size() < SAMPLE_SIZE) {
+            sample.add(t);
+        } else {
+            int r = rand.nextInt(numTuples);
+            if (r < SAMPLE_SIZE)
+                sample.set(r, t);
+        }
     }
 
     /**
@@ -99,9 +576,10 @@ public class TableStats {
      * 
      * @return The estimated cost of scanning the table.
      */
-    public double estimateScanCost() {
-        // some code goes here
-        return 0;
+    public synchronized double estimateScanCost() {
+        // a table grows by pages as tuples are inserted, but deletes leave its pages
+        double growth = baseTuples == 0 ? 1.0 : Math.max(1.0, (double) numTuples / baseTuples);
+        return Math.ceil(numPages * growth) * ioCostPerPage;
     }
 
     /**
@@ -113,9 +591,8 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      *         selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
-        // some code goes here
-        return 0;
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
+        return (int) Math.round(numTuples * selectivityFactor);
     }
 
     /**
@@ -129,8 +606,7 @@ public class TableStats {
      * expected selectivity. You may estimate this value from the histograms.
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
-        return 1.0;
+        return columns[field].avgSelectivity(op);
     }
 
     /**
@@ -147,16 +623,43 @@ public class TableStats {
      *         predicate
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        // some code goes here
-        return 1.0;
+        return columns[field].estimateSelectivity(op, constant);
+    }
+
+    /**
+     * Estimate the number of distinct values of a field of the table.
+     *
+     * @param field
+     *            The index of the field
+     * @return The estimated number of distinct values, 0 if the table is
+     *         empty
+     */
+    public long getNumDistinct(int field) {
+        return columns[field].getNumDistinct();
+    }
+
+    /**
+     * @param field
+     *            The index of the field
+     * @return The statistics of the field
+     */
+    public ColumnStats getColumnStats(int field) {
+        return columns[field];
+    }
+
+    /**
+     * @return the number of pages of the table when the statistics were
+     *         computed
+     */
+    public int numPages() {
+        return numPages;
     }
 
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
-        // some code goes here
-        return 0;
+    public synchronized int totalTuples() {
+        return numTuples;
     }
 
 }
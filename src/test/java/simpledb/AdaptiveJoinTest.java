@@ -0,0 +1,227 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class AdaptiveJoinTest extends SimpleDbTestBase {
+
+	private HashMap<String, TableStats> stats;
+	private LogicalPlan lp;
+
+	private static HeapFile createTable(String prefix, ArrayList<ArrayList<Integer>> tuples)
+			throws Exception {
+		File f = File.createTempFile("adaptive", ".dat");
+		f.deleteOnExit();
+		HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+		return Utility.openHeapFile(2, prefix, f);
+	}
+
+	private void addTable(String name, ArrayList<ArrayList<Integer>> tuples) throws Exception {
+		HeapFile hf = createTable(name, tuples);
+		Database.getCatalog().addTable(hf, name);
+		stats.put(name, new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+		lp.addScan(hf.getId(), name);
+	}
+
+	/**
+	 * Set up a chain of three tables, a - b - c. The two fields of a are
+	 * equal, so filters on both of them are estimated to keep far fewer
+	 * tuples than they do.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		stats = new HashMap<String, TableStats>();
+		lp = new LogicalPlan();
+		Random r = new Random(0);
+		ArrayList<ArrayList<Integer>> a = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 2000; i++) {
+			int v = r.nextInt(1000);
+			a.add(new ArrayList<Integer>(Arrays.asList(v, v)));
+		}
+		ArrayList<ArrayList<Integer>> b = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 1000; i++)
+			b.add(new ArrayList<Integer>(Arrays.asList(i, r.nextInt(100))));
+		ArrayList<ArrayList<Integer>> c = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 300; i++)
+			c.add(new ArrayList<Integer>(Arrays.asList(r.nextInt(100), r.nextInt(1000))));
+		addTable("a", a);
+		addTable("b", b);
+		addTable("c", c);
+		lp.addJoin("a.a1", "b.b0", Predicate.Op.EQUALS);
+		lp.addJoin("b.b1", "c.c0", Predicate.Op.EQUALS);
+		lp.addProjectField("null.*", null);
+	}
+
+	/** @return the tuples a plan returns, as strings, in order */
+	private static List<String> run(OpIterator plan) throws Exception {
+		ArrayList<String> l = new ArrayList<String>();
+		plan.open();
+		while (plan.hasNext())
+			l.add(plan.next().toString());
+		plan.close();
+		Collections.sort(l);
+		return l;
+	}
+
+	/** @return the AdaptiveJoin of a plan, or null if it has none */
+	private static AdaptiveJoin find(OpIterator plan) {
+		while (plan instanceof Operator && !(plan instanceof AdaptiveJoin))
+			plan = ((Operator) plan).getChildren()[0];
+		return plan instanceof AdaptiveJoin ? (AdaptiveJoin) plan : null;
+	}
+
+	private static OpIterator scan(TransactionId tid, String table) {
+		return new SeqScan(tid, Database.getCatalog().getTableId(table), table);
+	}
+
+	private OpIterator physicalPlan(TransactionId tid, boolean adaptive) throws Exception {
+		lp.setAdaptive(adaptive);
+		return lp.physicalPlan(tid, stats, false);
+	}
+
+	/**
+	 * When the filters keep many times the tuples estimated, the joins are
+	 * re-planned once they are read, and the query returns the same tuples,
+	 * with the fields in the same order, as the plan chosen first.
+	 */
+	@Test
+	public void replansOnMisestimate() throws Exception {
+		lp.addFilter("a.a0", Predicate.Op.LESS_THAN, "100");
+		lp.addFilter("a.a1", Predicate.Op.LESS_THAN, "100");
+		TransactionId tid = new TransactionId();
+
+		List<String> expected = run(physicalPlan(tid, false));
+		OpIterator plan = physicalPlan(tid, true);
+		AdaptiveJoin aj = find(plan);
+		assertNotNull(aj);
+		assertEquals(expected, run(plan));
+		assertTrue(expected.size() > 0);
+		assertTrue(aj.getJoinTree().toString(), aj.getReoptimizations() > 0);
+
+		// the plan can be run again
+		assertEquals(expected, run(plan));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A plan that was chosen with a build side estimated to hold a single
+	 * tuple is re-planned once the build side is read, and the tuples are
+	 * returned with their fields in the order of that plan.
+	 */
+	@Test
+	public void reordersJoins() throws Exception {
+		LogicalJoinNode bc = new LogicalJoinNode("b", "c", "b1", "c0", Predicate.Op.EQUALS);
+		LogicalJoinNode ba = new LogicalJoinNode("b", "a", "b0", "a1", Predicate.Op.EQUALS);
+		// (b JOIN c) JOIN a, with b the first build side
+		LogicalJoinTree bad = new LogicalJoinTree(ba,
+				new LogicalJoinTree(bc, new LogicalJoinTree("b", 1, 1),
+						new LogicalJoinTree("c", 1, 1), 1, 1),
+				new LogicalJoinTree("a", 1, 1), 1, 1);
+		HashMap<String, Double> selectivities = new HashMap<String, Double>();
+		for (String t : new String[] {"a", "b", "c"})
+			selectivities.put(t, 1.0);
+		TransactionId tid = new TransactionId();
+
+		OpIterator planned = JoinOptimizer.instantiateJoin(ba,
+				JoinOptimizer.instantiateJoin(bc, scan(tid, "b"), scan(tid, "c")), scan(tid, "a"));
+		List<String> expected = run(planned);
+
+		AdaptiveJoin aj = new AdaptiveJoin(lp, bad, stats, selectivities,
+				new String[] {"b", "c", "a"},
+				new OpIterator[] {scan(tid, "b"), scan(tid, "c"), scan(tid, "a")});
+		assertEquals(planned.getTupleDesc(), aj.getTupleDesc());
+		assertEquals(expected, run(aj));
+		assertEquals(1, aj.getReoptimizations());
+		// b is joined to a first, and the result, read as a build side too, to c
+		assertEquals("(b JOIN c ON b.b1 = c.c0)", aj.getJoinTree().toString());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * When the estimates hold, the joins are run as planned.
+	 */
+	@Test
+	public void keepsGoodPlan() throws Exception {
+		lp.addFilter("a.a0", Predicate.Op.LESS_THAN, "500");
+		TransactionId tid = new TransactionId();
+
+		List<String> expected = run(physicalPlan(tid, false));
+		OpIterator plan = physicalPlan(tid, true);
+		AdaptiveJoin aj = find(plan);
+		assertEquals(expected, run(plan));
+		assertEquals(0, aj.getReoptimizations());
+		// the build sides read stand in for their joins, which are done
+		assertSame(aj.getInitialJoinTree().join, aj.getJoinTree().join);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A join of two tables, or a plan with adaptivity off, has no AdaptiveJoin.
+	 */
+	@Test
+	public void notAdaptive() throws Exception {
+		TransactionId tid = new TransactionId();
+		assertNull(find(physicalPlan(tid, false)));
+
+		LogicalPlan two = new LogicalPlan();
+		two.addScan(Database.getCatalog().getTableId("a"), "a");
+		two.addScan(Database.getCatalog().getTableId("b"), "b");
+		two.addJoin("a.a1", "b.b0", Predicate.Op.EQUALS);
+		two.addProjectField("null.*", null);
+		two.setAdaptive(true);
+		assertNull(find(two.physicalPlan(tid, stats, false)));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Unit test for AdaptiveJoin.isMisestimate()
+	 */
+	@Test
+	public void misestimate() {
+		assertFalse(AdaptiveJoin.isMisestimate(100, 100));
+		assertFalse(AdaptiveJoin.isMisestimate(100, 30));
+		assertTrue(AdaptiveJoin.isMisestimate(100, 25));
+		assertTrue(AdaptiveJoin.isMisestimate(20, 200));
+		assertTrue(AdaptiveJoin.isMisestimate(10, 0));
+		assertFalse(AdaptiveJoin.isMisestimate(0, 3));
+	}
+
+	/**
+	 * EXPLAIN ANALYZE reports on the tables an AdaptiveJoin reads, and on
+	 * the joins it ran.
+	 */
+	@Test
+	public void explainAnalyze() throws Exception {
+		lp.addFilter("a.a0", Predicate.Op.LESS_THAN, "100");
+		lp.addFilter("a.a1", Predicate.Op.LESS_THAN, "100");
+		TransactionId tid = new TransactionId();
+		List<String> expected = run(physicalPlan(tid, false));
+
+		OpIterator plan = physicalPlan(tid, true);
+		OperatorCardinality.updateOperatorCardinality((Operator) plan,
+				lp.getTableAliasToIdMapping(), stats);
+		Query q = new Query(plan, tid);
+		String report = ExplainAnalyze.run(q, stats);
+		assertTrue(report, report.contains("AdaptiveJoin("));
+		assertTrue(report, report.contains("re-plans)"));
+		assertTrue(report, report.contains("SeqScan(c)  est 300, rows 300,"));
+		assertTrue(report, report.contains(expected.size() + " rows in"));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(AdaptiveJoinTest.class);
+	}
+}
@@ -0,0 +1,254 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBLinkTest extends SimpleDbTestBase {
+
+	private static final int THREADS = 8;
+
+	private BTreeFile bf;
+	private TransactionId tid;
+
+	/**
+	 * Set up an empty B-link tree with small pages, so that a few thousand
+	 * tuples give a tree of three levels.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(1000);
+		File f = File.createTempFile("blink", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		bf = new BTreeFile(f, 0, Utility.getTupleDesc(2), true);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private void insert(int key) throws Exception {
+		bf.insertTuple(tid, Utility.getTuple(new int[] {key, -key}, 2));
+	}
+
+	private BTreePage getPage(BTreePageId pid) throws Exception {
+		return (BTreePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Walk the subtree below pid, checking parent pointers and high keys, and
+	 * collect its pages by level from left to right.
+	 */
+	private void collectPages(BTreePageId pid, BTreePageId parent, Field highKey, int depth,
+			ArrayList<ArrayList<BTreePage>> levels) throws Exception {
+		BTreePage page = getPage(pid);
+		assertEquals(parent, page.getParentId());
+		assertEquals(highKey, page.getHighKey());
+		if(levels.size() == depth)
+			levels.add(new ArrayList<BTreePage>());
+		levels.get(depth).add(page);
+		if(pid.pgcateg() == BTreePageId.LEAF)
+			return;
+		Iterator<BTreeEntry> it = ((BTreeInternalPage) page).iterator();
+		BTreeEntry e = it.next();
+		collectPages(e.getLeftChild(), pid, e.getKey(), depth + 1, levels);
+		while(it.hasNext()) {
+			BTreeEntry next = it.next();
+			collectPages(e.getRightChild(), pid, next.getKey(), depth + 1, levels);
+			e = next;
+		}
+		collectPages(e.getRightChild(), pid, highKey, depth + 1, levels);
+	}
+
+	/**
+	 * Check that the tree is well formed once no operation is running: every
+	 * split has been posted, the right-links of each level chain its pages
+	 * together from left to right, and the tree holds the keys 0 to n-1.
+	 * @return the number of levels
+	 */
+	private int checkTree(int n) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		ArrayList<ArrayList<BTreePage>> levels = new ArrayList<ArrayList<BTreePage>>();
+		collectPages(rootPtr.getRootId(), rootPtr.getId(), null, 0, levels);
+
+		for(ArrayList<BTreePage> level : levels) {
+			for(int i = 0; i < level.size(); i++) {
+				BTreePageId right = (i + 1 < level.size()) ? level.get(i + 1).getId() : null;
+				BTreePage page = level.get(i);
+				if(page instanceof BTreeLeafPage)
+					assertEquals(right, ((BTreeLeafPage) page).getRightSiblingId());
+				else
+					assertEquals(right, ((BTreeInternalPage) page).getRightSiblingId());
+			}
+		}
+
+		int key = 0;
+		for(BTreePage page : levels.get(levels.size() - 1)) {
+			Iterator<Tuple> it = ((BTreeLeafPage) page).iterator();
+			while(it.hasNext()) {
+				assertEquals(new IntField(key++), it.next().getField(0));
+			}
+		}
+		assertEquals(n, key);
+		return levels.size();
+	}
+
+	/**
+	 * Unit test for BTreeFile.insertTuple() on a B-link tree: splits keep the
+	 * high keys and right-links consistent
+	 */
+	@Test public void insertSplits() throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(int i = 0; i < 20000; i++) {
+			keys.add(i);
+		}
+		Collections.shuffle(keys, new Random(0));
+		for(int key : keys) {
+			insert(key);
+		}
+		assertEquals(3, checkTree(20000));
+		for(int i = 0; i < 20000; i += 97) {
+			BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_ONLY, new IntField(i));
+			assertTrue(new IntField(i).compare(Op.GREATER_THAN_OR_EQ, leaf.iterator().next().getField(0)));
+			assertTrue(leaf.getHighKey() == null || new IntField(i).compare(Op.LESS_THAN_OR_EQ, leaf.getHighKey()));
+		}
+	}
+
+	/**
+	 * Unit test for BTreeFile.findLeafPage() on a B-link tree: a search that
+	 * reaches a page whose split has not been posted to the parent yet follows
+	 * the right-link
+	 */
+	@Test public void searchFollowsRightLink() throws Exception {
+		for(int i = 0; i < 1000; i++) {
+			insert(i);
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_WRITE);
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+
+		// take the entry for the third leaf out of the root, as if the split that
+		// created it were still on its way up
+		Iterator<BTreeEntry> it = root.iterator();
+		it.next();
+		BTreeEntry e = it.next();
+		BTreePageId third = e.getRightChild();
+		root.deleteKeyAndRightChild(e);
+
+		Field key = new IntField(((IntField) e.getKey()).getValue() + 1);
+		assertEquals(third, bf.findLeafPage(tid, Permissions.READ_ONLY, key).getId());
+		assertEquals(e.getLeftChild(), bf.findLeafPage(tid, Permissions.READ_ONLY, e.getKey()).getId());
+	}
+
+	/**
+	 * Unit test for BTreeFile.insertTuple() and BTreeFile.findLeafPage() on a
+	 * B-link tree from several threads at once
+	 */
+	@Test public void concurrentInsertsAndLookups() throws Throwable {
+		final int rows = 20000;
+		final Throwable[] failure = new Throwable[1];
+		final ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(int i = 0; i < rows; i++) {
+			keys.add(i);
+		}
+		Collections.shuffle(keys, new Random(1));
+
+		Thread[] threads = new Thread[THREADS + THREADS / 2];
+		for(int k = 0; k < THREADS; k++) {
+			final int thread = k;
+			threads[k] = new Thread() {
+				public void run() {
+					try {
+						TransactionId tid = new TransactionId();
+						for(int i = thread; i < rows; i += THREADS) {
+							int key = keys.get(i);
+							bf.insertTuple(tid, Utility.getTuple(new int[] {key, -key}, 2));
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+		}
+		for(int k = THREADS; k < threads.length; k++) {
+			final int thread = k;
+			threads[k] = new Thread() {
+				public void run() {
+					try {
+						TransactionId tid = new TransactionId();
+						Random r = new Random(thread);
+						for(int n = 0; n < 2000; n++) {
+							BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_ONLY,
+									new IntField(r.nextInt(rows)));
+							if(leaf != null)
+								assertEquals(BTreePageId.LEAF, leaf.getId().pgcateg());
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+		}
+		for(Thread t : threads) {
+			t.start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		if(failure[0] != null)
+			throw failure[0];
+
+		assertEquals(3, checkTree(rows));
+	}
+
+	/**
+	 * Unit test for BTreeFile.deleteTuple() on a B-link tree: pages are not
+	 * merged
+	 */
+	@Test public void deleteDoesNotMerge() throws Exception {
+		for(int i = 0; i < 1000; i++) {
+			insert(i);
+		}
+		int pages = bf.numPages();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		it.close();
+		for(Tuple t : tuples) {
+			bf.deleteTuple(tid, t);
+		}
+		assertEquals(pages, bf.numPages());
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBLinkTest.class);
+	}
+}
@@ -0,0 +1,156 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+
+	/**
+	 * Walk the tree below pid, checking parent pointers and key order, and
+	 * collect its leaves from left to right.
+	 */
+	private void collectLeaves(BTreeFile bf, BTreePageId pid, BTreePageId parent,
+			ArrayList<BTreeLeafPage> leaves) {
+		BTreePage page = (BTreePage) bf.readPage(pid);
+		assertEquals(parent, page.getParentId());
+		if (pid.pgcateg() == BTreePageId.LEAF) {
+			leaves.add((BTreeLeafPage) page);
+			return;
+		}
+		BTreeInternalPage ipage = (BTreeInternalPage) page;
+		assertTrue(ipage.getNumEntries() > 0);
+		Iterator<BTreeEntry> it = ipage.iterator();
+		BTreeEntry e = it.next();
+		collectLeaves(bf, e.getLeftChild(), pid, leaves);
+		while (true) {
+			ArrayList<BTreeLeafPage> right = new ArrayList<BTreeLeafPage>();
+			collectLeaves(bf, e.getRightChild(), pid, right);
+			// the key is the smallest key in the subtree to its right
+			assertEquals(e.getKey(), right.get(0).iterator().next().getField(bf.keyField()));
+			leaves.addAll(right);
+			if (!it.hasNext())
+				break;
+			e = it.next();
+		}
+	}
+
+	/**
+	 * Check that the tree is well formed and holds exactly the specified
+	 * tuples, and return its leaves.
+	 */
+	private ArrayList<BTreeLeafPage> checkTree(BTreeFile bf, ArrayList<ArrayList<Integer>> tuples) {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		ArrayList<BTreeLeafPage> leaves = new ArrayList<BTreeLeafPage>();
+		collectLeaves(bf, rootPtr.getRootId(), rootPtr.getId(), leaves);
+
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for (ArrayList<Integer> t : tuples) {
+			expected.add(t.get(bf.keyField()));
+		}
+		Collections.sort(expected);
+
+		ArrayList<Integer> actual = new ArrayList<Integer>();
+		BTreePageId prev = null;
+		for (int i = 0; i < leaves.size(); i++) {
+			BTreeLeafPage leaf = leaves.get(i);
+			assertEquals(prev, leaf.getLeftSiblingId());
+			assertEquals(i + 1 < leaves.size() ? leaves.get(i + 1).getId() : null,
+					leaf.getRightSiblingId());
+			prev = leaf.getId();
+			Iterator<Tuple> it = leaf.iterator();
+			while (it.hasNext()) {
+				actual.add(((IntField) it.next().getField(bf.keyField())).getValue());
+			}
+		}
+		assertEquals(expected, actual);
+		return leaves;
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() with full pages
+	 */
+	@Test public void loadFull() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 60000, 10000, null, tuples, 0, 1.0);
+		ArrayList<BTreeLeafPage> leaves = checkTree(bf, tuples);
+
+		int max = leaves.get(0).getMaxTuples();
+		// the tuples are spread evenly over as few leaves as possible
+		assertEquals((60000 + max - 1) / max, leaves.size());
+		for (BTreeLeafPage leaf : leaves) {
+			assertTrue(leaf.getNumTuples() >= 60000 / leaves.size());
+		}
+		// the leaves are followed by a single root page, the last page of the file
+		BTreePageId root = ((BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()))).getRootId();
+		assertEquals(BTreePageId.INTERNAL, root.pgcateg());
+		assertEquals(leaves.size() + 1, bf.numPages());
+		assertEquals(bf.numPages(), root.getPageNumber());
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.setFillFactor()
+	 */
+	@Test public void fillFactorLeavesRoom() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, 10000, null, tuples, 1, 0.7);
+		ArrayList<BTreeLeafPage> leaves = checkTree(bf, tuples);
+
+		int max = leaves.get(0).getMaxTuples();
+		for (BTreeLeafPage leaf : leaves) {
+			assertTrue(leaf.getNumTuples() <= (int) (0.7 * max));
+			assertTrue(leaf.getNumTuples() >= max / 2);
+		}
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() when the input is sorted in
+	 * several runs that are merged
+	 */
+	@Test public void mergeRuns() throws Exception {
+		TupleDesc td = Utility.getTupleDesc(2);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeUtility.generateRandomTuples(2, 3000, 100, null, tuples);
+		ArrayList<Tuple> input = new ArrayList<Tuple>();
+		for (ArrayList<Integer> t : tuples) {
+			input.add(Utility.getTuple(new int[] {t.get(0), t.get(1)}, 2));
+		}
+
+		File f = File.createTempFile("bulkload", ".dat");
+		f.deleteOnExit();
+		BTreeBulkLoader loader = new BTreeBulkLoader(f, td, 0);
+		loader.setRunSize(128);
+		assertEquals(3000, loader.load(input.iterator()));
+
+		BTreeFile bf = new BTreeFile(f, 0, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		checkTree(bf, tuples);
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() with no input
+	 */
+	@Test public void loadEmpty() throws Exception {
+		TupleDesc td = Utility.getTupleDesc(2);
+		File f = File.createTempFile("bulkload", ".dat");
+		f.deleteOnExit();
+		assertEquals(0, new BTreeBulkLoader(f, td, 0).load(new ArrayList<Tuple>().iterator()));
+
+		BTreeFile bf = new BTreeFile(f, 0, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		assertNull(((BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()))).getRootId());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
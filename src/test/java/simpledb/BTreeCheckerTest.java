@@ -0,0 +1,113 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCheckerTest extends SimpleDbTestBase {
+
+	private TransactionId tid;
+
+	/**
+	 * Use small pages so that a few thousand tuples make a tree of three levels.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/** @return the sum of an array */
+	private static int sum(int[] a) {
+		int n = 0;
+		for(int x : a)
+			n += x;
+		return n;
+	}
+
+	/**
+	 * Unit test for BTreeChecker.verify() on a full bulk-loaded tree
+	 */
+	@Test public void verifyFullTree() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, 10000, null, null, 0, 1.0);
+		BTreeChecker.Report report = BTreeChecker.verify(bf, tid, true, new ForkJoinPool(4));
+		assertTrue(report.getViolations().toString(), report.isValid());
+		assertEquals(3, report.getDepth());
+		int[] pages = report.getPageCounts();
+		assertEquals(1, pages[0]);
+		assertTrue(pages[1] > 1);
+		assertEquals(bf.numPages(), sum(pages));
+		assertEquals(20000, report.getNumTuples());
+
+		// every leaf is full but the last, and the leaves are laid out in order
+		int[] histogram = report.getFillHistogram();
+		assertEquals(pages[2], sum(histogram));
+		assertTrue(histogram[BTreeChecker.Report.FILL_BUCKETS - 1] >= pages[2] - 1);
+		assertTrue(report.getFragmentation() < 0.01);
+		assertEquals(0.0, report.getLeafDiscontinuity(), 0.0);
+	}
+
+	/**
+	 * Unit test for BTreeChecker.verify() on a half full tree: the report
+	 * shows the fragmentation, and pages below the minimum occupancy of the
+	 * delete policy are violations only if occupancy is checked
+	 */
+	@Test public void verifyHalfFullTree() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, 10000, null, null, 0, 0.5);
+		BTreeChecker.Report report = BTreeChecker.verify(bf, tid, false);
+		assertTrue(report.getViolations().toString(), report.isValid());
+		assertEquals(0.5, report.getFragmentation(), 0.05);
+		int leaves = report.getPageCounts()[report.getDepth() - 1];
+		assertTrue(report.getFillHistogram()[4] + report.getFillHistogram()[5] >= leaves - 1);
+
+		// the bulk loader leaves pages just under half full
+		report = BTreeChecker.verify(bf, tid, true);
+		assertFalse(report.isValid());
+		assertTrue(report.getViolations().get(0).contains("holds only"));
+		bf.setDeletePolicy(BTreeDeletePolicy.LAZY);
+		assertTrue(BTreeChecker.verify(bf, tid, true).isValid());
+	}
+
+	/**
+	 * Unit test for BTreeChecker.verify(): broken sibling and parent pointers
+	 * are reported rather than stopping the check
+	 */
+	@Test public void reportsViolations() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, 10000, null, null, 0, 1.0);
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				new BTreePageId(bf.getId(), 5, BTreePageId.LEAF), Permissions.READ_WRITE);
+		leaf.setRightSiblingId(null);
+		leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				new BTreePageId(bf.getId(), 9, BTreePageId.LEAF), Permissions.READ_WRITE);
+		leaf.setParentId(new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL));
+
+		BTreeChecker.Report report = BTreeChecker.verify(bf, tid, true);
+		assertEquals(report.getViolations().toString(), 2, report.getViolations().size());
+		String violations = report.getViolations().toString();
+		assertTrue(violations.contains("not linked"));
+		assertTrue(violations.contains("points to parent"));
+		assertEquals(20000, report.getNumTuples());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCheckerTest.class);
+	}
+}
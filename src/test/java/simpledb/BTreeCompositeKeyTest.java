@@ -0,0 +1,228 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+
+	private static final int A_VALUES = 20;
+	private static final int B_VALUES = 50;
+
+	private BTreeFile bf;
+	private TransactionId tid;
+
+	/**
+	 * Set up a table (a, b, c) keyed on (a, b), holding every pair of
+	 * 0 <= a < 20 and 0 <= b < 50 with c = 100 * a + b. Small pages spread
+	 * the tuples over a dozen leaves.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(1000);
+		File f = File.createTempFile("composite", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		TupleDesc td = new TupleDesc(new Type[] {Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE},
+				new String[] {"a", "b", "c"});
+		bf = new BTreeFile(f, new int[] {0, 1}, td);
+		Database.getCatalog().addTable(bf, "composite");
+		tid = new TransactionId();
+
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for(int i = 0; i < A_VALUES * B_VALUES; i++) {
+			values.add(i);
+		}
+		Collections.shuffle(values, new Random(0));
+		for(int v : values) {
+			int a = v / B_VALUES, b = v % B_VALUES;
+			bf.insertTuple(tid, Utility.getTuple(new int[] {a, b, 100 * a + b}, 3));
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static CompositeField key(int... values) {
+		Field[] fs = new Field[values.length];
+		for(int i = 0; i < values.length; i++) {
+			fs[i] = new IntField(values[i]);
+		}
+		return new CompositeField(fs);
+	}
+
+	/** @return the c values of the tuples an iterator returns, in order */
+	private static ArrayList<Integer> cValues(DbFileIterator it) throws Exception {
+		ArrayList<Integer> cs = new ArrayList<Integer>();
+		it.open();
+		while(it.hasNext()) {
+			cs.add(((IntField) it.next().getField(2)).getValue());
+		}
+		it.close();
+		return cs;
+	}
+
+	/**
+	 * Unit test for CompositeField.compare(): keys are ordered
+	 * lexicographically, and a prefix equals every key it starts
+	 */
+	@Test public void compare() {
+		assertTrue(key(1, 9).compare(Op.LESS_THAN, key(2, 0)));
+		assertTrue(key(2, 1).compare(Op.GREATER_THAN, key(2, 0)));
+		assertTrue(key(2, 1).compare(Op.EQUALS, key(2, 1)));
+		assertTrue(key(2, 1).compare(Op.EQUALS, key(2)));
+		assertTrue(key(2, 1).compare(Op.LESS_THAN_OR_EQ, key(2)));
+		assertFalse(key(2, 1).compare(Op.GREATER_THAN, key(2)));
+		assertTrue(key(3, 0).compare(Op.GREATER_THAN, key(2)));
+		assertFalse(key(2, 1).equals(key(2)));
+	}
+
+	/**
+	 * A composite key equals no other kind of field, and cannot be compared
+	 * to one
+	 */
+	@Test public void otherFields() {
+		assertFalse(key(2).equals(null));
+		assertFalse(key(2).equals(new IntField(2)));
+		try {
+			key(2).compare(Op.EQUALS, new IntField(2));
+			fail("compared a composite key to an IntField");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Unit test for BTreeFile.iterator() on a composite key: tuples come back
+	 * in (a, b) order
+	 */
+	@Test public void sortedOnAllKeyFields() throws Exception {
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for(int a = 0; a < A_VALUES; a++) {
+			for(int b = 0; b < B_VALUES; b++) {
+				expected.add(100 * a + b);
+			}
+		}
+		assertEquals(expected, cValues(bf.iterator(tid)));
+	}
+
+	/**
+	 * Unit test for BTreeFile.indexIterator() with predicates on a leading
+	 * prefix of the key: a = 5 AND b > 10
+	 */
+	@Test public void prefixRange() throws Exception {
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for(int b = 11; b < B_VALUES; b++) {
+			expected.add(500 + b);
+		}
+		List<IndexPredicate> ipreds = Arrays.asList(
+				new IndexPredicate(Op.EQUALS, key(5)),
+				new IndexPredicate(Op.GREATER_THAN, key(5, 10)));
+		assertEquals(expected, cValues(bf.indexIterator(tid, ipreds)));
+
+		// the search starts at (5, 10), so the leaves holding a < 5 are not read
+		BTreeLeafPage first = bf.findLeafPage(tid, Permissions.READ_ONLY, key(5, 10));
+		assertNotNull(first.getLeftSiblingId());
+		assertTrue(bf.getKey(first.reverseIterator().next()).compare(Op.GREATER_THAN_OR_EQ, key(5, 10)));
+
+		ipreds = Arrays.asList(new IndexPredicate(Op.EQUALS, key(19)),
+				new IndexPredicate(Op.LESS_THAN, key(19, 3)));
+		assertEquals(Arrays.asList(1900, 1901, 1902), cValues(bf.indexIterator(tid, ipreds)));
+	}
+
+	/**
+	 * Unit test for LogicalPlan.physicalPlan(): filters on a prefix of the key
+	 * of a B+ tree become an index scan
+	 */
+	@Test public void physicalPlanUsesIndex() throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t.a", Op.EQUALS, "5");
+		lp.addFilter("t.b", Op.GREATER_THAN, "10");
+		lp.addFilter("t.c", Op.LESS_THAN, "520");
+		lp.addProjectField("t.c", null);
+
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("composite", new TableStats(bf.getId(), 1000));
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+		OpIterator scan = plan;
+		while(scan instanceof Operator) {
+			scan = ((Operator) scan).getChildren()[0];
+		}
+		assertTrue(scan instanceof BTreeScan);
+
+		ArrayList<Integer> cs = new ArrayList<Integer>();
+		plan.open();
+		while(plan.hasNext()) {
+			cs.add(((IntField) plan.next().getField(0)).getValue());
+		}
+		plan.close();
+		assertEquals(Arrays.asList(511, 512, 513, 514, 515, 516, 517, 518, 519), cs);
+	}
+
+	/** @return the scan at the bottom of the plan of a query on the table */
+	private OpIterator getScan(LogicalPlan lp, HashMap<String, TableStats> stats) throws Exception {
+		OpIterator scan = lp.physicalPlan(tid, stats, false);
+		while(scan instanceof Operator) {
+			scan = ((Operator) scan).getChildren()[0];
+		}
+		return scan;
+	}
+
+	/**
+	 * Unit test for LogicalPlan.physicalPlan(): a range on the key is read
+	 * through the index only when it is estimated to read fewer pages than
+	 * scanning the whole table
+	 */
+	@Test public void physicalPlanCostsIndex() throws Exception {
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("composite", new TableStats(bf.getId(), 1000));
+
+		// nearly every tuple
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t.a", Op.GREATER_THAN_OR_EQ, "1");
+		lp.addProjectField("t.c", null);
+		assertTrue(getScan(lp, stats) instanceof SeqScan);
+
+		// a narrow range between two bounds
+		lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t.a", Op.GREATER_THAN, "15");
+		lp.addFilter("t.a", Op.LESS_THAN, "17");
+		lp.addProjectField("t.c", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(getScan(lp, stats) instanceof BTreeScan);
+
+		int n = 0;
+		plan.open();
+		while(plan.hasNext()) {
+			assertEquals(16, ((IntField) plan.next().getField(0)).getValue() / 100);
+			n++;
+		}
+		plan.close();
+		assertEquals(B_VALUES, n);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
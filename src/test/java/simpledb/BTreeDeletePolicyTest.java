@@ -0,0 +1,219 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeDeletePolicyTest extends SimpleDbTestBase {
+
+	private BTreeFile bf;
+	private TransactionId tid;
+	private BTreePageId firstLeafId;
+	private int maxTuples;
+
+	/**
+	 * Bulk load a tree of a few full leaves.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		bf = BTreeUtility.createRandomBTreeFile(2, 2000, 10000, null, null, 0, 1.0);
+		Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+		firstLeafId = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		maxTuples = getLeaf(firstLeafId).getMaxTuples();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.reset();
+	}
+
+	private BTreeLeafPage getLeaf(BTreePageId id) throws Exception {
+		return (BTreeLeafPage) Database.getBufferPool().getPage(tid, id, Permissions.READ_ONLY);
+	}
+
+	/**
+	 * @return the number of tuples on each leaf, from left to right
+	 */
+	private ArrayList<Integer> leaves() throws Exception {
+		ArrayList<Integer> counts = new ArrayList<Integer>();
+		BTreePageId id = firstLeafId;
+		while(id != null) {
+			BTreeLeafPage leaf = getLeaf(id);
+			counts.add(leaf.getNumTuples());
+			id = leaf.getRightSiblingId();
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the number of pages returned to the header pages for reuse
+	 */
+	private int freePages() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		int free = 0;
+		BTreePageId id = rootPtr.getHeaderId();
+		while(id != null) {
+			BTreeHeaderPage header = (BTreeHeaderPage) Database.getBufferPool().getPage(tid, id,
+					Permissions.READ_ONLY);
+			free += header.getNumEmptySlots();
+			id = header.getNextPageId();
+		}
+		return free;
+	}
+
+	/**
+	 * Delete tuples from a leaf until it holds the specified number. Tuples
+	 * that a rebalance moves onto the leaf are not deleted.
+	 * 
+	 * @return the number of tuples deleted
+	 */
+	private int deleteFromLeaf(BTreePageId id, int remaining) throws Exception {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		Iterator<Tuple> it = getLeaf(id).iterator();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		for(int i = 0; i < tuples.size() - remaining; i++) {
+			bf.deleteTuple(tid, tuples.get(i));
+		}
+		return tuples.size() - remaining;
+	}
+
+	/** Check the invariants of the tree, and that it holds the specified number of tuples */
+	private void checkTree(int numTuples, boolean checkOccupancy) throws Exception {
+		BTreeChecker.Report report = BTreeChecker.verify(bf, tid, checkOccupancy);
+		assertTrue(report.getViolations().toString(), report.isValid());
+		assertEquals(numTuples, report.getNumTuples());
+	}
+
+	/**
+	 * Unit test for BTreeFile.deleteTuple() with the default policy: a leaf
+	 * less than half full takes tuples from its full sibling
+	 */
+	@Test public void eagerPolicy() throws Exception {
+		assertEquals(BTreeDeletePolicy.EAGER, bf.getDeletePolicy());
+		ArrayList<Integer> before = leaves();
+
+		int deleted = deleteFromLeaf(firstLeafId, maxTuples / 2 - 1);
+		ArrayList<Integer> after = leaves();
+		assertEquals(before.size(), after.size());
+		// the tuples are split evenly between the leaf and its sibling
+		assertEquals(maxTuples / 2 - 1 + before.get(1), after.get(0) + after.get(1));
+		assertTrue(Math.abs(after.get(0) - after.get(1)) <= 1);
+		assertEquals(0, freePages());
+		checkTree(2000 - deleted, true);
+	}
+
+	/**
+	 * Unit test for BTreeFile.deleteTuple() with the default policy: two
+	 * leaves less than half full are merged, and the page freed is reused
+	 */
+	@Test public void eagerMerge() throws Exception {
+		bf.setDeletePolicy(BTreeDeletePolicy.LAZY);
+		BTreePageId secondLeafId = getLeaf(firstLeafId).getRightSiblingId();
+		int deleted = deleteFromLeaf(secondLeafId, maxTuples / 2);
+		bf.setDeletePolicy(BTreeDeletePolicy.EAGER);
+		int numLeaves = leaves().size();
+
+		// the sibling is half full, so it cannot spare any tuples
+		deleted += deleteFromLeaf(firstLeafId, maxTuples / 2 - 1);
+		ArrayList<Integer> after = leaves();
+		assertEquals(numLeaves - 1, after.size());
+		assertEquals(maxTuples - 1, (int) after.get(0));
+		assertEquals(1, freePages());
+		checkTree(2000 - deleted, true);
+
+		// the next page needed is the one freed, rather than a new one
+		int numPages = bf.numPages();
+		assertEquals(secondLeafId.getPageNumber(),
+				bf.getEmptyPageNo(tid, new HashMap<PageId, Page>()));
+		assertEquals(numPages, bf.numPages());
+	}
+
+	/**
+	 * Unit test for BTreeFile.deleteTuple() with lazy policies: a leaf is left
+	 * sparse until it falls below the lower threshold
+	 */
+	@Test public void lazyPolicies() throws Exception {
+		ArrayList<Integer> before = leaves();
+		bf.setDeletePolicy(BTreeDeletePolicy.LAZY);
+		int deleted = deleteFromLeaf(firstLeafId, maxTuples / 4);
+		assertEquals(maxTuples / 4, (int) leaves().get(0));
+		assertEquals(before.get(1), leaves().get(1));
+		deleted += deleteFromLeaf(firstLeafId, maxTuples / 4 - 1);
+		assertTrue(leaves().get(0) > maxTuples / 4);
+		assertTrue(leaves().get(1) < before.get(1));
+		checkTree(2000 - deleted, true);
+
+		setUp();
+		bf.setDeletePolicy(BTreeDeletePolicy.MERGE_AT_EMPTY);
+		deleted = deleteFromLeaf(firstLeafId, 1);
+		assertEquals(1, (int) leaves().get(0));
+		deleted += deleteFromLeaf(firstLeafId, 0);
+		assertTrue(leaves().get(0) > maxTuples / 4);
+		checkTree(2000 - deleted, true);
+	}
+
+	/**
+	 * Unit test for BTreeDeletePolicy: the thresholds are bounded
+	 */
+	@Test public void minEntries() throws Exception {
+		assertEquals(250, BTreeDeletePolicy.EAGER.getMinEntries(501));
+		assertEquals(125, BTreeDeletePolicy.LAZY.getMinEntries(501));
+		assertEquals(1, BTreeDeletePolicy.MERGE_AT_EMPTY.getMinEntries(501));
+		try {
+			new BTreeDeletePolicy(0.75);
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Unit test for BTreeFile.compact() and BTreeCompactor: the sparse leaves a
+	 * lazy policy leaves behind are merged once the tree is idle, and their
+	 * pages freed
+	 */
+	@Test public void compactor() throws Exception {
+		bf.setDeletePolicy(BTreeDeletePolicy.MERGE_AT_EMPTY);
+		BTreePageId secondLeafId = getLeaf(firstLeafId).getRightSiblingId();
+		int numTuples = 2000 - deleteFromLeaf(firstLeafId, 2) - deleteFromLeaf(secondLeafId, 2);
+		int numLeaves = leaves().size();
+		assertEquals(0, freePages());
+
+		BTreeCompactor compactor = new BTreeCompactor(bf);
+		// the first check only notes the deletes
+		assertFalse(compactor.compactIfIdle());
+		assertTrue(compactor.compactIfIdle());
+		// the two sparse leaves are merged, and the result takes tuples from the next leaf
+		ArrayList<Integer> after = leaves();
+		assertEquals(numLeaves - 1, after.size());
+		assertTrue(after.get(0) >= maxTuples / 2);
+		assertEquals(1, freePages());
+		checkTree(numTuples, false);
+		BTreeChecker.Report report = BTreeChecker.verify(bf, tid, false);
+		assertEquals(numLeaves - 1, report.getPageCounts()[report.getDepth() - 1]);
+
+		// nothing changed since
+		assertFalse(compactor.compactIfIdle());
+		assertEquals(after, leaves());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeDeletePolicyTest.class);
+	}
+}
@@ -172,6 +172,39 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	@Test
+	public void testSplitReusesNearbyPage() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 10);
+		int tableid = empty.getId();
+		int keyField = 0;
+
+		// free a page far from the leaf, and one next to it
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		empty.setEmptyPage(tid, dirtypages, 2);
+		empty.setEmptyPage(tid, dirtypages, 9);
+		BTreePageId leftPageId = new BTreePageId(tableid, 8, BTreePageId.LEAF);
+		BTreeLeafPage leftPage = BTreeUtility.createRandomLeafPage(leftPageId, 2, keyField, 
+				0, BTreeUtility.MAX_RAND_VALUE);
+		BTreePageId parentId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId, 
+				BTreeInternalPage.createEmptyPageData(), keyField);
+		leftPage.setParentId(parentId);
+		dirtypages.put(leftPageId, leftPage);
+		dirtypages.put(parentId, parent);
+		int numPages = empty.numPages();
+
+		// the split takes the page next to the leaf, and the other is still free
+		Field field = new IntField(BTreeUtility.MAX_RAND_VALUE/2);
+		BTreeLeafPage page = empty.splitLeafPage(tid, dirtypages, leftPage, field);
+		BTreePageId newPageId = (page.getId().equals(leftPageId)) ? page.getRightSiblingId() : page.getId();
+		assertEquals(9, newPageId.getPageNumber());
+		assertEquals(2, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(numPages, empty.numPages());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
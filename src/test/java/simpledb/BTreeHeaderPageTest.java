@@ -107,6 +107,31 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
 		assertEquals(50, page.getEmptySlot());
 	}
 
+	/**
+	 * Unit test for BTreeHeaderPage.getEmptySlotNear() and BTreeHeaderPage.getNumEmptySlots()
+	 */
+	@Test public void getEmptySlotNear() throws Exception {
+		BTreeHeaderPage page = new BTreeHeaderPage(pid, EXAMPLE_DATA);
+		assertEquals(32704, page.getNumEmptySlots());
+		page.init();
+		assertEquals(0, page.getNumEmptySlots());
+		assertEquals(-1, page.getEmptySlotNear(100));
+		page.markSlotUsed(3, false);
+		page.markSlotUsed(1000, false);
+		page.markSlotUsed(1000, false);
+		page.markSlotUsed(32703, false);
+		assertEquals(3, page.getNumEmptySlots());
+		assertEquals(3, page.getEmptySlot());
+		assertEquals(3, page.getEmptySlotNear(0));
+		assertEquals(3, page.getEmptySlotNear(500));
+		assertEquals(1000, page.getEmptySlotNear(502));
+		assertEquals(1000, page.getEmptySlotNear(1000));
+		assertEquals(32703, page.getEmptySlotNear(30000));
+		page.markSlotUsed(3, true);
+		assertEquals(2, page.getNumEmptySlots());
+		assertEquals(1000, page.getEmptySlot());
+	}
+
 	/**
 	 * Unit test for BTreeHeaderPage.isSlotUsed() and BTreeHeaderPage.markSlotUsed()
 	 */
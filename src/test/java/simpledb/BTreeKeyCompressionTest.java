@@ -0,0 +1,139 @@
+package simpledb;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeKeyCompressionTest extends SimpleDbTestBase {
+
+	private static final TupleDesc TD = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+
+	@After
+	public void tearDown() throws Exception {
+		Database.reset();
+	}
+
+	private static StringField key(String s) {
+		return new StringField(s, Type.STRING_LEN);
+	}
+
+	/**
+	 * A key that shares a long suffix with every other key, so that only its
+	 * first few characters are needed to tell it apart.
+	 */
+	private static String longKey(int i) {
+		StringBuilder sb = new StringBuilder(String.format("%06d", i));
+		while(sb.length() < 100)
+			sb.append('x');
+		return sb.toString();
+	}
+
+	/**
+	 * Unit test for BTreeFile.getSeparator()
+	 */
+	@Test public void getSeparator() {
+		assertEquals(key("b"), BTreeFile.getSeparator(key("apple"), key("banana")));
+		assertEquals(key("abd"), BTreeFile.getSeparator(key("abc"), key("abdomen")));
+		assertEquals(key("abc!"), BTreeFile.getSeparator(key("abc"), key("abc!x")));
+		// duplicates cannot be separated
+		assertEquals(key("same"), BTreeFile.getSeparator(key("same"), key("same")));
+		assertEquals(new IntField(7), BTreeFile.getSeparator(new IntField(3), new IntField(7)));
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage with string keys: short keys are stored
+	 * at their actual length, and the page survives a round trip to disk
+	 */
+	@Test public void varLengthPage() throws Exception {
+		Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+		BTreePageId pid = new BTreePageId(-1, -1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), 0);
+		int worstCase = page.getMaxEntries();
+
+		int n = 0;
+		while(page.getNumEmptySlots() > 0) {
+			page.insertEntry(new BTreeEntry(key(String.format("k%04d", n)),
+					new BTreePageId(-1, n + 1, BTreePageId.LEAF), new BTreePageId(-1, n + 2, BTreePageId.LEAF)));
+			n++;
+		}
+		assertEquals(n, page.getNumEntries());
+		// five-character keys give several times the fan-out of full-width keys
+		assertTrue(n > 5 * worstCase);
+
+		BTreeInternalPage copy = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(n, copy.getNumEntries());
+		Iterator<BTreeEntry> it = copy.iterator();
+		for(int i = 0; i < n; i++) {
+			BTreeEntry e = it.next();
+			assertEquals(key(String.format("k%04d", i)), e.getKey());
+			assertEquals(i + 1, e.getLeftChild().getPageNumber());
+			assertEquals(i + 2, e.getRightChild().getPageNumber());
+		}
+		assertFalse(it.hasNext());
+		Iterator<BTreeEntry> rit = copy.reverseIterator();
+		assertEquals(key(String.format("k%04d", n - 1)), rit.next().getKey());
+	}
+
+	/**
+	 * Unit test for BTreeFile.insertTuple() with string keys: leaf splits post
+	 * truncated separators, so a single root page indexes many leaves
+	 */
+	@Test public void truncatedSeparators() throws Exception {
+		Database.resetBufferPool(1000);
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		TransactionId tid = new TransactionId();
+
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for(int i = 0; i < 3000; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(0));
+		for(int i : order) {
+			Tuple t = new Tuple(TD);
+			t.setField(0, key(longKey(i)));
+			t.setField(1, new IntField(i));
+			bf.insertTuple(tid, t);
+		}
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		// with full-width keys, this many leaves would need a second internal level
+		assertTrue(root.getNumEntries() > root.getMaxEntries());
+		Iterator<BTreeEntry> it = root.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			assertEquals(BTreePageId.LEAF, e.getLeftChild().pgcateg());
+			assertTrue(((StringField) e.getKey()).getValue().length() <= 6);
+		}
+
+		DbFileIterator tuples = bf.iterator(tid);
+		tuples.open();
+		for(int i = 0; i < 3000; i++) {
+			assertEquals(key(longKey(i)), tuples.next().getField(0));
+		}
+		assertFalse(tuples.hasNext());
+		tuples.close();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeKeyCompressionTest.class);
+	}
+}
@@ -0,0 +1,199 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchTest extends SimpleDbTestBase {
+
+	private static final int THREADS = 8;
+
+	/**
+	 * Create a B+ tree holding the even keys 0, 2, ..., 2*(rows-1), with
+	 * every page half full.
+	 */
+	private BTreeFile createHalfFullTree(int rows) throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < rows; i++) {
+			tuples.add(new ArrayList<Integer>(Arrays.asList(2 * i, i)));
+		}
+		File hFile = File.createTempFile("table", ".dat");
+		hFile.deleteOnExit();
+		File bFile = File.createTempFile("table_index", ".dat");
+		bFile.deleteOnExit();
+		return BTreeFileEncoder.bulkLoad(tuples, hFile, bFile, 2, 0, 0.5);
+	}
+
+	private void runAll(Thread[] threads, final Throwable[] failure) throws Throwable {
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		if (failure[0] != null)
+			throw failure[0];
+	}
+
+	/**
+	 * Unit test for BTreeFile.insertTuple() and BTreeFile.findLeafPage()
+	 * from several threads at once
+	 */
+	@Test public void concurrentInsertsAndLookups() throws Throwable {
+		final int rows = 4000;
+		final BTreeFile bf = createHalfFullTree(rows);
+		final Throwable[] failure = new Throwable[1];
+
+		// no leaf is split, so every existing key stays on the same leaf
+		final HashMap<Integer, BTreePageId> leafOf = new HashMap<Integer, BTreePageId>();
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < rows; i++) {
+			leafOf.put(2 * i, bf.findLeafPage(tid, Permissions.READ_ONLY, new IntField(2 * i)).getId());
+		}
+
+		Thread[] threads = new Thread[2 * THREADS];
+		for (int k = 0; k < THREADS; k++) {
+			final int thread = k;
+			// inserters add an odd key after every fourth even key, which
+			// fits in the free space of the leaves without splitting them
+			threads[k] = new Thread() {
+				public void run() {
+					try {
+						TransactionId tid = new TransactionId();
+						for (int i = thread * 4; i < rows; i += 4 * THREADS) {
+							bf.insertTuple(tid, Utility.getTuple(new int[] {2 * i + 1, i}, 2));
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+			// readers look up existing keys while the inserts run
+			threads[THREADS + k] = new Thread() {
+				public void run() {
+					try {
+						TransactionId tid = new TransactionId();
+						Random r = new Random(thread);
+						for (int n = 0; n < 500; n++) {
+							int key = 2 * r.nextInt(rows);
+							BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_ONLY, new IntField(key));
+							assertEquals(leafOf.get(key), leaf.getId());
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+		}
+		runAll(threads, failure);
+
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < rows; i++) {
+			expected.add(2 * i);
+			if (i % 4 == 0)
+				expected.add(2 * i + 1);
+		}
+		ArrayList<Integer> actual = new ArrayList<Integer>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			actual.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(expected, actual);
+	}
+
+	/**
+	 * Unit test for PageLatches: an exclusive latch keeps out other threads
+	 * until it is released
+	 */
+	@Test public void exclusiveLatch() throws Throwable {
+		final PageLatches latches = new PageLatches();
+		final BTreePageId pid = new BTreePageId(1, 1, BTreePageId.LEAF);
+		final Throwable[] failure = new Throwable[1];
+		final boolean[] acquired = new boolean[1];
+
+		latches.latchTree(false);
+		latches.latch(pid, true);
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					latches.latchTree(false);
+					latches.latch(pid, false);
+					synchronized (acquired) {
+						acquired[0] = true;
+					}
+					latches.releaseAll();
+				} catch (Throwable e) {
+					failure[0] = e;
+				}
+			}
+		};
+		reader.start();
+		Thread.sleep(100);
+		synchronized (acquired) {
+			assertFalse(acquired[0]);
+		}
+		latches.releaseAll();
+		reader.join();
+		if (failure[0] != null)
+			throw failure[0];
+		assertTrue(acquired[0]);
+		assertFalse(latches.holds(pid));
+		// the latch is dropped once no thread holds it
+		assertEquals(0, latches.size());
+	}
+
+	/**
+	 * Unit test for PageLatches: a page keeps its latch only while a thread
+	 * holds it, so latching many pages does not grow the table of latches
+	 */
+	@Test public void latchesDropped() throws Exception {
+		PageLatches latches = new PageLatches();
+		latches.latchTree(false);
+		for (int i = 1; i <= 1000; i++) {
+			BTreePageId pid = new BTreePageId(1, i, BTreePageId.LEAF);
+			latches.latch(pid, i % 2 == 0);
+			latches.latch(pid, false);
+			assertEquals(1, latches.size());
+			latches.release(pid);
+			assertEquals(0, latches.size());
+		}
+		for (int i = 1; i <= 10; i++)
+			latches.latch(new BTreePageId(1, i, BTreePageId.INTERNAL), false);
+		assertEquals(10, latches.size());
+		latches.releaseAllExcept(new BTreePageId(1, 10, BTreePageId.INTERNAL));
+		assertEquals(1, latches.size());
+		latches.releaseAll();
+		assertEquals(0, latches.size());
+	}
+
+	/**
+	 * Unit test for PageLatches: shared latches are never upgraded
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void noUpgrade() throws Exception {
+		PageLatches latches = new PageLatches();
+		BTreePageId pid = new BTreePageId(1, 1, BTreePageId.INTERNAL);
+		latches.latchTree(false);
+		latches.latch(pid, false);
+		try {
+			latches.latch(pid, true);
+		} finally {
+			latches.releaseAll();
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchTest.class);
+	}
+}
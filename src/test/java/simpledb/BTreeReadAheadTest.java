@@ -0,0 +1,154 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeReadAheadTest extends SimpleDbTestBase {
+
+	private BTreeFile bf;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private TransactionId tid;
+
+	/**
+	 * Bulk load a tree of a few dozen leaves, which are laid out contiguously
+	 * at the start of the file, and start with a cold buffer pool.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tuples = new ArrayList<ArrayList<Integer>>();
+		bf = BTreeUtility.createRandomBTreeFile(2, 20000, 10000, null, tuples, 0, 1.0);
+		Database.resetBufferPool(1000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.reset();
+	}
+
+	private boolean isCached(int leafPageNo) {
+		return Database.getBufferPool().isCached(new BTreePageId(bf.getId(), leafPageNo, BTreePageId.LEAF));
+	}
+
+	/**
+	 * Unit test for BTreeFileIterator: opening the scan reads the next window
+	 * of leaves in the background, and the scan still returns every tuple in
+	 * order
+	 */
+	@Test public void fileIteratorReadsAhead() throws Exception {
+		BTreeFileIterator it = (BTreeFileIterator) bf.iterator(tid);
+		it.open();
+		it.readAhead.await();
+		assertEquals(1, it.curp.getId().getPageNumber());
+		for(int i = 2; i <= 1 + BTreeReadAhead.WINDOW; i++) {
+			assertTrue(isCached(i));
+		}
+		assertFalse(isCached(2 + BTreeReadAhead.WINDOW));
+
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for(ArrayList<Integer> t : tuples) {
+			expected.add(t.get(0));
+		}
+		Collections.sort(expected);
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		while(it.hasNext()) {
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(expected, keys);
+	}
+
+	/**
+	 * Unit test for BTreeSearchIterator: a range scan reads ahead from the
+	 * leaf it starts at
+	 */
+	@Test public void searchIteratorReadsAhead() throws Exception {
+		BTreeSearchIterator it = (BTreeSearchIterator) bf.indexIterator(tid,
+				new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(5000)));
+		it.open();
+		it.readAhead.await();
+		int first = it.curp.getId().getPageNumber();
+		assertTrue(first > 1);
+		assertFalse(isCached(first - 1));
+		for(int i = first + 1; i <= first + BTreeReadAhead.WINDOW && i < bf.numPages(); i++) {
+			assertTrue(isCached(i));
+		}
+
+		int n = 0;
+		while(it.hasNext()) {
+			assertTrue(((IntField) it.next().getField(0)).getValue() >= 5000);
+			n++;
+		}
+		it.close();
+		int expected = 0;
+		for(ArrayList<Integer> t : tuples) {
+			if(t.get(0) >= 5000)
+				expected++;
+		}
+		assertEquals(expected, n);
+	}
+
+	/**
+	 * Unit test for BTreeSearchIterator with an upper bound: the read-ahead
+	 * stops at the leaf where the scan ends
+	 */
+	@Test public void readAheadStopsAtUpperBound() throws Exception {
+		BTreeSearchIterator it = (BTreeSearchIterator) bf.indexIterator(tid, Arrays.asList(
+				new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(2000)),
+				new IndexPredicate(Op.LESS_THAN, new IntField(2500))));
+		it.open();
+		it.readAhead.await();
+
+		// the leaves are laid out in key order: find the first one past the bound
+		int last = it.curp.getId().getPageNumber();
+		while(true) {
+			BTreeLeafPage leaf = (BTreeLeafPage) bf.readPage(new BTreePageId(bf.getId(), last, BTreePageId.LEAF));
+			if(((IntField) leaf.reverseIterator().next().getField(0)).getValue() >= 2500)
+				break;
+			last++;
+		}
+		assertTrue(last - it.curp.getId().getPageNumber() < BTreeReadAhead.WINDOW);
+		assertTrue(isCached(last));
+		assertFalse(isCached(last + 1));
+		it.close();
+	}
+
+	/**
+	 * Unit test for BTreeFile.stageRun(): a freed leaf that is reused after a
+	 * run over it was staged is read back empty, not with its old tuples
+	 */
+	@Test public void reusedPageNotStaged() throws Exception {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		bf.setEmptyPage(tid, dirtypages, 5);
+		bf.stageRun(1, 8);
+		BTreePageId freedId = new BTreePageId(bf.getId(), 5, BTreePageId.LEAF);
+		assertTrue(((BTreeLeafPage) bf.readPage(freedId)).getNumTuples() > 0);
+
+		// splitting a leaf next to it reuses the freed page
+		BTreeLeafPage leaf = (BTreeLeafPage) bf.readPage(new BTreePageId(bf.getId(), 3, BTreePageId.LEAF));
+		int numTuples = leaf.getNumTuples();
+		Field field = leaf.iterator().next().getField(0);
+		BTreeLeafPage page = bf.splitLeafPage(tid, dirtypages, leaf, field);
+		BTreeLeafPage newPage = (BTreeLeafPage) dirtypages.get(page.getRightSiblingId());
+		assertEquals(freedId, newPage.getId());
+		assertEquals(numTuples - numTuples / 2, page.getNumTuples());
+		assertEquals(numTuples / 2, newPage.getNumTuples());
+		assertEquals(0, ((BTreeLeafPage) bf.readPage(freedId)).getNumTuples());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeReadAheadTest.class);
+	}
+}
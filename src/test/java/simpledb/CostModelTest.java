@@ -0,0 +1,130 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CostModelTest extends SimpleDbTestBase {
+
+	@After
+	public void tearDown() throws Exception {
+		CostModel.set(CostModel.DEFAULT);
+	}
+
+	private static File tempFile(String suffix) throws IOException {
+		File f = File.createTempFile("costs", suffix);
+		f.deleteOnExit();
+		f.delete();
+		return f;
+	}
+
+	/**
+	 * The default model is the one the optimizer's formulas were written
+	 * with: a page read costs IOCOSTPERPAGE tuples, anything else a tuple.
+	 */
+	@Test public void defaultModel() {
+		CostModel m = CostModel.DEFAULT;
+		assertEquals(TableStats.IOCOSTPERPAGE, m.getSeqPageCost(), 0.0);
+		assertEquals(TableStats.IOCOSTPERPAGE, m.getRandomPageCost(), 0.0);
+		assertEquals(TableStats.IOCOSTPERPAGE, m.getIoCostPerPage());
+		assertEquals(1.0, m.getHashBuildCost(), 0.0);
+		assertEquals(1.0, m.getHashProbeCost(), 0.0);
+		assertEquals(1.0, m.getCompareCost(), 0.0);
+		assertSame(CostModel.DEFAULT, CostModel.get());
+	}
+
+	/**
+	 * A stored cost profile reads back as the same model, and an incomplete
+	 * one is rejected.
+	 */
+	@Test public void storeAndLoad() throws Exception {
+		CostModel m = new CostModel(20000, 80000, 10, 40, 30, 5);
+		File f = tempFile(".costs");
+		m.store(f);
+		CostModel read = CostModel.load(f);
+		assertEquals(2000, read.getSeqPageCost(), 1e-9);
+		assertEquals(8000, read.getRandomPageCost(), 1e-9);
+		assertEquals(4, read.getHashBuildCost(), 1e-9);
+		assertEquals(3, read.getHashProbeCost(), 1e-9);
+		assertEquals(0.5, read.getCompareCost(), 1e-9);
+		assertEquals(2000, read.getIoCostPerPage());
+
+		FileOutputStream out = new FileOutputStream(f);
+		out.write("seq_page_ns=100\n".getBytes("UTF-8"));
+		out.close();
+		try {
+			CostModel.load(f);
+			fail("expected IOException");
+		} catch (IOException e) {
+		}
+		try {
+			new CostModel(1, 1, 0, 1, 1, 1);
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * The join cost formulas weigh hashing and comparing tuples by the model.
+	 */
+	@Test public void joinCosts() throws Exception {
+		JoinOptimizer jo = new JoinOptimizer(new LogicalPlan(), new Vector<LogicalJoinNode>());
+		LogicalJoinNode eq = new LogicalJoinNode("a", "b", "x", "y", Predicate.Op.EQUALS);
+		LogicalJoinNode lt = new LogicalJoinNode("a", "b", "x", "y", Predicate.Op.LESS_THAN);
+		assertEquals(100 + 10 + (200 + 20), jo.estimateJoinCost(eq, 10, 20, 100, 200), 1e-9);
+		assertEquals(100 + 10 * 200 + 10 * 20, jo.estimateJoinCost(lt, 10, 20, 100, 200), 1e-9);
+
+		CostModel.set(new CostModel(1000, 1000, 1, 3, 2, 4));
+		assertEquals(100 + 10 * 3 + (200 + 20 * 2), jo.estimateJoinCost(eq, 10, 20, 100, 200), 1e-9);
+		assertEquals(100 + 10 * 200 + 10 * 20 * 4, jo.estimateJoinCost(lt, 10, 20, 100, 200), 1e-9);
+	}
+
+	/**
+	 * Statistics read from a stats file take the cost per page of the
+	 * model, whatever model they were stored with.
+	 */
+	@Test public void statsFollowModel() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		File f = tempFile(".stats");
+		TableStats s = new StatsFile(f).getTableStats(name, 1.0);
+		assertEquals(hf.numPages() * TableStats.IOCOSTPERPAGE, s.estimateScanCost(), 0.0);
+
+		CostModel.set(new CostModel(300, 300, 1, 1, 1, 1));
+		s = new StatsFile(f).getTableStats(name, 1.0);
+		assertEquals(hf.numPages() * 300, s.estimateScanCost(), 0.0);
+		assertEquals(2000, s.totalTuples());
+	}
+
+	/**
+	 * Calibration measures a positive cost for every CPU operation, and
+	 * keeps the default page costs.
+	 */
+	@Test public void calibrate() throws Exception {
+		CostModel m = CostCalibration.calibrate(8);
+		assertEquals(CostModel.DEFAULT.getSeqPageCost(), m.getSeqPageCost(), 1e-6);
+		assertEquals(CostModel.DEFAULT.getRandomPageCost(), m.getRandomPageCost(), 1e-6);
+		assertTrue(m.getHashBuildCost() > 0);
+		assertTrue(m.getHashProbeCost() > 0);
+		assertTrue(m.getCompareCost() > 0);
+		assertTrue(m.getIoCostPerPage() >= 1);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(CostModelTest.class);
+	}
+}
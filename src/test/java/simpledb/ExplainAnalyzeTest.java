@@ -0,0 +1,151 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ExplainAnalyzeTest extends SimpleDbTestBase {
+
+	private ArrayList<ArrayList<Integer>> tuples1, tuples2;
+	private HeapFile f1;
+	private String name1, name2;
+	private Parser parser;
+
+	/**
+	 * Set up two tables of two columns, with statistics.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tuples1 = new ArrayList<ArrayList<Integer>>();
+		name1 = TestUtil.addRandomTable(2, 200, 20, tuples1, "a");
+		f1 = (HeapFile) Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(name1));
+		tuples2 = new ArrayList<ArrayList<Integer>>();
+		name2 = TestUtil.addRandomTable(2, 300, 20, tuples2, "b");
+		parser = new Parser();
+	}
+
+	private int expectedJoin() {
+		int n = 0;
+		for (ArrayList<Integer> t1 : tuples1) {
+			for (ArrayList<Integer> t2 : tuples2) {
+				if (t1.get(0).equals(t2.get(0)))
+					n++;
+			}
+		}
+		return n;
+	}
+
+	/** @return every iterator of an instrumented plan, parents before children */
+	private static List<ExplainAnalyze.ProfiledIterator> all(ExplainAnalyze.ProfiledIterator p) {
+		ArrayList<ExplainAnalyze.ProfiledIterator> l = new ArrayList<ExplainAnalyze.ProfiledIterator>();
+		l.add(p);
+		for (ExplainAnalyze.ProfiledIterator c : p.getProfiledChildren())
+			l.addAll(all(c));
+		return l;
+	}
+
+	/**
+	 * Every operator of an instrumented join counts the tuples it returns
+	 * and the pages it reads, next to its estimated cardinality.
+	 */
+	@Test
+	public void instrumentJoin() throws Exception {
+		TransactionId tid = new TransactionId();
+		LogicalPlan lp = parser.generateLogicalPlan(tid, "SELECT * FROM " + name1 + " t1, "
+				+ name2 + " t2 WHERE t1.a0 = t2.b0;");
+		Map<String, TableStats> stats = TableStats.getStatsMap();
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		OperatorCardinality.updateOperatorCardinality((Operator) plan,
+				lp.getTableAliasToIdMapping(), stats);
+		Query q = new Query(plan, tid);
+
+		String report = ExplainAnalyze.run(q, stats);
+		ExplainAnalyze.ProfiledIterator root = (ExplainAnalyze.ProfiledIterator) q.getPhysicalPlan();
+		assertEquals(expectedJoin(), root.getRows());
+		assertSame(plan, root.getChild());
+
+		int scans = 0;
+		for (ExplainAnalyze.ProfiledIterator p : all(root)) {
+			if (p.getChild() instanceof SeqScan) {
+				scans++;
+				int rows = ((SeqScan) p.getChild()).getTableName().equals(name1) ? 200 : 300;
+				assertEquals(rows, p.getRows());
+				assertEquals(rows, p.getEstimated());
+				assertTrue(p.getHits() + p.getMisses() > 0);
+				assertTrue(p.getReads() <= p.getMisses());
+			}
+			assertTrue(p.getNanos() >= p.getSelfNanos());
+			// a parent's pages include its children's
+			for (ExplainAnalyze.ProfiledIterator c : p.getProfiledChildren())
+				assertTrue(p.getHits() + p.getMisses() >= c.getHits() + c.getMisses());
+		}
+		assertEquals(2, scans);
+		assertTrue(root.getHits() + root.getMisses() >= f1.numPages());
+
+		assertTrue(report, report.contains("SeqScan(" + name1 + " t1)  est 200, rows 200,"));
+		assertTrue(report, report.contains("SeqScan(" + name2 + " t2)  est 300, rows 300,"));
+		assertTrue(report, report.contains("t1.a0 = t2.b0"));
+		assertTrue(report, report.contains(expectedJoin() + " rows in"));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * An iterator that returns many times more or fewer tuples than
+	 * estimated is flagged.
+	 */
+	@Test
+	public void misestimate() throws Exception {
+		TransactionId tid = new TransactionId();
+		ExplainAnalyze.ProfiledIterator p = new ExplainAnalyze.ProfiledIterator(
+				new SeqScan(tid, f1.getId(), "t1"), 10);
+		p.open();
+		while (p.hasNext())
+			p.next();
+		p.close();
+		assertEquals(200, p.getRows());
+		assertTrue(ExplainAnalyze.isMisestimate(p));
+		assertTrue(ExplainAnalyze.report(p).contains("misestimate"));
+		assertFalse(ExplainAnalyze.isMisestimate(new ExplainAnalyze.ProfiledIterator(
+				new SeqScan(tid, f1.getId(), "t1"), 5)));
+		assertFalse(ExplainAnalyze.isMisestimate(new ExplainAnalyze.ProfiledIterator(
+				new SeqScan(tid, f1.getId(), "t1"), -1)));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * The parser prints the report of a statement prefixed with
+	 * EXPLAIN ANALYZE instead of its tuples.
+	 */
+	@Test
+	public void parser() throws Exception {
+		PrintStream out = System.out;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(bytes, true));
+		try {
+			parser.processNextStatement("explain  ANALYZE\nSELECT t1.a1 FROM " + name1
+					+ " t1 WHERE t1.a0 < 10;");
+		} finally {
+			System.setOut(out);
+		}
+		String printed = bytes.toString();
+		assertTrue(printed, printed.contains("Filter(t1.a0 < 10)"));
+		assertTrue(printed, printed.contains("Project(t1.a1)"));
+		assertTrue(printed, printed.contains(" rows in "));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ExplainAnalyzeTest.class);
+	}
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -265,6 +266,38 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
     }
 
+    /**
+     * Verify that the cardinality of an equality join without a primary key
+     * is estimated from the number of distinct values on each side
+     */
+    @Test
+    public void ndvJoinCardinalityTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c3 = t2.c4;"),
+                new Vector<LogicalJoinNode>());
+
+        // count the join's result
+        HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> t : tuples2) {
+            Integer n = counts.get(t.get(4));
+            counts.put(t.get(4), n == null ? 1 : n + 1);
+        }
+        long actual = 0;
+        for (ArrayList<Integer> t : tuples1) {
+            Integer n = counts.get(t.get(3));
+            if (n != null)
+                actual += n;
+        }
+
+        int cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c3", "c4", Predicate.Op.EQUALS), stats1.estimateTableCardinality(1.0),
+                stats2.estimateTableCardinality(1.0), false, false, TableStats.getStatsMap());
+        Assert.assertEquals(actual, cardinality, actual * 0.1);
+    }
+
     /**
      * Determine whether the orderJoins implementation is doing a reasonable job
      * of ordering joins, and not taking an unreasonable amount of time to do so
@@ -621,4 +654,177 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Add an empty table to the catalog and to a logical plan, with
+     * statistics that describe a table of the specified size
+     */
+    private static void addTable(String name, final int pages, final int card,
+            LogicalPlan lp, HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null,
+                new ArrayList<ArrayList<Integer>>(), "c");
+        Database.getCatalog().addTable(f, name);
+        lp.addScan(f.getId(), name);
+        stats.put(name, new TableStats(f.getId(), 1000) {
+            public double estimateScanCost() {
+                return pages * 1000.0;
+            }
+
+            public int estimateTableCardinality(double selectivityFactor) {
+                return (int) (card * selectivityFactor);
+            }
+        });
+        filterSelectivities.put(name, 1.0);
+    }
+
+    /**
+     * Check that a plan joins every relation to the relations joined before
+     * it, as a left-deep plan does
+     */
+    private static void assertLeftDeep(Vector<LogicalJoinNode> plan) {
+        HashSet<String> joined = new HashSet<String>();
+        for (LogicalJoinNode j : plan) {
+            if (!joined.isEmpty())
+                Assert.assertTrue(plan.toString(), joined.contains(j.t1Alias)
+                        || joined.contains(j.t2Alias));
+            joined.add(j.t1Alias);
+            joined.add(j.t2Alias);
+        }
+    }
+
+    /**
+     * Test that orderJoins() finds the cheapest left-deep plan for a chain
+     * of nested-loops joins given in a bad order
+     */
+    @Test
+    public void dynamicProgrammingOrderJoinsTest() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        addTable("big", 1000, 100000, lp, stats, filterSelectivities);
+        addTable("a", 10, 1000, lp, stats, filterSelectivities);
+        addTable("b", 10, 1000, lp, stats, filterSelectivities);
+        addTable("c", 1, 10, lp, stats, filterSelectivities);
+
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("big", "a", "c0", "c0", Predicate.Op.LESS_THAN));
+        nodes.add(new LogicalJoinNode("a", "b", "c1", "c1", Predicate.Op.LESS_THAN));
+        nodes.add(new LogicalJoinNode("b", "c", "c0", "c0", Predicate.Op.LESS_THAN));
+        Vector<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(
+                stats, filterSelectivities, false);
+
+        Assert.assertEquals(nodes.size(), result.size());
+        assertLeftDeep(result);
+        // the smallest table is joined first, and the big one last, as the inner
+        Assert.assertTrue(result.get(0).t1Alias.equals("c") || result.get(0).t2Alias.equals("c"));
+        Assert.assertEquals("big", result.get(2).t2Alias);
+    }
+
+    /**
+     * Test that orderJoinTree() chooses a bushy plan for a chain of hash
+     * joins when it costs less, that physicalPlan() instantiates it, and that
+     * the plan can be displayed
+     */
+    @Test
+    public void bushyOrderJoinsTest() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        addTable("a", 6, 2855, lp, stats, filterSelectivities);
+        addTable("b", 1, 5007, lp, stats, filterSelectivities);
+        addTable("c", 64, 3956, lp, stats, filterSelectivities);
+        addTable("d", 90, 821, lp, stats, filterSelectivities);
+        lp.addJoin("a.c0", "b.c0", Predicate.Op.EQUALS);
+        lp.addJoin("b.c1", "c.c1", Predicate.Op.EQUALS);
+        lp.addJoin("c.c0", "d.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("a.c0", null);
+
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("b", "c", "c1", "c1", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("c", "d", "c0", "c0", Predicate.Op.EQUALS));
+        LogicalJoinTree tree = new JoinOptimizer(lp, nodes).orderJoinTree(
+                stats, filterSelectivities, false);
+
+        // a and b, and c and d, are joined independently
+        Assert.assertFalse(tree.toString(), tree.isLeftDeep());
+        Assert.assertFalse(tree.left.isLeaf() || tree.right.isLeaf());
+        Assert.assertEquals(3, tree.getJoins().size());
+        Assert.assertEquals("b", tree.join.t1Alias);
+
+        OpIterator plan = lp.physicalPlan(new TransactionId(), stats, false);
+        OpIterator root = ((Operator) plan).getChildren()[0];
+        Assert.assertTrue(root instanceof HashEquiJoin);
+        OpIterator[] children = ((Operator) root).getChildren();
+        Assert.assertTrue(children[0] instanceof HashEquiJoin);
+        Assert.assertTrue(children[1] instanceof HashEquiJoin);
+
+        String rendered = new QueryPlanVisualizer().getQueryPlanTree(plan);
+        Assert.assertEquals(3, rendered.split("hash").length - 1);
+    }
+
+    /**
+     * Test that orderJoins() orders a 12-way join with cycles by dynamic
+     * programming within milliseconds
+     */
+    @Test(timeout = 5000)
+    public void twelveWayOrderJoinsTest() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        addTable("fact", 10000, 1000000, lp, stats, filterSelectivities);
+        for (int i = 0; i < 11; i++) {
+            addTable("d" + i, 1 + i, 100 * (i + 1), lp, stats, filterSelectivities);
+            nodes.add(new LogicalJoinNode("fact", "d" + i, "c0", "c0", Predicate.Op.EQUALS));
+            if (i > 0)
+                nodes.add(new LogicalJoinNode("d" + (i - 1), "d" + i, "c1", "c1", Predicate.Op.EQUALS));
+        }
+        Collections.shuffle(nodes);
+
+        long start = System.nanoTime();
+        Vector<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(
+                stats, filterSelectivities, false);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        Assert.assertTrue("ordering took " + millis + "ms", millis < 1000);
+        Assert.assertEquals(nodes.size(), result.size());
+        // the first 11 joins form the left-deep plan over all 12 tables
+        assertLeftDeep(new Vector<LogicalJoinNode>(result.subList(0, 11)));
+        HashSet<String> joined = new HashSet<String>();
+        for (LogicalJoinNode j : result.subList(0, 11)) {
+            joined.add(j.t1Alias);
+            joined.add(j.t2Alias);
+        }
+        Assert.assertEquals(12, joined.size());
+        Assert.assertEquals("fact", result.get(10).t2Alias);
+    }
+
+    /**
+     * Test that orderJoins() falls back to greedy ordering for join graphs
+     * too large to order by dynamic programming
+     */
+    @Test(timeout = 5000)
+    public void greedyOrderJoinsTest() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        int n = JoinOptimizer.MAX_DP_RELATIONS + 4;
+        addTable("t0", 10000, 1000000, lp, stats, filterSelectivities);
+        for (int i = 1; i < n; i++) {
+            addTable("t" + i, i, 100 * i, lp, stats, filterSelectivities);
+            nodes.add(new LogicalJoinNode("t" + (i - 1), "t" + i, "c0", "c0", Predicate.Op.EQUALS));
+        }
+        Collections.shuffle(nodes);
+
+        Vector<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(
+                stats, filterSelectivities, false);
+        Assert.assertEquals(nodes.size(), result.size());
+        Assert.assertTrue(new HashSet<LogicalJoinNode>(result).containsAll(nodes));
+        // the join that makes the largest result comes last
+        LogicalJoinNode last = result.get(result.size() - 1);
+        Assert.assertTrue(last.t1Alias.equals("t0") || last.t2Alias.equals("t0"));
+    }
 }
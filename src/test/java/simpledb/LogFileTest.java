@@ -0,0 +1,197 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private File f;
+    private LogFile log;
+
+    @Before public void createLog() throws Exception {
+        LogFile.setSegmentSize(1024);
+        f = File.createTempFile("logfiletest", "");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    @After public void cleanup() throws Exception {
+        LogFile.resetSegmentSize();
+        new SegmentedLog(f, 1024).clear();
+        f.delete();
+    }
+
+    private void logTransactions(int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+    }
+
+    /**
+     * Unit test for LogFile.logTruncate(): segments before the checkpoint
+     * are dropped without moving the remaining records
+     */
+    @Test public void truncateDropsSegments() throws Exception {
+        logTransactions(200);
+        int before = log.getNumSegments();
+        assertTrue(before > 3);
+
+        long end = log.currentOffset;
+        log.logCheckpoint();
+        assertTrue(log.getNumSegments() <= 3);
+        assertTrue(log.currentOffset > end);
+    }
+
+    /**
+     * Unit test for LogFile.logTruncate(): the first record of an active
+     * transaction is never truncated
+     */
+    @Test public void truncateKeepsActiveTransactions() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long first = log.tidToFirstLogRecord.get(tid.getId());
+        logTransactions(200);
+        log.logCheckpoint();
+        assertEquals(first, (long) log.tidToFirstLogRecord.get(tid.getId()));
+        assertTrue(log.getNumSegments() > 3);
+    }
+
+    /**
+     * Unit test for LogFile.recover(): the end of the log is found again
+     * after a restart
+     */
+    @Test public void reopenFindsEnd() throws Exception {
+        logTransactions(50);
+        log.logCheckpoint();
+        logTransactions(50);
+        long end = log.currentOffset;
+
+        LogFile reopened = new LogFile(f);
+        reopened.recover();
+        assertEquals(end, reopened.currentOffset);
+    }
+
+    /**
+     * Unit test for LogFile appends: every append returns the LSN of its
+     * record, and force(lsn) makes the log durable up to that LSN
+     */
+    @Test public void appendReturnsLsn() throws Exception {
+        TransactionId tid = new TransactionId();
+        long begin = log.logXactionBegin(tid);
+        assertEquals(0, begin);
+        long commit = log.logCommit(tid);
+        assertTrue(commit > begin);
+        assertTrue(log.currentOffset > commit);
+
+        TransactionId tid2 = new TransactionId();
+        long begin2 = log.logXactionBegin(tid2);
+        assertEquals(log.currentOffset - begin2, commit - begin);
+        log.force(log.currentOffset);
+        log.logCommit(tid2);
+
+        LogFile reopened = new LogFile(f);
+        reopened.recover();
+        assertEquals(log.currentOffset, reopened.currentOffset);
+    }
+
+    /**
+     * Unit test for LogFile appends from several threads at once
+     */
+    @Test public void concurrentCommits() throws Exception {
+        Thread[] threads = new Thread[8];
+        final Exception[] failure = new Exception[1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        logTransactions(100);
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure[0] != null)
+            throw failure[0];
+        assertEquals(1600, log.getTotalRecords());
+
+        LogFile reopened = new LogFile(f);
+        reopened.recover();
+        assertEquals(log.currentOffset, reopened.currentOffset);
+    }
+
+    /**
+     * Unit test for LogFile.recover(): committed updates are redone and a
+     * loser's updates are undone
+     */
+    @Test public void recoverRedoesAndUndoes() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        HeapFile images = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        int numPages = hf.numPages();
+        assertTrue(numPages >= 6);
+
+        Page[] before = new Page[numPages];
+        Page[] after = new Page[numPages];
+        for (int i = 0; i < numPages; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            before[i] = hf.readPage(pid);
+            after[i] = new HeapPage(pid,
+                    images.readPage(new HeapPageId(images.getId(), i)).getPageData());
+        }
+
+        // a committed transaction whose pages never reached the disk
+        TransactionId committed = new TransactionId();
+        log.logXactionBegin(committed);
+        for (int i = 0; i < 4; i++) {
+            log.logWrite(committed, before[i], after[i]);
+        }
+        log.logCommit(committed);
+
+        // a loser whose page was written out before the crash
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(loser);
+        log.logWrite(loser, before[4], after[4]);
+        log.force();
+        hf.writePage(after[4]);
+
+        LogFile reopened = new LogFile(f);
+        reopened.recover();
+
+        for (int i = 0; i < numPages; i++) {
+            Page expected = (i < 4) ? after[i] : before[i];
+            assertTrue(Arrays.equals(expected.getPageData(),
+                    hf.readPage(new HeapPageId(hf.getId(), i)).getPageData()));
+        }
+
+        // the loser is aborted, so a second recovery leaves it alone
+        hf.writePage(after[4]);
+        LogFile again = new LogFile(f);
+        again.recover();
+        assertTrue(Arrays.equals(after[4].getPageData(),
+                hf.readPage(new HeapPageId(hf.getId(), 4)).getPageData()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
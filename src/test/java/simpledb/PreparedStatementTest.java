@@ -0,0 +1,198 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+
+	private ArrayList<ArrayList<Integer>> tuples1, tuples2;
+	private String name1, name2;
+	private Parser parser;
+
+	/**
+	 * Set up two tables of two columns, with statistics.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tuples1 = new ArrayList<ArrayList<Integer>>();
+		name1 = TestUtil.addRandomTable(2, 200, 20, tuples1, "a");
+		tuples2 = new ArrayList<ArrayList<Integer>>();
+		name2 = TestUtil.addRandomTable(2, 300, 20, tuples2, "b");
+		parser = new Parser();
+	}
+
+	private static int count(Query q) throws Exception {
+		q.start();
+		int n = 0;
+		while (q.hasNext()) {
+			q.next();
+			n++;
+		}
+		q.close();
+		return n;
+	}
+
+	private int expectedJoin(int max) {
+		int n = 0;
+		for (ArrayList<Integer> t1 : tuples1) {
+			if (t1.get(1) >= max)
+				continue;
+			for (ArrayList<Integer> t2 : tuples2) {
+				if (t1.get(0).equals(t2.get(0)))
+					n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * A join prepared once returns the right tuples for each binding of its
+	 * parameter.
+	 */
+	@Test
+	public void bindJoin() throws Exception {
+		PreparedStatement ps = parser.prepare("SELECT * FROM " + name1 + " t1, " + name2
+				+ " t2 WHERE t1.a0 = t2.b0 AND t1.a1 < ?;");
+		assertEquals(1, ps.numParameters());
+		for (int max : new int[] {5, 15, 0}) {
+			TransactionId tid = new TransactionId();
+			assertEquals(expectedJoin(max), count(ps.bind(tid, Integer.toString(max))));
+			Database.getBufferPool().transactionComplete(tid);
+		}
+	}
+
+	/**
+	 * Statements that differ only in their layout are prepared once.
+	 */
+	@Test
+	public void cacheHit() throws Exception {
+		StatementCache cache = Database.getStatementCache();
+		PreparedStatement ps = parser.prepare("SELECT t1.a0 FROM " + name1 + " t1 WHERE t1.a1 = ?;");
+		long hits = cache.getHits();
+		assertSame(ps, parser.prepare("SELECT  t1.a0\n FROM " + name1 + " t1\tWHERE t1.a1 = ?"));
+		assertEquals(hits + 1, cache.getHits());
+		assertNotSame(ps, parser.prepare("SELECT t1.a0 FROM " + name1 + " t1 WHERE t1.a1 > ?"));
+	}
+
+	/**
+	 * The cache is emptied when statistics are replaced or a table is added.
+	 */
+	@Test
+	public void invalidation() throws Exception {
+		String sql = "SELECT t1.a0 FROM " + name1 + " t1 WHERE t1.a1 = ?";
+		PreparedStatement ps = parser.prepare(sql);
+		assertSame(ps, parser.prepare(sql));
+
+		int id1 = Database.getCatalog().getTableId(name1);
+		TableStats.setTableStats(name1, new TableStats(id1, TableStats.IOCOSTPERPAGE));
+		PreparedStatement ps2 = parser.prepare(sql);
+		assertNotSame(ps, ps2);
+
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+		assertNotSame(ps2, parser.prepare(sql));
+	}
+
+	/**
+	 * A full cache evicts the least recently used statement.
+	 */
+	@Test
+	public void lruEviction() throws Exception {
+		StatementCache cache = new StatementCache(2);
+		PreparedStatement a = parser.prepare("SELECT * FROM " + name1 + " t1 WHERE t1.a0 = ?");
+		PreparedStatement b = parser.prepare("SELECT * FROM " + name1 + " t1 WHERE t1.a1 = ?");
+		PreparedStatement c = parser.prepare("SELECT * FROM " + name2 + " t2 WHERE t2.b0 = ?");
+		cache.put(a.getSql(), a);
+		cache.put(b.getSql(), b);
+		assertSame(a, cache.get(a.getSql()));
+		cache.put(c.getSql(), c);
+		assertEquals(2, cache.size());
+		assertNull(cache.get(b.getSql()));
+		assertSame(a, cache.get(a.getSql()));
+		assertSame(c, cache.get(c.getSql()));
+	}
+
+	/**
+	 * Normalization only changes white space outside strings and a trailing
+	 * semicolon.
+	 */
+	@Test
+	public void normalize() {
+		assertEquals("SELECT * FROM t WHERE t.s = 'a  b'",
+				StatementCache.normalize("  SELECT *\n\tFROM t  WHERE t.s = 'a  b' ;"));
+	}
+
+	/**
+	 * Binding the wrong number of values, or a value of the wrong type, fails.
+	 */
+	@Test
+	public void badParameters() throws Exception {
+		PreparedStatement ps = parser.prepare("SELECT * FROM " + name1 + " t1 WHERE t1.a0 = ?");
+		try {
+			ps.bind(new TransactionId());
+			fail("expected ParsingException");
+		} catch (ParsingException e) {
+		}
+		try {
+			ps.bind(new TransactionId(), "1", "2");
+			fail("expected ParsingException");
+		} catch (ParsingException e) {
+		}
+		try {
+			ps.bind(new TransactionId(), "one");
+			fail("expected ParsingException");
+		} catch (ParsingException e) {
+		}
+	}
+
+	/**
+	 * An INSERT ... VALUES statement binds its parameters to the fields of
+	 * the tuple it inserts.
+	 */
+	@Test
+	public void insertValues() throws Exception {
+		PreparedStatement ps = parser.prepare("INSERT INTO " + name1 + " VALUES (?, 7)");
+		assertEquals(1, ps.numParameters());
+		assertTrue(ps.bind(new TransactionId(), "3").getPhysicalPlan() instanceof Insert);
+		try {
+			ps.bind(new TransactionId(), "three");
+			fail("expected ParsingException");
+		} catch (ParsingException e) {
+		}
+	}
+
+	/**
+	 * Statements with subqueries and parameters compared with anything but
+	 * a field cannot be prepared.
+	 */
+	@Test
+	public void unsupported() throws Exception {
+		try {
+			parser.prepare("SELECT * FROM " + name1 + " t1 WHERE t1.a0 IN (SELECT t2.b0 FROM "
+					+ name2 + " t2 WHERE t2.b1 = ?)");
+			fail("expected ParsingException");
+		} catch (ParsingException e) {
+		}
+		try {
+			parser.prepare("SELECT * FROM " + name1 + " t1 WHERE ? = ?");
+			fail("expected ParsingException");
+		} catch (ParsingException e) {
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(PreparedStatementTest.class);
+	}
+}
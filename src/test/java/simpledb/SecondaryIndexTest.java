@@ -0,0 +1,273 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 2000;
+	private static final int B_VALUES = 100;
+
+	private HeapFile hf;
+	private TransactionId tid;
+
+	/**
+	 * Set up an empty heap file table (a, b).
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.resetBufferPool(1000);
+		File f = File.createTempFile("heap", ".dat");
+		f.deleteOnExit();
+		hf = new HeapFile(f, new TupleDesc(new Type[] {Type.INT_TYPE, Type.INT_TYPE},
+				new String[] {"a", "b"}));
+		Database.getCatalog().addTable(hf, "heap");
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.reset();
+	}
+
+	/** @return a new index on field b of the table, registered in the catalog */
+	private SecondaryIndex addIndex() throws Exception {
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		SecondaryIndex index = new SecondaryIndex("heap_b", f, hf.getId(), new int[] {1});
+		Database.getCatalog().addIndex(index);
+		return index;
+	}
+
+	/** Insert the tuples (i, i % 100) for 0 <= i < 2000, in shuffled order */
+	private void insertRows() throws Exception {
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for(int i = 0; i < ROWS; i++) {
+			values.add(i);
+		}
+		Collections.shuffle(values, new Random(0));
+		for(int i : values) {
+			hf.insertTuple(tid, Utility.getTuple(new int[] {i, i % B_VALUES}, 2));
+		}
+	}
+
+	/** @return the tuples an iterator returns */
+	private static ArrayList<Tuple> readAll(DbFileIterator it) throws Exception {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		it.open();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		it.close();
+		return tuples;
+	}
+
+	/** @return the b values of the entries of an index */
+	private ArrayList<Integer> indexedValues(SecondaryIndex index) throws Exception {
+		ArrayList<Integer> bs = new ArrayList<Integer>();
+		for(Tuple entry : readAll(index.getFile().iterator(tid))) {
+			bs.add(((IntField) entry.getField(0)).getValue());
+			// every entry points at a tuple with the same key
+			HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+					index.getRecordId(entry).getPageId(), Permissions.READ_ONLY);
+			assertEquals(entry.getField(0), page.getTuple(index.getRecordId(entry).getTupleNumber()).getField(1));
+		}
+		return bs;
+	}
+
+	/**
+	 * Unit test for HeapFile.insertTuple() and HeapFile.deleteTuple() on a
+	 * table with a secondary index: the index follows the table
+	 */
+	@Test public void insertAndDeleteMaintainIndex() throws Exception {
+		SecondaryIndex index = addIndex();
+		insertRows();
+		assertEquals(ROWS, indexedValues(index).size());
+
+		for(Tuple t : readAll(hf.iterator(tid))) {
+			if(((IntField) t.getField(1)).getValue() == 7)
+				hf.deleteTuple(tid, t);
+		}
+		ArrayList<Integer> bs = indexedValues(index);
+		assertEquals(ROWS - ROWS / B_VALUES, bs.size());
+		assertFalse(bs.contains(7));
+	}
+
+	/**
+	 * Unit test for SecondaryIndex.build(): an index created after the table
+	 * was loaded covers the tuples already in it
+	 */
+	@Test public void build() throws Exception {
+		insertRows();
+		SecondaryIndex index = addIndex();
+		index.build(tid);
+		ArrayList<Integer> bs = indexedValues(index);
+		assertEquals(ROWS, bs.size());
+		for(int i = 1; i < bs.size(); i++) {
+			assertTrue(bs.get(i - 1) <= bs.get(i));
+		}
+	}
+
+	/**
+	 * Unit test for SecondaryIndexScan: the scan returns the matching tuples,
+	 * fetched in page order
+	 */
+	@Test public void scan() throws Exception {
+		SecondaryIndex index = addIndex();
+		insertRows();
+		List<IndexPredicate> ipreds = Arrays.asList(new IndexPredicate(Op.EQUALS,
+				new CompositeField(new IntField(7))));
+		SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, ipreds, "t");
+		assertEquals("t.b", scan.getTupleDesc().getFieldName(1));
+
+		HashSet<Integer> as = new HashSet<Integer>();
+		int lastPage = -1;
+		scan.open();
+		while(scan.hasNext()) {
+			Tuple t = scan.next();
+			assertEquals(new IntField(7), t.getField(1));
+			as.add(((IntField) t.getField(0)).getValue());
+			int page = t.getRecordId().getPageId().getPageNumber();
+			assertTrue(page >= lastPage);
+			lastPage = page;
+		}
+		scan.close();
+		HashSet<Integer> expected = new HashSet<Integer>();
+		for(int a = 7; a < ROWS; a += B_VALUES) {
+			expected.add(a);
+		}
+		assertEquals(expected, as);
+	}
+
+	/** @return the scan at the bottom of a plan over a single table */
+	private static OpIterator getScan(OpIterator plan) {
+		while(plan instanceof Operator) {
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return plan;
+	}
+
+	/**
+	 * Unit test for LogicalPlan.physicalPlan(): a heap file table is read
+	 * through a secondary index only when its filters are selective
+	 */
+	@Test public void physicalPlanUsesIndex() throws Exception {
+		addIndex();
+		insertRows();
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.b", Op.EQUALS, "7");
+		lp.addProjectField("t.a", null);
+
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("heap", new TableStats(hf.getId(), 1000) {
+			public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+				return 0.5;
+			}
+		});
+		assertTrue(getScan(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+
+		// every page of the table holds a matching tuple, so fetching them
+		// through the index reads as many pages as a full scan, and more
+		stats.put("heap", new TableStats(hf.getId(), 1000) {
+			public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+				return 1.0 / B_VALUES;
+			}
+		});
+		assertTrue(getScan(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+
+		stats.put("heap", new TableStats(hf.getId(), 1000) {
+			public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+				return 1.0 / ROWS;
+			}
+		});
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(getScan(plan) instanceof SecondaryIndexScan);
+
+		int n = 0;
+		plan.open();
+		while(plan.hasNext()) {
+			assertEquals(7, ((IntField) plan.next().getField(0)).getValue() % B_VALUES);
+			n++;
+		}
+		plan.close();
+		assertEquals(ROWS / B_VALUES, n);
+	}
+
+	/**
+	 * Unit test for LogicalPlan.physicalPlan() with an index that includes
+	 * every field the query reads: the plan is answered from the index alone
+	 */
+	@Test public void coveringScan() throws Exception {
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		SecondaryIndex index = new SecondaryIndex("heap_b_a", f, hf.getId(), new int[] {1}, new int[] {0});
+		Database.getCatalog().addIndex(index);
+		insertRows();
+		assertTrue(index.covers(Arrays.asList(0, 1)));
+		assertEquals(3, index.getEntryField(0));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.b", Op.EQUALS, "7");
+		lp.addProjectField("t.a", null);
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("heap", new TableStats(hf.getId(), 1000) {
+			public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+				return 1.0 / B_VALUES;
+			}
+		});
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		OpIterator scan = getScan(plan);
+		assertTrue(scan instanceof SecondaryIndexScan);
+		assertTrue(((SecondaryIndexScan) scan).isCovering());
+
+		// drop the table's pages, which were never flushed: only a plan that
+		// does not read the table still finds the tuples
+		for(int i = 0; i < hf.numPages(); i++) {
+			Database.getBufferPool().discardPage(new HeapPageId(hf.getId(), i));
+		}
+		HashSet<Integer> as = new HashSet<Integer>();
+		plan.open();
+		while(plan.hasNext()) {
+			as.add(((IntField) plan.next().getField(0)).getValue());
+		}
+		plan.close();
+		assertEquals(ROWS / B_VALUES, as.size());
+		for(int a : as) {
+			assertEquals(7, a % B_VALUES);
+		}
+
+		// SELECT * needs fields the index does not hold, and fetching the
+		// tuples from the table only pays for a handful of them
+		stats.put("heap", new TableStats(hf.getId(), 1000) {
+			public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+				return 1.0 / ROWS;
+			}
+		});
+		lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.b", Op.EQUALS, "7");
+		lp.addProjectField("*", null);
+		assertFalse(((SecondaryIndexScan) getScan(lp.physicalPlan(tid, stats, false))).isCovering());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
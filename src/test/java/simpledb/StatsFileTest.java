@@ -0,0 +1,147 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class StatsFileTest extends SimpleDbTestBase {
+
+	private File file;
+	private HeapFile hf;
+	private String name;
+
+	/**
+	 * Set up a table of 10 pages and a stats file that does not exist yet.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("catalog", ".stats");
+		file.deleteOnExit();
+		file.delete();
+		hf = SystemTestUtil.createRandomHeapFile(2, 5040, 1000, null, null);
+		name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TableStats.setStatsFile(null);
+	}
+
+	private static void assertSameStats(TableStats expected, TableStats actual) {
+		assertEquals(expected.totalTuples(), actual.totalTuples());
+		assertEquals(expected.estimateScanCost(), actual.estimateScanCost(), 0.0);
+		for (int i = 0; i < 2; i++) {
+			assertEquals(expected.getNumDistinct(i), actual.getNumDistinct(i));
+			for (Op op : new Op[] {Op.EQUALS, Op.LESS_THAN, Op.GREATER_THAN_OR_EQ}) {
+				for (int v = -10; v < 1010; v += 97)
+					assertEquals(expected.estimateSelectivity(i, op, new IntField(v)),
+							actual.estimateSelectivity(i, op, new IntField(v)), 0.0);
+			}
+		}
+	}
+
+	/**
+	 * Statistics read back from a reopened file are the ones that were stored.
+	 */
+	@Test
+	public void roundTrip() throws Exception {
+		StatsFile sf = new StatsFile(file);
+		TableStats computed = sf.getTableStats(name, 1.0);
+		assertEquals(1, sf.getVersion(name));
+		assertTrue(file.exists());
+
+		sf = new StatsFile(file);
+		assertEquals(1, sf.getVersion(name));
+		assertSameStats(computed, sf.getTableStats(name, 1.0));
+		// current statistics are read, not recomputed
+		assertEquals(1, sf.getVersion(name));
+		assertNull(sf.getTableStats("no such table", 1.0));
+	}
+
+	/**
+	 * The records of tables that were not read survive a rewrite of the file.
+	 */
+	@Test
+	public void rewriteKeepsOtherTables() throws Exception {
+		HeapFile other = SystemTestUtil.createRandomHeapFile(2, 2000, 50, null, null);
+		String otherName = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(other, otherName);
+
+		StatsFile sf = new StatsFile(file);
+		TableStats expected = sf.getTableStats(name, 1.0);
+		sf.getTableStats(otherName, 1.0);
+
+		sf = new StatsFile(file);
+		Map<String, TableStats> m = new HashMap<String, TableStats>();
+		m.put(otherName, new TableStats(other.getId(), TableStats.IOCOSTPERPAGE));
+		sf.store(m);
+		assertEquals(2, sf.getVersion(otherName));
+
+		sf = new StatsFile(file);
+		assertEquals(1, sf.getVersion(name));
+		assertSameStats(expected, sf.getTableStats(name, 1.0));
+	}
+
+	/**
+	 * Statistics are recomputed only when the table has changed by more than
+	 * the refresh threshold.
+	 */
+	@Test
+	public void refreshOnChange() throws Exception {
+		StatsFile sf = new StatsFile(file);
+		sf.getTableStats(name, 1.0);
+
+		// one more page is within the threshold of 20%
+		HeapFile grown = SystemTestUtil.createRandomHeapFile(2, 5544, 1000, null, null);
+		Database.getCatalog().addTable(grown, name);
+		assertEquals(5040, sf.getTableStats(name, 1.0).totalTuples());
+		assertEquals(1, sf.getVersion(name));
+
+		// twice as many pages is not
+		grown = SystemTestUtil.createRandomHeapFile(2, 10080, 1000, null, null);
+		Database.getCatalog().addTable(grown, name);
+		assertEquals(10080, sf.getTableStats(name, 1.0).totalTuples());
+		assertEquals(2, sf.getVersion(name));
+
+		sf.setRefreshThreshold(0.0);
+		assertEquals(2, sf.getVersion(name));
+		sf.getTableStats(name, 1.0);
+		assertEquals(2, sf.getVersion(name));
+	}
+
+	/**
+	 * The optimizer's statistics map reads statistics from the stats file
+	 * the first time a table is looked up.
+	 */
+	@Test
+	public void lazyLoad() throws Exception {
+		StatsFile sf = new StatsFile(file);
+		TableStats.setStatsFile(sf);
+		assertEquals(0, sf.getVersion(name));
+		TableStats s = TableStats.getStatsMap().get(name);
+		assertNotNull(s);
+		assertEquals(5040, s.totalTuples());
+		assertEquals(1, sf.getVersion(name));
+		assertSame(s, TableStats.getTableStats(name));
+		assertNull(TableStats.getStatsMap().get("no such table"));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(StatsFileTest.class);
+	}
+}
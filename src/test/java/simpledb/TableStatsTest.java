@@ -1,7 +1,11 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -151,4 +155,197 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Verify that selectivity estimates stay accurate on a skewed column, where
+	 * one value makes up most of the table: the frequent value is a most
+	 * common value, and the rare values next to it are estimated from the
+	 * number of distinct values rather than from the bucket they share with it
+	 */
+	@Test public void skewedSelectivityTest() throws IOException {
+		ArrayList<ArrayList<Integer>> skewed = new ArrayList<ArrayList<Integer>>();
+		Random rand = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			ArrayList<Integer> t = new ArrayList<Integer>();
+			t.add(rand.nextInt(10) == 0 ? rand.nextInt(1000) : 7);
+			t.add(rand.nextInt(5000));
+			skewed.add(t);
+		}
+		HeapFile hf = JoinOptimizerTest.createDuplicateHeapFile(skewed, 2, "c");
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+
+		int[] v = {7, 3, 500, 999};
+		for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+				Predicate.Op.GREATER_THAN_OR_EQ}) {
+			for (int c : v) {
+				Predicate p = new Predicate(0, op, new IntField(c));
+				int n = 0;
+				for (ArrayList<Integer> t : skewed) {
+					if (p.filter(Utility.getHeapTuple(new int[] {t.get(0), t.get(1)})))
+						n++;
+				}
+				double actual = (double) n / skewed.size();
+				// a fixed-width histogram would put 3 in the bucket of 7, and
+				// estimate it at about 0.09
+				Assert.assertEquals(op + " " + c, actual, s.estimateSelectivity(0, op, new IntField(c)),
+						op == Predicate.Op.EQUALS && c != 7 ? 0.0005 : 0.01);
+			}
+		}
+	}
+
+	/**
+	 * Verify the estimate of the number of distinct values of a column, on a
+	 * table larger than the sample
+	 */
+	@Test public void numDistinctTest() throws IOException, DbException, TransactionAbortedException {
+		HashSet<Integer> distinct = new HashSet<Integer>();
+		for (ArrayList<Integer> t : tuples)
+			distinct.add(t.get(0));
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		Assert.assertEquals(distinct.size(), s.getNumDistinct(0));
+
+		ArrayList<ArrayList<Integer>> wide = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 4 * TableStats.SAMPLE_SIZE, 1000000, null, wide);
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		distinct.clear();
+		for (ArrayList<Integer> t : wide)
+			distinct.add(t.get(0));
+		s = new TableStats(hf.getId(), IO_COST);
+		Assert.assertEquals(distinct.size(), s.getNumDistinct(0), distinct.size() * 0.05);
+	}
+
+	/**
+	 * Verify that a sample reads the requested fraction of the pages of a
+	 * table, and that statistics built from it are scaled to the whole table
+	 */
+	@Test public void sampledStatisticsTest() throws IOException, DbException, TransactionAbortedException {
+		Random rand = new Random(1);
+		int[] pages = TableStats.samplePages(1000, 0.25, rand);
+		Assert.assertEquals(250, pages.length);
+		for (int i = 0; i < pages.length; i++) {
+			Assert.assertTrue(pages[i] >= 0 && pages[i] < 1000);
+			if (i > 0)
+				Assert.assertTrue(pages[i] > pages[i - 1]);
+		}
+		// small tables are read in full
+		Assert.assertEquals(TableStats.MIN_SAMPLE_PAGES, TableStats.samplePages(TableStats.MIN_SAMPLE_PAGES, 0.25, rand).length);
+
+		// the table and the sample are both seeded, so the estimates are the same on every run
+		ArrayList<ArrayList<Integer>> big = new ArrayList<ArrayList<Integer>>();
+		HashSet<Integer> distinct = new HashSet<Integer>();
+		int below = 0;
+		for (int i = 0; i < 992 * 200; i++) {
+			int v = rand.nextInt(1000000);
+			big.add(new ArrayList<Integer>(Arrays.asList(v)));
+			distinct.add(v);
+			if (v < 250000)
+				below++;
+		}
+		File f = File.createTempFile("table", ".dat");
+		f.deleteOnExit();
+		HeapFileEncoder.convert(big, f, BufferPool.getPageSize(), 1);
+		HeapFile hf = Utility.openHeapFile(1, f);
+		TableStats s = new TableStats(hf.getId(), IO_COST, 0.4, new Random(2));
+		Assert.assertEquals(200 * IO_COST, s.estimateScanCost(), 0.0001);
+		Assert.assertEquals(big.size(), s.totalTuples(), big.size() * 0.02);
+		Assert.assertEquals(distinct.size(), s.getNumDistinct(0), distinct.size() * 0.1);
+		Assert.assertEquals((double) below / big.size(),
+				s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(250000)), 0.02);
+	}
+
+	/**
+	 * Verify that computeStatistics builds the statistics of every table
+	 */
+	@Test public void computeStatisticsTest() throws IOException, DbException, TransactionAbortedException {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3000, 32, null, new ArrayList<ArrayList<Integer>>());
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		double fraction = TableStats.getSampleFraction();
+		try {
+			TableStats.setSampleFraction(0.5);
+			TableStats.computeStatistics();
+		} finally {
+			TableStats.setSampleFraction(fraction);
+		}
+		Assert.assertEquals(tuples.size(), TableStats.getTableStats(tableName).totalTuples());
+		Assert.assertEquals(3000, TableStats.getTableStats(name).totalTuples());
+	}
+
+	/**
+	 * Verify that the statistics of a table follow the tuples inserted into
+	 * and deleted from it
+	 */
+	@Test public void incrementalUpdateTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 992 * 2, 32, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		TableStats.setTableStats(name, s);
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(50)), 0.0);
+
+		double threshold = TableStats.getDriftThreshold();
+		TransactionId tid = new TransactionId();
+		ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+		long mods = TableStats.getModificationCount(hf.getId());
+		try {
+			// keep these statistics rather than recompute them
+			TableStats.setDriftThreshold(10.0);
+			for (int i = 0; i < 1000; i++) {
+				Tuple t = new Tuple(hf.getTupleDesc());
+				t.setField(0, new IntField(100));
+				hf.insertTuple(tid, t);
+				inserted.add(t);
+			}
+			Assert.assertEquals(mods + 1000, TableStats.getModificationCount(hf.getId()));
+			Assert.assertEquals(2984, s.totalTuples());
+			Assert.assertEquals(1000.0 / 2984, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(50)), 0.03);
+			Assert.assertTrue(s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)) > 0);
+
+			for (Tuple t : inserted)
+				hf.deleteTuple(tid, t);
+			Assert.assertEquals(1984, s.totalTuples());
+			Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(50)), 0.03);
+		} finally {
+			TableStats.setDriftThreshold(threshold);
+		}
+	}
+
+	/**
+	 * Verify that the statistics of a table are recomputed once it has
+	 * drifted by more than the drift threshold
+	 */
+	@Test public void driftRefreshTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 992 * 2, 32, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		TableStats.setTableStats(name, s);
+
+		double threshold = TableStats.getDriftThreshold();
+		TransactionId tid = new TransactionId();
+		try {
+			TableStats.setDriftThreshold(10.0);
+			for (int i = 0; i < 1000; i++) {
+				Tuple t = new Tuple(hf.getTupleDesc());
+				t.setField(0, new IntField(100 + i));
+				hf.insertTuple(tid, t);
+			}
+			Assert.assertSame(s, TableStats.getTableStats(name));
+
+			TableStats.setDriftThreshold(0.1);
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(5000));
+			hf.insertTuple(tid, t);
+		} finally {
+			TableStats.setDriftThreshold(threshold);
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (TableStats.getTableStats(name) == s && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		TableStats fresh = TableStats.getTableStats(name);
+		Assert.assertNotSame(s, fresh);
+		Assert.assertEquals(2985, fresh.totalTuples());
+		Assert.assertEquals(1032, fresh.getNumDistinct(0), 1032 * 0.05);
+	}
 }
@@ -3,6 +3,8 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 
+import simpledb.systemtest.SystemTestUtil;
+
 import static org.junit.Assert.*;
 
 public class TestUtil {
@@ -190,6 +192,22 @@ public class TestUtil {
         return buf;
     }
 
+    /**
+     * Create a table of random tuples, and add it to the catalog with its
+     * statistics, under a unique name the parser accepts.
+     * @return the name of the table
+     */
+    public static String addRandomTable(int columns, int rows, int maxValue,
+            ArrayList<ArrayList<Integer>> tuples, String colPrefix)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(columns, rows, maxValue, null,
+                tuples, colPrefix);
+        String name = "t" + SystemTestUtil.getUUID().replace("-", "");
+        Database.getCatalog().addTable(f, name);
+        TableStats.setTableStats(name, new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+        return name;
+    }
+
     /**
      * Stub DbFile class for unit testing.
      */